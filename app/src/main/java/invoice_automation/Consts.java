@@ -1,8 +1,8 @@
 package invoice_automation;
 
+import java.time.Duration;
+
 public class Consts {
-    public static final int BMUN_SESSION_NO = 72;
-    public static final int FC_NO = 3;
     /**
      * The base URL to use for API calls when in Sandbox mode
      */
@@ -10,4 +10,76 @@ public class Consts {
     public static final String SCHOOL_FEE = "School Fee";
     public static final String DELEGATE_FEE = "Delegate Fee";
     public static final String CREDIT_CARD_PROCESSING_FEE = "Credit Card Processing Fee";
+    /**
+     * How long a snapshot of the QuickBooks item catalog is used for before being reloaded
+     */
+    public static final Duration ITEM_CATALOG_TTL = Duration.ofHours(1);
+    /**
+     * The most entity operations QuickBooks accepts in a single batch request
+     */
+    public static final int MAX_BATCH_SIZE = 30;
+    /**
+     * The number of results to fetch per page when paging through query results. QuickBooks allows at most 1000
+     */
+    public static final int QUERY_PAGE_SIZE = 1000;
+    /**
+     * How far back QuickBooks change data capture queries can look. Older caches must be fully reloaded
+     */
+    public static final Duration CDC_MAX_LOOKBACK = Duration.ofDays(30);
+    /**
+     * The most changed entities of each type a change data capture query returns. A response this large may be
+     * truncated, so the cache is fully reloaded instead
+     */
+    public static final int CDC_MAX_RESULTS = 1000;
+    /**
+     * How far before the start of a sync its watermark is set, to allow for clock skew with QuickBooks. Replaying a
+     * change that has already been applied is harmless
+     */
+    public static final Duration CDC_WATERMARK_OVERLAP = Duration.ofMinutes(5);
+    /**
+     * The most requests QuickBooks accepts per minute for a single realm
+     */
+    public static final int QBO_REQUESTS_PER_MINUTE = 500;
+    /**
+     * The most requests QuickBooks accepts in flight at once for a single realm
+     */
+    public static final int QBO_MAX_CONCURRENT_REQUESTS = 10;
+    /**
+     * How many times a throttled QuickBooks request is retried before giving up
+     */
+    public static final int QBO_MAX_RETRIES = 5;
+    /**
+     * The delay before retrying a throttled QuickBooks request for the first time. Doubles with each retry
+     */
+    public static final Duration QBO_RETRY_BASE_DELAY = Duration.ofSeconds(1);
+    /**
+     * The longest delay before retrying a throttled QuickBooks request
+     */
+    public static final Duration QBO_RETRY_MAX_DELAY = Duration.ofSeconds(30);
+    /**
+     * The default number of workers for each stage of a RegistrationPipeline. Stages mostly wait on QuickBooks, which
+     * accepts QBO_MAX_CONCURRENT_REQUESTS requests at a time across all of them
+     */
+    public static final int PIPELINE_PARALLELISM = 4;
+    /**
+     * The most schools that can wait in the queue in front of each stage of a RegistrationPipeline
+     */
+    public static final int PIPELINE_QUEUE_CAPACITY = 64;
+    /**
+     * The most invoice emails sent at once by an InvoiceEmailDispatcher
+     */
+    public static final int EMAIL_DISPATCH_CONCURRENCY = 4;
+    /**
+     * How many rows before a sheet's checkpoint are read again each run, to pick up edits to recent registrations
+     */
+    public static final int SHEET_RECHECK_ROWS = 50;
+    /**
+     * How many rows' outcomes a SheetWriteBack collects before writing them to the sheet
+     */
+    public static final int SHEET_WRITE_BACK_CHUNK_SIZE = 100;
+    /**
+     * How many sheet rows a SheetRegistrationReader fetches in each request. The reader takes a window without any rows
+     * as the end of the sheet, so this is also the shortest run of blank rows which ends a registration sheet
+     */
+    public static final int SHEET_WINDOW_ROWS = 500;
 }
@@ -0,0 +1,96 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.Customer;
+import invoice_automation.utils.QuickBooksUtil;
+import lombok.NonNull;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * A cache of QuickBooks Customers keyed by display name, which also remembers names known to have no matching
+ * Customer. Display names are matched case-insensitively, as they are by QuickBooks queries.
+ *
+ * @author skberkeley
+ */
+public class CustomerCache {
+    /**
+     * Map from normalized display name to the matching Customer, or to an empty Optional if no Customer matches
+     */
+    private final Map<String, Optional<Customer>> customersByName = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the passed display name has been resolved, either to a Customer or to there being no matching Customer.
+     * @param displayName - The display name to check
+     * @return - Whether the name has been resolved
+     */
+    public boolean contains(@NonNull String displayName) {
+        return this.customersByName.containsKey(normalize(displayName));
+    }
+
+    /**
+     * Gets the cached Customer with the passed display name.
+     * @param displayName - The display name to look up
+     * @return - The matching Customer, or null if there is no matching Customer or the name hasn't been resolved
+     */
+    public Customer get(@NonNull String displayName) {
+        return this.customersByName.getOrDefault(normalize(displayName), Optional.empty()).orElse(null);
+    }
+
+    /**
+     * Caches the passed Customer under its display name, replacing any previous entry.
+     * @param customer - The Customer to cache
+     */
+    public void put(@NonNull Customer customer) {
+        this.customersByName.put(normalize(customer.getDisplayName()), Optional.of(customer));
+    }
+
+    /**
+     * Records that no Customer has the passed display name.
+     * @param displayName - The display name without a matching Customer
+     */
+    public void putMissing(@NonNull String displayName) {
+        this.customersByName.put(normalize(displayName), Optional.empty());
+    }
+
+    /**
+     * Applies a change to a Customer, as returned by a change data capture query. Any entry for the Customer is
+     * dropped, in case its display name changed, and the changed Customer is cached unless it was deleted or made
+     * inactive.
+     * @param customer - The changed Customer
+     */
+    public void applyChange(@NonNull Customer customer) {
+        this.customersByName.values().removeIf(
+                cachedCustomer -> cachedCustomer.map(c -> customer.getId().equals(c.getId())).orElse(false)
+        );
+        if (!QuickBooksUtil.isDeleted(customer) && !Boolean.FALSE.equals(customer.isActive())) {
+            this.put(customer);
+        }
+    }
+
+    /**
+     * Gets every cached Customer, leaving out names recorded as having no matching Customer
+     * @return - The cached Customers, in no particular order
+     */
+    public List<Customer> getCustomers() {
+        return this.customersByName.values()
+                .stream()
+                .flatMap(Optional::stream)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Drops every cached entry
+     */
+    public void clear() {
+        this.customersByName.clear();
+    }
+
+    private static String normalize(String displayName) {
+        return displayName.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,340 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.Customer;
+import com.intuit.ipp.data.EmailAddress;
+import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.Line;
+import com.intuit.ipp.data.LineDetailTypeEnum;
+import com.intuit.ipp.data.MemoRef;
+import com.intuit.ipp.data.PhysicalAddress;
+import com.intuit.ipp.data.ReferenceType;
+import com.intuit.ipp.data.SalesItemLineDetail;
+import com.intuit.ipp.data.TelephoneNumber;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.ItemType;
+import invoice_automation.utils.QuickBooksUtil;
+import lombok.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+/**
+ * Persists snapshots of the cached QuickBooks views to disk, one file per realm, so a new run can start warm instead of
+ * reloading everything. Only the fields this project reads are stored, in a compact binary format protected by a
+ * checksum. Snapshots are read through a memory-mapped buffer.
+ * Invoices are stored with just the fields needed to index them and find them again, not their lines, amounts or
+ * dates, so restored invoices are index-only and must be fetched in full before they're used.
+ *
+ * @author skberkeley
+ */
+public class EntityCacheStore {
+    private static final int MAGIC = 0x51424543;
+    private static final int FORMAT_VERSION = 1;
+    private static final String CACHE_FILE_NAME = "entities.bin";
+    /**
+     * Size of the header preceding the payload: magic, version, checksum and payload length
+     */
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES + Integer.BYTES;
+
+    private final Path cacheFile;
+
+    /**
+     * Creates a new store for the passed realm, keeping its snapshot in a subdirectory of cacheDirectory named after
+     * the realm
+     * @param cacheDirectory - The directory under which to keep snapshots
+     * @param realmId - The realmId of the QuickBooks company whose entities are being cached
+     */
+    public EntityCacheStore(@NonNull Path cacheDirectory, @NonNull String realmId) {
+        String realmDirectoryName = realmId.replaceAll("[^A-Za-z0-9_-]", "_");
+        this.cacheFile = cacheDirectory.resolve(realmDirectoryName).resolve(CACHE_FILE_NAME);
+    }
+
+    /**
+     * Loads the saved snapshot for this store's realm.
+     * @return - The snapshot, or an empty Optional if none has been saved or the saved one is unreadable or corrupt
+     */
+    public Optional<EntitySnapshot> load() {
+        if (!Files.isRegularFile(this.cacheFile)) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(this.cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Optional.of(readSnapshot(buffer));
+        } catch (IOException | RuntimeException e) {
+            // A missing or corrupt cache just means falling back to a full reload
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Saves the passed snapshot, replacing any saved for this store's realm. The file is written to a temporary
+     * location and then moved into place, so a crash mid-write doesn't leave a partial snapshot behind.
+     * @param snapshot - The snapshot to save
+     * @throws IOException If the snapshot couldn't be written
+     */
+    public void save(@NonNull EntitySnapshot snapshot) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        try (DataOutputStream payload = new DataOutputStream(payloadBytes)) {
+            writeSnapshot(payload, snapshot);
+        }
+        byte[] payloadArray = payloadBytes.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(payloadArray);
+
+        Path cacheDirectory = this.cacheFile.getParent();
+        Files.createDirectories(cacheDirectory);
+        Path tempFile = Files.createTempFile(cacheDirectory, CACHE_FILE_NAME, ".tmp");
+        try {
+            try (DataOutputStream out =
+                         new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(checksum.getValue());
+                out.writeInt(payloadArray.length);
+                out.write(payloadArray);
+            }
+            Files.move(tempFile, this.cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    // Snapshot encoding
+
+    private static void writeSnapshot(DataOutputStream out, EntitySnapshot snapshot) throws IOException {
+        out.writeLong(snapshot.getWatermark().toEpochMilli());
+        out.writeBoolean(snapshot.getInvoicesSince() != null);
+        if (snapshot.getInvoicesSince() != null) {
+            out.writeLong(snapshot.getInvoicesSince().toEpochDay());
+        }
+        out.writeLong(snapshot.getItemsLoadedAt().toEpochMilli());
+
+        out.writeInt(snapshot.getItemRefs().size());
+        for (Map.Entry<ItemType, ReferenceType> itemRef : snapshot.getItemRefs().entrySet()) {
+            writeString(out, itemRef.getKey().name());
+            writeString(out, itemRef.getValue().getValue());
+            writeString(out, itemRef.getValue().getName());
+        }
+
+        out.writeInt(snapshot.getCustomers().size());
+        for (Customer customer : snapshot.getCustomers()) {
+            writeCustomer(out, customer);
+        }
+
+        out.writeInt(snapshot.getInvoices().size());
+        for (Invoice invoice : snapshot.getInvoices()) {
+            writeInvoice(out, invoice);
+        }
+    }
+
+    private static EntitySnapshot readSnapshot(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            throw new IOException("Unrecognized entity cache file");
+        }
+        long expectedChecksum = buffer.getLong();
+        int payloadLength = buffer.getInt();
+        if (payloadLength != buffer.remaining()) {
+            throw new IOException("Truncated entity cache file");
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate());
+        if (checksum.getValue() != expectedChecksum) {
+            throw new IOException("Corrupt entity cache file");
+        }
+
+        Instant watermark = Instant.ofEpochMilli(buffer.getLong());
+        LocalDate invoicesSince = buffer.get() != 0 ? LocalDate.ofEpochDay(buffer.getLong()) : null;
+        Instant itemsLoadedAt = Instant.ofEpochMilli(buffer.getLong());
+
+        int itemCount = buffer.getInt();
+        Map<ItemType, ReferenceType> itemRefs = new EnumMap<>(ItemType.class);
+        for (int i = 0; i < itemCount; i++) {
+            ItemType itemType = ItemType.valueOf(readString(buffer));
+            ReferenceType itemRef = new ReferenceType();
+            itemRef.setValue(readString(buffer));
+            itemRef.setName(readString(buffer));
+            itemRefs.put(itemType, itemRef);
+        }
+
+        int customerCount = buffer.getInt();
+        List<Customer> customers = new ArrayList<>(customerCount);
+        for (int i = 0; i < customerCount; i++) {
+            customers.add(readCustomer(buffer));
+        }
+
+        int invoiceCount = buffer.getInt();
+        List<Invoice> invoices = new ArrayList<>(invoiceCount);
+        for (int i = 0; i < invoiceCount; i++) {
+            invoices.add(readInvoice(buffer));
+        }
+
+        return new EntitySnapshot(watermark, invoicesSince, itemsLoadedAt, customers, invoices, itemRefs);
+    }
+
+    /**
+     * Writes the Customer fields this project reads: identity, and the fields projected from a School
+     */
+    private static void writeCustomer(DataOutputStream out, Customer customer) throws IOException {
+        writeString(out, customer.getId());
+        writeString(out, customer.getSyncToken());
+        writeString(out, customer.getDisplayName());
+        writeString(out, customer.getCompanyName());
+        writeString(out, customer.getPrimaryEmailAddr() == null ? null : customer.getPrimaryEmailAddr().getAddress());
+        writeAddress(out, customer.getBillAddr());
+        writeAddress(out, customer.getShipAddr());
+        writeString(out, customer.getPrimaryPhone() == null ? null : customer.getPrimaryPhone().getFreeFormNumber());
+        writeString(
+                out, customer.getAlternatePhone() == null ? null : customer.getAlternatePhone().getFreeFormNumber());
+    }
+
+    private static Customer readCustomer(ByteBuffer buffer) {
+        Customer customer = new Customer();
+        customer.setId(readString(buffer));
+        customer.setSyncToken(readString(buffer));
+        customer.setDisplayName(readString(buffer));
+        customer.setCompanyName(readString(buffer));
+        String email = readString(buffer);
+        if (email != null) {
+            customer.setPrimaryEmailAddr(new EmailAddress());
+            customer.getPrimaryEmailAddr().setAddress(email);
+        }
+        customer.setBillAddr(readAddress(buffer));
+        customer.setShipAddr(readAddress(buffer));
+        String primaryPhone = readString(buffer);
+        if (primaryPhone != null) {
+            customer.setPrimaryPhone(new TelephoneNumber());
+            customer.getPrimaryPhone().setFreeFormNumber(primaryPhone);
+        }
+        String alternatePhone = readString(buffer);
+        if (alternatePhone != null) {
+            customer.setAlternatePhone(new TelephoneNumber());
+            customer.getAlternatePhone().setFreeFormNumber(alternatePhone);
+        }
+        return customer;
+    }
+
+    private static void writeAddress(DataOutputStream out, PhysicalAddress address) throws IOException {
+        out.writeBoolean(address != null);
+        if (address != null) {
+            writeString(out, address.getLine1());
+            writeString(out, address.getLine2());
+            writeString(out, address.getCity());
+            writeString(out, address.getCountrySubDivisionCode());
+            writeString(out, address.getCountry());
+            writeString(out, address.getPostalCode());
+        }
+    }
+
+    private static PhysicalAddress readAddress(ByteBuffer buffer) {
+        if (buffer.get() == 0) {
+            return null;
+        }
+        PhysicalAddress address = new PhysicalAddress();
+        address.setLine1(readString(buffer));
+        address.setLine2(readString(buffer));
+        address.setCity(readString(buffer));
+        address.setCountrySubDivisionCode(readString(buffer));
+        address.setCountry(readString(buffer));
+        address.setPostalCode(readString(buffer));
+        return address;
+    }
+
+    /**
+     * Writes the Invoice fields this project reads: identity, customer, the name of the line item which determines its
+     * InvoiceType, and the fields needed to find and send it
+     */
+    private static void writeInvoice(DataOutputStream out, Invoice invoice) throws IOException {
+        writeString(out, invoice.getId());
+        writeString(out, invoice.getSyncToken());
+        writeString(out, invoice.getCustomerRef() == null ? null : invoice.getCustomerRef().getValue());
+        writeString(out, invoice.getCustomerRef() == null ? null : invoice.getCustomerRef().getName());
+        writeString(out, invoice.getDocNumber());
+        InvoiceType invoiceType = QuickBooksUtil.getInvoiceTypeFromInvoice(invoice);
+        writeString(out, invoiceType == null ? null : invoiceType.toString());
+        writeString(out, invoice.getCustomerMemo() == null ? null : invoice.getCustomerMemo().getValue());
+        writeString(out, invoice.getEmailStatus() == null ? null : invoice.getEmailStatus().name());
+        writeString(out, invoice.getBillEmail() == null ? null : invoice.getBillEmail().getAddress());
+    }
+
+    private static Invoice readInvoice(ByteBuffer buffer) {
+        Invoice invoice = new Invoice();
+        invoice.setId(readString(buffer));
+        invoice.setSyncToken(readString(buffer));
+        String customerId = readString(buffer);
+        String customerName = readString(buffer);
+        if (customerId != null) {
+            ReferenceType customerRef = new ReferenceType();
+            customerRef.setValue(customerId);
+            customerRef.setName(customerName);
+            invoice.setCustomerRef(customerRef);
+        }
+        invoice.setDocNumber(readString(buffer));
+        String lineItemName = readString(buffer);
+        List<Line> lines = new ArrayList<>(1);
+        if (lineItemName != null) {
+            ReferenceType itemRef = new ReferenceType();
+            itemRef.setName(lineItemName);
+            SalesItemLineDetail salesItemLineDetail = new SalesItemLineDetail();
+            salesItemLineDetail.setItemRef(itemRef);
+            Line line = new Line();
+            line.setDetailType(LineDetailTypeEnum.SALES_ITEM_LINE_DETAIL);
+            line.setSalesItemLineDetail(salesItemLineDetail);
+            lines.add(line);
+        }
+        invoice.setLine(lines);
+        String memo = readString(buffer);
+        if (memo != null) {
+            invoice.setCustomerMemo(new MemoRef());
+            invoice.getCustomerMemo().setValue(memo);
+        }
+        String emailStatus = readString(buffer);
+        if (emailStatus != null) {
+            invoice.setEmailStatus(EmailStatusEnum.valueOf(emailStatus));
+        }
+        String billEmail = readString(buffer);
+        if (billEmail != null) {
+            invoice.setBillEmail(new EmailAddress());
+            invoice.getBillEmail().setAddress(billEmail);
+        }
+        return invoice;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
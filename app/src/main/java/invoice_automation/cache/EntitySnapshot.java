@@ -0,0 +1,37 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.Customer;
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.ReferenceType;
+import invoice_automation.model.ItemType;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of the cached QuickBooks views, as saved to and restored from an EntityCacheStore
+ *
+ * @author skberkeley
+ */
+@Value
+public class EntitySnapshot {
+    /**
+     * The time up to which the snapshot reflects every change in QuickBooks
+     */
+    @NonNull Instant watermark;
+    /**
+     * The earliest transaction date of the snapshot's invoices, or null if they're of any date
+     */
+    LocalDate invoicesSince;
+    /**
+     * When the item references were loaded from QuickBooks
+     */
+    @NonNull Instant itemsLoadedAt;
+    @NonNull List<Customer> customers;
+    @NonNull List<Invoice> invoices;
+    @NonNull Map<ItemType, ReferenceType> itemRefs;
+}
@@ -0,0 +1,185 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.ReferenceType;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.utils.QuickBooksUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.time.LocalDate;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory index of QuickBooks invoices, keyed by the id of the invoiced Customer and then by InvoiceType. Built
+ * once per batch of registrations so that finding a school's invoices doesn't require downloading every invoice. An
+ * index may only hold invoices dated on or after some date, in which case it can't answer lookups for earlier invoices.
+ * Invoices restored from an EntityCacheStore snapshot are held index-only: they carry just the fields needed to find
+ * them, and should be fetched in full before being handed out.
+ *
+ * @author skberkeley
+ */
+public class InvoiceIndex {
+    /**
+     * Map from Customer id to the invoices billed to that Customer, keyed by InvoiceType
+     */
+    private final Map<String, Map<InvoiceType, Invoice>> invoicesByCustomerId = new ConcurrentHashMap<>();
+    /**
+     * The ids of indexed invoices which are index-only, until they're replaced by full copies
+     */
+    private final Set<String> indexOnlyInvoiceIds = ConcurrentHashMap.newKeySet();
+    /**
+     * The earliest transaction date of invoices held by this index, or null if it holds invoices of any date
+     */
+    @Getter
+    private final LocalDate since;
+
+    /**
+     * Creates a new, empty index
+     * @param since - The earliest transaction date of invoices the index will hold, or null if it will hold invoices of
+     *              any date
+     */
+    public InvoiceIndex(LocalDate since) {
+        this.since = since;
+    }
+
+    /**
+     * Builds a new index from the passed invoices. Invoices without a CustomerRef, or whose InvoiceType can't be
+     * determined from their line items, are skipped.
+     * @param invoices - The invoices to index
+     * @param since - The earliest transaction date of the passed invoices, or null if they're of any date
+     * @return - The constructed index
+     */
+    public static InvoiceIndex fromInvoices(@NonNull Iterable<Invoice> invoices, LocalDate since) {
+        InvoiceIndex invoiceIndex = new InvoiceIndex(since);
+        for (Invoice invoice : invoices) {
+            invoiceIndex.add(invoice);
+        }
+        return invoiceIndex;
+    }
+
+    /**
+     * Builds a new index from the passed index-only invoices, as restored from an EntityCacheStore snapshot
+     * @param invoices - The index-only invoices to index
+     * @param since - The earliest transaction date of the passed invoices, or null if they're of any date
+     * @return - The constructed index
+     */
+    public static InvoiceIndex fromIndexOnlyInvoices(@NonNull Iterable<Invoice> invoices, LocalDate since) {
+        InvoiceIndex invoiceIndex = new InvoiceIndex(since);
+        for (Invoice invoice : invoices) {
+            invoiceIndex.add(invoice);
+            if (invoice.getId() != null) {
+                invoiceIndex.indexOnlyInvoiceIds.add(invoice.getId());
+            }
+        }
+        return invoiceIndex;
+    }
+
+    /**
+     * Adds the passed invoice to the index, inferring its Customer id from its CustomerRef and its InvoiceType from its
+     * line items. Does nothing if either can't be determined.
+     * @param invoice - The Invoice to add
+     */
+    public void add(@NonNull Invoice invoice) {
+        ReferenceType customerRef = invoice.getCustomerRef();
+        if (customerRef == null || customerRef.getValue() == null) {
+            return;
+        }
+        InvoiceType invoiceType = QuickBooksUtil.getInvoiceTypeFromInvoice(invoice);
+        if (invoiceType == null) {
+            return;
+        }
+        this.put(customerRef.getValue(), invoiceType, invoice);
+    }
+
+    /**
+     * Adds the passed invoice to the index under the given Customer id and InvoiceType, replacing any invoice
+     * previously stored under the same keys.
+     * @param customerId - The id of the Customer the Invoice is billed to
+     * @param invoiceType - The type of the Invoice
+     * @param invoice - The Invoice to add
+     */
+    public void put(@NonNull String customerId, @NonNull InvoiceType invoiceType, @NonNull Invoice invoice) {
+        if (invoice.getId() != null) {
+            this.indexOnlyInvoiceIds.remove(invoice.getId());
+        }
+        this.invoicesByCustomerId.compute(customerId, (id, invoices) -> {
+            Map<InvoiceType, Invoice> updatedInvoices =
+                    invoices == null ? new EnumMap<>(InvoiceType.class) : new EnumMap<>(invoices);
+            updatedInvoices.put(invoiceType, invoice);
+            return updatedInvoices;
+        });
+    }
+
+    /**
+     * Applies a change to an Invoice, as returned by a change data capture query. Any indexed copy of the Invoice is
+     * dropped, and the changed Invoice is indexed unless it was deleted.
+     * @param invoice - The changed Invoice
+     */
+    public void applyChange(@NonNull Invoice invoice) {
+        this.remove(invoice.getId());
+        if (!QuickBooksUtil.isDeleted(invoice)) {
+            this.add(invoice);
+        }
+    }
+
+    /**
+     * Drops the invoice with the passed id from the index, if it's indexed
+     * @param invoiceId - The id of the Invoice to drop
+     */
+    public void remove(@NonNull String invoiceId) {
+        this.indexOnlyInvoiceIds.remove(invoiceId);
+        this.invoicesByCustomerId.replaceAll((customerId, invoices) -> {
+            if (invoices.values().stream().noneMatch(i -> invoiceId.equals(i.getId()))) {
+                return invoices;
+            }
+            Map<InvoiceType, Invoice> updatedInvoices = new EnumMap<>(invoices);
+            updatedInvoices.values().removeIf(i -> invoiceId.equals(i.getId()));
+            return updatedInvoices;
+        });
+    }
+
+    /**
+     * Whether the passed indexed invoice is index-only, and so should be fetched in full before being handed out
+     * @param invoice - An invoice returned by this index
+     * @return - Whether the invoice is index-only
+     */
+    public boolean isIndexOnly(@NonNull Invoice invoice) {
+        return invoice.getId() != null && this.indexOnlyInvoiceIds.contains(invoice.getId());
+    }
+
+    /**
+     * Whether this index holds every invoice dated on or after the passed date, and so can answer lookups for them
+     * @param date - The earliest transaction date of the invoices being looked up
+     * @return - Whether the index covers the date
+     */
+    public boolean covers(@NonNull LocalDate date) {
+        return this.since == null || !date.isBefore(this.since);
+    }
+
+    /**
+     * Gets the indexed invoices billed to the Customer with the passed id.
+     * @param customerId - The id of the Customer whose invoices to get
+     * @return - A map from InvoiceType to the corresponding Invoice. Empty if no invoices are indexed for the Customer
+     */
+    public Map<InvoiceType, Invoice> getInvoices(@NonNull String customerId) {
+        Map<InvoiceType, Invoice> invoices = this.invoicesByCustomerId.get(customerId);
+        return invoices == null ? Map.of() : Map.copyOf(invoices);
+    }
+
+    /**
+     * Gets every indexed invoice
+     * @return - The indexed invoices, in no particular order
+     */
+    public List<Invoice> getAllInvoices() {
+        return this.invoicesByCustomerId.values()
+                .stream()
+                .flatMap(invoices -> invoices.values().stream())
+                .collect(Collectors.toList());
+    }
+}
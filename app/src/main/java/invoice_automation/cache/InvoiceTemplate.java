@@ -0,0 +1,119 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.ReferenceType;
+import invoice_automation.fees.CardFee;
+import invoice_automation.fees.Money;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.PaymentMethod;
+import invoice_automation.model.RegistrationRound;
+import invoice_automation.utils.QuickBooksUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Date;
+
+/**
+ * Everything about an invoice which is the same for every school of a given registration round and payment method:
+ * its due date, the item billed and its unit price, and the credit card processing fee item and rates if paying by
+ * card, all taken from the fee schedule the template was built from. An
+ * invoice is built from a template by stamping on the customer, invoice date and quantity, through
+ * QuickBooksUtil.constructInvoice.
+ *
+ * @author skberkeley
+ */
+public class InvoiceTemplate {
+    @Getter
+    private final InvoiceType invoiceType;
+    @Getter
+    private final RegistrationRound registrationRound;
+    @Getter
+    private final PaymentMethod paymentMethod;
+    /**
+     * The due date, kept as a time since the epoch since Dates are mutable
+     */
+    private final long dueDateMillis;
+    /**
+     * A reference to the Item of the school or delegate fee being billed
+     */
+    @Getter
+    private final ReferenceType feeItemRef;
+    @Getter
+    private final BigDecimal unitPrice;
+    /**
+     * The unit price in cents, which line amounts and card fees are calculated from
+     */
+    private final Money unitPriceCents;
+    /**
+     * A reference to the credit card processing fee Item, or null if paying by check
+     */
+    @Getter
+    private final ReferenceType creditCardProcessingFeeItemRef;
+    /**
+     * The credit card processing fee of the invoice's conference
+     */
+    private final CardFee cardFee;
+    /**
+     * The credit card processing fee for a quantity of one, or null if paying by check. School fee invoices always
+     * have a quantity of one, so their fee is never recomputed
+     */
+    private final BigDecimal singleQuantityCreditCardProcessingFee;
+
+    InvoiceTemplate(
+            @NonNull InvoiceType invoiceType,
+            @NonNull RegistrationRound registrationRound,
+            @NonNull PaymentMethod paymentMethod,
+            @NonNull LocalDate dueDate,
+            @NonNull ReferenceType feeItemRef,
+            @NonNull BigDecimal unitPrice,
+            @NonNull Money unitPriceCents,
+            ReferenceType creditCardProcessingFeeItemRef,
+            @NonNull CardFee cardFee
+    ) {
+        this.invoiceType = invoiceType;
+        this.registrationRound = registrationRound;
+        this.paymentMethod = paymentMethod;
+        this.dueDateMillis = QuickBooksUtil.getDate(dueDate).getTime();
+        this.feeItemRef = feeItemRef;
+        this.unitPrice = unitPrice;
+        this.unitPriceCents = unitPriceCents;
+        this.creditCardProcessingFeeItemRef = creditCardProcessingFeeItemRef;
+        this.cardFee = cardFee;
+        this.singleQuantityCreditCardProcessingFee = creditCardProcessingFeeItemRef == null
+                ? null
+                : cardFee.calculate(unitPriceCents).toBigDecimal();
+    }
+
+    /**
+     * Gets the due date of invoices built from this template
+     * @return - A new Date, which the caller is free to modify
+     */
+    public Date getDueDate() {
+        return new java.sql.Date(this.dueDateMillis);
+    }
+
+    /**
+     * Gets the line amount for the passed quantity of the fee item, with the same scale as the unit price
+     * @param quantity - The quantity being billed
+     * @return - The line amount
+     */
+    public BigDecimal getAmount(int quantity) {
+        if (quantity == 1) {
+            return this.unitPrice;
+        }
+        return this.unitPriceCents.times(quantity).toBigDecimal(this.unitPrice.scale());
+    }
+
+    /**
+     * Gets the credit card processing fee for an invoice billing the passed quantity of the fee item
+     * @param quantity - The quantity being billed
+     * @return - The fee, or null if paying by check
+     */
+    public BigDecimal getCreditCardProcessingFee(int quantity) {
+        if (this.singleQuantityCreditCardProcessingFee == null || quantity == 1) {
+            return this.singleQuantityCreditCardProcessingFee;
+        }
+        return this.cardFee.calculate(this.unitPriceCents.times(quantity)).toBigDecimal();
+    }
+}
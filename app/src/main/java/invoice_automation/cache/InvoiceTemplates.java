@@ -0,0 +1,138 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.ReferenceType;
+import invoice_automation.QuickBooksException;
+import invoice_automation.fees.FeeSchedule;
+import invoice_automation.fees.RoundDates;
+import invoice_automation.model.Conference;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.ItemType;
+import invoice_automation.model.PaymentMethod;
+import invoice_automation.model.RegistrationRound;
+import lombok.NonNull;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * An immutable set of InvoiceTemplates, one for each registration round, payment method and InvoiceType of the round's
+ * conference, built from an item catalog and fee schedule. Since both are snapshots, the templates are built once and
+ * reused for every registration until either is replaced.
+ * Lookups go through nested EnumMaps, so finding a template allocates nothing.
+ *
+ * @author skberkeley
+ */
+public class InvoiceTemplates {
+    /**
+     * The catalog the templates' item references came from
+     */
+    private final ItemCatalog itemCatalog;
+    /**
+     * The schedule the templates' prices and due dates came from
+     */
+    private final FeeSchedule feeSchedule;
+    private final Map<RegistrationRound, Map<PaymentMethod, Map<InvoiceType, InvoiceTemplate>>> templates;
+
+    private InvoiceTemplates(
+            ItemCatalog itemCatalog,
+            FeeSchedule feeSchedule,
+            Map<RegistrationRound, Map<PaymentMethod, Map<InvoiceType, InvoiceTemplate>>> templates
+    ) {
+        this.itemCatalog = itemCatalog;
+        this.feeSchedule = feeSchedule;
+        this.templates = Collections.unmodifiableMap(templates);
+    }
+
+    /**
+     * Builds a template for every registration round, payment method and InvoiceType of the round's conference whose
+     * Items are in the passed catalog. Templates needing a missing Item are left out, and looking them up fails.
+     * @param itemCatalog - The catalog to take item references from
+     * @param feeSchedule - The schedule to take prices and due dates from
+     * @return - The built templates
+     */
+    public static InvoiceTemplates build(@NonNull ItemCatalog itemCatalog, @NonNull FeeSchedule feeSchedule) {
+        Map<ItemType, ReferenceType> itemRefs = itemCatalog.getItemRefs();
+        ReferenceType creditCardProcessingFeeItemRef = itemRefs.get(ItemType.CREDIT_CARD_PROCESSING_FEE);
+        Map<RegistrationRound, Map<PaymentMethod, Map<InvoiceType, InvoiceTemplate>>> templates =
+                new EnumMap<>(RegistrationRound.class);
+        for (RegistrationRound round : RegistrationRound.values()) {
+            RoundDates roundDates = feeSchedule.getRoundDates(round);
+            Map<PaymentMethod, Map<InvoiceType, InvoiceTemplate>> roundTemplates = new EnumMap<>(PaymentMethod.class);
+            for (PaymentMethod paymentMethod : PaymentMethod.values()) {
+                boolean isPayingByCard = paymentMethod == PaymentMethod.CARD;
+                Map<InvoiceType, InvoiceTemplate> paymentMethodTemplates = new EnumMap<>(InvoiceType.class);
+                for (InvoiceType invoiceType : InvoiceType.values()) {
+                    ReferenceType feeItemRef = itemRefs.get(invoiceType.getItemType());
+                    if (invoiceType.getConference() != round.getConference()
+                            || feeItemRef == null
+                            || (isPayingByCard && creditCardProcessingFeeItemRef == null)) {
+                        continue;
+                    }
+                    LocalDate dueDate = invoiceType.isSchoolFee()
+                            ? roundDates.getSchoolFeeDueDate()
+                            : roundDates.getDelegateFeeDueDate();
+                    paymentMethodTemplates.put(invoiceType, new InvoiceTemplate(
+                            invoiceType,
+                            round,
+                            paymentMethod,
+                            dueDate,
+                            feeItemRef,
+                            feeSchedule.getUnitCost(invoiceType),
+                            feeSchedule.getUnitPrice(invoiceType),
+                            isPayingByCard ? creditCardProcessingFeeItemRef : null,
+                            feeSchedule.getCardFee(invoiceType.getConference())
+                    ));
+                }
+                roundTemplates.put(paymentMethod, Collections.unmodifiableMap(paymentMethodTemplates));
+            }
+            templates.put(round, Collections.unmodifiableMap(roundTemplates));
+        }
+        return new InvoiceTemplates(itemCatalog, feeSchedule, templates);
+    }
+
+    /**
+     * Gets the template for invoices of the passed type, for a school registering for the passed conference in the
+     * passed round and paying by the passed method
+     * @param conference - The conference registered for
+     * @param registrationRound - The round the school registered in
+     * @param paymentMethod - The school's payment method
+     * @param invoiceType - The type of invoice
+     * @return - The matching template
+     * @throws QuickBooksException If the round or invoice type isn't for the conference, or an Item the invoice needs
+     * is missing from the catalog
+     */
+    public InvoiceTemplate getTemplate(
+            @NonNull Conference conference,
+            @NonNull RegistrationRound registrationRound,
+            @NonNull PaymentMethod paymentMethod,
+            @NonNull InvoiceType invoiceType
+    ) {
+        InvoiceTemplate template = this.templates.get(registrationRound).get(paymentMethod).get(invoiceType);
+        if (template != null && invoiceType.getConference() == conference) {
+            return template;
+        }
+        if (registrationRound.getConference() != conference || invoiceType.getConference() != conference) {
+            throw new QuickBooksException(
+                    String.format("%s and %s aren't both for %s", registrationRound.name(), invoiceType.name(),
+                            conference.name()),
+                    null
+            );
+        }
+        // The template was left out for a missing Item, so fail as looking the Item up would
+        this.itemCatalog.getItemRef(invoiceType.getItemType());
+        this.itemCatalog.getItemRef(ItemType.CREDIT_CARD_PROCESSING_FEE);
+        throw new QuickBooksException("Couldn't find template for " + invoiceType.name(), null);
+    }
+
+    /**
+     * Whether these templates were built from the passed catalog and schedule, and so are still current
+     * @param itemCatalog - The current item catalog
+     * @param feeSchedule - The current fee schedule
+     * @return - Whether the templates are current
+     */
+    public boolean isBuiltFrom(@NonNull ItemCatalog itemCatalog, @NonNull FeeSchedule feeSchedule) {
+        return this.itemCatalog == itemCatalog && this.feeSchedule == feeSchedule;
+    }
+}
@@ -0,0 +1,143 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.Item;
+import com.intuit.ipp.data.ReferenceType;
+import invoice_automation.QuickBooksException;
+import invoice_automation.fees.FeeSchedule;
+import invoice_automation.model.ItemType;
+import invoice_automation.utils.QuickBooksUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable snapshot of the QuickBooks Items used on invoices, resolved to item references by ItemType. Since the
+ * item catalog rarely changes, a single snapshot is reused until it's older than some time-to-live.
+ *
+ * @author skberkeley
+ */
+public class ItemCatalog {
+    /**
+     * Map from ItemType to a reference to the matching QuickBooks Item
+     */
+    private final Map<ItemType, ReferenceType> itemRefs;
+    /**
+     * When this snapshot was loaded from QuickBooks
+     */
+    @Getter
+    private final Instant loadedAt;
+
+    private ItemCatalog(Map<ItemType, ReferenceType> itemRefs, Instant loadedAt) {
+        this.itemRefs = Collections.unmodifiableMap(itemRefs);
+        this.loadedAt = loadedAt;
+    }
+
+    /**
+     * Builds a new catalog from the passed QuickBooks Items, matching Items to ItemTypes by name. Items not matching
+     * any ItemType are ignored.
+     * @param items - The Items to build the catalog from
+     * @param loadedAt - When the Items were fetched from QuickBooks
+     * @return - The constructed catalog
+     */
+    public static ItemCatalog fromItems(@NonNull Iterable<Item> items, @NonNull Instant loadedAt) {
+        Map<ItemType, ReferenceType> itemRefs = new EnumMap<>(ItemType.class);
+        for (Item item : items) {
+            ItemType itemType = item.getName() == null ? null : FeeSchedule.current().getItemType(item.getName());
+            if (itemType != null) {
+                itemRefs.put(itemType, QuickBooksUtil.getItemRefFromItem(item));
+            }
+        }
+        return new ItemCatalog(itemRefs, loadedAt);
+    }
+
+    /**
+     * Builds a new catalog from already resolved item references, such as ones restored from an EntityCacheStore.
+     * @param itemRefs - Map from ItemType to a reference to the matching QuickBooks Item
+     * @param loadedAt - When the references were loaded from QuickBooks
+     * @return - The constructed catalog
+     */
+    public static ItemCatalog fromItemRefs(@NonNull Map<ItemType, ReferenceType> itemRefs, @NonNull Instant loadedAt) {
+        Map<ItemType, ReferenceType> copiedItemRefs = new EnumMap<>(ItemType.class);
+        copiedItemRefs.putAll(itemRefs);
+        return new ItemCatalog(copiedItemRefs, loadedAt);
+    }
+
+    /**
+     * Builds a new catalog from this one with changes to Items applied, as returned by a change data capture query.
+     * References to changed Items are dropped, in case they were renamed, and then changed Items which weren't deleted
+     * or made inactive are matched to ItemTypes by name.
+     * @param changedItems - The changed Items
+     * @param loadedAt - When the changes were fetched from QuickBooks
+     * @return - The updated catalog
+     */
+    public ItemCatalog withChangedItems(@NonNull Collection<Item> changedItems, @NonNull Instant loadedAt) {
+        Set<String> changedItemIds = changedItems.stream().map(Item::getId).collect(Collectors.toSet());
+        Map<ItemType, ReferenceType> updatedItemRefs = new EnumMap<>(ItemType.class);
+        updatedItemRefs.putAll(this.itemRefs);
+        updatedItemRefs.values().removeIf(itemRef -> changedItemIds.contains(itemRef.getValue()));
+        for (Item item : changedItems) {
+            ItemType itemType = item.getName() == null ? null : FeeSchedule.current().getItemType(item.getName());
+            if (itemType != null && !QuickBooksUtil.isDeleted(item) && !Boolean.FALSE.equals(item.isActive())) {
+                updatedItemRefs.put(itemType, QuickBooksUtil.getItemRefFromItem(item));
+            }
+        }
+        return new ItemCatalog(updatedItemRefs, loadedAt);
+    }
+
+    /**
+     * Gets a reference to the QuickBooks Item of the passed type.
+     * @param itemType - The ItemType to get a reference for
+     * @return - The item reference
+     * @throws QuickBooksException If the catalog has no Item of the passed type
+     */
+    public ReferenceType getItemRef(@NonNull ItemType itemType) {
+        ReferenceType itemRef = this.itemRefs.get(itemType);
+        if (itemRef == null) {
+            throw new QuickBooksException(String.format("Couldn't find %s Item", itemType), null);
+        }
+        return itemRef;
+    }
+
+    /**
+     * Gets every item reference in the catalog
+     * @return - An unmodifiable map from ItemType to a reference to the matching QuickBooks Item
+     */
+    public Map<ItemType, ReferenceType> getItemRefs() {
+        return this.itemRefs;
+    }
+
+    /**
+     * Checks that the catalog has an Item for each of the passed types.
+     * @param requiredItemTypes - The ItemTypes which must be present
+     * @throws QuickBooksException If any of the required Items are missing, naming all of them
+     */
+    public void checkContainsItems(@NonNull Collection<ItemType> requiredItemTypes) {
+        List<String> missingItemNames = requiredItemTypes.stream()
+                .filter(itemType -> !this.itemRefs.containsKey(itemType))
+                .distinct()
+                .map(ItemType::toString)
+                .collect(Collectors.toList());
+        if (!missingItemNames.isEmpty()) {
+            throw new QuickBooksException("Couldn't find required Items: " + String.join(", ", missingItemNames), null);
+        }
+    }
+
+    /**
+     * Whether this snapshot is older than the passed time-to-live, and so should be reloaded.
+     * @param timeToLive - How long a snapshot may be used for after being loaded
+     * @param now - The current time
+     * @return - Whether the snapshot has expired
+     */
+    public boolean isExpired(@NonNull Duration timeToLive, @NonNull Instant now) {
+        return this.loadedAt.plus(timeToLive).isBefore(now);
+    }
+}
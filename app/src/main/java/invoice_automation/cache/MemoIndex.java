@@ -0,0 +1,68 @@
+package invoice_automation.cache;
+
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.MemoRef;
+import invoice_automation.utils.QuickBooksUtil;
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory index of QuickBooks invoices by customer memo. QuickBooks can't filter invoices by CustomerMemo
+ * server-side, so this is built from a single scan of all invoices and then kept current as invoices are created.
+ *
+ * @author skberkeley
+ */
+public class MemoIndex {
+    /**
+     * Map from memo value to the first indexed invoice with that memo
+     */
+    private final Map<String, Invoice> invoicesByMemo = new ConcurrentHashMap<>();
+
+    /**
+     * Builds a new index from the passed invoices. If several invoices share a memo, the first one is kept.
+     * @param invoices - The invoices to index
+     * @return - The constructed index
+     */
+    public static MemoIndex fromInvoices(@NonNull Iterable<Invoice> invoices) {
+        MemoIndex memoIndex = new MemoIndex();
+        for (Invoice invoice : invoices) {
+            memoIndex.add(invoice);
+        }
+        return memoIndex;
+    }
+
+    /**
+     * Adds the passed invoice to the index, unless it has no memo or another invoice with the same memo is already
+     * indexed.
+     * @param invoice - The Invoice to add
+     */
+    public void add(@NonNull Invoice invoice) {
+        MemoRef memo = invoice.getCustomerMemo();
+        if (memo != null && memo.getValue() != null) {
+            this.invoicesByMemo.putIfAbsent(memo.getValue(), invoice);
+        }
+    }
+
+    /**
+     * Applies a change to an Invoice, as returned by a change data capture query. Any indexed copy of the Invoice is
+     * dropped, and the changed Invoice is indexed unless it was deleted.
+     * @param invoice - The changed Invoice
+     */
+    public void applyChange(@NonNull Invoice invoice) {
+        this.invoicesByMemo.values().removeIf(i -> invoice.getId().equals(i.getId()));
+        if (!QuickBooksUtil.isDeleted(invoice)) {
+            this.add(invoice);
+        }
+    }
+
+    /**
+     * Gets the indexed invoice with the passed memo.
+     * @param memo - The memo value to match
+     * @return - The first indexed invoice with a matching memo, or null if there is none
+     */
+    public Invoice get(@NonNull String memo) {
+        return this.invoicesByMemo.get(memo);
+    }
+}
@@ -0,0 +1,80 @@
+package invoice_automation.fees;
+
+import invoice_automation.QuickBooksException;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.math.BigDecimal;
+
+/**
+ * The credit card processing fee charged for a conference, set so that after the card processor keeps its rate and
+ * fixed amount of the whole payment, the subtotal is left: fee = (rate * subtotal + fixed amount) / (1 - rate),
+ * rounded up to the cent.
+ * The rate is kept as a fraction rateNumerator / rateDenominator, so that with the subtotal S and fixed amount F in
+ * cents, fee = ceil((rateNumerator * S + F * rateDenominator) / (rateDenominator - rateNumerator)) cents. For a rate
+ * of 0.029 and fixed amount of 0.25, that's ceil((29 * S + 25000) / 971). This is exactly the BigDecimal calculation
+ * with CEILING rounding to two decimal places, done in long arithmetic.
+ *
+ * @author skberkeley
+ */
+public class CardFee {
+    /**
+     * The most decimal places a rate can have, so that its denominator fits comfortably in a long
+     */
+    private static final int MAX_RATE_SCALE = 9;
+
+    /**
+     * The fraction of the whole payment kept by the card processor, e.g. 0.029
+     */
+    @Getter
+    private final BigDecimal rate;
+    /**
+     * The amount of the whole payment kept by the card processor, e.g. 0.25
+     */
+    @Getter
+    private final BigDecimal fixedAmount;
+    private final long rateNumerator;
+    private final long rateDenominator;
+    private final long fixedAmountCents;
+
+    /**
+     * @param rate - The fraction of the whole payment kept by the card processor, at least 0 and less than 1, with at
+     *             most MAX_RATE_SCALE decimal places
+     * @param fixedAmount - The amount of the whole payment kept by the card processor, a non-negative whole number of
+     *                    cents
+     * @throws QuickBooksException If the rate or fixed amount is out of range
+     */
+    public CardFee(@NonNull BigDecimal rate, @NonNull BigDecimal fixedAmount) {
+        if (rate.signum() < 0 || rate.compareTo(BigDecimal.ONE) >= 0) {
+            throw new QuickBooksException("Card fee rate must be at least 0 and less than 1, not " + rate, null);
+        }
+        if (fixedAmount.signum() < 0) {
+            throw new QuickBooksException("Card fee fixed amount must not be negative, not " + fixedAmount, null);
+        }
+        BigDecimal strippedRate = rate.stripTrailingZeros();
+        int scale = Math.max(strippedRate.scale(), 0);
+        if (scale > MAX_RATE_SCALE) {
+            throw new QuickBooksException("Card fee rate has too many decimal places: " + rate, null);
+        }
+        this.rate = rate;
+        this.fixedAmount = fixedAmount;
+        this.rateNumerator = strippedRate.movePointRight(scale).longValueExact();
+        this.rateDenominator = BigDecimal.ONE.movePointRight(scale).longValueExact();
+        this.fixedAmountCents = Money.fromBigDecimal(fixedAmount).getCents();
+    }
+
+    /**
+     * Calculates the fee for a payment of the passed subtotal
+     * @param subtotal - The subtotal of the invoice, not negative
+     * @return - The fee, rounded up to the cent
+     */
+    public Money calculate(@NonNull Money subtotal) {
+        long numerator = Math.addExact(
+                Math.multiplyExact(this.rateNumerator, subtotal.getCents()),
+                Math.multiplyExact(this.fixedAmountCents, this.rateDenominator)
+        );
+        long denominator = this.rateDenominator - this.rateNumerator;
+        // Ceiling division, since Math.ceilDiv isn't available before Java 18
+        return Money.ofCents(-Math.floorDiv(-numerator, denominator));
+    }
+}
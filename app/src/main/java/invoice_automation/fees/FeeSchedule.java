@@ -0,0 +1,353 @@
+package invoice_automation.fees;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import invoice_automation.Consts;
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.Conference;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.ItemType;
+import invoice_automation.model.RegistrationRound;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The fees charged for each conference's current session, compiled from a FeeScheduleConfig into immutable lookup
+ * structures: unit costs and item names by enum, ItemTypes and InvoiceTypes by item name, and each conference's rounds
+ * by start date, so that finding a registration's round is a single floor search.
+ * The schedule is loaded from the file named by the invoicing.feeSchedule system property, or from fee_schedule.json
+ * on the classpath, so a new session only needs the file to be edited rather than the code to be rebuilt.
+ *
+ * @author skberkeley
+ */
+public class FeeSchedule {
+    private static final String FEE_SCHEDULE_PROPERTY = "invoicing.feeSchedule";
+    private static final String FEE_SCHEDULE_RESOURCE = "/fee_schedule.json";
+
+    /**
+     * The schedule used by every lookup, loaded on first use
+     */
+    private static volatile FeeSchedule current;
+
+    private final Map<Conference, String> conferenceNames;
+    private final Map<ItemType, String> itemNames;
+    private final Map<String, ItemType> itemTypesByName;
+    private final Map<String, InvoiceType> invoiceTypesByItemName;
+    private final Map<InvoiceType, BigDecimal> unitCosts;
+    private final Map<InvoiceType, Money> unitPrices;
+    private final Map<Conference, CardFee> cardFees;
+    /**
+     * Map from each conference to its rounds, keyed by start date
+     */
+    private final Map<Conference, NavigableMap<LocalDate, RegistrationRound>> roundsByStartDate;
+    private final Map<RegistrationRound, RoundDates> roundDates;
+
+    private FeeSchedule(
+            Map<Conference, String> conferenceNames,
+            Map<ItemType, String> itemNames,
+            Map<InvoiceType, BigDecimal> unitCosts,
+            Map<InvoiceType, Money> unitPrices,
+            Map<Conference, CardFee> cardFees,
+            Map<Conference, NavigableMap<LocalDate, RegistrationRound>> roundsByStartDate,
+            Map<RegistrationRound, RoundDates> roundDates
+    ) {
+        this.conferenceNames = Collections.unmodifiableMap(conferenceNames);
+        this.itemNames = Collections.unmodifiableMap(itemNames);
+        this.unitCosts = Collections.unmodifiableMap(unitCosts);
+        this.unitPrices = Collections.unmodifiableMap(unitPrices);
+        this.cardFees = Collections.unmodifiableMap(cardFees);
+        this.roundsByStartDate = Collections.unmodifiableMap(roundsByStartDate);
+        this.roundDates = Collections.unmodifiableMap(roundDates);
+
+        Map<String, ItemType> itemTypesByName = new HashMap<>();
+        itemNames.forEach((itemType, itemName) -> itemTypesByName.put(itemName, itemType));
+        this.itemTypesByName = Collections.unmodifiableMap(itemTypesByName);
+        Map<String, InvoiceType> invoiceTypesByItemName = new HashMap<>();
+        for (InvoiceType invoiceType : InvoiceType.values()) {
+            invoiceTypesByItemName.put(itemNames.get(invoiceType.getItemType()), invoiceType);
+        }
+        this.invoiceTypesByItemName = Collections.unmodifiableMap(invoiceTypesByItemName);
+    }
+
+    /**
+     * Gets the schedule used by every lookup, loading it if this is the first call
+     * @return - The current schedule
+     * @throws QuickBooksException If the schedule couldn't be loaded or is invalid
+     */
+    public static FeeSchedule current() {
+        FeeSchedule schedule = current;
+        if (schedule == null) {
+            synchronized (FeeSchedule.class) {
+                schedule = current;
+                if (schedule == null) {
+                    schedule = loadDefault();
+                    current = schedule;
+                }
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * Replaces the schedule used by every lookup, such as with one for a different session
+     * @param schedule - The new schedule
+     */
+    public static void setCurrent(@NonNull FeeSchedule schedule) {
+        current = schedule;
+    }
+
+    /**
+     * Loads and compiles the schedule written in the passed JSON
+     * @param reader - Reads the schedule's JSON
+     * @return - The compiled schedule
+     * @throws QuickBooksException If the JSON couldn't be parsed or the schedule is invalid
+     */
+    public static FeeSchedule load(@NonNull Reader reader) {
+        FeeScheduleConfig config;
+        try {
+            config = new Gson().fromJson(reader, FeeScheduleConfig.class);
+        } catch (JsonParseException e) {
+            throw new QuickBooksException("Failed to parse fee schedule", e);
+        }
+        if (config == null) {
+            throw new QuickBooksException("Fee schedule is empty", null);
+        }
+        return compile(config);
+    }
+
+    /**
+     * Compiles the passed schedule into lookup structures, checking that it covers every conference with a positive
+     * session number, that it lists every round of each conference under that conference, that each conference's
+     * rounds start in order on different days, and that every fee is a whole number of cents
+     * @param config - The schedule to compile
+     * @return - The compiled schedule
+     * @throws QuickBooksException If the schedule is invalid
+     */
+    public static FeeSchedule compile(@NonNull FeeScheduleConfig config) {
+        if (config.getConferences() == null) {
+            throw new QuickBooksException("Fee schedule has no conferences", null);
+        }
+        Map<Conference, String> conferenceNames = new EnumMap<>(Conference.class);
+        Map<Conference, FeeScheduleConfig.ConferenceFees> conferenceFees = new EnumMap<>(Conference.class);
+        Map<Conference, NavigableMap<LocalDate, RegistrationRound>> roundsByStartDate =
+                new EnumMap<>(Conference.class);
+        Map<RegistrationRound, RoundDates> roundDates = new EnumMap<>(RegistrationRound.class);
+        for (Conference conference : Conference.values()) {
+            FeeScheduleConfig.ConferenceFees fees = config.getConferences().get(conference.name());
+            if (fees == null || fees.getSessionNumber() == null
+                    || fees.getSchoolFee() == null || fees.getDelegateFee() == null
+                    || fees.getCardFeeRate() == null || fees.getCardFeeFixedAmount() == null
+                    || fees.getRounds() == null || fees.getRounds().isEmpty()) {
+                throw new QuickBooksException("Fee schedule is missing fees or rounds for " + conference.name(), null);
+            }
+            if (fees.getSessionNumber() <= 0) {
+                String message = "Fee schedule has an invalid session number for " + conference.name();
+                throw new QuickBooksException(message, null);
+            }
+            conferenceNames.put(conference, conference.name() + " " + fees.getSessionNumber());
+            conferenceFees.put(conference, fees);
+
+            NavigableMap<LocalDate, RegistrationRound> rounds = new TreeMap<>();
+            for (FeeScheduleConfig.Round roundConfig : fees.getRounds()) {
+                RegistrationRound round = parseRound(roundConfig.getRound(), conference);
+                RoundDates dates = new RoundDates(
+                        parseDate(roundConfig.getStartDate(), round),
+                        parseDate(roundConfig.getSchoolFeeDueDate(), round),
+                        parseDate(roundConfig.getDelegateFeeDueDate(), round)
+                );
+                if (roundDates.put(round, dates) != null || rounds.put(dates.getStartDate(), round) != null) {
+                    throw new QuickBooksException("Fee schedule has overlapping rounds at " + round.name(), null);
+                }
+            }
+            // Rounds are found by start date, so they must start in the order they're declared in
+            Iterator<RegistrationRound> roundsInOrder = rounds.values().iterator();
+            for (RegistrationRound round : RegistrationRound.values()) {
+                if (round.getConference() != conference) {
+                    continue;
+                }
+                if (!roundDates.containsKey(round)) {
+                    throw new QuickBooksException("Fee schedule is missing " + round.name(), null);
+                }
+                if (roundsInOrder.next() != round) {
+                    throw new QuickBooksException("Fee schedule has " + round.name() + " starting out of order", null);
+                }
+            }
+            roundsByStartDate.put(conference, Collections.unmodifiableNavigableMap(rounds));
+        }
+
+        Map<ItemType, String> itemNames = new EnumMap<>(ItemType.class);
+        Map<InvoiceType, BigDecimal> unitCosts = new EnumMap<>(InvoiceType.class);
+        Map<InvoiceType, Money> unitPrices = new EnumMap<>(InvoiceType.class);
+        for (InvoiceType invoiceType : InvoiceType.values()) {
+            Conference conference = invoiceType.getConference();
+            FeeScheduleConfig.ConferenceFees fees = conferenceFees.get(conference);
+            String feeName = invoiceType.isSchoolFee() ? Consts.SCHOOL_FEE : Consts.DELEGATE_FEE;
+            itemNames.put(invoiceType.getItemType(), conferenceNames.get(conference) + " " + feeName);
+            BigDecimal unitCost = invoiceType.isSchoolFee() ? fees.getSchoolFee() : fees.getDelegateFee();
+            unitCosts.put(invoiceType, unitCost);
+            unitPrices.put(invoiceType, Money.fromBigDecimal(unitCost));
+        }
+        itemNames.put(ItemType.CREDIT_CARD_PROCESSING_FEE, Consts.CREDIT_CARD_PROCESSING_FEE);
+
+        Map<Conference, CardFee> cardFees = new EnumMap<>(Conference.class);
+        conferenceFees.forEach((conference, fees) -> cardFees.put(
+                conference,
+                new CardFee(fees.getCardFeeRate(), fees.getCardFeeFixedAmount())
+        ));
+
+        return new FeeSchedule(
+                conferenceNames,
+                itemNames,
+                unitCosts,
+                unitPrices,
+                cardFees,
+                roundsByStartDate,
+                roundDates
+        );
+    }
+
+    /**
+     * Gets the name of the passed conference's current session, e.g. "BMUN 72"
+     */
+    public String getConferenceName(@NonNull Conference conference) {
+        return this.conferenceNames.get(conference);
+    }
+
+    /**
+     * Gets the name of the QuickBooks Item for the passed ItemType, e.g. "BMUN 72 School Fee"
+     */
+    public String getItemName(@NonNull ItemType itemType) {
+        return this.itemNames.get(itemType);
+    }
+
+    /**
+     * Gets the ItemType whose QuickBooks Item has the passed name
+     * @param itemName - The name of the Item
+     * @return - The matching ItemType, or null if the name doesn't match any ItemType of the current sessions
+     */
+    public ItemType getItemType(@NonNull String itemName) {
+        return this.itemTypesByName.get(itemName);
+    }
+
+    /**
+     * Gets the InvoiceType billed by the QuickBooks Item with the passed name
+     * @param itemName - The name of the Item
+     * @return - The matching InvoiceType, or null if the Item isn't a school or delegate fee of the current sessions
+     */
+    public InvoiceType getInvoiceType(@NonNull String itemName) {
+        return this.invoiceTypesByItemName.get(itemName);
+    }
+
+    public BigDecimal getUnitCost(@NonNull InvoiceType invoiceType) {
+        return this.unitCosts.get(invoiceType);
+    }
+
+    /**
+     * Gets the unit cost of the passed InvoiceType in cents, for fee arithmetic
+     */
+    public Money getUnitPrice(@NonNull InvoiceType invoiceType) {
+        return this.unitPrices.get(invoiceType);
+    }
+
+    /**
+     * Gets the credit card processing fee charged for card payments for the passed conference
+     */
+    public CardFee getCardFee(@NonNull Conference conference) {
+        return this.cardFees.get(conference);
+    }
+
+    /**
+     * Finds the registration round the passed date falls into: the latest round of the conference starting on or
+     * before it. Dates before the first round fall into the first round.
+     * @param registrationDate - The date the school registered
+     * @param conference - The conference registered for
+     * @return - The registration round
+     */
+    public RegistrationRound getRegistrationRound(@NonNull LocalDate registrationDate, @NonNull Conference conference) {
+        NavigableMap<LocalDate, RegistrationRound> rounds = this.roundsByStartDate.get(conference);
+        Map.Entry<LocalDate, RegistrationRound> round = rounds.floorEntry(registrationDate);
+        return round == null ? rounds.firstEntry().getValue() : round.getValue();
+    }
+
+    /**
+     * Gets the date the passed conference's current session opened for registration, i.e. the start of its first round
+     */
+    public LocalDate getSessionStartDate(@NonNull Conference conference) {
+        return this.roundsByStartDate.get(conference).firstKey();
+    }
+
+    /**
+     * Gets the dates of the passed round
+     * @param round - The round
+     * @return - The round's dates
+     * @throws QuickBooksException If the schedule doesn't include the round
+     */
+    public RoundDates getRoundDates(@NonNull RegistrationRound round) {
+        RoundDates dates = this.roundDates.get(round);
+        if (dates == null) {
+            throw new QuickBooksException("Fee schedule has no dates for " + round.name(), null);
+        }
+        return dates;
+    }
+
+    private static FeeSchedule loadDefault() {
+        String path = System.getProperty(FEE_SCHEDULE_PROPERTY);
+        if (path != null) {
+            try (Reader reader = Files.newBufferedReader(Path.of(path), StandardCharsets.UTF_8)) {
+                return load(reader);
+            } catch (IOException e) {
+                throw new QuickBooksException("Failed to read fee schedule " + path, e);
+            }
+        }
+        InputStream inputStream = FeeSchedule.class.getResourceAsStream(FEE_SCHEDULE_RESOURCE);
+        if (inputStream == null) {
+            throw new QuickBooksException("Failed to find fee schedule " + FEE_SCHEDULE_RESOURCE, null);
+        }
+        try (Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
+            return load(reader);
+        } catch (IOException e) {
+            throw new QuickBooksException("Failed to read fee schedule " + FEE_SCHEDULE_RESOURCE, e);
+        }
+    }
+
+    private static RegistrationRound parseRound(String roundName, Conference conference) {
+        RegistrationRound round;
+        try {
+            round = RegistrationRound.valueOf(String.valueOf(roundName));
+        } catch (IllegalArgumentException e) {
+            throw new QuickBooksException("Fee schedule has unknown round " + roundName, e);
+        }
+        if (round.getConference() != conference) {
+            throw new QuickBooksException("Fee schedule lists " + roundName + " under " + conference.name(), null);
+        }
+        return round;
+    }
+
+    private static LocalDate parseDate(String date, RegistrationRound round) {
+        if (date == null) {
+            throw new QuickBooksException("Fee schedule is missing a date for " + round.name(), null);
+        }
+        try {
+            return LocalDate.parse(date);
+        } catch (DateTimeParseException e) {
+            throw new QuickBooksException("Fee schedule has an invalid date for " + round.name(), e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package invoice_automation.fees;
+
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fee schedule as written in its JSON file, before being compiled into a FeeSchedule. Conferences and rounds are
+ * named by their enum constants, and dates are ISO local dates, e.g. 2023-09-18.
+ *
+ * @author skberkeley
+ */
+@Value
+public class FeeScheduleConfig {
+    /**
+     * Map from the name of each Conference to its fees for the current session
+     */
+    Map<String, ConferenceFees> conferences;
+
+    /**
+     * A conference's fees for its current session
+     */
+    @Value
+    public static class ConferenceFees {
+        /**
+         * The number of the current session, used in Item names such as "BMUN 72 School Fee"
+         */
+        Integer sessionNumber;
+        BigDecimal schoolFee;
+        /**
+         * The fee per delegate
+         */
+        BigDecimal delegateFee;
+        /**
+         * The fraction of a card payment kept by the card processor, e.g. 0.029
+         */
+        BigDecimal cardFeeRate;
+        /**
+         * The fixed amount kept by the card processor per card payment, e.g. 0.25
+         */
+        BigDecimal cardFeeFixedAmount;
+        List<Round> rounds;
+    }
+
+    /**
+     * The dates of a single registration round
+     */
+    @Value
+    public static class Round {
+        /**
+         * The name of the RegistrationRound, e.g. BMUN_ROUND_1
+         */
+        String round;
+        String startDate;
+        String schoolFeeDueDate;
+        String delegateFeeDueDate;
+    }
+}
@@ -0,0 +1,66 @@
+package invoice_automation.fees;
+
+import invoice_automation.QuickBooksException;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * An amount of money as a whole number of cents, used for fee arithmetic so that subtotals, line amounts and card fees
+ * are exact long operations rather than BigDecimal ones. Amounts are converted to BigDecimals only where they're set
+ * on QuickBooks entities.
+ * Arithmetic throws ArithmeticException on overflow rather than wrapping.
+ *
+ * @author skberkeley
+ */
+@Value
+public class Money {
+    public static final Money ZERO = new Money(0);
+
+    long cents;
+
+    public static Money ofCents(long cents) {
+        return new Money(cents);
+    }
+
+    /**
+     * Converts the passed amount of dollars to Money
+     * @param amount - The amount, which must be a whole number of cents
+     * @return - The equivalent Money
+     * @throws QuickBooksException If the amount has a fraction of a cent or doesn't fit in a long
+     */
+    public static Money fromBigDecimal(@NonNull BigDecimal amount) {
+        try {
+            return new Money(amount.movePointRight(2).longValueExact());
+        } catch (ArithmeticException e) {
+            throw new QuickBooksException(amount.toPlainString() + " isn't a whole number of cents", e);
+        }
+    }
+
+    public Money plus(@NonNull Money other) {
+        return new Money(Math.addExact(this.cents, other.cents));
+    }
+
+    public Money times(long quantity) {
+        return new Money(Math.multiplyExact(this.cents, quantity));
+    }
+
+    /**
+     * Converts to a BigDecimal amount of dollars with two decimal places, e.g. 12.30
+     */
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(this.cents, 2);
+    }
+
+    /**
+     * Converts to a BigDecimal amount of dollars with the passed scale, so that the result is the same BigDecimal a
+     * calculation on amounts of that scale would have produced, e.g. 35 rather than 35.00
+     * @param scale - The scale of the result, which must not drop any cents
+     * @return - The amount in dollars
+     * @throws ArithmeticException If the scale would drop cents
+     */
+    public BigDecimal toBigDecimal(int scale) {
+        return this.toBigDecimal().setScale(scale);
+    }
+}
@@ -0,0 +1,21 @@
+package invoice_automation.fees;
+
+import lombok.NonNull;
+import lombok.Value;
+
+import java.time.LocalDate;
+
+/**
+ * The dates of a single registration round, as compiled from the fee schedule
+ *
+ * @author skberkeley
+ */
+@Value
+public class RoundDates {
+    /**
+     * The first day registrations fall into the round
+     */
+    @NonNull LocalDate startDate;
+    @NonNull LocalDate schoolFeeDueDate;
+    @NonNull LocalDate delegateFeeDueDate;
+}
@@ -0,0 +1,259 @@
+package invoice_automation.handler;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.Invoice;
+import invoice_automation.QuickBooksException;
+import invoice_automation.module.QuickBooksModule;
+import lombok.NonNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sends invoice emails in the background, so that handling the next registration doesn't wait on the slow send call.
+ * At most a fixed number of emails are sent at once, and each invoice is only ever emailed once: dispatching an
+ * invoice that's already been sent, or is waiting to be, does nothing.
+ * If given a state file, the dispatcher records each email there as pending before sending it and as sent afterwards.
+ * A new dispatcher using the same file won't resend emails recorded as sent. Emails left pending by a dispatcher which
+ * crashed or failed to send them are sent by resumePending, unless QuickBooks shows the invoice was sent after all.
+ *
+ * @author skberkeley
+ */
+public class InvoiceEmailDispatcher {
+    private static final String PENDING = "PENDING";
+    private static final String SENT = "SENT";
+    private static final String SEPARATOR = "\t";
+
+    private final QuickBooksModule quickBooksModule;
+    /**
+     * File recording which emails are pending and which are sent, or null if state isn't persisted
+     */
+    private final Path stateFile;
+    private final ExecutorService executor;
+    /**
+     * Map from invoice id to whether its email is PENDING or SENT. Invoices whose emails failed are removed, so they
+     * can be dispatched again
+     */
+    private final Map<String, String> emailStates = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> inFlightEmails = new ConcurrentHashMap<>();
+    private final Map<String, QuickBooksException> failures = new ConcurrentHashMap<>();
+    /**
+     * Map from the id of each invoice left pending in the state file, which hasn't been resumed or dispatched again
+     * yet, to the address to send it to
+     */
+    private final Map<String, String> resumableEmails = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new dispatcher, loading and compacting the state file. Emails left pending in it aren't sent until
+     * resumePending is called or their invoice is dispatched again
+     * @param quickBooksModule - The module used to send emails
+     * @param stateFile - The file to persist pending and sent emails in, or null to not persist them
+     * @param concurrency - The most emails to send at once
+     * @throws QuickBooksException If the state file exists but couldn't be read or rewritten
+     */
+    public InvoiceEmailDispatcher(@NonNull QuickBooksModule quickBooksModule, Path stateFile, int concurrency) {
+        this.quickBooksModule = quickBooksModule;
+        this.stateFile = stateFile;
+        this.executor = Executors.newFixedThreadPool(
+                concurrency,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("invoice-email-%d").build()
+        );
+        if (stateFile != null) {
+            this.loadState().forEach((invoiceId, email) -> {
+                this.emailStates.put(invoiceId, PENDING);
+                this.resumableEmails.put(invoiceId, email);
+            });
+        }
+    }
+
+    /**
+     * Queues the passed invoice to be emailed, unless it's already been sent or queued. An invoice left pending in the
+     * state file is queued, and won't be sent again by resumePending
+     * @param invoice - The Invoice to send
+     * @param emailAddress - The email to send the invoice to, if the invoice doesn't have an associated billing email
+     * @return - Whether the invoice was queued
+     * @throws QuickBooksException If the invoice couldn't be recorded as pending
+     */
+    public boolean dispatch(@NonNull Invoice invoice, @NonNull String emailAddress) {
+        String invoiceId = invoice.getId();
+        String email = invoice.getBillEmail() == null ? emailAddress : invoice.getBillEmail().getAddress();
+        if (this.emailStates.putIfAbsent(invoiceId, PENDING) != null) {
+            if (this.resumableEmails.remove(invoiceId) == null) {
+                return false;
+            }
+            // Already recorded as pending in the state file, so just send it
+            this.submit(invoiceId, () -> this.quickBooksModule.sendInvoice(invoice, email));
+            return true;
+        }
+        try {
+            this.recordState(PENDING, invoiceId, email);
+        } catch (QuickBooksException e) {
+            this.emailStates.remove(invoiceId);
+            throw e;
+        }
+        this.submit(invoiceId, () -> this.quickBooksModule.sendInvoice(invoice, email));
+        return true;
+    }
+
+    /**
+     * Sends each email left pending in the state file which hasn't been dispatched again, then waits for every queued
+     * email to be sent or fail. Each invoice is fetched from QuickBooks first, and isn't emailed again if QuickBooks
+     * shows it was sent after all, for instance by a dispatcher which crashed before recording it as sent.
+     * @return - A map from the id of each invoice whose email failed since the last call to awaitCompletion or
+     * resumePending to the exception describing why. Empty if every email was sent
+     */
+    public Map<String, QuickBooksException> resumePending() {
+        for (String invoiceId : List.copyOf(this.resumableEmails.keySet())) {
+            String email = this.resumableEmails.remove(invoiceId);
+            if (email != null) {
+                this.submit(invoiceId, () -> this.resend(invoiceId, email));
+            }
+        }
+        return this.awaitCompletion();
+    }
+
+    /**
+     * Waits for every queued email to be sent or fail
+     * @return - A map from the id of each invoice whose email failed since the last call to the exception describing
+     * why. Empty if every email was sent
+     */
+    public Map<String, QuickBooksException> awaitCompletion() {
+        while (!this.inFlightEmails.isEmpty()) {
+            CompletableFuture.allOf(this.inFlightEmails.values().toArray(CompletableFuture[]::new))
+                    .exceptionally(throwable -> null)
+                    .join();
+        }
+        Map<String, QuickBooksException> completedFailures = new HashMap<>();
+        for (String invoiceId : List.copyOf(this.failures.keySet())) {
+            completedFailures.put(invoiceId, this.failures.remove(invoiceId));
+        }
+        return completedFailures;
+    }
+
+    /**
+     * Runs the passed send of an invoice's email on the dispatcher's executor, recording the email as sent if it
+     * succeeds or as failed if not
+     * @param invoiceId - The id of the invoice being emailed
+     * @param send - Sends the email
+     */
+    private void submit(String invoiceId, Runnable send) {
+        CompletableFuture<Void> sentEmail = CompletableFuture
+                .runAsync(send, this.executor)
+                .thenRun(() -> {
+                    this.recordState(SENT, invoiceId, "");
+                    this.emailStates.put(invoiceId, SENT);
+                })
+                .whenComplete((ignored, throwable) -> {
+                    if (throwable != null) {
+                        // Left pending in the state file, so a later run retries it
+                        this.emailStates.remove(invoiceId);
+                        this.failures.put(invoiceId, toQuickBooksException(throwable));
+                    }
+                });
+        this.inFlightEmails.put(invoiceId, sentEmail);
+        sentEmail.whenComplete((ignored, throwable) -> this.inFlightEmails.remove(invoiceId, sentEmail));
+    }
+
+    /**
+     * Emails the invoice with the passed id, which was left pending by an earlier dispatcher, unless it's already been
+     * sent
+     * @param invoiceId - The id of the invoice
+     * @param email - The email to send the invoice to, if the invoice doesn't have an associated billing email
+     * @throws QuickBooksException If the invoice couldn't be found or sent
+     */
+    private void resend(String invoiceId, String email) {
+        Invoice invoice = this.quickBooksModule.getInvoiceById(invoiceId);
+        if (invoice == null) {
+            throw new QuickBooksException("Couldn't find invoice " + invoiceId + " to resend", null);
+        }
+        if (invoice.getEmailStatus() != EmailStatusEnum.EMAIL_SENT) {
+            this.quickBooksModule.sendInvoice(invoice, email);
+        }
+    }
+
+    /**
+     * Reads the state file, then rewrites it with a single line per invoice
+     * @return - A map from the id of each invoice whose email is still pending to the address to send it to
+     */
+    private Map<String, String> loadState() {
+        Map<String, String> pendingEmails = new LinkedHashMap<>();
+        try {
+            Files.createDirectories(this.stateFile.toAbsolutePath().getParent());
+            if (!Files.exists(this.stateFile)) {
+                return pendingEmails;
+            }
+            for (String line : Files.readAllLines(this.stateFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length != 3) {
+                    // Skip lines cut short by a crash mid-write
+                    continue;
+                }
+                if (fields[0].equals(SENT)) {
+                    this.emailStates.put(fields[1], SENT);
+                    pendingEmails.remove(fields[1]);
+                } else if (fields[0].equals(PENDING) && !SENT.equals(this.emailStates.get(fields[1]))) {
+                    pendingEmails.put(fields[1], fields[2]);
+                }
+            }
+
+            Path compactedFile = Files.createTempFile(this.stateFile.toAbsolutePath().getParent(), "email", ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(compactedFile, StandardCharsets.UTF_8)) {
+                for (String invoiceId : this.emailStates.keySet()) {
+                    writeState(writer, SENT, invoiceId, "");
+                }
+                for (Map.Entry<String, String> pendingEmail : pendingEmails.entrySet()) {
+                    writeState(writer, PENDING, pendingEmail.getKey(), pendingEmail.getValue());
+                }
+            }
+            Files.move(compactedFile, this.stateFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new QuickBooksException("Failed to load email dispatch state", e);
+        }
+        return pendingEmails;
+    }
+
+    private synchronized void recordState(String state, String invoiceId, String email) {
+        if (this.stateFile == null) {
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(
+                this.stateFile,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND
+        )) {
+            writeState(writer, state, invoiceId, state.equals(SENT) ? "" : email);
+        } catch (IOException e) {
+            throw new QuickBooksException("Failed to record email dispatch state", e);
+        }
+    }
+
+    private static void writeState(BufferedWriter writer, String state, String invoiceId, String email)
+            throws IOException {
+        writer.write(state + SEPARATOR + invoiceId + SEPARATOR + email);
+        writer.newLine();
+    }
+
+    private static QuickBooksException toQuickBooksException(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+        if (cause instanceof QuickBooksException) {
+            return (QuickBooksException) cause;
+        }
+        return new QuickBooksException("Exception sending invoice", cause);
+    }
+}
@@ -0,0 +1,26 @@
+package invoice_automation.handler;
+
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.Registration;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of running registrations through a RegistrationPipeline
+ *
+ * @author skberkeley
+ */
+@Value
+public class PipelineResult {
+    /**
+     * Map from each registration which couldn't be fully handled to the exception describing why
+     */
+    @NonNull Map<Registration, QuickBooksException> failures;
+    /**
+     * Statistics for each stage, in pipeline order
+     */
+    @NonNull List<StageStats> stageStats;
+}
@@ -0,0 +1,25 @@
+package invoice_automation.handler;
+
+/**
+ * Enum to represent the stages of a RegistrationPipeline, in the order registrations pass through them
+ *
+ * @author skberkeley
+ */
+public enum PipelineStage {
+    /**
+     * Creates or updates the QuickBooks Customer for the registration's school
+     */
+    UPSERT_CUSTOMER,
+    /**
+     * Looks up existing invoices for the registration
+     */
+    FIND_INVOICES,
+    /**
+     * Creates invoices for registrations which don't have any yet
+     */
+    CREATE_INVOICES,
+    /**
+     * Queues each invoice which hasn't been sent to be emailed
+     */
+    SEND_INVOICES
+}
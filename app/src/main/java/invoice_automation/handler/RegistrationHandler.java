@@ -3,13 +3,33 @@ package invoice_automation.handler;
 import com.intuit.ipp.data.Customer;
 import com.intuit.ipp.data.EmailStatusEnum;
 import com.intuit.ipp.data.Invoice;
+import invoice_automation.QuickBooksException;
 import invoice_automation.model.InvoiceType;
+import invoice_automation.model.ItemType;
+import invoice_automation.module.BatchResult;
 import invoice_automation.module.QuickBooksModule;
 import invoice_automation.model.Registration;
+import invoice_automation.utils.QuickBooksUtil;
 import lombok.Builder;
 import lombok.NonNull;
 
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static invoice_automation.Consts.EMAIL_DISPATCH_CONCURRENCY;
+import static invoice_automation.Consts.PIPELINE_PARALLELISM;
+import static invoice_automation.Consts.PIPELINE_QUEUE_CAPACITY;
 
 /**
  * A class to handle new registrations
@@ -21,6 +41,10 @@ public class RegistrationHandler {
      * The QuickBooksModule used by this handler to make calls to the QuickBooks API
      */
     private final QuickBooksModule quickBooksModule;
+    /**
+     * Sends invoice emails in the background, so creating invoices doesn't wait on them
+     */
+    private final InvoiceEmailDispatcher emailDispatcher;
 
     /**
      * Creates a new RegistrationHandler, instantiating the handler's QuickBooksModule in the process.
@@ -29,9 +53,58 @@ public class RegistrationHandler {
      * @param realmId The realmId used to instantiate the QuickBooksModule
      * @param useSandbox Whether the QuickBooksModule should make calls to the sandbox endpoint (for testing)
      */
-    @Builder
     public RegistrationHandler(@NonNull String accessToken, @NonNull String realmId, boolean useSandbox) {
-        this.quickBooksModule = new QuickBooksModule(accessToken, realmId, useSandbox);
+        this(accessToken, realmId, useSandbox, null);
+    }
+
+    /**
+     * Creates a new RegistrationHandler, instantiating the handler's QuickBooksModule in the process.
+     * accessToken and realmId should be valid values as specified by the QuickBooksModule class.
+     * @param accessToken The accessToken used to instantiate the QuickBooksModule
+     * @param realmId The realmId used to instantiate the QuickBooksModule
+     * @param useSandbox Whether the QuickBooksModule should make calls to the sandbox endpoint (for testing)
+     * @param cacheDirectory The directory the QuickBooksModule should persist cached QuickBooks entities in between
+     *                       runs, and which invoice emails have been sent, or null to not persist them
+     */
+    @Builder
+    public RegistrationHandler(
+            @NonNull String accessToken,
+            @NonNull String realmId,
+            boolean useSandbox,
+            Path cacheDirectory
+    ) {
+        this.quickBooksModule = new QuickBooksModule(accessToken, realmId, useSandbox, cacheDirectory);
+        this.emailDispatcher = new InvoiceEmailDispatcher(
+                this.quickBooksModule,
+                cacheDirectory == null ? null : cacheDirectory.resolve("email-dispatch-" + realmId + ".log"),
+                EMAIL_DISPATCH_CONCURRENCY
+        );
+    }
+
+    /**
+     * Prepares the handler for a new batch of registrations by loading, once, the QuickBooks state shared between them.
+     * Should be called before handling the first registration of each batch.
+     * @param registrations - The registrations in the batch
+     * @throws QuickBooksException If QuickBooks is missing any Item needed to invoice the registrations
+     */
+    public void startBatch(@NonNull List<Registration> registrations) {
+        if (registrations.isEmpty()) {
+            return;
+        }
+        LocalDate invoicesSince = registrations.stream()
+                .map(QuickBooksUtil::getEarliestInvoiceDate)
+                .min(Comparator.naturalOrder())
+                .get();
+        this.quickBooksModule.syncCachedEntities(invoicesSince);
+
+        Set<ItemType> requiredItemTypes = registrations.stream()
+                .map(QuickBooksUtil::getItemTypesForRegistration)
+                .flatMap(List::stream)
+                .collect(Collectors.toSet());
+        this.quickBooksModule.checkItemsExist(requiredItemTypes);
+        this.quickBooksModule.resolveCustomers(
+                registrations.stream().map(Registration::getSchool).collect(Collectors.toList())
+        );
     }
 
     /**
@@ -40,6 +113,8 @@ public class RegistrationHandler {
      *  - Query whether any matching invoices exist
      *  - If invoices don't exist, create them
      *  - Send each invoice if it hasn't been sent
+     * Invoices are sent in the background, so this returns without waiting for them. Call awaitEmails to wait for
+     * them to be sent and find out which failed.
      * @param registration
      */
     public void handleRegistration(@NonNull Registration registration) {
@@ -51,10 +126,156 @@ public class RegistrationHandler {
             invoices = this.quickBooksModule.createInvoicesFromRegistration(registration);
         }
 
-        for (Invoice invoice : invoices.values()) {
-            if (invoice.getEmailStatus() != EmailStatusEnum.EMAIL_SENT) {
-                this.quickBooksModule.sendInvoice(invoice, customer.getPrimaryEmailAddr().getAddress());
+        this.dispatchInvoices(invoices.values(), customer);
+    }
+
+    /**
+     * Waits for every invoice email queued by handleRegistration to be sent or fail
+     * @return - A map from the id of each invoice whose email failed to the exception describing why. Empty if every
+     * email was sent
+     */
+    public Map<String, QuickBooksException> awaitEmails() {
+        return this.emailDispatcher.awaitCompletion();
+    }
+
+    /**
+     * Sends each invoice email an earlier run recorded as pending but didn't send, unless QuickBooks shows the invoice
+     * was sent after all, and waits for every queued email to be sent or fail. Should be called once before handling
+     * registrations, if the handler persists its state in a cache directory.
+     * @return - A map from the id of each invoice whose email failed to the exception describing why. Empty if every
+     * email was sent
+     */
+    public Map<String, QuickBooksException> resumePendingEmails() {
+        return this.emailDispatcher.resumePending();
+    }
+
+    /**
+     * Gets the invoices QuickBooks holds for the passed registration. Once the registration's batch has been started,
+     * this is answered from the cached invoices without calling QuickBooks.
+     * @param registration - The registration to get invoices for
+     * @return - A map from InvoiceType to the registration's invoices. Empty if it has none
+     */
+    public Map<InvoiceType, Invoice> getInvoices(@NonNull Registration registration) {
+        return this.quickBooksModule.queryInvoicesFromRegistration(registration);
+    }
+
+    /**
+     * Queues each of the passed invoices which hasn't been sent to be emailed to the passed Customer
+     * @param invoices - The invoices to send
+     * @param customer - The Customer the invoices are billed to
+     * @return - The ids of the invoices queued
+     */
+    private List<String> dispatchInvoices(@NonNull Collection<Invoice> invoices, @NonNull Customer customer) {
+        List<String> dispatchedInvoiceIds = new ArrayList<>();
+        for (Invoice invoice : invoices) {
+            if (invoice.getEmailStatus() != EmailStatusEnum.EMAIL_SENT
+                    && this.emailDispatcher.dispatch(invoice, customer.getPrimaryEmailAddr().getAddress())) {
+                dispatchedInvoiceIds.add(invoice.getId());
+            }
+        }
+        return dispatchedInvoiceIds;
+    }
+
+    /**
+     * Handles all the passed registrations as one batch, carrying out the same actions as handleRegistration but
+     * writing customers and invoices through the QuickBooks batch API, so a full sheet takes tens of requests rather
+     * than hundreds. A failure handling one registration doesn't stop the others from being handled. Invoices are
+     * emailed in the background as soon as they're found or created, and this waits for them to be sent.
+     * @param registrations - The registrations to handle
+     * @return - A map from each registration which couldn't be fully handled to the exception describing why. Empty if
+     * every registration was handled
+     * @throws QuickBooksException If QuickBooks is missing any Item needed to invoice the registrations, or the cached
+     * QuickBooks entities couldn't be saved
+     */
+    public Map<Registration, QuickBooksException> handleRegistrations(@NonNull List<Registration> registrations) {
+        this.startBatch(registrations);
+        Map<Registration, QuickBooksException> failures = new LinkedHashMap<>();
+
+        BatchResult<Registration, Customer> customers =
+                this.quickBooksModule.updateCustomersFromRegistrations(registrations);
+        failures.putAll(customers.getFailures());
+
+        // Find existing invoices and start sending them, deferring registrations whose customer already has invoices
+        // being created
+        Map<String, Registration> registrationsByInvoiceId = new HashMap<>();
+        List<Registration> registrationsToInvoice = new ArrayList<>();
+        List<Registration> deferredRegistrations = new ArrayList<>();
+        Set<String> customerIdsToInvoice = new HashSet<>();
+        customers.getResults().forEach((registration, customer) -> {
+            Map<InvoiceType, Invoice> existingInvoices =
+                    this.quickBooksModule.queryInvoicesFromRegistration(registration);
+            if (!existingInvoices.isEmpty()) {
+                this.dispatchInvoices(existingInvoices.values(), customer)
+                        .forEach(invoiceId -> registrationsByInvoiceId.put(invoiceId, registration));
+            } else if (customerIdsToInvoice.add(customer.getId())) {
+                registrationsToInvoice.add(registration);
+            } else {
+                deferredRegistrations.add(registration);
             }
+        });
+
+        // Create missing invoices while the existing ones are being sent, then send the new ones
+        BatchResult<Registration, Map<InvoiceType, Invoice>> createdInvoices =
+                this.quickBooksModule.createInvoicesFromRegistrations(registrationsToInvoice);
+        failures.putAll(createdInvoices.getFailures());
+        Map<Registration, Map<InvoiceType, Invoice>> newInvoices = new LinkedHashMap<>(createdInvoices.getResults());
+        for (Registration registration : deferredRegistrations) {
+            newInvoices.put(registration, this.quickBooksModule.queryInvoicesFromRegistration(registration));
+        }
+        newInvoices.forEach((registration, registrationInvoices) ->
+                this.dispatchInvoices(registrationInvoices.values(), customers.getResults().get(registration))
+                        .forEach(invoiceId -> registrationsByInvoiceId.put(invoiceId, registration))
+        );
+
+        this.emailDispatcher.awaitCompletion().forEach((invoiceId, e) -> {
+            Registration registration = registrationsByInvoiceId.get(invoiceId);
+            if (registration != null) {
+                failures.putIfAbsent(registration, e);
+            }
+        });
+
+        this.quickBooksModule.saveCachedEntities();
+        return failures;
+    }
+
+    /**
+     * Handles all the passed registrations through a RegistrationPipeline, carrying out the same actions as
+     * handleRegistration but overlapping the QuickBooks round trips of different schools, with PIPELINE_PARALLELISM
+     * workers per stage. A failure handling one registration doesn't stop the others from being handled.
+     * @param registrations - The registrations to handle
+     * @return - The registrations which couldn't be fully handled, and throughput statistics for each stage
+     * @throws QuickBooksException If QuickBooks is missing any Item needed to invoice the registrations
+     */
+    public PipelineResult handleRegistrationsConcurrently(@NonNull List<Registration> registrations) {
+        Map<PipelineStage, Integer> parallelism = new EnumMap<>(PipelineStage.class);
+        for (PipelineStage stage : PipelineStage.values()) {
+            parallelism.put(stage, PIPELINE_PARALLELISM);
         }
+        return this.handleRegistrationsConcurrently(registrations, parallelism);
+    }
+
+    /**
+     * Handles all the passed registrations through a RegistrationPipeline, as handleRegistrationsConcurrently does,
+     * with the passed number of workers for each stage
+     * @param registrations - The registrations to handle
+     * @param parallelism - Map from each stage to the number of workers it should run with
+     * @return - The registrations which couldn't be fully handled, and throughput statistics for each stage
+     * @throws QuickBooksException If QuickBooks is missing any Item needed to invoice the registrations, or the cached
+     * QuickBooks entities couldn't be saved
+     */
+    public PipelineResult handleRegistrationsConcurrently(
+            @NonNull List<Registration> registrations,
+            @NonNull Map<PipelineStage, Integer> parallelism
+    ) {
+        this.startBatch(registrations);
+        RegistrationPipeline pipeline = new RegistrationPipeline(
+                this.quickBooksModule,
+                this.emailDispatcher,
+                parallelism,
+                PIPELINE_QUEUE_CAPACITY
+        );
+        PipelineResult result = pipeline.run(registrations);
+        this.quickBooksModule.saveCachedEntities();
+        return result;
     }
 }
@@ -0,0 +1,329 @@
+package invoice_automation.handler;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intuit.ipp.data.Customer;
+import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.Invoice;
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.Registration;
+import invoice_automation.module.QuickBooksModule;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Handles registrations as a staged pipeline, so that QuickBooks round trips for different schools overlap instead of
+ * running back to back. Each PipelineStage has its own fixed pool of workers, and stages are connected by bounded
+ * queues, so a slow stage holds back the ones before it rather than letting work pile up in memory.
+ * A school's registrations travel through the pipeline together and are handled in order within each stage, so
+ * registrations for the same school never race each other. Registrations are tracked by their position in the list
+ * being run, so equal registrations are each handled and reported on.
+ * Invoice emails are sent through the handler's InvoiceEmailDispatcher, so each invoice is only emailed once, and the
+ * pipeline waits for them to be sent before returning.
+ *
+ * @author skberkeley
+ */
+public class RegistrationPipeline {
+    /**
+     * Marks the end of a stage's input. One is queued per worker of the stage
+     */
+    private static final SchoolWork END_OF_INPUT = new SchoolWork(List.of());
+
+    private final QuickBooksModule quickBooksModule;
+    private final InvoiceEmailDispatcher emailDispatcher;
+    private final Map<PipelineStage, Integer> parallelism;
+    private final int queueCapacity;
+
+    /**
+     * Creates a new pipeline making calls through the passed module
+     * @param quickBooksModule - The module used to make calls to the QuickBooks API
+     * @param emailDispatcher - The dispatcher used to send invoice emails
+     * @param parallelism - Map from each stage to the number of workers it should run with
+     * @param queueCapacity - The most schools that can wait in the queue in front of each stage
+     */
+    RegistrationPipeline(
+            @NonNull QuickBooksModule quickBooksModule,
+            @NonNull InvoiceEmailDispatcher emailDispatcher,
+            @NonNull Map<PipelineStage, Integer> parallelism,
+            int queueCapacity
+    ) {
+        for (PipelineStage stage : PipelineStage.values()) {
+            if (parallelism.getOrDefault(stage, 0) < 1) {
+                throw new IllegalArgumentException("Stage " + stage + " needs at least one worker");
+            }
+        }
+        this.quickBooksModule = quickBooksModule;
+        this.emailDispatcher = emailDispatcher;
+        this.parallelism = new EnumMap<>(parallelism);
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Runs the passed registrations through every stage of the pipeline, blocking until all of them are handled. A
+     * failure handling one registration doesn't stop the others from being handled. A registration whose invoice email
+     * fails to send counts as failed by the SEND_INVOICES stage.
+     * @param registrations - The registrations to handle
+     * @return - The registrations which couldn't be fully handled, and throughput statistics for each stage
+     * @throws QuickBooksException If interrupted while waiting for the pipeline to finish
+     */
+    public PipelineResult run(@NonNull List<Registration> registrations) {
+        PipelineStage[] stages = PipelineStage.values();
+        List<BlockingQueue<SchoolWork>> queues = new ArrayList<>(stages.length);
+        List<StageRecorder> recorders = new ArrayList<>(stages.length);
+        List<ExecutorService> executors = new ArrayList<>(stages.length);
+        RunState state = new RunState(registrations);
+        for (PipelineStage stage : stages) {
+            queues.add(new ArrayBlockingQueue<>(this.queueCapacity));
+            recorders.add(new StageRecorder(stage, this.parallelism.get(stage)));
+            executors.add(Executors.newFixedThreadPool(
+                    this.parallelism.get(stage),
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("pipeline-" + stage.name().toLowerCase(Locale.ROOT) + "-%d")
+                            .build()
+            ));
+        }
+
+        // Start each stage's workers, the last of which to finish ends the next stage's input
+        for (int i = 0; i < stages.length; i++) {
+            BlockingQueue<SchoolWork> input = queues.get(i);
+            BlockingQueue<SchoolWork> output = i + 1 < stages.length ? queues.get(i + 1) : null;
+            int outputWorkers = i + 1 < stages.length ? this.parallelism.get(stages[i + 1]) : 0;
+            StageRecorder recorder = recorders.get(i);
+            AtomicInteger remainingWorkers = new AtomicInteger(this.parallelism.get(stages[i]));
+            for (int worker = 0; worker < this.parallelism.get(stages[i]); worker++) {
+                executors.get(i).execute(() -> {
+                    try {
+                        this.runWorker(input, output, recorder, state);
+                    } finally {
+                        if (remainingWorkers.decrementAndGet() == 0 && output != null) {
+                            endInput(output, outputWorkers);
+                        }
+                    }
+                });
+            }
+        }
+
+        try {
+            // Group registrations by school, since QuickBooks matches display names case-insensitively
+            Map<String, List<Integer>> registrationIndicesBySchoolName = new LinkedHashMap<>();
+            for (int i = 0; i < registrations.size(); i++) {
+                String schoolName = registrations.get(i).getSchool().getSchoolName().toLowerCase(Locale.ROOT);
+                registrationIndicesBySchoolName.computeIfAbsent(schoolName, name -> new ArrayList<>()).add(i);
+            }
+            for (List<Integer> schoolRegistrationIndices : registrationIndicesBySchoolName.values()) {
+                queues.get(0).put(new SchoolWork(schoolRegistrationIndices));
+            }
+            endInput(queues.get(0), this.parallelism.get(stages[0]));
+
+            for (ExecutorService executor : executors) {
+                executor.shutdown();
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // Keep waiting, the stage is still working through its queue
+                }
+            }
+        } catch (InterruptedException e) {
+            executors.forEach(ExecutorService::shutdownNow);
+            Thread.currentThread().interrupt();
+            throw new QuickBooksException("Interrupted while handling registrations", e);
+        }
+
+        // Wait for the queued emails, failing the registrations of any which couldn't be sent
+        StageRecorder sendRecorder = recorders.get(stages.length - 1);
+        this.emailDispatcher.awaitCompletion().forEach((invoiceId, e) -> {
+            Integer index = state.registrationIndicesByInvoiceId.get(invoiceId);
+            if (index != null && state.failures.putIfAbsent(index, e) == null) {
+                sendRecorder.processed.decrement();
+                sendRecorder.failed.increment();
+            }
+        });
+
+        // Report failures in the order registrations were passed in
+        Map<Registration, QuickBooksException> orderedFailures = new LinkedHashMap<>();
+        for (int i = 0; i < registrations.size(); i++) {
+            QuickBooksException failure = state.failures.get(i);
+            if (failure != null) {
+                orderedFailures.putIfAbsent(registrations.get(i), failure);
+            }
+        }
+        return new PipelineResult(
+                orderedFailures,
+                recorders.stream().map(StageRecorder::toStageStats).collect(Collectors.toList())
+        );
+    }
+
+    /**
+     * Handles schools from the input queue until it's ended, passing those with registrations left to the output queue
+     */
+    private void runWorker(
+            BlockingQueue<SchoolWork> input,
+            BlockingQueue<SchoolWork> output,
+            StageRecorder recorder,
+            RunState state
+    ) {
+        try {
+            for (SchoolWork work = input.take(); work != END_OF_INPUT; work = input.take()) {
+                long start = System.nanoTime();
+                for (Iterator<Integer> iterator = work.registrationIndices.iterator(); iterator.hasNext(); ) {
+                    int index = iterator.next();
+                    try {
+                        this.handleStage(recorder.stage, work, index, state);
+                        recorder.processed.increment();
+                    } catch (RuntimeException e) {
+                        QuickBooksException exception = e instanceof QuickBooksException
+                                ? (QuickBooksException) e
+                                : new QuickBooksException("Unexpected exception in stage " + recorder.stage, e);
+                        state.failures.put(index, exception);
+                        iterator.remove();
+                        recorder.failed.increment();
+                    }
+                }
+                recorder.record(start, System.nanoTime());
+                if (output != null && !work.registrationIndices.isEmpty()) {
+                    output.put(work);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Carries out a single stage's part of handling a registration, mirroring RegistrationHandler.handleRegistration
+     */
+    private void handleStage(PipelineStage stage, SchoolWork work, int index, RunState state) {
+        Registration registration = state.registrations.get(index);
+        switch (stage) {
+            case UPSERT_CUSTOMER:
+                Customer customer = this.quickBooksModule.updateCustomerFromSchool(registration.getSchool());
+                work.customers.put(index, customer);
+                break;
+            case FIND_INVOICES:
+                work.invoices.put(index, this.quickBooksModule.queryInvoicesFromRegistration(registration));
+                break;
+            case CREATE_INVOICES:
+                Map<InvoiceType, Invoice> invoices = work.invoices.get(index);
+                if (invoices.isEmpty() && work.invoicesCreated) {
+                    // An earlier registration for this school created invoices after this one was looked up
+                    invoices = this.quickBooksModule.queryInvoicesFromRegistration(registration);
+                }
+                if (invoices.isEmpty()) {
+                    invoices = this.quickBooksModule.createInvoicesFromRegistration(registration);
+                    work.invoicesCreated = true;
+                }
+                work.invoices.put(index, invoices);
+                break;
+            case SEND_INVOICES:
+                String email = work.customers.get(index).getPrimaryEmailAddr().getAddress();
+                for (Invoice invoice : work.invoices.get(index).values()) {
+                    if (invoice.getEmailStatus() != EmailStatusEnum.EMAIL_SENT
+                            && this.emailDispatcher.dispatch(invoice, email)) {
+                        state.registrationIndicesByInvoiceId.put(invoice.getId(), index);
+                    }
+                }
+                break;
+        }
+    }
+
+    private static void endInput(BlockingQueue<SchoolWork> queue, int workers) {
+        try {
+            for (int i = 0; i < workers; i++) {
+                queue.put(END_OF_INPUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The registrations being run and what's been found out about them, shared between every worker of a run
+     */
+    private static class RunState {
+        private final List<Registration> registrations;
+        /**
+         * Map from the index of each registration which couldn't be fully handled to the exception describing why
+         */
+        private final Map<Integer, QuickBooksException> failures = new ConcurrentHashMap<>();
+        /**
+         * Map from the id of each invoice queued to be emailed to the index of the registration it's for
+         */
+        private final Map<String, Integer> registrationIndicesByInvoiceId = new ConcurrentHashMap<>();
+
+        private RunState(List<Registration> registrations) {
+            this.registrations = List.copyOf(registrations);
+        }
+    }
+
+    /**
+     * A school's registrations, as indices into the registrations being run, along with what earlier stages found out
+     * about them. Only one worker handles a school at a time, with the queues between stages publishing its state to
+     * the next worker.
+     */
+    private static class SchoolWork {
+        private final List<Integer> registrationIndices;
+        private final Map<Integer, Customer> customers = new HashMap<>();
+        private final Map<Integer, Map<InvoiceType, Invoice>> invoices = new HashMap<>();
+        private boolean invoicesCreated;
+
+        private SchoolWork(List<Integer> registrationIndices) {
+            this.registrationIndices = new ArrayList<>(registrationIndices);
+        }
+    }
+
+    /**
+     * Collects a stage's statistics while its workers run
+     */
+    private static class StageRecorder {
+        private final PipelineStage stage;
+        private final int parallelism;
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+        private final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+
+        private StageRecorder(PipelineStage stage, int parallelism) {
+            this.stage = stage;
+            this.parallelism = parallelism;
+        }
+
+        private void record(long start, long end) {
+            this.busyNanos.add(end - start);
+            this.firstStart.accumulateAndGet(start, Math::min);
+            this.lastEnd.accumulateAndGet(end, Math::max);
+        }
+
+        private StageStats toStageStats() {
+            Duration elapsed = this.firstStart.get() == Long.MAX_VALUE
+                    ? Duration.ZERO
+                    : Duration.ofNanos(this.lastEnd.get() - this.firstStart.get());
+            return new StageStats(
+                    this.stage,
+                    this.parallelism,
+                    this.processed.sum(),
+                    this.failed.sum(),
+                    Duration.ofNanos(this.busyNanos.sum()),
+                    elapsed
+            );
+        }
+    }
+}
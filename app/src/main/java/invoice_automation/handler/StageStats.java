@@ -0,0 +1,71 @@
+package invoice_automation.handler;
+
+import lombok.NonNull;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * Throughput statistics for one stage of a RegistrationPipeline run
+ *
+ * @author skberkeley
+ */
+@Value
+public class StageStats {
+    @NonNull PipelineStage stage;
+    /**
+     * The number of workers the stage ran with
+     */
+    int parallelism;
+    /**
+     * The number of registrations the stage handled successfully
+     */
+    long processed;
+    /**
+     * The number of registrations the stage failed to handle
+     */
+    long failed;
+    /**
+     * The total time the stage's workers spent handling registrations, summed across workers
+     */
+    @NonNull Duration busyTime;
+    /**
+     * The time from the stage starting on its first registration to finishing its last
+     */
+    @NonNull Duration elapsed;
+
+    /**
+     * Gets the number of registrations the stage got through per second while it was running
+     * @return - The stage's throughput, or 0 if it handled no registrations
+     */
+    public double getThroughput() {
+        if (this.elapsed.isZero()) {
+            return 0;
+        }
+        return (this.processed + this.failed) / (this.elapsed.toNanos() / 1e9);
+    }
+
+    /**
+     * Gets the fraction of the stage's worker time spent handling registrations rather than waiting for them
+     * @return - The stage's utilization, between 0 and 1
+     */
+    public double getUtilization() {
+        if (this.elapsed.isZero()) {
+            return 0;
+        }
+        return (double) this.busyTime.toNanos() / (this.elapsed.toNanos() * this.parallelism);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s: %d handled, %d failed, %.1f registrations/s with %d workers (%.0f%% busy)",
+                this.stage,
+                this.processed,
+                this.failed,
+                this.getThroughput(),
+                this.parallelism,
+                100 * this.getUtilization()
+        );
+    }
+}
@@ -0,0 +1,206 @@
+package invoice_automation.metrics;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Collects metrics for every call made to the QuickBooks and Google Sheets APIs: how many calls of each operation were
+ * made, how long they took, how large their payloads were, and how often they were throttled and retried. Phases of a
+ * run, such as reading the sheet or handling a chunk of registrations, can be recorded the same way under PHASE, so a
+ * run's time can be broken down by phase as well as by call.
+ * A single instance is shared by every module in the process, so a run's metrics cover all of its calls.
+ *
+ * @author skberkeley
+ */
+public class ApiMetrics {
+    public static final String QUICKBOOKS = "quickbooks";
+    public static final String SHEETS = "sheets";
+    public static final String PHASE = "phase";
+
+    private static final ApiMetrics GLOBAL = new ApiMetrics();
+
+    /**
+     * Metrics by service, then operation
+     */
+    private final Map<String, Map<String, OperationMetrics>> operations = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the instance shared by every module in the process
+     * @return - The shared instance
+     */
+    public static ApiMetrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Gets the metrics for an operation, creating them if it hasn't been recorded before
+     * @param service - The API the operation calls, such as QUICKBOOKS or SHEETS
+     * @param operation - The name of the operation, such as query or values.get
+     * @return - The operation's metrics
+     */
+    public OperationMetrics forOperation(@NonNull String service, @NonNull String operation) {
+        return this.operations
+                .computeIfAbsent(service, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(operation, key -> new OperationMetrics(service, operation));
+    }
+
+    /**
+     * Gets the metrics of every operation recorded so far
+     * @return - The metrics, ordered by service then operation
+     */
+    public List<OperationMetrics> getOperations() {
+        List<OperationMetrics> allOperations = new ArrayList<>();
+        this.operations.values().forEach(serviceOperations -> allOperations.addAll(serviceOperations.values()));
+        allOperations.sort(
+                Comparator.comparing(OperationMetrics::getService).thenComparing(OperationMetrics::getOperation)
+        );
+        return allOperations;
+    }
+
+    /**
+     * Gets the number of calls made to the passed service, excluding phases
+     * @param service - The API to count calls to
+     * @return - The number of calls, counting each retry
+     */
+    public long getCalls(@NonNull String service) {
+        return this.operations.getOrDefault(service, Map.of()).values().stream()
+                .mapToLong(OperationMetrics::getCalls)
+                .sum();
+    }
+
+    /**
+     * Formats a human-readable summary of every operation recorded
+     * @param registrations - The number of registrations handled in the run, used to report calls per registration,
+     *                      or 0 to leave them out
+     * @return - The summary, a line per operation followed by a line per service
+     */
+    public String toSummary(int registrations) {
+        StringBuilder summary = new StringBuilder(String.format(
+                "%-10s %-24s %8s %8s %8s %8s %10s %10s %10s %12s%n",
+                "service", "operation", "calls", "failed", "throttled", "retries", "p50", "p99", "max", "payload"
+        ));
+        for (OperationMetrics metrics : this.getOperations()) {
+            LatencyHistogram latencies = metrics.getLatencies();
+            summary.append(String.format(
+                    "%-10s %-24s %8d %8d %8d %8d %10s %10s %10s %12d%n",
+                    metrics.getService(),
+                    metrics.getOperation(),
+                    metrics.getCalls(),
+                    metrics.getFailures(),
+                    metrics.getThrottled(),
+                    metrics.getRetries(),
+                    formatDuration(latencies.getPercentile(50)),
+                    formatDuration(latencies.getPercentile(99)),
+                    formatDuration(latencies.getMax()),
+                    metrics.getPayloadSize()
+            ));
+        }
+        for (String service : List.of(QUICKBOOKS, SHEETS)) {
+            long calls = this.getCalls(service);
+            summary.append(String.format("%s calls: %d", service, calls));
+            if (registrations > 0) {
+                summary.append(String.format(" (%.2f per registration)", (double) calls / registrations));
+            }
+            summary.append(System.lineSeparator());
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes every operation's metrics to the passed file in the Prometheus text exposition format, as read by the
+     * node exporter's textfile collector. The file is replaced atomically, so a collector never reads half of it.
+     * @param file - The file to write
+     * @throws IOException If the file couldn't be written
+     */
+    public void writePrometheus(@NonNull Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, "metrics", ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                List<OperationMetrics> allOperations = this.getOperations();
+                writeCounter(writer, allOperations, "invoicing_api_calls_total", "API calls made, including retries",
+                        OperationMetrics::getCalls);
+                writeCounter(writer, allOperations, "invoicing_api_failures_total", "API calls which failed",
+                        OperationMetrics::getFailures);
+                writeCounter(writer, allOperations, "invoicing_api_throttled_total", "API calls rejected as throttled",
+                        OperationMetrics::getThrottled);
+                writeCounter(writer, allOperations, "invoicing_api_retries_total", "API calls retried",
+                        OperationMetrics::getRetries);
+                writeCounter(writer, allOperations, "invoicing_api_payload_size_total",
+                        "Size of API call payloads, in entities for QuickBooks and cells for Sheets",
+                        OperationMetrics::getPayloadSize);
+                writeHistogram(writer, allOperations);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void writeCounter(
+            Writer writer,
+            List<OperationMetrics> allOperations,
+            String name,
+            String help,
+            ToLongFunction<OperationMetrics> value
+    ) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " counter\n");
+        for (OperationMetrics metrics : allOperations) {
+            writer.write(name + "{" + getLabels(metrics) + "} " + value.applyAsLong(metrics) + "\n");
+        }
+    }
+
+    private static void writeHistogram(Writer writer, List<OperationMetrics> allOperations) throws IOException {
+        String name = "invoicing_api_latency_seconds";
+        writer.write("# HELP " + name + " Latency of API calls\n");
+        writer.write("# TYPE " + name + " histogram\n");
+        for (OperationMetrics metrics : allOperations) {
+            LatencyHistogram latencies = metrics.getLatencies();
+            long[] bucketCounts = latencies.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKET_BOUNDS.length; i++) {
+                cumulative += bucketCounts[i];
+                writer.write(String.format(
+                        Locale.ROOT,
+                        "%s_bucket{%s,le=\"%s\"} %d\n",
+                        name,
+                        getLabels(metrics),
+                        toSeconds(LatencyHistogram.BUCKET_BOUNDS[i]),
+                        cumulative
+                ));
+            }
+            cumulative += bucketCounts[LatencyHistogram.BUCKET_BOUNDS.length];
+            writer.write(name + "_bucket{" + getLabels(metrics) + ",le=\"+Inf\"} " + cumulative + "\n");
+            writer.write(name + "_sum{" + getLabels(metrics) + "} " + toSeconds(latencies.getSum()) + "\n");
+            writer.write(name + "_count{" + getLabels(metrics) + "} " + cumulative + "\n");
+        }
+    }
+
+    private static String getLabels(OperationMetrics metrics) {
+        return "service=\"" + metrics.getService() + "\",operation=\"" + metrics.getOperation() + "\"";
+    }
+
+    private static String toSeconds(Duration duration) {
+        return String.format(Locale.ROOT, "%.6f", duration.toNanos() / 1e9);
+    }
+
+    private static String formatDuration(Duration duration) {
+        return String.format(Locale.ROOT, "%.1fms", duration.toNanos() / 1e6);
+    }
+}
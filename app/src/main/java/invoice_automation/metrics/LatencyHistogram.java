@@ -0,0 +1,107 @@
+package invoice_automation.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with fixed buckets, cheap enough to record every API call into from many threads at once.
+ * Percentiles are estimated as the upper bound of the bucket they fall into, so they're accurate to within a bucket.
+ *
+ * @author skberkeley
+ */
+public class LatencyHistogram {
+    /**
+     * The upper bound of each bucket but the last, which holds everything slower
+     */
+    static final Duration[] BUCKET_BOUNDS = {
+            Duration.ofMillis(5),
+            Duration.ofMillis(10),
+            Duration.ofMillis(25),
+            Duration.ofMillis(50),
+            Duration.ofMillis(100),
+            Duration.ofMillis(250),
+            Duration.ofMillis(500),
+            Duration.ofSeconds(1),
+            Duration.ofMillis(2500),
+            Duration.ofSeconds(5),
+            Duration.ofSeconds(10),
+            Duration.ofSeconds(30)
+    };
+
+    private final LongAdder[] bucketCounts = new LongAdder[BUCKET_BOUNDS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < this.bucketCounts.length; i++) {
+            this.bucketCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a single latency
+     * @param nanos - The latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && nanos > BUCKET_BOUNDS[bucket].toNanos()) {
+            bucket++;
+        }
+        this.bucketCounts[bucket].increment();
+        this.count.increment();
+        this.sumNanos.add(nanos);
+        this.maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public Duration getSum() {
+        return Duration.ofNanos(this.sumNanos.sum());
+    }
+
+    public Duration getMax() {
+        return Duration.ofNanos(this.maxNanos.get());
+    }
+
+    /**
+     * Gets how many latencies fell into each bucket
+     * @return - The count of each bucket, in the order of BUCKET_BOUNDS, followed by the count of the overflow bucket
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[this.bucketCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.bucketCounts[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Estimates a percentile of the recorded latencies
+     * @param percentile - The percentile to estimate, between 0 and 100
+     * @return - The upper bound of the bucket the percentile falls into, capped at the largest latency recorded. Zero
+     * if nothing was recorded
+     */
+    public Duration getPercentile(double percentile) {
+        long[] counts = this.getBucketCounts();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return Duration.ZERO;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return BUCKET_BOUNDS[i].compareTo(this.getMax()) < 0 ? BUCKET_BOUNDS[i] : this.getMax();
+            }
+        }
+        return this.getMax();
+    }
+}
@@ -0,0 +1,82 @@
+package invoice_automation.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics for a single kind of API call, such as QuickBooks queries or Sheets batchGet requests. Every attempt at a
+ * call counts, so a call throttled twice then retried successfully counts as three calls, two of them throttled.
+ *
+ * @author skberkeley
+ */
+public class OperationMetrics {
+    /**
+     * The API the calls are made to, such as quickbooks or sheets
+     */
+    @Getter
+    private final String service;
+    @Getter
+    private final String operation;
+    @Getter
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder payloadSize = new LongAdder();
+
+    OperationMetrics(String service, String operation) {
+        this.service = service;
+        this.operation = operation;
+    }
+
+    /**
+     * Records a call which succeeded
+     * @param nanos - How long the call took, in nanoseconds
+     * @param payloadSize - The size of the call's payload, in the units the service measures payloads in
+     */
+    public void recordSuccess(long nanos, long payloadSize) {
+        this.latencies.record(nanos);
+        this.payloadSize.add(payloadSize);
+    }
+
+    /**
+     * Records a call which failed
+     * @param nanos - How long the call took to fail, in nanoseconds
+     * @param throttled - Whether the call failed because the API throttled it
+     */
+    public void recordFailure(long nanos, boolean throttled) {
+        this.latencies.record(nanos);
+        this.failures.increment();
+        if (throttled) {
+            this.throttled.increment();
+        }
+    }
+
+    /**
+     * Records that a call is being retried, after an earlier attempt failed
+     */
+    public void recordRetry() {
+        this.retries.increment();
+    }
+
+    public long getCalls() {
+        return this.latencies.getCount();
+    }
+
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    public long getThrottled() {
+        return this.throttled.sum();
+    }
+
+    public long getRetries() {
+        return this.retries.sum();
+    }
+
+    public long getPayloadSize() {
+        return this.payloadSize.sum();
+    }
+}
@@ -1,25 +1,21 @@
 package invoice_automation.model;
 
-import invoice_automation.Consts;
+import invoice_automation.fees.FeeSchedule;
 
 /**
  * Enum to represent BMUN's different conferences
  * Used to determine to which line items to use when creating invoices
  * DW is omitted since invoices are not required since it is free to participate
+ * The name of each conference's current session, e.g. "BMUN 72", comes from the fee schedule
  *
  * @author skberkeley
  */
 public enum Conference {
-    BMUN {
-        @Override
-        public String toString() {
-            return String.format("BMUN %d", Consts.BMUN_SESSION_NO);
-        }
-    },
-    FC {
-        @Override
-        public String toString() {
-            return String.format("FC %d", Consts.FC_NO);
-        }
+    BMUN,
+    FC;
+
+    @Override
+    public String toString() {
+        return FeeSchedule.current().getConferenceName(this);
     }
 }
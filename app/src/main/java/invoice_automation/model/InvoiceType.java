@@ -1,39 +1,40 @@
 package invoice_automation.model;
 
-import invoice_automation.Consts;
+import invoice_automation.fees.FeeSchedule;
 import lombok.Getter;
 
 import java.math.BigDecimal;
 
 public enum InvoiceType {
-    BMUN_SCHOOL_FEE(BigDecimal.valueOf(60)) {
-        @Override
-        public String toString() {
-            return String.format("%s %s", Conference.BMUN, Consts.SCHOOL_FEE);
-        }
-    },
-    BMUN_DELEGATE_FEE(BigDecimal.valueOf(85)) {
-        @Override
-        public String toString() {
-            return String.format("%s %s", Conference.BMUN, Consts.DELEGATE_FEE);
-        }
-    },
-    FC_SCHOOL_FEE(BigDecimal.valueOf(35)) {
-        @Override
-        public String toString() {
-            return String.format("%s %s", Conference.FC, Consts.SCHOOL_FEE);
-        }
-    },
-    FC_DELEGATE_FEE(BigDecimal.valueOf(30)) {
-        @Override
-        public String toString() {
-            return String.format("%s %s", Conference.FC, Consts.DELEGATE_FEE);
-        }
-    };
+    BMUN_SCHOOL_FEE(Conference.BMUN, true, ItemType.BMUN_SCHOOL_FEE),
+    BMUN_DELEGATE_FEE(Conference.BMUN, false, ItemType.BMUN_DELEGATE_FEE),
+    FC_SCHOOL_FEE(Conference.FC, true, ItemType.FC_SCHOOL_FEE),
+    FC_DELEGATE_FEE(Conference.FC, false, ItemType.FC_DELEGATE_FEE);
 
     @Getter
-    private final BigDecimal unitCost;
-    InvoiceType(BigDecimal unitCost) {
-        this.unitCost = unitCost;
+    private final Conference conference;
+    /**
+     * Whether the invoice is for the flat school fee, rather than the per delegate fee
+     */
+    @Getter
+    private final boolean schoolFee;
+    /**
+     * The ItemType of the invoice's line item
+     */
+    @Getter
+    private final ItemType itemType;
+    InvoiceType(Conference conference, boolean schoolFee, ItemType itemType) {
+        this.conference = conference;
+        this.schoolFee = schoolFee;
+        this.itemType = itemType;
+    }
+
+    public BigDecimal getUnitCost() {
+        return FeeSchedule.current().getUnitCost(this);
+    }
+
+    @Override
+    public String toString() {
+        return FeeSchedule.current().getItemName(this.itemType);
     }
 }
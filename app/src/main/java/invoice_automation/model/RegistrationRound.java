@@ -1,52 +1,39 @@
 package invoice_automation.model;
 
+import invoice_automation.fees.FeeSchedule;
 import lombok.Getter;
 
 import java.time.LocalDate;
-import java.util.Date;
 
+/**
+ * Enum to represent the registration rounds of each conference's current session
+ * Each round's dates come from the fee schedule
+ *
+ * @author skberkeley
+ */
 public enum RegistrationRound {
-    // TODO
-    BMUN_ROUND_1(
-            LocalDate.of(2023, 9, 18),
-            LocalDate.of(2023, 10, 9),
-            LocalDate.of(2023, 10, 27)
-    ),
-    BMUN_ROUND_2(
-        LocalDate.of(2023, 10, 7),
-        LocalDate.of(2023, 11, 6),
-        LocalDate.of(2023, 12, 1)
-    ),
-    BMUN_ROUND_3(
-        LocalDate.of(2023, 11, 4),
-        LocalDate.of(2023, 12, 11),
-        LocalDate.of(2024, 1, 5)
-    ),
-    BMUN_ROUND_4(
-        LocalDate.of(2023, 12, 9),
-        LocalDate.of(2024, 1, 5),
-        LocalDate.of(2024, 1, 26)
-    ),
-    FC_ROUND_1(
-        LocalDate.of(2023, 8, 14),
-        LocalDate.of(2023, 9, 15),
-        LocalDate.of(2023, 9, 15)
-    ),
-    FC_ROUND_2(
-            LocalDate.of(2023, 9, 16),
-            LocalDate.of(2023, 10, 6),
-            LocalDate.of(2023, 10, 6)
-    );
+    BMUN_ROUND_1(Conference.BMUN),
+    BMUN_ROUND_2(Conference.BMUN),
+    BMUN_ROUND_3(Conference.BMUN),
+    BMUN_ROUND_4(Conference.BMUN),
+    FC_ROUND_1(Conference.FC),
+    FC_ROUND_2(Conference.FC);
 
     @Getter
-    private final LocalDate roundStartDate;
-    @Getter
-    private final LocalDate schoolFeeDueDate;
-    @Getter
-    private final LocalDate delegateFeeDueDate;
-    RegistrationRound(LocalDate roundStartDate, LocalDate schoolFeeDueDate, LocalDate delegateFeeDueDate) {
-        this.roundStartDate = roundStartDate;
-        this.schoolFeeDueDate = schoolFeeDueDate;
-        this.delegateFeeDueDate = delegateFeeDueDate;
+    private final Conference conference;
+    RegistrationRound(Conference conference) {
+        this.conference = conference;
+    }
+
+    public LocalDate getRoundStartDate() {
+        return FeeSchedule.current().getRoundDates(this).getStartDate();
+    }
+
+    public LocalDate getSchoolFeeDueDate() {
+        return FeeSchedule.current().getRoundDates(this).getSchoolFeeDueDate();
+    }
+
+    public LocalDate getDelegateFeeDueDate() {
+        return FeeSchedule.current().getRoundDates(this).getDelegateFeeDueDate();
     }
 }
@@ -0,0 +1,26 @@
+package invoice_automation.module;
+
+import invoice_automation.QuickBooksException;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * The outcome of a batched QuickBooks write, split into the keys whose writes succeeded and those whose writes failed
+ *
+ * @param <K> The type identifying each write, e.g. the Registration it was made for
+ * @param <T> The type of the result of a successful write
+ * @author skberkeley
+ */
+@Value
+public class BatchResult<K, T> {
+    /**
+     * Map from key to the result of its write, for keys whose writes all succeeded
+     */
+    @NonNull Map<K, T> results;
+    /**
+     * Map from key to the exception describing why its write failed
+     */
+    @NonNull Map<K, QuickBooksException> failures;
+}
@@ -6,14 +6,20 @@ import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.sheets.v4.Sheets;
 import com.google.api.services.sheets.v4.SheetsScopes;
+import com.google.api.services.sheets.v4.model.BatchGetValuesResponse;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesRequest;
 import com.google.api.services.sheets.v4.model.ValueRange;
 import invoice_automation.QuickBooksException;
+import invoice_automation.metrics.ApiMetrics;
+import invoice_automation.metrics.OperationMetrics;
 import invoice_automation.model.Address;
 import invoice_automation.model.Conference;
 import invoice_automation.model.PaymentMethod;
@@ -27,10 +33,15 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
+import static invoice_automation.Consts.SHEET_WINDOW_ROWS;
+
 // Class used to read Google Sheets from which we get invoicing info
 public class GoogleSheetsModule {
     private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
@@ -43,6 +54,40 @@ public class GoogleSheetsModule {
      * If modifying these scopes, delete your previously saved tokens/ folder.
      */
     private static final List<String> SCOPES = List.of(SheetsScopes.SPREADSHEETS);
+    /**
+     * The range of each registration sheet holding registrations, below the header row
+     */
+    private static final String REGISTRATION_RANGE = "!A2:M";
+
+    /**
+     * The Sheets service shared by every call, built on first use. Building it loads the credential, which may prompt
+     * the user to authorize the app, so it's only done once per process. The service and its credential are safe to
+     * use from multiple threads, and the credential refreshes its access token as needed.
+     */
+    private static volatile Sheets sheetsService;
+
+    /**
+     * Gets the shared Sheets service, building it and its transport and credential if this is the first call
+     * @return - The Sheets service
+     * @throws GeneralSecurityException If the HTTP transport couldn't be created
+     * @throws IOException If the credentials file couldn't be read or the user couldn't be authorized
+     */
+    private static Sheets getSheetsService() throws GeneralSecurityException, IOException {
+        Sheets service = sheetsService;
+        if (service == null) {
+            synchronized (GoogleSheetsModule.class) {
+                service = sheetsService;
+                if (service == null) {
+                    final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+                    service = new Sheets.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
+                            .setApplicationName("Invoicing")
+                            .build();
+                    sheetsService = service;
+                }
+            }
+        }
+        return service;
+    }
 
     /**
      * Creates an authorized Credential object.
@@ -54,7 +99,10 @@ public class GoogleSheetsModule {
     private static Credential getCredentials(final NetHttpTransport HTTP_TRANSPORT) throws IOException {
         // Load client secrets
         File credentials_file = new File(CREDENTIALS_FILE_PATH);
-        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new FileReader(credentials_file));
+        GoogleClientSecrets clientSecrets;
+        try (FileReader credentialsReader = new FileReader(credentials_file)) {
+            clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, credentialsReader);
+        }
 
         // Build flow and trigger user authorization request.
         GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow
@@ -67,58 +115,241 @@ public class GoogleSheetsModule {
     }
 
     /**
-     * Parse a list of registrations to issue invoices for from a Google sheet
+     * Parse a list of registrations to issue invoices for from a Google sheet. Rows which couldn't be parsed don't stop
+     * the parse: they're skipped and returned as RowParseErrors.
      * @param spreadsheetId - The id of the sheet to parse registrations from
      * @param conference - The conference for which registrations are being parsed
-     * @return - The parsed registrations
+     * @return - The parsed registrations and the rows which couldn't be parsed
      */
-    public static List<Registration> parseRegistrationsFromGoogleSheet(
+    public static SheetParseResult<Registration> parseRegistrationsFromGoogleSheet(
             @NonNull String spreadsheetId,
             @NonNull String sheetName,
             @NonNull Conference conference
     ) throws GeneralSecurityException, IOException {
-        // Build a new authorized API client service.
-        final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-        final String range = sheetName + "!A2:M";
-        Sheets service = new Sheets.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                .setApplicationName("Invoicing")
-                .build();
-        ValueRange response = service.spreadsheets().values().get(spreadsheetId, range).execute();
-        List<List<Object>> values = response.getValues();
-        if (values == null || values.isEmpty()) {
+        List<List<Object>> values = getValues(spreadsheetId, List.of(sheetName + REGISTRATION_RANGE)).get(0);
+        if (values.isEmpty()) {
             throw new QuickBooksException("Failed to find registrations to parse", null);
         }
 
-        return values.stream()
-                .map(row -> parseRegistration(row, conference))
-                .filter(Objects::nonNull)
+        List<Registration> registrations = new ArrayList<>();
+        List<RowParseError> parseErrors = new ArrayList<>();
+        parseRows(sheetName, values, conference, registrations, parseErrors);
+        return new SheetParseResult<>(registrations, parseErrors);
+    }
+
+    /**
+     * Parse registrations to issue invoices for from several sheets of the same spreadsheet, such as the BMUN and FC
+     * registration tabs, fetching all of them in a single request. Sheets without any rows contribute no
+     * registrations, and rows which couldn't be parsed are skipped and returned as RowParseErrors.
+     * @param spreadsheetId - The id of the spreadsheet to parse registrations from
+     * @param conferencesBySheetName - Map from the name of each sheet to parse to the conference it holds
+     *                               registrations for
+     * @return - The parsed registrations and the rows which couldn't be parsed, in sheet order
+     */
+    public static SheetParseResult<Registration> parseRegistrationsFromGoogleSheets(
+            @NonNull String spreadsheetId,
+            @NonNull Map<String, Conference> conferencesBySheetName
+    ) throws GeneralSecurityException, IOException {
+        List<String> sheetNames = List.copyOf(conferencesBySheetName.keySet());
+        List<List<List<Object>>> sheetValues = getValues(
+                spreadsheetId,
+                sheetNames.stream().map(sheetName -> sheetName + REGISTRATION_RANGE).collect(Collectors.toList())
+        );
+
+        List<Registration> registrations = new ArrayList<>();
+        List<RowParseError> parseErrors = new ArrayList<>();
+        for (int i = 0; i < sheetNames.size(); i++) {
+            String sheetName = sheetNames.get(i);
+            parseRows(sheetName, sheetValues.get(i), conferencesBySheetName.get(sheetName), registrations, parseErrors);
+        }
+        return new SheetParseResult<>(registrations, parseErrors);
+    }
+
+    /**
+     * Parse the registrations added or edited since the passed checkpoint was last saved from a Google sheet, rather
+     * than re-reading the whole sheet, using a SheetRegistrationReader. Returned rows are marked pending in the
+     * checkpoint, and should be marked processed once they've been handled successfully; rows which don't need
+     * invoices are marked processed immediately. Rows which couldn't be parsed are skipped and returned as
+     * RowParseErrors. The checkpoint isn't saved.
+     * @param spreadsheetId - The id of the spreadsheet to parse registrations from
+     * @param sheetName - The name of the sheet to parse registrations from
+     * @param conference - The conference for which registrations are being parsed
+     * @param checkpoint - The sheet's checkpoint
+     * @return - The parsed registrations, in row order, and the rows which couldn't be parsed. Empty if no rows need
+     * processing
+     */
+    public static SheetParseResult<SheetRegistration> parseNewRegistrationsFromGoogleSheet(
+            @NonNull String spreadsheetId,
+            @NonNull String sheetName,
+            @NonNull Conference conference,
+            @NonNull SheetCheckpoint checkpoint
+    ) {
+        SheetRegistrationReader reader =
+                new SheetRegistrationReader(spreadsheetId, sheetName, conference, checkpoint, SHEET_WINDOW_ROWS);
+        List<SheetRegistration> registrations = new ArrayList<>();
+        reader.forEachRemaining(registrations::add);
+        return new SheetParseResult<>(registrations, List.copyOf(reader.getParseErrors()));
+    }
+
+    /**
+     * Parses the registrations in a sheet's rows, skipping blank rows and rows which don't need invoices
+     * @param sheetName - The name of the sheet the rows are from
+     * @param rows - The sheet's rows, starting from SheetCheckpoint.FIRST_ROW
+     * @param conference - The conference for which the registrations were made
+     * @param registrations - Where to add the parsed registrations
+     * @param parseErrors - Where to add an error for each row which couldn't be parsed
+     */
+    private static void parseRows(
+            String sheetName,
+            List<List<Object>> rows,
+            Conference conference,
+            List<Registration> registrations,
+            List<RowParseError> parseErrors
+    ) {
+        for (int i = 0; i < rows.size(); i++) {
+            List<Object> row = rows.get(i);
+            if (row.isEmpty()) {
+                continue;
+            }
+            try {
+                Registration registration = parseRegistration(row, conference);
+                if (registration != null) {
+                    registrations.add(registration);
+                }
+            } catch (IllegalArgumentException e) {
+                parseErrors.add(new RowParseError(sheetName, SheetCheckpoint.FIRST_ROW + i, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Gets the values of several ranges of a spreadsheet in a single batchGet request
+     * @param spreadsheetId - The id of the spreadsheet to read
+     * @param ranges - The ranges to read, in A1 notation including the sheet name
+     * @return - The rows of each range, in the order the ranges were passed. Empty for ranges without any values
+     */
+    public static List<List<List<Object>>> getValues(@NonNull String spreadsheetId, @NonNull List<String> ranges)
+            throws GeneralSecurityException, IOException {
+        BatchGetValuesResponse response = execute(
+                "values.batchGet",
+                getSheetsService().spreadsheets().values().batchGet(spreadsheetId).setRanges(ranges),
+                batchGetResponse -> batchGetResponse.getValueRanges() == null ? 0 : batchGetResponse.getValueRanges()
+                        .stream()
+                        .mapToLong(valueRange -> countCells(valueRange.getValues()))
+                        .sum()
+        );
+        List<ValueRange> valueRanges = response.getValueRanges() == null ? List.of() : response.getValueRanges();
+
+        List<List<List<Object>>> values = new ArrayList<>(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            List<List<Object>> rangeValues = i < valueRanges.size() ? valueRanges.get(i).getValues() : null;
+            values.add(rangeValues == null ? List.of() : rangeValues);
+        }
+        return values;
+    }
+
+    /**
+     * Sets the values of several ranges of a spreadsheet in a single batchUpdate request. Values are written as is,
+     * rather than parsed as if typed into the sheet, so text starting with "=" isn't treated as a formula.
+     * @param spreadsheetId - The id of the spreadsheet to write to
+     * @param valuesByRange - Map from each range to write, in A1 notation including the sheet name, to its rows
+     */
+    public static void updateValues(
+            @NonNull String spreadsheetId,
+            @NonNull Map<String, List<List<Object>>> valuesByRange
+    ) throws GeneralSecurityException, IOException {
+        List<ValueRange> data = valuesByRange.entrySet().stream()
+                .map(entry -> new ValueRange().setRange(entry.getKey()).setValues(entry.getValue()))
                 .collect(Collectors.toList());
+        BatchUpdateValuesRequest request = new BatchUpdateValuesRequest()
+                .setValueInputOption("RAW")
+                .setData(data);
+        execute(
+                "values.batchUpdate",
+                getSheetsService().spreadsheets().values().batchUpdate(spreadsheetId, request),
+                batchUpdateResponse -> batchUpdateResponse.getTotalUpdatedCells() == null
+                        ? 0
+                        : batchUpdateResponse.getTotalUpdatedCells()
+        );
+    }
+
+    /**
+     * Executes the passed Sheets request, recording its latency and payload size, or its failure, in ApiMetrics
+     * @param operation - The name of the Sheets operation being called, such as values.get
+     * @param request - The request to execute
+     * @param payloadSize - Counts the cells in the request's response
+     * @return - The response
+     * @param <T> - The type of the response
+     * @throws IOException If the request failed
+     */
+    private static <T> T execute(
+            @NonNull String operation,
+            @NonNull AbstractGoogleClientRequest<T> request,
+            @NonNull ToLongFunction<T> payloadSize
+    ) throws IOException {
+        OperationMetrics metrics = ApiMetrics.global().forOperation(ApiMetrics.SHEETS, operation);
+        long start = System.nanoTime();
+        T response;
+        try {
+            response = request.execute();
+        } catch (IOException e) {
+            boolean throttled = e instanceof GoogleJsonResponseException
+                    && ((GoogleJsonResponseException) e).getStatusCode() == 429;
+            metrics.recordFailure(System.nanoTime() - start, throttled);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start, payloadSize.applyAsLong(response));
+        return response;
+    }
+
+    private static long countCells(List<List<Object>> rows) {
+        return rows == null ? 0 : rows.stream().mapToLong(List::size).sum();
     }
 
     /**
      * Parses a Registration from the passed row, if appropriate. Assumes the row's elements are:
-     * schoolName, email, phoneNumber, addressLine1, addressLine2, city, state, country, zipCode, numDelegates, registrationDate, paymentMethod, invoiceSent
-     * If invoiceSent is "TRUE", returns null
-     * @param row
-     * @return
+     * schoolName, email, phoneNumber, addressLine1, addressLine2, city, state, country, zipCode, numDelegates,
+     * registrationDate, paymentMethod, invoiceSent
+     * Trailing empty cells may be missing from the row, as the Sheets API leaves them out.
+     * @param row - The row's cells
+     * @param conference - The conference for which the registration was made
+     * @return - The parsed Registration, or null if invoiceSent is "TRUE"
+     * @throws IllegalArgumentException If the row is missing cells, or its number of delegates or registration date
+     * is malformed
      */
-    private static Registration parseRegistration (@NonNull List<Object> row, @NonNull Conference conference) {
-        if (row.get(12).equals("TRUE")) {
+    static Registration parseRegistration(@NonNull List<Object> row, @NonNull Conference conference) {
+        if (getCell(row, 12).equals("TRUE")) {
             return null;
         }
+        if (row.size() < 12) {
+            throw new IllegalArgumentException("Expected at least 12 cells but found " + row.size());
+        }
 
-        String schoolName = ((String) row.get(0)).strip();
-        String email = ((String) row.get(1)).strip();
-        String phoneNumber = ((String) row.get(2)).strip();
-        String addressLine1 = ((String) row.get(3)).strip();
-        String addressLine2 = ((String) row.get(4)).strip();
-        String city = ((String) row.get(5)).strip();
-        String state = ((String) row.get(6)).strip();
-        String country = ((String) row.get(7)).strip();
-        String zipCode = ((String) row.get(8)).strip();
-        String numDelegates = ((String) row.get(9)).strip();
-        String registrationDate = ((String) row.get(10)).strip();
-        String paymentMethod = ((String) row.get(11)).strip();
+        String schoolName = getCell(row, 0);
+        String email = getCell(row, 1);
+        String phoneNumber = getCell(row, 2);
+        String addressLine1 = getCell(row, 3);
+        String addressLine2 = getCell(row, 4);
+        String city = getCell(row, 5);
+        String state = getCell(row, 6);
+        String country = getCell(row, 7);
+        String zipCode = getCell(row, 8);
+        String numDelegates = getCell(row, 9);
+        String registrationDate = getCell(row, 10);
+        String paymentMethod = getCell(row, 11);
+
+        int parsedNumDelegates;
+        try {
+            parsedNumDelegates = Integer.parseInt(numDelegates);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number of delegates \"" + numDelegates + "\"", e);
+        }
+        LocalDate parsedRegistrationDate;
+        try {
+            parsedRegistrationDate = LocalDate.parse(registrationDate, FORMATTER);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid registration date \"" + registrationDate + "\"", e);
+        }
 
         Address address = new Address(addressLine1, addressLine2, city, state, country, zipCode);
         School school = School.builder()
@@ -131,10 +362,20 @@ public class GoogleSheetsModule {
 
         return Registration.builder()
                 .school(school)
-                .numDelegates(Integer.parseInt(numDelegates))
+                .numDelegates(parsedNumDelegates)
                 .conference(conference)
-                .registrationDate(LocalDate.parse(registrationDate, FORMATTER))
+                .registrationDate(parsedRegistrationDate)
                 .paymentMethod(paymentMethod1)
                 .build();
     }
+
+    /**
+     * Gets a cell's value from a row, stripped of surrounding whitespace
+     * @param row - The row's cells
+     * @param column - The 0-based column of the cell
+     * @return - The cell's value, or "" if the row doesn't reach the cell
+     */
+    private static String getCell(List<Object> row, int column) {
+        return column < row.size() ? String.valueOf(row.get(column)).strip() : "";
+    }
 }
@@ -0,0 +1,127 @@
+package invoice_automation.module;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intuit.ipp.core.IEntity;
+import invoice_automation.QuickBooksException;
+import lombok.NonNull;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over the results of a QuickBooks query one page at a time, using STARTPOSITION and MAXRESULTS. The next page
+ * is fetched in the background while the caller consumes the current one, so at most two pages are held in memory.
+ *
+ * @param <T> The type of entity being queried
+ * @author skberkeley
+ */
+public class PagedQueryIterator<T extends IEntity> implements Iterator<T> {
+    /**
+     * Executor used to fetch pages in the background
+     */
+    private static final ExecutorService PAGE_FETCH_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("quickbooks-page-fetch-%d").build()
+    );
+
+    /**
+     * Fetches a single page of query results
+     */
+    @FunctionalInterface
+    public interface PageFetcher {
+        /**
+         * Fetches the page of results starting at the passed position
+         * @param startPosition - The 1-based position of the first result in the page
+         * @param maxResults - The most results to return
+         * @return - The page of results. Fewer than maxResults if this is the last page
+         */
+        List<? extends IEntity> fetchPage(int startPosition, int maxResults);
+    }
+
+    private final PageFetcher pageFetcher;
+    private final int pageSize;
+    private Iterator<? extends IEntity> currentPage = Collections.emptyIterator();
+    /**
+     * The page being fetched in the background, or null once the last page has been reached
+     */
+    private CompletableFuture<List<? extends IEntity>> nextPage;
+    private int nextStartPosition = 1;
+
+    /**
+     * Creates a new iterator, starting to fetch the first page immediately
+     * @param pageFetcher - Used to fetch each page of results
+     * @param pageSize - The number of results to fetch per page
+     */
+    public PagedQueryIterator(@NonNull PageFetcher pageFetcher, int pageSize) {
+        this.pageFetcher = pageFetcher;
+        this.pageSize = pageSize;
+        this.nextPage = this.fetchNextPage();
+    }
+
+    /**
+     * Creates a sequential Stream over the results of a paged query
+     * @param pageFetcher - Used to fetch each page of results
+     * @param pageSize - The number of results to fetch per page
+     * @return - The Stream of results
+     * @param <T> - The type of entity being queried
+     */
+    public static <T extends IEntity> Stream<T> stream(@NonNull PageFetcher pageFetcher, int pageSize) {
+        Iterator<T> iterator = new PagedQueryIterator<>(pageFetcher, pageSize);
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+                false
+        );
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!this.currentPage.hasNext()) {
+            if (this.nextPage == null) {
+                return false;
+            }
+            List<? extends IEntity> page = this.awaitNextPage();
+            // A short page means there are no more results
+            this.nextPage = page.size() < this.pageSize ? null : this.fetchNextPage();
+            this.currentPage = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return (T) this.currentPage.next();
+    }
+
+    private CompletableFuture<List<? extends IEntity>> fetchNextPage() {
+        int startPosition = this.nextStartPosition;
+        this.nextStartPosition += this.pageSize;
+        return CompletableFuture.supplyAsync(
+                () -> this.pageFetcher.fetchPage(startPosition, this.pageSize),
+                PAGE_FETCH_EXECUTOR
+        );
+    }
+
+    private List<? extends IEntity> awaitNextPage() {
+        try {
+            return this.nextPage.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof QuickBooksException) {
+                throw (QuickBooksException) e.getCause();
+            }
+            throw new QuickBooksException("Exception fetching page of query results", e.getCause());
+        }
+    }
+}
@@ -1,16 +1,35 @@
 package invoice_automation.module;
 
+import com.google.common.collect.Lists;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.Record;
 import org.jooq.SQLDialect;
 import org.jooq.SelectConditionStep;
 import org.jooq.impl.DSL;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
 public class QueryModule {
     private static final DSLContext dslContext = DSL.using(SQLDialect.DEFAULT);
     private static final String CUSTOMER_TABLE_NAME = "customer";
+    private static final String INVOICE_TABLE_NAME = "Invoice";
+    private static final String ITEM_TABLE_NAME = "Item";
 
     private static final String DISPLAY_NAME_CUSTOMER_NAME = "DisplayName";
+    private static final String CUSTOMER_REF_INVOICE_NAME = "CustomerRef";
+    private static final String TXN_DATE_INVOICE_NAME = "TxnDate";
+    /**
+     * The most names to match in a single IN-list query. Kept below QuickBooks' default page size of 100, so that every
+     * matching Customer is returned without paging
+     */
+    private static final int MAX_NAMES_PER_QUERY = 50;
 
 
     public static String getQueryForCustomerFromSchool(String schoolName)  {
@@ -19,4 +38,77 @@ public class QueryModule {
                 .where(DSL.field(DISPLAY_NAME_CUSTOMER_NAME, String.class).eq(schoolName));
         return query.toString();
     }
+
+    /**
+     * Builds queries for the Customers whose display names match the passed school names. Names are deduplicated and
+     * split into chunks of at most MAX_NAMES_PER_QUERY, with one DisplayName IN (...) query per chunk.
+     * @param schoolNames - The school names to match against
+     * @return - The queries, which together match every passed name. Empty if no names are passed
+     */
+    public static List<String> getQueriesForCustomersFromSchools(Collection<String> schoolNames) {
+        List<String> distinctSchoolNames = new ArrayList<>(new LinkedHashSet<>(schoolNames));
+        return Lists.partition(distinctSchoolNames, MAX_NAMES_PER_QUERY).stream()
+                .map(chunk -> dslContext.select()
+                        .from(CUSTOMER_TABLE_NAME)
+                        .where(DSL.field(DISPLAY_NAME_CUSTOMER_NAME, String.class).in(chunk))
+                        .toString())
+                .collect(Collectors.toList());
+    }
+
+    public static String getQueryForAllCustomers() {
+        return dslContext.select().from(CUSTOMER_TABLE_NAME).toString();
+    }
+
+    public static String getQueryForAllInvoices() {
+        return dslContext.select().from(INVOICE_TABLE_NAME).toString();
+    }
+
+    public static String getQueryForAllItems() {
+        return dslContext.select().from(ITEM_TABLE_NAME).toString();
+    }
+
+    /**
+     * Builds a query for the invoices billed to the Customer with the passed id, dated on or after the passed date.
+     * jOOQ wraps multiple where conditions in parentheses, which QuickBooks doesn't accept, so the second condition is
+     * rendered separately and appended.
+     * @param customerId - The id of the Customer the invoices are billed to
+     * @param since - The earliest transaction date of invoices to match
+     * @return - The query
+     */
+    public static String getQueryForInvoicesFromCustomer(String customerId, LocalDate since) {
+        String query = dslContext.select()
+                .from(INVOICE_TABLE_NAME)
+                .where(DSL.field(CUSTOMER_REF_INVOICE_NAME, String.class).eq(customerId))
+                .toString();
+        return query + " and " + dslContext.renderInlined(getTxnDateCondition(since));
+    }
+
+    /**
+     * Builds a query for all invoices dated on or after the passed date
+     * @param since - The earliest transaction date of invoices to match
+     * @return - The query
+     */
+    public static String getQueryForInvoicesSince(LocalDate since) {
+        return dslContext.select()
+                .from(INVOICE_TABLE_NAME)
+                .where(getTxnDateCondition(since))
+                .toString();
+    }
+
+    private static Condition getTxnDateCondition(LocalDate since) {
+        // QuickBooks expects dates as plain ISO strings rather than SQL date literals
+        return DSL.field(TXN_DATE_INVOICE_NAME, String.class).ge(since.format(DateTimeFormatter.ISO_LOCAL_DATE));
+    }
+
+    /**
+     * Restricts the passed query to a single page of results. QuickBooks' pagination clause isn't standard SQL, so it's
+     * appended to the rendered query rather than built with jOOQ.
+     * @param query - The query to paginate
+     * @param startPosition - The 1-based position of the first result to return
+     * @param maxResults - The most results to return
+     * @return - The paginated query
+     */
+    public static String getPagedQuery(String query, int startPosition, int maxResults) {
+        return String.format("%s STARTPOSITION %d MAXRESULTS %d", query, startPosition, maxResults);
+    }
 }
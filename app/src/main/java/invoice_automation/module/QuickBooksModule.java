@@ -1,20 +1,38 @@
 package invoice_automation.module;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.intuit.ipp.core.Context;
+import com.intuit.ipp.core.IEntity;
 import com.intuit.ipp.core.ServiceType;
 import com.intuit.ipp.data.Customer;
 import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.Fault;
 import com.intuit.ipp.data.Invoice;
 import com.intuit.ipp.data.Item;
-import com.intuit.ipp.data.MemoRef;
+import com.intuit.ipp.data.OperationEnum;
 import com.intuit.ipp.data.ReferenceType;
 import com.intuit.ipp.exception.FMSException;
 import com.intuit.ipp.query.GenerateQuery;
 import com.intuit.ipp.security.OAuth2Authorizer;
+import com.intuit.ipp.services.BatchOperation;
+import com.intuit.ipp.services.CallbackHandler;
+import com.intuit.ipp.services.CallbackMessage;
+import com.intuit.ipp.services.CDCQueryResult;
 import com.intuit.ipp.services.DataService;
 import com.intuit.ipp.services.QueryResult;
 import com.intuit.ipp.util.Config;
 import invoice_automation.QuickBooksException;
+import invoice_automation.cache.CustomerCache;
+import invoice_automation.cache.EntityCacheStore;
+import invoice_automation.cache.EntitySnapshot;
+import invoice_automation.cache.InvoiceIndex;
+import invoice_automation.cache.InvoiceTemplates;
+import invoice_automation.cache.ItemCatalog;
+import invoice_automation.cache.MemoIndex;
+import invoice_automation.fees.FeeSchedule;
+import invoice_automation.metrics.ApiMetrics;
+import invoice_automation.metrics.OperationMetrics;
 import invoice_automation.utils.QuickBooksUtil;
 import invoice_automation.model.Conference;
 import invoice_automation.model.InvoiceType;
@@ -25,14 +43,37 @@ import invoice_automation.model.RegistrationRound;
 import invoice_automation.model.School;
 import lombok.Builder;
 import lombok.NonNull;
+import lombok.Value;
 
-import java.math.BigDecimal;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static invoice_automation.Consts.CDC_MAX_LOOKBACK;
+import static invoice_automation.Consts.CDC_MAX_RESULTS;
+import static invoice_automation.Consts.CDC_WATERMARK_OVERLAP;
+import static invoice_automation.Consts.ITEM_CATALOG_TTL;
+import static invoice_automation.Consts.MAX_BATCH_SIZE;
+import static invoice_automation.Consts.QUERY_PAGE_SIZE;
 import static invoice_automation.Consts.SANDBOX_BASE_URL;
 
 /**
@@ -45,17 +86,99 @@ public class QuickBooksModule {
      * The DataService object used to make QuickBooks API calls
      */
     private final DataService dataService;
+    /**
+     * Paces every DataService call to stay within the realm's throttling limits, retrying throttled calls
+     */
+    private final QuickBooksRateLimiter rateLimiter;
+    /**
+     * The devkit Config properties deciding where and how calls are made, as configured on the thread which created
+     * the module. The devkit keeps its Config per thread, so these are re-applied on whichever thread makes each call
+     */
+    private static final List<String> TRANSPORT_CONFIG_PROPERTIES = List.of(
+            Config.BASE_URL_QBO,
+            Config.SERIALIZATION_REQUEST_FORMAT,
+            Config.SERIALIZATION_RESPONSE_FORMAT,
+            Config.COMPRESSION_REQUEST_FORMAT,
+            Config.COMPRESSION_RESPONSE_FORMAT
+    );
+    /**
+     * Map from each of TRANSPORT_CONFIG_PROPERTIES which was set when the module was created to its value
+     */
+    private final Map<String, String> transportConfig = new HashMap<>();
+    /**
+     * Executor used to send invoice emails for sendInvoiceAsync, since the DataService can't send them asynchronously
+     */
+    private static final ExecutorService SEND_EMAIL_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("quickbooks-send-email-%d").build()
+    );
+    /**
+     * Formats timestamps as the changedSince parameter of change data capture queries
+     */
+    private static final DateTimeFormatter CDC_TIMESTAMP_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx");
+    /**
+     * Cache of Customers by display name, filled by resolveCustomers and by individual lookups
+     */
+    private final CustomerCache customerCache = new CustomerCache();
+    /**
+     * Index of existing invoices by Customer id and InvoiceType. Loaded once per batch of registrations through
+     * loadInvoiceIndex, and null until then
+     */
+    private volatile InvoiceIndex invoiceIndex;
+    /**
+     * Index of existing invoices by customer memo. Built lazily from a single scan of all invoices
+     */
+    private volatile MemoIndex memoIndex;
+    /**
+     * Snapshot of the QuickBooks items used on invoices. Loaded lazily, and reloaded once older than ITEM_CATALOG_TTL
+     */
+    private volatile ItemCatalog itemCatalog;
+    /**
+     * Invoice templates built from itemCatalog, so that constructing an invoice only stamps on what differs between
+     * schools. Rebuilt whenever the catalog or fee schedule is replaced
+     */
+    private volatile InvoiceTemplates invoiceTemplates;
+    /**
+     * The time up to which the cached views are known to reflect every change in QuickBooks, or null if they haven't
+     * been synced
+     */
+    private Instant cdcWatermark;
+    /**
+     * Where the cached views are persisted between runs, or null if they aren't
+     */
+    private final EntityCacheStore entityCacheStore;
+
+    /**
+     * Creates a new QuickBooksModule object, instantiating a new DataService object in the process. Cached views
+     * aren't persisted between runs.
+     * accessToken must be a valid value generated by some OAuth2 process.
+     * realmId must be a valid value for some QuickBooks app.
+     * @param accessToken The OAuth2 accessToken used to authenticate while instantiating the new DataService object
+     * @param realmId The realmId for the QuickBooks app being used
+     * @param useSandbox Whether API calls should be made to the sandbox endpoint (for testing)
+     */
+    public QuickBooksModule(@NonNull String accessToken, @NonNull String realmId, boolean useSandbox) {
+        this(accessToken, realmId, useSandbox, null);
+    }
 
     /**
      * Creates a new QuickBooksModule object, instantiating a new DataService object in the process.
      * accessToken must be a valid value generated by some OAuth2 process.
      * realmId must be a valid value for some QuickBooks app.
+     * If cacheDirectory is passed, the cached views saved there by a previous run for the same realm are restored, so
+     * the first sync only needs to fetch what changed since. A missing or corrupt cache falls back to a full reload.
      * @param accessToken The OAuth2 accessToken used to authenticate while instantiating the new DataService object
      * @param realmId The realmId for the QuickBooks app being used
      * @param useSandbox Whether API calls should be made to the sandbox endpoint (for testing)
+     * @param cacheDirectory The directory to persist cached views in between runs, or null to not persist them
      */
     @Builder
-    public QuickBooksModule(@NonNull String accessToken, @NonNull String realmId, boolean useSandbox) {
+    public QuickBooksModule(
+            @NonNull String accessToken,
+            @NonNull String realmId,
+            boolean useSandbox,
+            Path cacheDirectory
+    ) {
         if (useSandbox) {
             Config.setProperty(Config.BASE_URL_QBO, SANDBOX_BASE_URL);
         }
@@ -73,6 +196,19 @@ public class QuickBooksModule {
 
         // Create QuickBooks DataService object
         this.dataService = new DataService(context);
+        this.rateLimiter = QuickBooksRateLimiter.forRealm(realmId);
+        for (String property : TRANSPORT_CONFIG_PROPERTIES) {
+            String value = Config.getProperty(property);
+            if (value != null) {
+                this.transportConfig.put(property, value);
+            }
+        }
+
+        // Restore cached views saved by a previous run
+        this.entityCacheStore = cacheDirectory == null ? null : new EntityCacheStore(cacheDirectory, realmId);
+        if (this.entityCacheStore != null) {
+            this.entityCacheStore.load().ifPresent(this::restoreCachedEntities);
+        }
     }
 
     // Customer methods
@@ -80,65 +216,191 @@ public class QuickBooksModule {
 
     /**
      * Gets the corresponding QuickBooks Customer, by matching the school name and the Customer's display name. If no
-     * matching Customer exists, returns null.
+     * matching Customer exists, returns null. Customers already resolved are served from the customer cache.
      * @param school - The school to match against using the school's name
      * @return - The matching Customer object
      */
     private Customer queryCustomerFromSchool(@NonNull School school) {
-        String query = QueryModule.getQueryForCustomerFromSchool(school.getSchoolName());
+        String schoolName = school.getSchoolName();
+        if (this.customerCache.contains(schoolName)) {
+            return this.customerCache.get(schoolName);
+        }
+        String query = QueryModule.getQueryForCustomerFromSchool(schoolName);
         QueryResult queryResult;
         try {
-            queryResult = this.dataService.executeQuery(query);
+            queryResult = this.execute("query", () -> this.dataService.executeQuery(query));
         } catch (FMSException e) {
             throw new QuickBooksException("Exception getting customer", e);
         }
         if (queryResult == null || queryResult.getEntities().isEmpty()) {
+            this.customerCache.putMissing(schoolName);
             return null;
         }
-        return (Customer) queryResult.getEntities().get(0);
+        Customer customer = (Customer) queryResult.getEntities().get(0);
+        this.customerCache.put(customer);
+        return customer;
     }
 
     /**
-     * Get a list of all existing customers through the QuickBooks API
+     * Resolves the QuickBooks Customers corresponding to all the passed schools at once, using a handful of
+     * DisplayName IN (...) queries rather than one query per school. The results, including which schools have no
+     * Customer yet, are cached so later calls for these schools don't query QuickBooks again. Schools already in the
+     * customer cache, which syncCachedEntities keeps current, aren't queried for.
+     * @param schools - The schools to resolve Customers for
+     * @return - A map from school name to the matching Customer. Schools without a matching Customer are omitted
+     */
+    public Map<String, Customer> resolveCustomers(@NonNull Collection<School> schools) {
+        List<String> schoolNames = schools.stream()
+                .map(School::getSchoolName)
+                .distinct()
+                .collect(Collectors.toList());
+        List<String> uncachedSchoolNames = schoolNames.stream()
+                .filter(schoolName -> !this.customerCache.contains(schoolName))
+                .collect(Collectors.toList());
+
+        // Query for matching customers, keyed by lower case name since QuickBooks matches names case-insensitively
+        Map<String, Customer> queriedCustomers = new HashMap<>();
+        for (String query : QueryModule.getQueriesForCustomersFromSchools(uncachedSchoolNames)) {
+            QueryResult queryResult;
+            try {
+                queryResult = this.execute("query", () -> this.dataService.executeQuery(query));
+            } catch (FMSException e) {
+                throw new QuickBooksException("Exception resolving customers", e);
+            }
+            if (queryResult == null) {
+                continue;
+            }
+            for (Object entity : queryResult.getEntities()) {
+                Customer customer = (Customer) entity;
+                queriedCustomers.put(customer.getDisplayName().toLowerCase(Locale.ROOT), customer);
+            }
+        }
+
+        // Match customers back to school names, caching the results
+        for (String schoolName : uncachedSchoolNames) {
+            Customer customer = queriedCustomers.get(schoolName.toLowerCase(Locale.ROOT));
+            if (customer == null) {
+                this.customerCache.putMissing(schoolName);
+            } else {
+                this.customerCache.put(customer);
+            }
+        }
+
+        Map<String, Customer> customersBySchoolName = new HashMap<>();
+        for (String schoolName : schoolNames) {
+            Customer customer = this.customerCache.get(schoolName);
+            if (customer != null) {
+                customersBySchoolName.put(schoolName, customer);
+            }
+        }
+        return customersBySchoolName;
+    }
+
+    /**
+     * Get a list of all existing customers through the QuickBooks API. Prefer streamAllCustomers for large realms,
+     * since this holds every customer in memory at once.
      * @return A list of all existing customers
      */
     public List<Customer> getAllCustomers() {
-        String query = "SELECT * FROM customer";
-        QueryResult queryResult;
-        try {
-            queryResult = this.dataService.executeQuery(query);
-        } catch (FMSException e) {
-            throw new QuickBooksException("Exception getting all customers", e);
-        }
-        return (List<Customer>) queryResult.getEntities();
+        return this.streamAllCustomers().collect(Collectors.toList());
+    }
+
+    /**
+     * Streams all existing customers through the QuickBooks API, fetching them a page at a time
+     * @return A Stream of all existing customers
+     */
+    public Stream<Customer> streamAllCustomers() {
+        return this.streamQueryResults(QueryModule.getQueryForAllCustomers(), "customers");
     }
 
     /**
      * Updates the corresponding QuickBooks Customer and returns a copy of that object. If no corresponding Customer
-     * exists, then a new one is created.
-     * @return A copy of the Customer updated or created
+     * exists, then a new one is created. If the Customer already matches the school, no update is sent.
+     * @return A copy of the Customer updated or created, as saved by QuickBooks
      */
     public Customer updateCustomerFromSchool(@NonNull School school) {
         Customer queriedCustomer = this.queryCustomerFromSchool(school);
         Customer newCustomer = QuickBooksUtil.getCustomerFromSchool(school);
+        Customer savedCustomer;
         // Add newCustomer or update the existing customer
         if (queriedCustomer == null) {
             try {
-                dataService.add(newCustomer);
+                savedCustomer = this.execute("add", () -> this.dataService.add(newCustomer));
             } catch (FMSException e) {
                 throw new QuickBooksException("Exception adding customer", e);
             }
+        } else if (QuickBooksUtil.checkCustomerMatches(queriedCustomer, newCustomer)) {
+            // Nothing changed, so skip the write and the SyncToken bump that comes with it
+            return queriedCustomer;
         } else {
             try {
                 newCustomer.setId(queriedCustomer.getId());
                 newCustomer.setSyncToken(queriedCustomer.getSyncToken());
                 newCustomer.setSparse(true);
-                dataService.update(newCustomer);
+                savedCustomer = this.execute("update", () -> this.dataService.update(newCustomer));
             } catch (FMSException e) {
                 throw new QuickBooksException("Exception updating customer", e);
             }
         }
-        return newCustomer;
+        // Cache the saved customer, so its id and sync token are known without querying again
+        this.customerCache.put(savedCustomer);
+        return savedCustomer;
+    }
+
+    /**
+     * Creates or updates the QuickBooks Customers for the schools of all the passed Registrations, as
+     * updateCustomerFromSchool does, but saves them through the QuickBooks batch API, MAX_BATCH_SIZE Customers per
+     * request. Registrations for the same school share a single write, and Customers which already match their school
+     * aren't written at all. Customers should be resolved beforehand with resolveCustomers, or each school will be
+     * queried for individually.
+     * @param registrations - The Registrations whose schools' Customers to create or update
+     * @return - For each Registration, either its saved Customer or why saving it failed
+     */
+    public BatchResult<Registration, Customer> updateCustomersFromRegistrations(
+            @NonNull List<Registration> registrations
+    ) {
+        // Group registrations by school, since QuickBooks matches display names case-insensitively
+        Map<String, List<Registration>> registrationsBySchoolName = registrations.stream()
+                .collect(Collectors.groupingBy(
+                        registration -> registration.getSchool().getSchoolName().toLowerCase(Locale.ROOT),
+                        LinkedHashMap::new,
+                        Collectors.toList()
+                ));
+
+        Map<Registration, Customer> results = new LinkedHashMap<>();
+        Map<Registration, QuickBooksException> failures = new LinkedHashMap<>();
+        Map<String, BatchWrite> writes = new LinkedHashMap<>();
+        registrationsBySchoolName.forEach((schoolName, schoolRegistrations) -> {
+            School school = schoolRegistrations.get(0).getSchool();
+            try {
+                Customer queriedCustomer = this.queryCustomerFromSchool(school);
+                Customer newCustomer = QuickBooksUtil.getCustomerFromSchool(school);
+                if (queriedCustomer == null) {
+                    writes.put(schoolName, new BatchWrite(newCustomer, OperationEnum.CREATE));
+                } else if (QuickBooksUtil.checkCustomerMatches(queriedCustomer, newCustomer)) {
+                    schoolRegistrations.forEach(registration -> results.put(registration, queriedCustomer));
+                } else {
+                    newCustomer.setId(queriedCustomer.getId());
+                    newCustomer.setSyncToken(queriedCustomer.getSyncToken());
+                    newCustomer.setSparse(true);
+                    writes.put(schoolName, new BatchWrite(newCustomer, OperationEnum.UPDATE));
+                }
+            } catch (QuickBooksException e) {
+                schoolRegistrations.forEach(registration -> failures.put(registration, e));
+            }
+        });
+
+        BatchResult<String, IEntity> writeResult = this.executeBatch(writes);
+
+        writeResult.getResults().forEach((schoolName, entity) -> {
+            Customer savedCustomer = (Customer) entity;
+            this.customerCache.put(savedCustomer);
+            registrationsBySchoolName.get(schoolName).forEach(registration -> results.put(registration, savedCustomer));
+        });
+        writeResult.getFailures().forEach((schoolName, e) ->
+                registrationsBySchoolName.get(schoolName).forEach(registration -> failures.put(registration, e))
+        );
+        return new BatchResult<>(results, failures);
     }
 
     // Invoice methods
@@ -149,6 +411,8 @@ public class QuickBooksModule {
      * - The Invoice's line items correspond to the Registration's Conference
      * If matching invoices exist, we expect two, one for the school fee and another for delegate fees.
      * If no matching invoices exist, returns an empty map.
+     * Invoices are looked up in the invoice index if it has been loaded for the current session. Otherwise, only the
+     * customer's invoices for the current session are queried for, filtering by CustomerRef and TxnDate server-side.
      * @param registration The Registration to match invoices against
      * @return A map from InvoiceType to the corresponding Invoice. May be empty if no matching invoices exist
      */
@@ -160,31 +424,35 @@ public class QuickBooksModule {
             return Map.of();
         }
 
-        // Get all invoices
-        List<Invoice> allInvoices = this.getAllInvoices();
-
-        // If no invoices for the customer, return an empty map
-        if (allInvoices.stream().filter(i -> QuickBooksUtil.checkInvoiceMatchesCustomer(i, customer)).findAny().isEmpty()) {
-            return Map.of();
-        }
-
-        // Filter invoices for matching customer
-        Stream<Invoice> matchingInvoices = allInvoices.stream()
-                .filter(i -> QuickBooksUtil.checkInvoiceMatchesCustomer(i, customer));
-
-        // Filter for line items, construct map
-        Map<InvoiceType, Invoice> invoiceMap = new HashMap<>();
-        matchingInvoices.forEach(
-                i -> {
-                    // Get invoice type
-                    InvoiceType invoiceType = QuickBooksUtil.getInvoiceTypeFromInvoice(i);
-                    // Add to map if not null
-                    if (invoiceType != null) {
-                        invoiceMap.put(invoiceType, i);
+        // Look up the customer's invoices in the index, if it covers this registration's session
+        LocalDate earliestInvoiceDate = QuickBooksUtil.getEarliestInvoiceDate(registration);
+        InvoiceIndex loadedInvoiceIndex = this.invoiceIndex;
+        if (loadedInvoiceIndex != null && loadedInvoiceIndex.covers(earliestInvoiceDate)) {
+            Map<InvoiceType, Invoice> indexedInvoices = loadedInvoiceIndex.getInvoices(customer.getId());
+            if (indexedInvoices.values().stream().noneMatch(loadedInvoiceIndex::isIndexOnly)) {
+                return indexedInvoices;
+            }
+            // Invoices restored from the entity cache only hold the fields needed to find them, so fetch them in full
+            for (Invoice indexedInvoice : indexedInvoices.values()) {
+                if (loadedInvoiceIndex.isIndexOnly(indexedInvoice)) {
+                    Invoice fetchedInvoice = this.getInvoiceById(indexedInvoice.getId());
+                    if (fetchedInvoice == null) {
+                        loadedInvoiceIndex.remove(indexedInvoice.getId());
+                    } else {
+                        loadedInvoiceIndex.applyChange(fetchedInvoice);
                     }
                 }
+            }
+            return loadedInvoiceIndex.getInvoices(customer.getId());
+        }
+
+        // Otherwise query for just this customer's invoices
+        String query = QueryModule.getQueryForInvoicesFromCustomer(customer.getId(), earliestInvoiceDate);
+        InvoiceIndex customerInvoices = InvoiceIndex.fromInvoices(
+                this.<Invoice>streamQueryResults(query, "invoices for customer")::iterator,
+                earliestInvoiceDate
         );
-        return invoiceMap;
+        return customerInvoices.getInvoices(customer.getId());
     }
 
     /**
@@ -200,98 +468,163 @@ public class QuickBooksModule {
     public Map<InvoiceType, Invoice> createInvoicesFromRegistration(@NonNull Registration registration) {
         // find matching customer
         Customer customer = this.queryCustomerFromSchool(registration.getSchool());
-        // construct customer ref
-        ReferenceType customerRef = QuickBooksUtil.getCustomerRefFromCustomer(customer);
+        // construct the school fee and delegate fee invoices, in that order
+        List<Map.Entry<InvoiceType, Invoice>> invoices =
+                List.copyOf(this.constructInvoicesFromRegistration(registration, customer).entrySet());
+        Invoice newSchoolFeeInvoice = invoices.get(0).getValue();
+        Invoice newDelegateFeeInvoice = invoices.get(1).getValue();
+
+        // add the invoices via the quickbooks api
+        Invoice schoolFeeInvoice;
+        try {
+            schoolFeeInvoice = this.execute("add", () -> this.dataService.add(newSchoolFeeInvoice));
+        } catch (FMSException e) {
+            throw new QuickBooksException("Error creating a new school fee invoice", e);
+        }
+
+        Invoice delegateFeeInvoice;
+        try {
+            delegateFeeInvoice = this.execute("add", () -> this.dataService.add(newDelegateFeeInvoice));
+        } catch (FMSException e) {
+            // The school fee invoice was still created, so keep the indexes in step with QuickBooks
+            this.addCreatedInvoices(customer, Map.of(invoices.get(0).getKey(), schoolFeeInvoice));
+            throw new QuickBooksException("Error creating a new delegate fee invoice", e);
+        }
+
+        Map<InvoiceType, Invoice> invoiceMap = new LinkedHashMap<>();
+        invoiceMap.put(invoices.get(0).getKey(), schoolFeeInvoice);
+        invoiceMap.put(invoices.get(1).getKey(), delegateFeeInvoice);
+
+        // Keep the invoice indexes current, if they have been loaded
+        this.addCreatedInvoices(customer, invoiceMap);
+
+        return invoiceMap;
+    }
 
-        // get item objects relevant to this registration
-        Map<ItemType, Item> itemMap = this.getRelevantItemsForRegistration(registration);
-        // construct refs of these items
-        Map<ItemType, ReferenceType> allItemRefMap = new HashMap<>();
-        for (ItemType itemType: itemMap.keySet()) {
-            ReferenceType itemRef = QuickBooksUtil.getItemRefFromItem(itemMap.get(itemType));
-            allItemRefMap.put(itemType, itemRef);
+    /**
+     * Creates the invoices relevant to each of the passed Registrations, as createInvoicesFromRegistration does, but
+     * saves them through the QuickBooks batch API, MAX_BATCH_SIZE invoices per request. A failure creating either of a
+     * Registration's invoices is reported against that Registration without affecting the others. Assumes each
+     * Registration's Customer already exists, and that no two Registrations share a Customer.
+     * @param registrations - The registrations from which to create invoices
+     * @return - For each Registration, either a map from InvoiceType to its created invoices, or why creating them
+     * failed
+     */
+    public BatchResult<Registration, Map<InvoiceType, Invoice>> createInvoicesFromRegistrations(
+            @NonNull List<Registration> registrations
+    ) {
+        Map<Registration, QuickBooksException> failures = new LinkedHashMap<>();
+        Map<Registration, Customer> customers = new LinkedHashMap<>();
+        Map<InvoiceWriteKey, BatchWrite> writes = new LinkedHashMap<>();
+        for (Registration registration : registrations) {
+            try {
+                Customer customer = this.queryCustomerFromSchool(registration.getSchool());
+                if (customer == null) {
+                    String schoolName = registration.getSchool().getSchoolName();
+                    throw new QuickBooksException("No customer exists for " + schoolName, null);
+                }
+                customers.put(registration, customer);
+                this.constructInvoicesFromRegistration(registration, customer).forEach(
+                        (invoiceType, invoice) -> writes.put(
+                                new InvoiceWriteKey(registration, invoiceType),
+                                new BatchWrite(invoice, OperationEnum.CREATE)
+                        )
+                );
+            } catch (QuickBooksException e) {
+                failures.put(registration, e);
+            }
         }
 
-        // call helper to determine registration round/due date
+        BatchResult<InvoiceWriteKey, IEntity> writeResult = this.executeBatch(writes);
+
+        // Group the created invoices back by registration
+        Map<Registration, Map<InvoiceType, Invoice>> createdInvoices = new LinkedHashMap<>();
+        writeResult.getResults().forEach((key, entity) -> createdInvoices
+                .computeIfAbsent(key.getRegistration(), registration -> new EnumMap<>(InvoiceType.class))
+                .put(key.getInvoiceType(), (Invoice) entity)
+        );
+        // Index whatever was created, even for partially failed registrations, so it isn't created twice
+        createdInvoices.forEach(
+                (registration, invoices) -> this.addCreatedInvoices(customers.get(registration), invoices)
+        );
+        writeResult.getFailures().forEach((key, e) -> failures.putIfAbsent(key.getRegistration(), e));
+
+        Map<Registration, Map<InvoiceType, Invoice>> results = new LinkedHashMap<>();
+        createdInvoices.forEach((registration, invoices) -> {
+            if (!failures.containsKey(registration)) {
+                results.put(registration, invoices);
+            }
+        });
+        return new BatchResult<>(results, failures);
+    }
+
+    /**
+     * Constructs, without saving them, the school fee and delegate fee invoices for the passed Registration, billed to
+     * the passed Customer. See createInvoicesFromRegistration for how the invoices are filled in.
+     * @param registration - The registration from which to construct the invoices
+     * @param customer - The Customer to bill the invoices to
+     * @return - A map from InvoiceType to the constructed invoices, with the school fee invoice first
+     */
+    private Map<InvoiceType, Invoice> constructInvoicesFromRegistration(
+            @NonNull Registration registration,
+            @NonNull Customer customer
+    ) {
+        // construct customer ref
+        ReferenceType customerRef = QuickBooksUtil.getCustomerRefFromCustomer(customer);
+
+        // call helper to determine registration round, which sets the due dates
         LocalDate registrationDate = registration.getRegistrationDate();
         Conference conference = registration.getConference();
         RegistrationRound registrationRound = QuickBooksUtil.getRegistrationRound(registrationDate, conference);
-        LocalDate schoolFeeDueDate = registrationRound.getSchoolFeeDueDate();
-        LocalDate delegateFeeDueDate = registrationRound.getDelegateFeeDueDate();
-        // call helper to calculate credit card processing fees
-        BigDecimal schoolFeeCreditCardProcessingFee = BigDecimal.valueOf(0);
-        BigDecimal delegateFeeCreditCardProcessingFee = BigDecimal.valueOf(0);
-        boolean isPayingByCard = registration.getPaymentMethod() == PaymentMethod.CARD;
-        if (isPayingByCard) {
-            schoolFeeCreditCardProcessingFee = QuickBooksUtil.calculateCreditCardProcessingFee(registration, true);
-            delegateFeeCreditCardProcessingFee =
-                    QuickBooksUtil.calculateCreditCardProcessingFee(registration, false);
+        PaymentMethod paymentMethod = registration.getPaymentMethod();
+        InvoiceTemplates invoiceTemplates = this.getInvoiceTemplates();
+        InvoiceType schoolFeeInvoiceType;
+        InvoiceType delegateFeeInvoiceType;
+        if (conference == Conference.BMUN) {
+            schoolFeeInvoiceType = InvoiceType.BMUN_SCHOOL_FEE;
+            delegateFeeInvoiceType = InvoiceType.BMUN_DELEGATE_FEE;
+        } else {
+            schoolFeeInvoiceType = InvoiceType.FC_SCHOOL_FEE;
+            delegateFeeInvoiceType = InvoiceType.FC_DELEGATE_FEE;
         }
+
         // Construct school fee invoice
-        PaymentMethod paymentMethod = registration.getPaymentMethod();
-        Map<ItemType, BigDecimal> itemQuantityMap =
-                QuickBooksUtil.constructItemQuantityMap(conference, paymentMethod, 0);
-        Map<ItemType, BigDecimal> itemRateMap =
-                QuickBooksUtil.constructItemRateMap(conference, true, schoolFeeCreditCardProcessingFee);
-        Map<ItemType, ReferenceType> itemRefMap =
-                QuickBooksUtil.constructItemRefMap(allItemRefMap, true, paymentMethod, conference);
         Invoice schoolFeeInvoice = QuickBooksUtil.constructInvoice(
+                invoiceTemplates.getTemplate(conference, registrationRound, paymentMethod, schoolFeeInvoiceType),
                 customerRef,
                 QuickBooksUtil.getDate(registrationDate),
-                QuickBooksUtil.getDate(schoolFeeDueDate),
-                itemQuantityMap,
-                itemRateMap,
-                itemRefMap,
-                registration.getPaymentMethod()
+                1
         );
 
         // Construct del fee invoice
-        itemQuantityMap = QuickBooksUtil.constructItemQuantityMap(conference, paymentMethod, registration.getNumDelegates());
-        itemRateMap = QuickBooksUtil.constructItemRateMap(conference, false, delegateFeeCreditCardProcessingFee);
-        itemRefMap = QuickBooksUtil.constructItemRefMap(allItemRefMap, false, paymentMethod, conference);
         Invoice delegateFeeInvoice = QuickBooksUtil.constructInvoice(
+                invoiceTemplates.getTemplate(conference, registrationRound, paymentMethod, delegateFeeInvoiceType),
                 customerRef,
                 QuickBooksUtil.getDate(registrationDate),
-                QuickBooksUtil.getDate(delegateFeeDueDate),
-                itemQuantityMap,
-                itemRateMap,
-                itemRefMap,
-                registration.getPaymentMethod()
+                registration.getNumDelegates()
         );
 
+        Map<InvoiceType, Invoice> invoiceMap = new LinkedHashMap<>();
+        invoiceMap.put(schoolFeeInvoiceType, schoolFeeInvoice);
+        invoiceMap.put(delegateFeeInvoiceType, delegateFeeInvoice);
+        return invoiceMap;
+    }
 
-        // add the invoices via the quickbooks api
-        try {
-            schoolFeeInvoice = dataService.add(schoolFeeInvoice);
-        } catch (FMSException e) {
-            throw new QuickBooksException("Error creating a new school fee invoice", e);
-        }
-
-        try {
-            delegateFeeInvoice = dataService.add(delegateFeeInvoice);
-        } catch (FMSException e) {
-            throw new QuickBooksException("Error creating a new delegate fee invoice", e);
+    /**
+     * Adds the passed newly created invoices, billed to the passed Customer, to whichever of the invoice and memo
+     * indexes have been loaded
+     * @param customer - The Customer the invoices are billed to
+     * @param invoices - A map from InvoiceType to the invoices to add
+     */
+    private void addCreatedInvoices(@NonNull Customer customer, @NonNull Map<InvoiceType, Invoice> invoices) {
+        InvoiceIndex loadedInvoiceIndex = this.invoiceIndex;
+        if (loadedInvoiceIndex != null) {
+            invoices.forEach((invoiceType, invoice) -> loadedInvoiceIndex.put(customer.getId(), invoiceType, invoice));
         }
-
-        Map<InvoiceType, Invoice> invoiceMap;
-
-        if (conference == Conference.BMUN) {
-            invoiceMap = Map.of(
-                    InvoiceType.BMUN_SCHOOL_FEE,
-                    schoolFeeInvoice,
-                    InvoiceType.BMUN_DELEGATE_FEE,
-                    delegateFeeInvoice
-            );
-        } else {
-            invoiceMap = Map.of(
-                InvoiceType.FC_SCHOOL_FEE,
-                schoolFeeInvoice,
-                InvoiceType.FC_DELEGATE_FEE,
-                delegateFeeInvoice
-            );
+        MemoIndex loadedMemoIndex = this.memoIndex;
+        if (loadedMemoIndex != null) {
+            invoices.values().forEach(loadedMemoIndex::add);
         }
-
-        return invoiceMap;
     }
 
     /**
@@ -303,7 +636,7 @@ public class QuickBooksModule {
     public void sendInvoice(@NonNull Invoice invoice, @NonNull String emailAddress) {
         String email = invoice.getBillEmail() == null ? emailAddress : invoice.getBillEmail().getAddress();
         try {
-            this.dataService.sendEmail(invoice, email);
+            this.execute("sendEmail", () -> this.dataService.sendEmail(invoice, email));
         } catch (FMSException e) {
             throw new QuickBooksException("Exception sending invoice", e);
         }
@@ -311,97 +644,716 @@ public class QuickBooksModule {
     }
 
     /**
-     * Finds and returns the first invoice with matching memo
+     * Gets the invoice with the passed id straight from QuickBooks, bypassing the invoice index
+     * @param invoiceId - The id of the invoice
+     * @return - The invoice, or null if there's no invoice with that id
+     */
+    public Invoice getInvoiceById(@NonNull String invoiceId) {
+        Invoice invoice = new Invoice();
+        invoice.setId(invoiceId);
+        try {
+            return this.execute("findById", () -> this.dataService.findById(invoice));
+        } catch (FMSException e) {
+            throw new QuickBooksException("Exception getting invoice " + invoiceId, e);
+        }
+    }
+
+    /**
+     * Finds and returns the first invoice with matching memo. Invoices are looked up in the memo index, which is built
+     * with a single scan of all invoices the first time it's needed.
      * @param memoToMatch - A string containing the memo value to match against
      * @return invoice - The first invoice with a matching memo value
      */
     public Invoice getInvoiceWithMatchingMemo(String memoToMatch) {
-        List<Invoice> invoices = this.getAllInvoices();
+        if (memoToMatch == null) {
+            return null;
+        }
+        return this.getMemoIndex().get(memoToMatch);
+    }
 
-        for (Invoice inv : invoices) {
-            MemoRef memo = inv.getCustomerMemo();
-            if (memo != null && memo.getValue().equals(memoToMatch)) {
-                return inv;
+    /**
+     * Finds the first invoice with each of the passed memos, using a single scan of all invoices at most
+     * @param memosToMatch - The memo values to match against
+     * @return - A map from memo value to the first invoice with that memo. Memos without a matching invoice are omitted
+     */
+    public Map<String, Invoice> getInvoicesWithMatchingMemos(@NonNull Collection<String> memosToMatch) {
+        MemoIndex loadedMemoIndex = this.getMemoIndex();
+        Map<String, Invoice> invoicesByMemo = new HashMap<>();
+        for (String memo : memosToMatch) {
+            Invoice invoice = memo == null ? null : loadedMemoIndex.get(memo);
+            if (invoice != null) {
+                invoicesByMemo.put(memo, invoice);
             }
         }
-        return null;
+        return invoicesByMemo;
     }
 
     /**
-     * Queries for all invoices by calling dataService.findall
-     * @return - A list of all existing invoices
+     * Gets the memo index, building it from a single paged scan of all invoices if it hasn't been built yet
+     * @return - The memo index
      */
-    private List<Invoice> getAllInvoices() {
-        List<Invoice> invoices;
-        try {
-            invoices = this.dataService.findAll(new Invoice());
-        } catch (FMSException e) {
-            throw new QuickBooksException("Error fetching all invoices", e);
+    private synchronized MemoIndex getMemoIndex() {
+        if (this.memoIndex == null) {
+            this.memoIndex = MemoIndex.fromInvoices(this.streamAllInvoices()::iterator);
         }
+        return this.memoIndex;
+    }
 
-        return invoices;
+    /**
+     * (Re)loads the invoice index from a single paged query for all invoices dated on or after the passed date. Should
+     * be called once at the start of each batch of registrations, so that changes made outside this module since the
+     * previous batch are picked up.
+     * @param since - The earliest transaction date of invoices to index, typically the start of the current session
+     */
+    public synchronized void loadInvoiceIndex(@NonNull LocalDate since) {
+        String query = QueryModule.getQueryForInvoicesSince(since);
+        this.invoiceIndex = InvoiceIndex.fromInvoices(
+                this.<Invoice>streamQueryResults(query, "invoices")::iterator,
+                since
+        );
+    }
+
+    /**
+     * Streams all existing invoices through the QuickBooks API, fetching them a page at a time
+     * @return - A Stream of all existing invoices
+     */
+    public Stream<Invoice> streamAllInvoices() {
+        return this.streamQueryResults(QueryModule.getQueryForAllInvoices(), "invoices");
     }
 
     // Item methods
 
     /**
-     * Queries for all items by calling dataService.findall
+     * Queries for all items, fetching them a page at a time
      * @return - A list of all existing items
      */
     private List<Item> getAllItems() {
-        List<Item> items;
+        return this.<Item>streamQueryResults(QueryModule.getQueryForAllItems(), "items").collect(Collectors.toList());
+    }
+
+    /**
+     * Reloads the item catalog from QuickBooks, regardless of whether the current snapshot has expired
+     * @return - The reloaded item catalog
+     */
+    public synchronized ItemCatalog refreshItemCatalog() {
+        this.itemCatalog = ItemCatalog.fromItems(this.getAllItems(), Instant.now());
+        return this.itemCatalog;
+    }
+
+    /**
+     * Gets the item catalog, loading it if it hasn't been loaded yet or if the loaded snapshot is older than
+     * ITEM_CATALOG_TTL
+     * @return - The item catalog
+     */
+    private synchronized ItemCatalog getItemCatalog() {
+        if (this.itemCatalog == null || this.itemCatalog.isExpired(ITEM_CATALOG_TTL, Instant.now())) {
+            return this.refreshItemCatalog();
+        }
+        return this.itemCatalog;
+    }
+
+    /**
+     * Checks that QuickBooks has an Item for each of the passed ItemTypes, loading the item catalog if needed. Should
+     * be called before handling any registrations, so that a missing Item fails the run up front rather than on the
+     * first registration which needs it.
+     * @param requiredItemTypes - The ItemTypes which must have a matching Item
+     * @throws QuickBooksException If any of the required Items don't exist
+     */
+    public void checkItemsExist(@NonNull Collection<ItemType> requiredItemTypes) {
+        this.getItemCatalog().checkContainsItems(requiredItemTypes);
+    }
+
+    /**
+     * Gets the invoice templates built from the current item catalog and fee schedule, rebuilding them if either has
+     * been replaced since they were last built
+     * @return - The current invoice templates
+     */
+    private InvoiceTemplates getInvoiceTemplates() {
+        ItemCatalog catalog = this.getItemCatalog();
+        FeeSchedule feeSchedule = FeeSchedule.current();
+        InvoiceTemplates templates = this.invoiceTemplates;
+        if (templates == null || !templates.isBuiltFrom(catalog, feeSchedule)) {
+            templates = InvoiceTemplates.build(catalog, feeSchedule);
+            this.invoiceTemplates = templates;
+        }
+        return templates;
+    }
+
+    // Async methods
+
+    /**
+     * Asynchronous version of updateCustomerFromSchool, built on the DataService's callback-based calls so that no
+     * thread is tied up while waiting for QuickBooks.
+     * @param school - The school whose Customer to create or update
+     * @return - A future completed with the Customer as saved by QuickBooks, or with a QuickBooksException
+     */
+    public CompletableFuture<Customer> updateCustomerFromSchoolAsync(@NonNull School school) {
+        return this.queryCustomerFromSchoolAsync(school).<Customer>thenCompose(queriedCustomer -> {
+            Customer newCustomer = QuickBooksUtil.getCustomerFromSchool(school);
+            if (queriedCustomer == null) {
+                return withFailureMessage(this.addAsync(newCustomer), "Exception adding customer");
+            } else if (QuickBooksUtil.checkCustomerMatches(queriedCustomer, newCustomer)) {
+                return CompletableFuture.completedFuture(queriedCustomer);
+            }
+            newCustomer.setId(queriedCustomer.getId());
+            newCustomer.setSyncToken(queriedCustomer.getSyncToken());
+            newCustomer.setSparse(true);
+            return withFailureMessage(this.updateAsync(newCustomer), "Exception updating customer");
+        }).thenApply(savedCustomer -> {
+            this.customerCache.put(savedCustomer);
+            return savedCustomer;
+        });
+    }
+
+    /**
+     * Asynchronous version of queryInvoicesFromRegistration, built on the DataService's callback-based calls so that
+     * no thread is tied up while waiting for QuickBooks. If the customer's indexed invoices were restored from the
+     * entity cache, they're queried for in full instead.
+     * @param registration - The Registration to match invoices against
+     * @return - A future completed with a map from InvoiceType to the corresponding Invoice, or with a
+     * QuickBooksException
+     */
+    public CompletableFuture<Map<InvoiceType, Invoice>> queryInvoicesFromRegistrationAsync(
+            @NonNull Registration registration
+    ) {
+        return this.queryCustomerFromSchoolAsync(registration.getSchool()).thenCompose(customer -> {
+            if (customer == null) {
+                return CompletableFuture.completedFuture(Map.of());
+            }
+            LocalDate earliestInvoiceDate = QuickBooksUtil.getEarliestInvoiceDate(registration);
+            InvoiceIndex loadedInvoiceIndex = this.invoiceIndex;
+            if (loadedInvoiceIndex != null && loadedInvoiceIndex.covers(earliestInvoiceDate)) {
+                Map<InvoiceType, Invoice> indexedInvoices = loadedInvoiceIndex.getInvoices(customer.getId());
+                if (indexedInvoices.values().stream().noneMatch(loadedInvoiceIndex::isIndexOnly)) {
+                    return CompletableFuture.completedFuture(indexedInvoices);
+                }
+            }
+            String query = QueryModule.getQueryForInvoicesFromCustomer(customer.getId(), earliestInvoiceDate);
+            return this.queryAllAsync(query, "invoices for customer", 1, new ArrayList<>()).thenApply(entities -> {
+                List<Invoice> invoices = entities.stream().map(Invoice.class::cast).collect(Collectors.toList());
+                return InvoiceIndex.fromInvoices(invoices, earliestInvoiceDate).getInvoices(customer.getId());
+            });
+        });
+    }
+
+    /**
+     * Asynchronous version of createInvoicesFromRegistration, built on the DataService's callback-based calls so
+     * that no thread is tied up while waiting for QuickBooks. As in the blocking version, the delegate fee invoice is
+     * only created once the school fee invoice has been, and a school fee invoice created without its delegate fee
+     * invoice is still indexed.
+     * @param registration - The registration from which to create the invoices
+     * @return - A future completed with a map from InvoiceType to the created invoices, or with a QuickBooksException
+     */
+    public CompletableFuture<Map<InvoiceType, Invoice>> createInvoicesFromRegistrationAsync(
+            @NonNull Registration registration
+    ) {
+        return this.queryCustomerFromSchoolAsync(registration.getSchool()).thenCompose(customer -> {
+            if (customer == null) {
+                String schoolName = registration.getSchool().getSchoolName();
+                throw new QuickBooksException("No customer exists for " + schoolName, null);
+            }
+            List<Map.Entry<InvoiceType, Invoice>> invoices =
+                    List.copyOf(this.constructInvoicesFromRegistration(registration, customer).entrySet());
+            CompletableFuture<Invoice> schoolFeeInvoice = withFailureMessage(
+                    this.addAsync(invoices.get(0).getValue()),
+                    "Error creating a new school fee invoice"
+            );
+            return schoolFeeInvoice.thenCompose(savedSchoolFee -> withFailureMessage(
+                    this.addAsync(invoices.get(1).getValue()),
+                    "Error creating a new delegate fee invoice"
+            ).handle((savedDelegateFee, throwable) -> {
+                Map<InvoiceType, Invoice> invoiceMap = new LinkedHashMap<>();
+                invoiceMap.put(invoices.get(0).getKey(), savedSchoolFee);
+                if (throwable == null) {
+                    invoiceMap.put(invoices.get(1).getKey(), savedDelegateFee);
+                }
+                this.addCreatedInvoices(customer, invoiceMap);
+                if (throwable != null) {
+                    throw (QuickBooksException) (throwable instanceof CompletionException
+                            ? throwable.getCause()
+                            : throwable);
+                }
+                return invoiceMap;
+            }));
+        });
+    }
+
+    /**
+     * Asynchronous version of sendInvoice. The DataService has no callback-based way of sending emails, so the
+     * blocking call is made on a shared background pool instead, whose size is bounded by the rate limiter.
+     * @param invoice - The Invoice to send
+     * @param emailAddress - The email to send the invoice to, if the invoice doesn't have an associated billing email
+     * @return - A future completed once the invoice is sent, or with a QuickBooksException
+     */
+    public CompletableFuture<Void> sendInvoiceAsync(@NonNull Invoice invoice, @NonNull String emailAddress) {
+        String email = invoice.getBillEmail() == null ? emailAddress : invoice.getBillEmail().getAddress();
+        CompletableFuture<Invoice> sentInvoice = this.executeAsync(
+                "sendEmailAsync",
+                response -> SEND_EMAIL_EXECUTOR.execute(() -> {
+                    this.applyTransportConfig();
+                    try {
+                        response.complete(this.dataService.sendEmail(invoice, email));
+                    } catch (FMSException e) {
+                        response.completeExceptionally(e);
+                    }
+                })
+        );
+        return withFailureMessage(sentInvoice, "Exception sending invoice")
+                .thenAccept(sent -> invoice.setEmailStatus(EmailStatusEnum.EMAIL_SENT));
+    }
+
+    /**
+     * Asynchronous version of queryCustomerFromSchool
+     */
+    private CompletableFuture<Customer> queryCustomerFromSchoolAsync(@NonNull School school) {
+        String schoolName = school.getSchoolName();
+        if (this.customerCache.contains(schoolName)) {
+            return CompletableFuture.completedFuture(this.customerCache.get(schoolName));
+        }
+        String query = QueryModule.getQueryForCustomerFromSchool(schoolName);
+        CompletableFuture<QueryResult> queryResult =
+                withFailureMessage(this.executeQueryAsync(query), "Exception getting customer");
+        return queryResult.thenApply(result -> {
+            if (result == null || result.getEntities() == null || result.getEntities().isEmpty()) {
+                this.customerCache.putMissing(schoolName);
+                return null;
+            }
+            Customer customer = (Customer) result.getEntities().get(0);
+            this.customerCache.put(customer);
+            return customer;
+        });
+    }
+
+    /**
+     * Fetches all results of the passed query asynchronously, QUERY_PAGE_SIZE at a time
+     * @param query - The query to run, without any pagination clause
+     * @param description - A description of what's being queried, used in exception messages
+     * @param startPosition - The 1-based position of the first result to fetch
+     * @param results - The results fetched so far, which the remaining results are added to
+     * @return - A future completed with every result of the query, or with a QuickBooksException
+     */
+    private CompletableFuture<List<IEntity>> queryAllAsync(
+            @NonNull String query,
+            @NonNull String description,
+            int startPosition,
+            @NonNull List<IEntity> results
+    ) {
+        String pagedQuery = QueryModule.getPagedQuery(query, startPosition, QUERY_PAGE_SIZE);
+        return withFailureMessage(this.executeQueryAsync(pagedQuery), "Exception fetching " + description)
+                .thenCompose(queryResult -> {
+                    if (queryResult == null || queryResult.getEntities() == null) {
+                        return CompletableFuture.completedFuture(results);
+                    }
+                    results.addAll(queryResult.getEntities());
+                    if (queryResult.getEntities().size() < QUERY_PAGE_SIZE) {
+                        return CompletableFuture.completedFuture(results);
+                    }
+                    return this.queryAllAsync(query, description, startPosition + QUERY_PAGE_SIZE, results);
+                });
+    }
+
+    private CompletableFuture<QueryResult> executeQueryAsync(@NonNull String query) {
+        return this.executeAsync("queryAsync", response -> this.dataService.executeQueryAsync(
+                query,
+                completing(response, CallbackMessage::getQueryResult)
+        ));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends IEntity> CompletableFuture<T> addAsync(@NonNull T entity) {
+        return this.executeAsync("addAsync", response -> this.dataService.addAsync(
+                entity,
+                completing(response, callbackMessage -> (T) callbackMessage.getEntity())
+        ));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends IEntity> CompletableFuture<T> updateAsync(@NonNull T entity) {
+        return this.executeAsync("updateAsync", response -> this.dataService.updateAsync(
+                entity,
+                completing(response, callbackMessage -> (T) callbackMessage.getEntity())
+        ));
+    }
+
+    /**
+     * Creates a DataService callback which completes the passed future with the part of the response it needs, or
+     * with the FMSException the call failed with
+     * @param response - The future to complete
+     * @param getResponse - Extracts the needed part of the response from the callback's message
+     * @return - The callback
+     * @param <T> - The type the future is completed with
+     */
+    private static <T> CallbackHandler completing(
+            @NonNull CompletableFuture<T> response,
+            @NonNull Function<CallbackMessage, T> getResponse
+    ) {
+        return callbackMessage -> {
+            if (callbackMessage.getFMSException() != null) {
+                response.completeExceptionally(callbackMessage.getFMSException());
+            } else {
+                response.complete(getResponse.apply(callbackMessage));
+            }
+        };
+    }
+
+    /**
+     * Wraps any failure of the passed future which isn't already a QuickBooksException in one with the passed message,
+     * matching the exceptions thrown by the blocking methods
+     * @param future - The future whose failures to wrap
+     * @param message - The message of the wrapping QuickBooksException
+     * @return - A future completed with the passed future's result, or with a QuickBooksException
+     * @param <T> - The type of the future's result
+     */
+    private static <T> CompletableFuture<T> withFailureMessage(@NonNull CompletableFuture<T> future, String message) {
+        return future.handle((result, throwable) -> {
+            if (throwable == null) {
+                return result;
+            }
+            Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (cause instanceof QuickBooksException) {
+                throw (QuickBooksException) cause;
+            }
+            throw new QuickBooksException(message, cause);
+        });
+    }
+
+    // Sync methods
+
+    /**
+     * Brings the cached Customer, Invoice and Item views up to date, and should be called at the start of each batch
+     * of registrations. If the views were synced recently enough, only the entities changed since the last sync are
+     * fetched, with a single change data capture query. Otherwise, the item catalog and invoice index are fully
+     * reloaded and the customer cache is cleared.
+     * @param invoicesSince - The earliest transaction date of invoices the invoice index needs to hold
+     * @throws QuickBooksException If the views couldn't be fetched, or couldn't be written to the cache directory
+     */
+    public synchronized void syncCachedEntities(@NonNull LocalDate invoicesSince) {
+        Instant syncStart = Instant.now();
+        boolean canApplyChanges = this.cdcWatermark != null
+                && this.cdcWatermark.isAfter(syncStart.minus(CDC_MAX_LOOKBACK))
+                && this.itemCatalog != null
+                && this.invoiceIndex != null
+                && this.invoiceIndex.covers(invoicesSince);
+        if (!canApplyChanges || !this.applyChangeDataCapture(this.cdcWatermark, syncStart)) {
+            this.customerCache.clear();
+            this.memoIndex = null;
+            this.refreshItemCatalog();
+            this.loadInvoiceIndex(invoicesSince);
+        }
+        this.cdcWatermark = syncStart.minus(CDC_WATERMARK_OVERLAP);
+        this.saveCachedEntities();
+    }
+
+    /**
+     * Persists the cached Customer, Invoice and Item views, so the next run can restore them instead of reloading
+     * them. Does nothing if the module wasn't created with a cache directory, or the views haven't been synced. Since
+     * the views are saved with the watermark of the last sync, writes made after it are picked up again by the next
+     * run's change data capture query.
+     * @throws QuickBooksException If the views couldn't be written to the cache directory
+     */
+    public synchronized void saveCachedEntities() {
+        if (this.entityCacheStore == null || this.cdcWatermark == null) {
+            return;
+        }
+        EntitySnapshot snapshot = new EntitySnapshot(
+                this.cdcWatermark,
+                this.invoiceIndex.getSince(),
+                this.itemCatalog.getLoadedAt(),
+                this.customerCache.getCustomers(),
+                this.invoiceIndex.getAllInvoices(),
+                this.itemCatalog.getItemRefs()
+        );
         try {
-            items = this.dataService.findAll(new Item());
+            this.entityCacheStore.save(snapshot);
+        } catch (IOException e) {
+            throw new QuickBooksException("Failed to save entity cache", e);
+        }
+    }
+
+    /**
+     * Seeds the cached views from a snapshot saved by a previous run. The snapshot's invoices are index-only, so
+     * they're fetched in full when first looked up.
+     * @param snapshot - The saved snapshot
+     */
+    private void restoreCachedEntities(@NonNull EntitySnapshot snapshot) {
+        snapshot.getCustomers().forEach(this.customerCache::put);
+        this.invoiceIndex = InvoiceIndex.fromIndexOnlyInvoices(snapshot.getInvoices(), snapshot.getInvoicesSince());
+        this.itemCatalog = ItemCatalog.fromItemRefs(snapshot.getItemRefs(), snapshot.getItemsLoadedAt());
+        this.cdcWatermark = snapshot.getWatermark();
+    }
+
+    /**
+     * Fetches the Customers, Invoices and Items changed since the passed time with a change data capture query, and
+     * applies the changes to the cached views
+     * @param changedSince - The time after which to fetch changes
+     * @param fetchedAt - When the changes are being fetched
+     * @return - Whether the changes were applied. False if the response may have been truncated, in which case nothing
+     * is applied and the views should be reloaded instead
+     */
+    private boolean applyChangeDataCapture(@NonNull Instant changedSince, @NonNull Instant fetchedAt) {
+        List<CDCQueryResult> cdcQueryResults;
+        try {
+            cdcQueryResults = this.execute("executeCDCQuery", () -> this.dataService.executeCDCQuery(
+                    List.of(new Customer(), new Invoice(), new Item()),
+                    CDC_TIMESTAMP_FORMATTER.format(changedSince.atOffset(ZoneOffset.UTC))
+            ));
         } catch (FMSException e) {
-            throw new QuickBooksException("Error fetching all invoices", e);
+            throw new QuickBooksException("Exception fetching changed entities", e);
         }
 
-        return items;
+        List<Customer> changedCustomers = new ArrayList<>();
+        List<Invoice> changedInvoices = new ArrayList<>();
+        List<Item> changedItems = new ArrayList<>();
+        for (CDCQueryResult cdcQueryResult : cdcQueryResults == null ? List.<CDCQueryResult>of() : cdcQueryResults) {
+            if (cdcQueryResult.getQueryResults() == null) {
+                continue;
+            }
+            for (QueryResult queryResult : cdcQueryResult.getQueryResults().values()) {
+                if (queryResult == null || queryResult.getEntities() == null) {
+                    continue;
+                }
+                if (queryResult.getEntities().size() >= CDC_MAX_RESULTS) {
+                    return false;
+                }
+                for (IEntity entity : queryResult.getEntities()) {
+                    if (entity instanceof Customer) {
+                        changedCustomers.add((Customer) entity);
+                    } else if (entity instanceof Invoice) {
+                        changedInvoices.add((Invoice) entity);
+                    } else if (entity instanceof Item) {
+                        changedItems.add((Item) entity);
+                    }
+                }
+            }
+        }
+
+        changedCustomers.forEach(this.customerCache::applyChange);
+        changedInvoices.forEach(this.invoiceIndex::applyChange);
+        MemoIndex loadedMemoIndex = this.memoIndex;
+        if (loadedMemoIndex != null) {
+            changedInvoices.forEach(loadedMemoIndex::applyChange);
+        }
+        this.itemCatalog = this.itemCatalog.withChangedItems(changedItems, fetchedAt);
+        return true;
+    }
+
+    // Query methods
+
+    /**
+     * Streams all results of the passed query, fetching them QUERY_PAGE_SIZE at a time. Each page is fetched while the
+     * previous one is being consumed, and pages are fetched until a short page is returned, so results beyond
+     * QuickBooks' default page size aren't silently dropped.
+     * @param query - The query to run, without any pagination clause
+     * @param description - A description of what's being queried, used in exception messages
+     * @return - A Stream of the query's results
+     * @param <T> - The type of entity being queried
+     */
+    private <T extends IEntity> Stream<T> streamQueryResults(@NonNull String query, @NonNull String description) {
+        return PagedQueryIterator.stream((startPosition, maxResults) -> {
+            QueryResult queryResult;
+            try {
+                queryResult = this.execute("query", () -> this.dataService.executeQuery(
+                        QueryModule.getPagedQuery(query, startPosition, maxResults)
+                ));
+            } catch (FMSException e) {
+                throw new QuickBooksException("Exception fetching " + description, e);
+            }
+            return queryResult == null || queryResult.getEntities() == null ? List.of() : queryResult.getEntities();
+        }, QUERY_PAGE_SIZE);
+    }
+
+    // Call methods
+
+    /**
+     * Makes the passed DataService call through the realm's rate limiter, with the module's transport config,
+     * recording each attempt in the operation's ApiMetrics
+     * @param operation - The name of the DataService operation being called, such as query or add
+     * @param quickBooksCall - The call to make
+     * @return - What the call returned
+     * @param <T> - The type returned by the call
+     * @throws FMSException If the call failed, or was still being throttled after every retry
+     */
+    private <T> T execute(
+            @NonNull String operation,
+            @NonNull QuickBooksRateLimiter.QuickBooksCall<T> quickBooksCall
+    ) throws FMSException {
+        OperationMetrics metrics = ApiMetrics.global().forOperation(ApiMetrics.QUICKBOOKS, operation);
+        int[] attempts = {0};
+        return this.rateLimiter.execute(() -> {
+            if (attempts[0]++ > 0) {
+                metrics.recordRetry();
+            }
+            this.applyTransportConfig();
+            long start = System.nanoTime();
+            T result;
+            try {
+                result = quickBooksCall.call();
+            } catch (FMSException e) {
+                metrics.recordFailure(System.nanoTime() - start, QuickBooksRateLimiter.isThrottled(e));
+                throw e;
+            }
+            metrics.recordSuccess(System.nanoTime() - start, getPayloadSize(result));
+            return result;
+        });
+    }
+
+    /**
+     * Starts the passed asynchronous DataService call through the realm's rate limiter, with the module's transport
+     * config, recording each attempt in the operation's ApiMetrics
+     * @param operation - The name of the DataService operation being called, such as queryAsync or addAsync
+     * @param asyncQuickBooksCall - The call to make
+     * @return - A future completed with the call's response, or with the FMSException it failed with
+     * @param <T> - The type the call responds with
+     */
+    private <T> CompletableFuture<T> executeAsync(
+            @NonNull String operation,
+            @NonNull QuickBooksRateLimiter.AsyncQuickBooksCall<T> asyncQuickBooksCall
+    ) {
+        OperationMetrics metrics = ApiMetrics.global().forOperation(ApiMetrics.QUICKBOOKS, operation);
+        AtomicInteger attempts = new AtomicInteger();
+        return this.rateLimiter.executeAsync(response -> {
+            if (attempts.getAndIncrement() > 0) {
+                metrics.recordRetry();
+            }
+            long start = System.nanoTime();
+            response.whenComplete((result, throwable) -> {
+                long nanos = System.nanoTime() - start;
+                if (throwable == null) {
+                    metrics.recordSuccess(nanos, getPayloadSize(result));
+                } else {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    boolean throttled = cause instanceof FMSException
+                            && QuickBooksRateLimiter.isThrottled((FMSException) cause);
+                    metrics.recordFailure(nanos, throttled);
+                }
+            });
+            this.applyTransportConfig();
+            asyncQuickBooksCall.start(response);
+        });
     }
 
     /**
-     * Fetches the relevant QuickBooks Items that would appear in the invoices for the passed Registration. These Items
-     * would be the relevant school fee and delegate fee items, and if paying by card the credit card processing item
-     * too.
-     * @param registration - The Registration for which to get relevant items
-     * @return - A map from ItemType to the relevant Items
+     * Measures the payload of a DataService response in entities, since the devkit doesn't expose the size of the
+     * underlying HTTP bodies
+     * @param response - The response to measure
+     * @return - The number of entities in the response
      */
-    private Map<ItemType, Item> getRelevantItemsForRegistration(@NonNull Registration registration) {
-        Map<ItemType, Item> itemMap = new HashMap<>();
+    private static long getPayloadSize(Object response) {
+        if (response instanceof QueryResult) {
+            List<? extends IEntity> entities = ((QueryResult) response).getEntities();
+            return entities == null ? 0 : entities.size();
+        }
+        if (response instanceof IEntity) {
+            return 1;
+        }
+        if (response instanceof BatchOperation) {
+            return ((BatchOperation) response).getBIds().size();
+        }
+        if (response instanceof List) {
+            long size = 0;
+            for (Object element : (List<?>) response) {
+                if (element instanceof CDCQueryResult && ((CDCQueryResult) element).getQueryResults() != null) {
+                    for (QueryResult queryResult : ((CDCQueryResult) element).getQueryResults().values()) {
+                        size += getPayloadSize(queryResult);
+                    }
+                }
+            }
+            return size;
+        }
+        return 0;
+    }
 
-        List<Item> allItems = this.getAllItems();
+    private void applyTransportConfig() {
+        this.transportConfig.forEach((property, value) -> {
+            if (!value.equals(Config.getProperty(property))) {
+                Config.setProperty(property, value);
+            }
+        });
+    }
 
-        if (registration.getConference() == Conference.BMUN) {
-            Item schoolFeeItem = allItems.stream()
-                    .filter(item -> item.getName().equals(ItemType.BMUN_SCHOOL_FEE.toString()))
-                    .findAny().orElseThrow(() -> new QuickBooksException("Couldn't find BMUN School Fee Item", null));
-            Item delegateFeeItem = allItems.stream()
-                    .filter(item -> item.getName().equals(ItemType.BMUN_DELEGATE_FEE.toString()))
-                    .findAny().orElseThrow(() -> new QuickBooksException("Couldn't find BMUN Delegate Fee Item", null));
+    // Batch methods
 
-            itemMap.put(ItemType.BMUN_SCHOOL_FEE, schoolFeeItem);
-            itemMap.put(ItemType.BMUN_DELEGATE_FEE, delegateFeeItem);
-        } else if (registration.getConference() == Conference.FC) {
-            Item schoolFeeItem = allItems.stream()
-                    .filter(item -> item.getName().equals(ItemType.FC_SCHOOL_FEE.toString()))
-                    .findAny().orElseThrow(() -> new QuickBooksException("Couldn't find FC School Fee Item", null));
-            Item delegateFeeItem = allItems.stream()
-                    .filter(item -> item.getName().equals(ItemType.FC_DELEGATE_FEE.toString()))
-                    .findAny().orElseThrow(() -> new QuickBooksException("Couldn't find FC Delegate Fee Item", null));
+    /**
+     * Executes the passed writes through the QuickBooks batch API, splitting them into requests of at most
+     * MAX_BATCH_SIZE operations. Faults are reported per write, so one bad entity doesn't fail the rest of its request.
+     * If a whole request fails, each of its writes is reported as failed.
+     * @param writes - A map from some key identifying each write to the write itself
+     * @return - For each key, either the entity as saved by QuickBooks or why the write failed
+     * @param <K> - The type of key identifying each write
+     */
+    private <K> BatchResult<K, IEntity> executeBatch(@NonNull Map<K, BatchWrite> writes) {
+        Map<K, IEntity> results = new LinkedHashMap<>();
+        Map<K, QuickBooksException> failures = new LinkedHashMap<>();
 
-            itemMap.put(ItemType.FC_SCHOOL_FEE, schoolFeeItem);
-            itemMap.put(ItemType.FC_DELEGATE_FEE, delegateFeeItem);
+        for (List<Map.Entry<K, BatchWrite>> chunk : Lists.partition(List.copyOf(writes.entrySet()), MAX_BATCH_SIZE)) {
+            BatchOperation batchOperation = new BatchOperation();
+            for (int i = 0; i < chunk.size(); i++) {
+                BatchWrite write = chunk.get(i).getValue();
+                batchOperation.addEntity(write.getEntity(), write.getOperation(), getBatchId(i));
+            }
+
+            try {
+                this.execute("executeBatch", () -> {
+                    this.dataService.executeBatch(batchOperation);
+                    return batchOperation;
+                });
+            } catch (FMSException e) {
+                QuickBooksException exception = new QuickBooksException("Exception executing batch request", e);
+                chunk.forEach(entry -> failures.put(entry.getKey(), exception));
+                continue;
+            }
+
+            for (int i = 0; i < chunk.size(); i++) {
+                K key = chunk.get(i).getKey();
+                String batchId = getBatchId(i);
+                if (batchOperation.isFault(batchId)) {
+                    failures.put(key, new QuickBooksException(getFaultMessage(batchOperation.getFault(batchId)), null));
+                } else if (batchOperation.isEntity(batchId)) {
+                    results.put(key, batchOperation.getEntity(batchId));
+                } else {
+                    failures.put(key, new QuickBooksException("Batch response missing item " + batchId, null));
+                }
+            }
         }
 
-        if (registration.getPaymentMethod() == PaymentMethod.CARD) {
-            Item creditCardFeeItem = allItems.stream()
-                    .filter(item -> item.getName().equals(ItemType.CREDIT_CARD_PROCESSING_FEE.toString()))
-                    .findAny()
-                    .orElseThrow(() -> new QuickBooksException("Couldn't find Credit Card Processing Fee Item", null));
+        return new BatchResult<>(results, failures);
+    }
+
+    private static String getBatchId(int index) {
+        return "bId" + index;
+    }
 
-            itemMap.put(ItemType.CREDIT_CARD_PROCESSING_FEE, creditCardFeeItem);
+    /**
+     * Constructs a readable message from the errors in a batch item's Fault
+     * @param fault - The Fault returned for a batch item
+     * @return - The message
+     */
+    private static String getFaultMessage(Fault fault) {
+        if (fault == null || fault.getError() == null || fault.getError().isEmpty()) {
+            return "Batch item failed";
         }
+        return "Batch item failed: " + fault.getError().stream()
+                .map(error -> error.getDetail() == null
+                        ? error.getMessage()
+                        : error.getMessage() + " (" + error.getDetail() + ")")
+                .collect(Collectors.joining("; "));
+    }
+
+    /**
+     * A single entity operation to be executed as part of a batch request
+     */
+    @Value
+    private static class BatchWrite {
+        IEntity entity;
+        OperationEnum operation;
+    }
 
-        return itemMap;
+    /**
+     * Identifies one of the invoices written for a registration in a batch request
+     */
+    @Value
+    private static class InvoiceWriteKey {
+        Registration registration;
+        InvoiceType invoiceType;
     }
 }
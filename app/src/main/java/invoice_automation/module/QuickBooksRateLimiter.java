@@ -0,0 +1,319 @@
+package invoice_automation.module;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.intuit.ipp.data.Error;
+import com.intuit.ipp.exception.FMSException;
+import lombok.NonNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static invoice_automation.Consts.QBO_MAX_CONCURRENT_REQUESTS;
+import static invoice_automation.Consts.QBO_MAX_RETRIES;
+import static invoice_automation.Consts.QBO_REQUESTS_PER_MINUTE;
+import static invoice_automation.Consts.QBO_RETRY_BASE_DELAY;
+import static invoice_automation.Consts.QBO_RETRY_MAX_DELAY;
+
+/**
+ * Paces calls to the QuickBooks API so they stay within a realm's throttling limits. Calls draw from a token bucket
+ * refilled at the realm's request rate, and at most QBO_MAX_CONCURRENT_REQUESTS run at once. When QuickBooks throttles
+ * a call anyway, the rate is halved and the call is retried after a jittered exponential backoff. The rate then creeps
+ * back up as calls succeed, settling near the fastest rate QuickBooks will sustain.
+ * A single limiter is shared by every module making calls against the same realm, since that's what QuickBooks
+ * throttles by.
+ *
+ * @author skberkeley
+ */
+public class QuickBooksRateLimiter {
+    /**
+     * Limiters by realmId
+     */
+    private static final Map<String, QuickBooksRateLimiter> RATE_LIMITERS = new ConcurrentHashMap<>();
+    /**
+     * The error code and message QuickBooks uses for throttled requests
+     */
+    private static final String THROTTLE_ERROR_CODE = "3001";
+    private static final String THROTTLE_ERROR_MESSAGE = "ThrottleExceeded";
+    /**
+     * The slowest the rate is cut to, in requests per second
+     */
+    private static final double MIN_RATE = 0.5;
+    /**
+     * How much the rate grows by after each successful call, in requests per second
+     */
+    private static final double RATE_INCREASE = 0.05;
+    /**
+     * The longest an asynchronous call waits before trying again for a concurrency slot, in milliseconds
+     */
+    private static final long MAX_ACQUIRE_RETRY_DELAY_MILLIS = 50;
+
+    /**
+     * A single call to the QuickBooks API
+     * @param <T> - The type returned by the call
+     */
+    @FunctionalInterface
+    public interface QuickBooksCall<T> {
+        T call() throws FMSException;
+    }
+
+    /**
+     * A single asynchronous call to the QuickBooks API
+     * @param <T> - The type the call responds with
+     */
+    @FunctionalInterface
+    public interface AsyncQuickBooksCall<T> {
+        /**
+         * Starts the call, which should complete the passed future once QuickBooks responds
+         * @param response - The future to complete with the call's response, or with the FMSException it failed with
+         * @throws FMSException If the call couldn't be started
+         */
+        void start(CompletableFuture<T> response) throws FMSException;
+    }
+
+    /**
+     * Waits out the delay before retrying a throttled call
+     */
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private final RateLimiter rateLimiter;
+    private final Semaphore concurrentRequests;
+    private final double maxRate;
+    private final Sleeper sleeper;
+
+    /**
+     * Creates a new limiter
+     * @param requestsPerMinute - The most requests QuickBooks allows per minute
+     * @param maxConcurrentRequests - The most requests QuickBooks allows in flight at once
+     */
+    public QuickBooksRateLimiter(int requestsPerMinute, int maxConcurrentRequests) {
+        this(requestsPerMinute, maxConcurrentRequests, Thread::sleep);
+    }
+
+    /**
+     * Creates a new limiter which waits out the delay before retrying a throttled call with the passed sleeper
+     * @param requestsPerMinute - The most requests QuickBooks allows per minute
+     * @param maxConcurrentRequests - The most requests QuickBooks allows in flight at once
+     * @param sleeper - Waits out retry delays for execute
+     */
+    QuickBooksRateLimiter(int requestsPerMinute, int maxConcurrentRequests, @NonNull Sleeper sleeper) {
+        this.maxRate = requestsPerMinute / 60.0;
+        this.rateLimiter = RateLimiter.create(this.maxRate);
+        this.concurrentRequests = new Semaphore(maxConcurrentRequests, true);
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * Gets the limiter shared by all calls against the passed realm, configured with QuickBooks' per-realm limits
+     * @param realmId - The realmId of the QuickBooks company being called
+     * @return - The realm's limiter
+     */
+    public static QuickBooksRateLimiter forRealm(@NonNull String realmId) {
+        return RATE_LIMITERS.computeIfAbsent(
+                realmId,
+                id -> new QuickBooksRateLimiter(QBO_REQUESTS_PER_MINUTE, QBO_MAX_CONCURRENT_REQUESTS)
+        );
+    }
+
+    /**
+     * Replaces the limiter shared by all calls against the passed realm with one using the passed limits. Meant for
+     * realms served by something other than QuickBooks, such as a local stand-in, which may allow far more requests.
+     * Only affects modules created afterwards.
+     * @param realmId - The realmId of the company being called
+     * @param requestsPerMinute - The most requests allowed per minute
+     * @param maxConcurrentRequests - The most requests allowed in flight at once
+     * @return - The realm's new limiter
+     */
+    public static QuickBooksRateLimiter configureRealm(
+            @NonNull String realmId,
+            int requestsPerMinute,
+            int maxConcurrentRequests
+    ) {
+        return configureRealm(realmId, new QuickBooksRateLimiter(requestsPerMinute, maxConcurrentRequests));
+    }
+
+    /**
+     * Replaces the limiter shared by all calls against the passed realm with the passed one. Only affects modules
+     * created afterwards.
+     * @param realmId - The realmId of the company being called
+     * @param rateLimiter - The realm's new limiter
+     * @return - The realm's new limiter
+     */
+    static QuickBooksRateLimiter configureRealm(@NonNull String realmId, @NonNull QuickBooksRateLimiter rateLimiter) {
+        RATE_LIMITERS.put(realmId, rateLimiter);
+        return rateLimiter;
+    }
+
+    /**
+     * Makes the passed call once the limits allow it, retrying it up to QBO_MAX_RETRIES times if QuickBooks throttles
+     * it. Calls which fail for any other reason aren't retried.
+     * @param quickBooksCall - The call to make
+     * @return - What the call returned
+     * @param <T> - The type returned by the call
+     * @throws FMSException If the call failed, or was still being throttled after every retry
+     */
+    public <T> T execute(@NonNull QuickBooksCall<T> quickBooksCall) throws FMSException {
+        for (int attempt = 0; ; attempt++) {
+            this.rateLimiter.acquire();
+            this.concurrentRequests.acquireUninterruptibly();
+            try {
+                T result = quickBooksCall.call();
+                this.onSuccess();
+                return result;
+            } catch (FMSException e) {
+                if (!isThrottled(e) || attempt >= QBO_MAX_RETRIES) {
+                    throw e;
+                }
+                this.onThrottled();
+            } finally {
+                this.concurrentRequests.release();
+            }
+            if (!this.sleepBeforeRetry(attempt)) {
+                throw new FMSException("Interrupted while waiting to retry a throttled QuickBooks request");
+            }
+        }
+    }
+
+    /**
+     * Starts the passed asynchronous call once the limits allow it, retrying it up to QBO_MAX_RETRIES times if
+     * QuickBooks throttles it. Calls which fail for any other reason aren't retried. Nothing blocks the calling
+     * thread: if the limits don't allow the call yet, it's tried again on a timer, as are throttled calls.
+     * @param asyncQuickBooksCall - The call to make
+     * @return - A future completed with the call's response, or with the FMSException it failed with
+     * @param <T> - The type the call responds with
+     */
+    public <T> CompletableFuture<T> executeAsync(@NonNull AsyncQuickBooksCall<T> asyncQuickBooksCall) {
+        return this.executeAsync(asyncQuickBooksCall, 0);
+    }
+
+    private <T> CompletableFuture<T> executeAsync(AsyncQuickBooksCall<T> asyncQuickBooksCall, int attempt) {
+        CompletableFuture<Void> acquired = new CompletableFuture<>();
+        this.acquireAsync(acquired);
+        return acquired.thenCompose(ignored -> {
+            CompletableFuture<T> response = new CompletableFuture<>();
+            try {
+                asyncQuickBooksCall.start(response);
+            } catch (FMSException | RuntimeException e) {
+                response.completeExceptionally(e);
+            }
+            return response;
+        }).handle((result, throwable) -> {
+            this.concurrentRequests.release();
+            if (throwable == null) {
+                this.onSuccess();
+                return CompletableFuture.completedFuture(result);
+            }
+            Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (!(cause instanceof FMSException) || !isThrottled((FMSException) cause) || attempt >= QBO_MAX_RETRIES) {
+                return CompletableFuture.<T>failedFuture(cause);
+            }
+            this.onThrottled();
+            Executor retryExecutor =
+                    CompletableFuture.delayedExecutor(getRetryDelayMillis(attempt), TimeUnit.MILLISECONDS);
+            return CompletableFuture
+                    .supplyAsync(() -> this.executeAsync(asyncQuickBooksCall, attempt + 1), retryExecutor)
+                    .thenCompose(Function.identity());
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Takes a concurrency slot and a token without waiting for either, completing the passed future once both are
+     * taken. If either isn't free, any taken slot is given back and both are tried for again on a timer.
+     * @param acquired - The future to complete once a slot and token are taken
+     */
+    private void acquireAsync(CompletableFuture<Void> acquired) {
+        long retryDelayMillis;
+        if (!this.concurrentRequests.tryAcquire()) {
+            retryDelayMillis = MAX_ACQUIRE_RETRY_DELAY_MILLIS;
+        } else if (this.rateLimiter.tryAcquire()) {
+            acquired.complete(null);
+            return;
+        } else {
+            this.concurrentRequests.release();
+            // Tokens are handed out at the current rate, so there's no use trying again sooner than the next one
+            retryDelayMillis = Math.max(1, (long) Math.ceil(1000 / this.rateLimiter.getRate()));
+        }
+        Executor retryExecutor = CompletableFuture.delayedExecutor(retryDelayMillis, TimeUnit.MILLISECONDS);
+        retryExecutor.execute(() -> this.acquireAsync(acquired));
+    }
+
+    /**
+     * Gets the current rate calls are allowed at
+     * @return - The rate, in requests per second
+     */
+    public double getRate() {
+        return this.rateLimiter.getRate();
+    }
+
+    private synchronized void onSuccess() {
+        double rate = this.rateLimiter.getRate();
+        if (rate < this.maxRate) {
+            this.rateLimiter.setRate(Math.min(this.maxRate, rate + RATE_INCREASE));
+        }
+    }
+
+    private synchronized void onThrottled() {
+        this.rateLimiter.setRate(Math.max(MIN_RATE, this.rateLimiter.getRate() / 2));
+    }
+
+    /**
+     * Sleeps for the delay before retrying a throttled call
+     * @param attempt - The 0-based number of the attempt which was throttled
+     * @return - False if the sleep was interrupted, in which case the interrupt flag is restored
+     */
+    private boolean sleepBeforeRetry(int attempt) {
+        try {
+            this.sleeper.sleep(getRetryDelayMillis(attempt));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Picks a random delay between half and all of an exponentially growing maximum, so that calls throttled together
+     * don't all retry together
+     * @param attempt - The 0-based number of the attempt which was throttled
+     * @return - The delay before retrying, in milliseconds
+     */
+    private static long getRetryDelayMillis(int attempt) {
+        long maxDelayMillis = Math.min(
+                QBO_RETRY_MAX_DELAY.toMillis(),
+                QBO_RETRY_BASE_DELAY.toMillis() << Math.min(attempt, 20)
+        );
+        return ThreadLocalRandom.current().nextLong(maxDelayMillis / 2, maxDelayMillis + 1);
+    }
+
+    /**
+     * Whether the passed exception is QuickBooks rejecting a request for exceeding its throttling limits
+     * @param e - The exception thrown by a DataService call
+     * @return - Whether the request was throttled
+     */
+    static boolean isThrottled(@NonNull FMSException e) {
+        List<Error> errors = e.getErrorList();
+        if (errors != null) {
+            for (Error error : errors) {
+                if (THROTTLE_ERROR_CODE.equals(error.getCode()) || containsThrottleMessage(error.getMessage())
+                        || containsThrottleMessage(error.getDetail())) {
+                    return true;
+                }
+            }
+        }
+        return containsThrottleMessage(e.getMessage());
+    }
+
+    private static boolean containsThrottleMessage(String message) {
+        return message != null && (message.contains(THROTTLE_ERROR_MESSAGE) || message.contains("statusCode=429"));
+    }
+}
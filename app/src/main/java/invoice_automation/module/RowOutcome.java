@@ -0,0 +1,50 @@
+package invoice_automation.module;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * The result of handling the registration in a single sheet row, to be written back to the sheet
+ *
+ * @author skberkeley
+ */
+@Value
+@Builder
+public class RowOutcome {
+    /**
+     * The 1-based number of the sheet row the registration was parsed from
+     */
+    int rowNumber;
+    /**
+     * Whether the registration was fully handled, in which case the row is flagged so later runs skip it
+     */
+    boolean processed;
+    @NonNull List<String> invoiceIds;
+    @NonNull List<String> docNumbers;
+    /**
+     * The email status of the row's invoices, or null if it has none
+     */
+    String emailStatus;
+    /**
+     * Why the registration couldn't be fully handled, or null if it was
+     */
+    String error;
+
+    /**
+     * Builds the outcome of a row which couldn't be parsed, which is left unprocessed so it's read again once fixed
+     * @param parseError - Why the row couldn't be parsed
+     * @return - The row's outcome
+     */
+    public static RowOutcome fromParseError(@NonNull RowParseError parseError) {
+        return RowOutcome.builder()
+                .rowNumber(parseError.getRowNumber())
+                .processed(false)
+                .invoiceIds(List.of())
+                .docNumbers(List.of())
+                .error("Failed to parse row: " + parseError.getMessage())
+                .build();
+    }
+}
@@ -0,0 +1,25 @@
+package invoice_automation.module;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * A sheet row which couldn't be parsed into a Registration
+ *
+ * @author skberkeley
+ */
+@Value
+public class RowParseError {
+    /**
+     * The name of the sheet the row is in
+     */
+    @NonNull String sheetName;
+    /**
+     * The 1-based number of the sheet row
+     */
+    int rowNumber;
+    /**
+     * Why the row couldn't be parsed
+     */
+    @NonNull String message;
+}
@@ -0,0 +1,215 @@
+package invoice_automation.module;
+
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static invoice_automation.Consts.SHEET_RECHECK_ROWS;
+
+/**
+ * Remembers how far through a registration sheet previous runs have read, so each run only fetches new rows. Rows are
+ * identified by number, and the checkpoint records:
+ *  - The first row no run has read yet. Rows from there on are fetched every run
+ *  - Rows which were read but not processed successfully, which are fetched again until they are, or until they come
+ *    back blank because they were deleted or cleared
+ *  - A hash of each recently processed row's contents. The last SHEET_RECHECK_ROWS rows before the checkpoint are
+ *    fetched again each run, and any whose hash changed are processed again, so recent edits are picked up
+ * Edits to rows older than that are only picked up after deleting the checkpoint, which makes the next run read the
+ * whole sheet.
+ *
+ * @author skberkeley
+ */
+public class SheetCheckpoint {
+    /**
+     * The first sheet row holding registrations, below the header row
+     */
+    public static final int FIRST_ROW = 2;
+
+    private final Path checkpointFile;
+    /**
+     * The first row no run has read yet
+     */
+    @Getter
+    private int nextRow = FIRST_ROW;
+    /**
+     * Rows read but not yet processed successfully
+     */
+    private final Set<Integer> pendingRows = new TreeSet<>();
+    /**
+     * Map from row number to the hash of the row's contents when it was last processed
+     */
+    private final Map<Integer, String> rowHashes = new TreeMap<>();
+
+    private SheetCheckpoint(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Loads the checkpoint for the passed sheet, or creates an empty one if none has been saved
+     * @param checkpointDirectory - The directory checkpoints are saved in
+     * @param spreadsheetId - The id of the spreadsheet being read
+     * @param sheetName - The name of the sheet being read
+     * @return - The sheet's checkpoint
+     * @throws IOException If a saved checkpoint exists but couldn't be read
+     */
+    public static SheetCheckpoint load(
+            @NonNull Path checkpointDirectory,
+            @NonNull String spreadsheetId,
+            @NonNull String sheetName
+    ) throws IOException {
+        String sheetKey = Hashing.sha256()
+                .hashString(spreadsheetId + "!" + sheetName, StandardCharsets.UTF_8)
+                .toString()
+                .substring(0, 16);
+        SheetCheckpoint checkpoint =
+                new SheetCheckpoint(checkpointDirectory.resolve("sheet-" + sheetKey + ".checkpoint"));
+        if (!Files.exists(checkpoint.checkpointFile)) {
+            return checkpoint;
+        }
+        for (String line : Files.readAllLines(checkpoint.checkpointFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ");
+            if (fields[0].equals("next") && fields.length == 2) {
+                checkpoint.nextRow = Integer.parseInt(fields[1]);
+            } else if (fields[0].equals("pending") && fields.length == 2) {
+                checkpoint.pendingRows.add(Integer.parseInt(fields[1]));
+            } else if (fields[0].equals("hash") && fields.length == 3) {
+                checkpoint.rowHashes.put(Integer.parseInt(fields[1]), fields[2]);
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Gets the first row to fetch from this run onwards, which includes recently processed rows to check for edits
+     * @return - The 1-based row number
+     */
+    public int getFirstRowToFetch() {
+        return Math.max(FIRST_ROW, this.nextRow - SHEET_RECHECK_ROWS);
+    }
+
+    /**
+     * Gets the rows before getFirstRowToFetch which were read but not processed successfully, and so must be fetched
+     * again individually
+     * @return - The 1-based row numbers, in ascending order
+     */
+    public List<Integer> getPendingRowsToFetch() {
+        return this.pendingRows.stream()
+                .filter(rowNumber -> rowNumber < this.getFirstRowToFetch())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Whether the passed row needs processing: it's new, pending, or has been edited since it was processed
+     * @param rowNumber - The 1-based number of the row
+     * @param rowHash - The hash of the row's current contents, as from hashRow
+     * @return - Whether the row needs processing
+     */
+    public boolean needsProcessing(int rowNumber, @NonNull String rowHash) {
+        return this.pendingRows.contains(rowNumber) || !rowHash.equals(this.rowHashes.get(rowNumber));
+    }
+
+    /**
+     * Records that the passed row was read and needs processing
+     * @param rowNumber - The 1-based number of the row
+     */
+    public void markPending(int rowNumber) {
+        this.pendingRows.add(rowNumber);
+        this.markRead(rowNumber);
+    }
+
+    /**
+     * Gets the pending rows in the passed range
+     * @param firstRow - The first row of the range
+     * @param endRow - The row after the last row of the range
+     * @return - The 1-based row numbers, in ascending order
+     */
+    public List<Integer> getPendingRows(int firstRow, int endRow) {
+        return this.pendingRows.stream()
+                .filter(rowNumber -> rowNumber >= firstRow && rowNumber < endRow)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Records that the passed row no longer needs processing because it was deleted or cleared, forgetting its hash
+     * so it's processed if it's filled in again. Unlike markProcessed, this doesn't move the checkpoint past the row,
+     * since it may be past the end of the sheet.
+     * @param rowNumber - The 1-based number of the row
+     */
+    public void clearPending(int rowNumber) {
+        this.pendingRows.remove(rowNumber);
+        this.rowHashes.remove(rowNumber);
+    }
+
+    /**
+     * Records that the passed row was read, and either processed successfully or didn't need processing
+     * @param rowNumber - The 1-based number of the row
+     * @param rowHash - The hash of the row's contents when it was read
+     */
+    public void markProcessed(int rowNumber, @NonNull String rowHash) {
+        this.pendingRows.remove(rowNumber);
+        this.rowHashes.put(rowNumber, rowHash);
+        this.markRead(rowNumber);
+    }
+
+    private void markRead(int rowNumber) {
+        this.nextRow = Math.max(this.nextRow, rowNumber + 1);
+    }
+
+    /**
+     * Saves the checkpoint, replacing any previously saved for the same sheet. Hashes of rows which will no longer be
+     * checked for edits are dropped.
+     * @throws IOException If the checkpoint couldn't be written
+     */
+    public void save() throws IOException {
+        Path checkpointDirectory = this.checkpointFile.toAbsolutePath().getParent();
+        Files.createDirectories(checkpointDirectory);
+        Path tempFile = Files.createTempFile(checkpointDirectory, "sheet", ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write("next " + this.nextRow);
+                writer.newLine();
+                for (int rowNumber : this.pendingRows) {
+                    writer.write("pending " + rowNumber);
+                    writer.newLine();
+                }
+                for (Map.Entry<Integer, String> rowHash : this.rowHashes.entrySet()) {
+                    if (rowHash.getKey() >= this.getFirstRowToFetch()) {
+                        writer.write("hash " + rowHash.getKey() + " " + rowHash.getValue());
+                        writer.newLine();
+                    }
+                }
+            }
+            Files.move(
+                    tempFile,
+                    this.checkpointFile,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Hashes the contents of a sheet row
+     * @param row - The row's cell values
+     * @return - A hex string which changes whenever any cell's value does
+     */
+    public static String hashRow(@NonNull List<Object> row) {
+        String contents = row.stream().map(String::valueOf).collect(Collectors.joining("\u001f"));
+        return Hashing.sha256().hashString(contents, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,24 @@
+package invoice_automation.module;
+
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * The registrations parsed from one or more Google sheets, along with the rows which couldn't be parsed
+ *
+ * @param <T> - The type each parsed registration is returned as
+ * @author skberkeley
+ */
+@Value
+public class SheetParseResult<T> {
+    /**
+     * The parsed registrations, in row order
+     */
+    @NonNull List<T> registrations;
+    /**
+     * The rows which couldn't be parsed, in row order
+     */
+    @NonNull List<RowParseError> parseErrors;
+}
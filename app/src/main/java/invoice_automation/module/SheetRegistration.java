@@ -0,0 +1,23 @@
+package invoice_automation.module;
+
+import invoice_automation.model.Registration;
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * A Registration parsed from a Google Sheet, along with where in the sheet it came from
+ *
+ * @author skberkeley
+ */
+@Value
+public class SheetRegistration {
+    /**
+     * The 1-based number of the sheet row the registration was parsed from
+     */
+    int rowNumber;
+    /**
+     * A hash of the row's contents when it was parsed, used to tell whether the row has since been edited
+     */
+    @NonNull String rowHash;
+    @NonNull Registration registration;
+}
@@ -0,0 +1,228 @@
+package invoice_automation.module;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.Conference;
+import invoice_automation.model.Registration;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams the registrations in a Google sheet, fetching the sheet in fixed-size windows of rows so that only a couple
+ * of windows are held in memory at once. The next window is fetched in the background as soon as the current one is
+ * handed out, so reading overlaps with handling the registrations already read. The sheet ends at the first window
+ * without any rows, so a run of blank rows at least a window long hides every row below it: registrations must be
+ * entered without such gaps, and SHEET_WINDOW_ROWS is large enough that they don't occur in practice.
+ * Rows which can't be parsed don't stop the read: they're skipped and recorded as RowParseErrors, which callers get
+ * from getParseErrors.
+ * If given a SheetCheckpoint, the reader starts from the checkpoint's first row to fetch, also fetches its pending rows
+ * along with the first window, and only returns rows which need processing. Returned rows are marked pending in the
+ * checkpoint and rows which don't need invoices are marked processed, with rows that couldn't be parsed marked pending
+ * so they're read again once fixed. Pending rows which come back blank, or lie past the end of the sheet, were deleted
+ * or cleared, so they're no longer pending.
+ *
+ * @author skberkeley
+ */
+public class SheetRegistrationReader implements Iterator<SheetRegistration> {
+    /**
+     * Executor used to fetch windows in the background
+     */
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sheet-fetch-%d").build()
+    );
+
+    private final String spreadsheetId;
+    private final String sheetName;
+    private final Conference conference;
+    /**
+     * The sheet's checkpoint, or null to read every row
+     */
+    private final SheetCheckpoint checkpoint;
+    private final int windowSize;
+    /**
+     * Registrations parsed from the current window which haven't been handed out yet
+     */
+    private final Deque<SheetRegistration> parsedRegistrations = new ArrayDeque<>();
+    private final List<RowParseError> parseErrors = new ArrayList<>();
+    /**
+     * The first row of the window being fetched
+     */
+    private int nextWindowStart;
+    /**
+     * The window being fetched, or null once the end of the sheet has been reached
+     */
+    private CompletableFuture<Map<Integer, List<Object>>> nextWindow;
+
+    /**
+     * Creates a new reader, starting to fetch the first window
+     * @param spreadsheetId - The id of the spreadsheet to read registrations from
+     * @param sheetName - The name of the sheet to read registrations from
+     * @param conference - The conference for which registrations are being read
+     * @param checkpoint - The sheet's checkpoint, or null to read every row
+     * @param windowSize - How many rows to fetch in each request
+     */
+    public SheetRegistrationReader(
+            @NonNull String spreadsheetId,
+            @NonNull String sheetName,
+            @NonNull Conference conference,
+            SheetCheckpoint checkpoint,
+            int windowSize
+    ) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        this.spreadsheetId = spreadsheetId;
+        this.sheetName = sheetName;
+        this.conference = conference;
+        this.checkpoint = checkpoint;
+        this.windowSize = windowSize;
+        this.nextWindowStart = checkpoint == null ? SheetCheckpoint.FIRST_ROW : checkpoint.getFirstRowToFetch();
+        this.nextWindow = this.fetchWindow(
+                this.nextWindowStart,
+                checkpoint == null ? List.of() : checkpoint.getPendingRowsToFetch()
+        );
+    }
+
+    /**
+     * Whether there's another registration to read, waiting for windows to be fetched if needed
+     * @return - Whether there's another registration
+     * @throws QuickBooksException If a window couldn't be fetched
+     */
+    @Override
+    public boolean hasNext() {
+        while (this.parsedRegistrations.isEmpty() && this.nextWindow != null) {
+            this.readNextWindow();
+        }
+        return !this.parsedRegistrations.isEmpty();
+    }
+
+    /**
+     * Reads the next registration
+     * @return - The registration and the row it came from
+     * @throws QuickBooksException If a window couldn't be fetched
+     */
+    @Override
+    public SheetRegistration next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.parsedRegistrations.removeFirst();
+    }
+
+    /**
+     * Gets the rows read so far which couldn't be parsed
+     * @return - The errors, in the order the rows were read
+     */
+    public List<RowParseError> getParseErrors() {
+        return Collections.unmodifiableList(this.parseErrors);
+    }
+
+    /**
+     * Waits for the window being fetched, starts fetching the one after it, then parses its rows
+     */
+    private void readNextWindow() {
+        Map<Integer, List<Object>> rows;
+        try {
+            rows = this.nextWindow.join();
+        } catch (CompletionException e) {
+            this.nextWindow = null;
+            throw new QuickBooksException("Failed to read registrations from " + this.sheetName, e.getCause());
+        }
+
+        int windowStart = this.nextWindowStart;
+        boolean windowEmpty = rows.keySet().stream().noneMatch(rowNumber -> rowNumber >= windowStart);
+        if (windowEmpty) {
+            this.nextWindow = null;
+        } else {
+            this.nextWindowStart += this.windowSize;
+            this.nextWindow = this.fetchWindow(this.nextWindowStart, List.of());
+        }
+
+        rows.forEach(this::parseRow);
+        if (this.checkpoint != null) {
+            // Trailing blank rows are left out of the response, so pending rows missing from the window were cleared,
+            // as were any past the end of the sheet
+            int windowEnd = windowEmpty ? Integer.MAX_VALUE : windowStart + this.windowSize;
+            for (int rowNumber : this.checkpoint.getPendingRows(windowStart, windowEnd)) {
+                if (!rows.containsKey(rowNumber)) {
+                    this.checkpoint.clearPending(rowNumber);
+                }
+            }
+        }
+    }
+
+    private void parseRow(int rowNumber, List<Object> row) {
+        String rowHash = SheetCheckpoint.hashRow(row);
+        if (this.checkpoint != null && !this.checkpoint.needsProcessing(rowNumber, rowHash)) {
+            return;
+        }
+        Registration registration;
+        try {
+            registration = row.isEmpty() ? null : GoogleSheetsModule.parseRegistration(row, this.conference);
+        } catch (IllegalArgumentException e) {
+            this.parseErrors.add(new RowParseError(this.sheetName, rowNumber, e.getMessage()));
+            if (this.checkpoint != null) {
+                this.checkpoint.markPending(rowNumber);
+            }
+            return;
+        }
+        if (registration == null) {
+            if (this.checkpoint != null) {
+                this.checkpoint.markProcessed(rowNumber, rowHash);
+            }
+        } else {
+            if (this.checkpoint != null) {
+                this.checkpoint.markPending(rowNumber);
+            }
+            this.parsedRegistrations.addLast(new SheetRegistration(rowNumber, rowHash, registration));
+        }
+    }
+
+    /**
+     * Starts fetching a window of rows, along with the passed individual rows, in a single request
+     * @param windowStart - The first row of the window
+     * @param extraRows - Rows before the window to fetch as well
+     * @return - A future completed with a map from row number to the row's cells, in row order
+     */
+    private CompletableFuture<Map<Integer, List<Object>>> fetchWindow(int windowStart, List<Integer> extraRows) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<String> ranges = new ArrayList<>();
+            for (int rowNumber : extraRows) {
+                ranges.add(this.sheetName + "!A" + rowNumber + ":M" + rowNumber);
+            }
+            ranges.add(this.sheetName + "!A" + windowStart + ":M" + (windowStart + this.windowSize - 1));
+            List<List<List<Object>>> values;
+            try {
+                values = GoogleSheetsModule.getValues(this.spreadsheetId, ranges);
+            } catch (GeneralSecurityException | IOException e) {
+                throw new CompletionException(e);
+            }
+
+            Map<Integer, List<Object>> rows = new TreeMap<>();
+            // Extra rows which come back blank are kept as empty rows, so they're no longer treated as pending
+            for (int i = 0; i < extraRows.size(); i++) {
+                rows.put(extraRows.get(i), values.get(i).isEmpty() ? List.of() : values.get(i).get(0));
+            }
+            List<List<Object>> windowRows = values.get(extraRows.size());
+            for (int i = 0; i < windowRows.size(); i++) {
+                rows.put(windowStart + i, windowRows.get(i));
+            }
+            return rows;
+        }, FETCH_EXECUTOR);
+    }
+}
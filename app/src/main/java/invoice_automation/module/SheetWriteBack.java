@@ -0,0 +1,96 @@
+package invoice_automation.module;
+
+import invoice_automation.metrics.ApiMetrics;
+import invoice_automation.metrics.OperationMetrics;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the outcomes of handling a sheet's registrations and writes them back to the sheet in batches, one
+ * values.batchUpdate request per chunk of rows rather than one request per row. Each row gets the columns:
+ *  - M: Set to TRUE once the registration has been fully handled, so that later runs skip the row. Left untouched
+ *    for registrations which failed, so they're retried
+ *  - N: The ids of the row's QuickBooks invoices
+ *  - O: The DocNumbers of the row's QuickBooks invoices
+ *  - P: The email status of the row's invoices
+ *  - Q: Why the registration couldn't be handled, or blank if it was
+ * Each write is recorded as the writeBack phase in ApiMetrics, with the number of rows written as its payload.
+ *
+ * @author skberkeley
+ */
+public class SheetWriteBack {
+    private static final String LIST_SEPARATOR = ", ";
+
+    private final String spreadsheetId;
+    private final String sheetName;
+    private final int chunkSize;
+    /**
+     * Map from range to the values to write there, for outcomes not yet written
+     */
+    private final Map<String, List<List<Object>>> pendingValues = new LinkedHashMap<>();
+
+    /**
+     * Creates a new write-back for the passed sheet
+     * @param spreadsheetId - The id of the spreadsheet to write outcomes to
+     * @param sheetName - The name of the sheet to write outcomes to
+     * @param chunkSize - How many rows' outcomes to collect before writing them
+     */
+    public SheetWriteBack(@NonNull String spreadsheetId, @NonNull String sheetName, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.spreadsheetId = spreadsheetId;
+        this.sheetName = sheetName;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Records the passed outcome, writing every collected outcome if a full chunk has been collected
+     * @param outcome - The outcome to write back
+     * @throws IOException If the chunk couldn't be written
+     */
+    public void record(@NonNull RowOutcome outcome) throws GeneralSecurityException, IOException {
+        List<Object> values = new ArrayList<>();
+        if (outcome.isProcessed()) {
+            values.add(Boolean.TRUE);
+        }
+        values.add(String.join(LIST_SEPARATOR, outcome.getInvoiceIds()));
+        values.add(String.join(LIST_SEPARATOR, outcome.getDocNumbers()));
+        values.add(outcome.getEmailStatus() == null ? "" : outcome.getEmailStatus());
+        values.add(outcome.getError() == null ? "" : outcome.getError());
+
+        String firstColumn = outcome.isProcessed() ? "M" : "N";
+        String range = this.sheetName + "!" + firstColumn + outcome.getRowNumber() + ":Q" + outcome.getRowNumber();
+        this.pendingValues.put(range, List.of(values));
+        if (this.pendingValues.size() >= this.chunkSize) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Writes every outcome collected since the last write, in a single request
+     * @throws IOException If the outcomes couldn't be written, in which case they're kept to be written by the next
+     * call
+     */
+    public void flush() throws GeneralSecurityException, IOException {
+        if (this.pendingValues.isEmpty()) {
+            return;
+        }
+        OperationMetrics metrics = ApiMetrics.global().forOperation(ApiMetrics.PHASE, "writeBack");
+        long start = System.nanoTime();
+        try {
+            GoogleSheetsModule.updateValues(this.spreadsheetId, this.pendingValues);
+        } catch (GeneralSecurityException | IOException e) {
+            metrics.recordFailure(System.nanoTime() - start, false);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start, this.pendingValues.size());
+        this.pendingValues.clear();
+    }
+}
@@ -1,40 +1,212 @@
 package invoice_automation.scripts;
 
 import com.google.gson.Gson;
+import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.Invoice;
 import invoice_automation.OAuthKeys;
+import invoice_automation.QuickBooksException;
+import invoice_automation.handler.PipelineResult;
 import invoice_automation.handler.RegistrationHandler;
+import invoice_automation.handler.StageStats;
+import invoice_automation.metrics.ApiMetrics;
 import invoice_automation.model.Conference;
 import invoice_automation.model.Registration;
-import invoice_automation.module.GoogleSheetsModule;
+import invoice_automation.module.RowOutcome;
+import invoice_automation.module.RowParseError;
+import invoice_automation.module.SheetCheckpoint;
+import invoice_automation.module.SheetRegistration;
+import invoice_automation.module.SheetRegistrationReader;
+import invoice_automation.module.SheetWriteBack;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static invoice_automation.Consts.SHEET_WINDOW_ROWS;
+import static invoice_automation.Consts.SHEET_WRITE_BACK_CHUNK_SIZE;
 
 public class FCInvoiceIssuer {
     private static final String O_AUTH_KEYS_PATH = "app/src/main/resources/intuit_oauth_keys.json";
     private static final String REGISTRATION_SHEET_ID = "1TU1ADMbf0wXmHjcpjnGfKVJqHvgEATlGKS0dHsJfenI";
     private static final String SHEET_NAME = "Registrations (for Treasurer, please don't edit)";
+    /**
+     * Where cached QuickBooks entities are kept between runs. Can be overridden with the invoicing.cacheDirectory
+     * system property
+     */
+    private static final String DEFAULT_ENTITY_CACHE_DIRECTORY = "app/entity_cache";
+    /**
+     * System property naming a file to write the run's API metrics to in the Prometheus text format, if set
+     */
+    private static final String METRICS_FILE_PROPERTY = "invoicing.metricsFile";
     public static void main(String[] args) throws IOException, GeneralSecurityException {
         Gson gson = new Gson();
         OAuthKeys oAuthKeys = gson.fromJson(new FileReader(O_AUTH_KEYS_PATH), OAuthKeys.class);
 
-        List<Registration> registrations = GoogleSheetsModule.parseRegistrationsFromGoogleSheet(
-                REGISTRATION_SHEET_ID,
-                SHEET_NAME,
-                Conference.FC
-        );
+        Path cacheDirectory = Path.of(System.getProperty("invoicing.cacheDirectory", DEFAULT_ENTITY_CACHE_DIRECTORY));
 
         RegistrationHandler handler = new RegistrationHandler(
                 oAuthKeys.getAccessToken(),
                 oAuthKeys.getRealmId(),
-                false
+                false,
+                cacheDirectory
         );
+        // Send the invoice emails a previous run recorded as pending but didn't get to send
+        handler.resumePendingEmails().forEach((invoiceId, e) ->
+                System.out.println("Failed to resend invoice " + invoiceId + ": " + e.getMessage()));
+
+        // Only read rows added or edited since the last run, a window at a time, handling each window's registrations
+        // while the next window is fetched
+        SheetCheckpoint checkpoint = SheetCheckpoint.load(cacheDirectory, REGISTRATION_SHEET_ID, SHEET_NAME);
+        SheetRegistrationReader reader = new SheetRegistrationReader(
+                REGISTRATION_SHEET_ID,
+                SHEET_NAME,
+                Conference.FC,
+                checkpoint,
+                SHEET_WINDOW_ROWS
+        );
+        SheetWriteBack writeBack = new SheetWriteBack(REGISTRATION_SHEET_ID, SHEET_NAME, SHEET_WRITE_BACK_CHUNK_SIZE);
+        int totalRegistrations = 0;
+        int recordedParseErrors = 0;
+        while (reader.hasNext()) {
+            long readStart = System.nanoTime();
+            List<SheetRegistration> sheetRegistrations = new ArrayList<>();
+            while (sheetRegistrations.size() < SHEET_WINDOW_ROWS && reader.hasNext()) {
+                sheetRegistrations.add(reader.next());
+            }
+            ApiMetrics.global()
+                    .forOperation(ApiMetrics.PHASE, "readSheet")
+                    .recordSuccess(System.nanoTime() - readStart, sheetRegistrations.size());
+            totalRegistrations += sheetRegistrations.size();
+            handleSheetRegistrations(handler, sheetRegistrations, writeBack, checkpoint);
+            recordedParseErrors = recordParseErrors(reader.getParseErrors(), recordedParseErrors, writeBack);
+        }
+        // Windows after the last registration may still have had rows which couldn't be parsed
+        recordParseErrors(reader.getParseErrors(), recordedParseErrors, writeBack);
+
+        // Only checkpoint rows once their outcome is written
+        writeBack.flush();
+        checkpoint.save();
+
+        System.out.println(ApiMetrics.global().toSummary(totalRegistrations));
+        String metricsFile = System.getProperty(METRICS_FILE_PROPERTY);
+        if (metricsFile != null) {
+            ApiMetrics.global().writePrometheus(Path.of(metricsFile));
+        }
+    }
 
+    /**
+     * Handles a chunk of registrations read from the sheet, recording each row's outcome and marking those handled
+     * successfully as processed in the sheet's checkpoint
+     * @param handler - The handler to handle the registrations with
+     * @param sheetRegistrations - The registrations and the rows they came from
+     * @param writeBack - Where to record each row's outcome
+     * @param checkpoint - The sheet's checkpoint
+     */
+    private static void handleSheetRegistrations(
+            RegistrationHandler handler,
+            List<SheetRegistration> sheetRegistrations,
+            SheetWriteBack writeBack,
+            SheetCheckpoint checkpoint
+    ) throws IOException, GeneralSecurityException {
+        List<Registration> registrations = sheetRegistrations.stream()
+                .map(SheetRegistration::getRegistration)
+                .collect(Collectors.toList());
+
+        // Registrations go through the batch API by default, or through the concurrent pipeline if requested
+        long handleStart = System.nanoTime();
+        Map<Registration, QuickBooksException> failures;
+        List<StageStats> stageStats = List.of();
+        if (Boolean.getBoolean("invoicing.pipeline")) {
+            PipelineResult result = handler.handleRegistrationsConcurrently(registrations);
+            failures = result.getFailures();
+            stageStats = result.getStageStats();
+        } else {
+            failures = handler.handleRegistrations(registrations);
+        }
+        ApiMetrics.global()
+                .forOperation(ApiMetrics.PHASE, "handleRegistrations")
+                .recordSuccess(System.nanoTime() - handleStart, registrations.size());
         for (Registration reg: registrations) {
-            handler.handleRegistration(reg);
-            System.out.println("Issued invoices for " + reg.getSchool().getSchoolName());
+            if (failures.containsKey(reg)) {
+                System.out.println("Failed to issue invoices for " + reg.getSchool().getSchoolName() + ": "
+                        + failures.get(reg).getMessage());
+            } else {
+                System.out.println("Issued invoices for " + reg.getSchool().getSchoolName());
+            }
+        }
+        for (StageStats stats : stageStats) {
+            System.out.println(stats);
+        }
+
+        for (SheetRegistration sheetRegistration : sheetRegistrations) {
+            writeBack.record(toRowOutcome(handler, sheetRegistration, failures));
+            if (!failures.containsKey(sheetRegistration.getRegistration())) {
+                checkpoint.markProcessed(sheetRegistration.getRowNumber(), sheetRegistration.getRowHash());
+            }
+        }
+    }
+
+    /**
+     * Reports the rows the reader couldn't parse since the last call, and records their outcomes so the errors are
+     * written back to the sheet along with the outcomes of the registrations read with them
+     * @param parseErrors - Every row the reader has failed to parse so far
+     * @param recordedParseErrors - How many of the errors have already been recorded
+     * @param writeBack - Where to record each row's outcome
+     * @return - How many of the errors have now been recorded
+     */
+    private static int recordParseErrors(
+            List<RowParseError> parseErrors,
+            int recordedParseErrors,
+            SheetWriteBack writeBack
+    ) throws IOException, GeneralSecurityException {
+        for (RowParseError parseError : parseErrors.subList(recordedParseErrors, parseErrors.size())) {
+            System.out.println("Failed to parse row " + parseError.getRowNumber() + ": " + parseError.getMessage());
+            writeBack.record(RowOutcome.fromParseError(parseError));
+        }
+        return parseErrors.size();
+    }
+
+    /**
+     * Builds the outcome to write back to a registration's row
+     * @param handler - The handler which handled the registration
+     * @param sheetRegistration - The registration and the row it came from
+     * @param failures - Map from each registration which couldn't be fully handled to the exception describing why
+     * @return - The row's outcome
+     */
+    private static RowOutcome toRowOutcome(
+            RegistrationHandler handler,
+            SheetRegistration sheetRegistration,
+            Map<Registration, QuickBooksException> failures
+    ) {
+        QuickBooksException failure = failures.get(sheetRegistration.getRegistration());
+        Collection<Invoice> invoices;
+        try {
+            invoices = handler.getInvoices(sheetRegistration.getRegistration()).values();
+        } catch (QuickBooksException e) {
+            invoices = List.of();
+        }
+
+        String emailStatus = null;
+        if (failure == null) {
+            emailStatus = EmailStatusEnum.EMAIL_SENT.value();
+        } else if (!invoices.isEmpty()) {
+            emailStatus = invoices.stream()
+                    .map(invoice -> invoice.getEmailStatus() == null ? "" : invoice.getEmailStatus().value())
+                    .collect(Collectors.joining(", "));
         }
+        return RowOutcome.builder()
+                .rowNumber(sheetRegistration.getRowNumber())
+                .processed(failure == null)
+                .invoiceIds(invoices.stream().map(Invoice::getId).collect(Collectors.toList()))
+                .docNumbers(invoices.stream().map(Invoice::getDocNumber).collect(Collectors.toList()))
+                .emailStatus(emailStatus)
+                .error(failure == null ? null : failure.getMessage())
+                .build();
     }
 }
@@ -2,6 +2,8 @@ package invoice_automation.utils;
 
 import com.intuit.ipp.data.Customer;
 import com.intuit.ipp.data.EmailAddress;
+import com.intuit.ipp.data.EntityStatusEnum;
+import com.intuit.ipp.data.IntuitEntity;
 import com.intuit.ipp.data.Invoice;
 import com.intuit.ipp.data.Item;
 import com.intuit.ipp.data.ItemLineDetail;
@@ -11,6 +13,9 @@ import com.intuit.ipp.data.PhysicalAddress;
 import com.intuit.ipp.data.ReferenceType;
 import com.intuit.ipp.data.SalesItemLineDetail;
 import com.intuit.ipp.data.TelephoneNumber;
+import invoice_automation.cache.InvoiceTemplate;
+import invoice_automation.fees.FeeSchedule;
+import invoice_automation.fees.Money;
 import invoice_automation.model.Address;
 import invoice_automation.model.Conference;
 import invoice_automation.model.InvoiceType;
@@ -22,7 +27,6 @@ import invoice_automation.model.School;
 import lombok.NonNull;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Date;
@@ -49,6 +53,15 @@ public class QuickBooksUtil {
         return customerRef.getValue().equals(customer.getId());
     }
 
+    /**
+     * Utility method to check whether the passed entity, as returned by a change data capture query, has been deleted.
+     * @param entity - The entity to check
+     * @return - Whether the entity has been deleted
+     */
+    public static boolean isDeleted(@NonNull IntuitEntity entity) {
+        return entity.getStatus() == EntityStatusEnum.DELETED;
+    }
+
     /**
      * Gets the InvoiceType from the Invoice, based on the Invoice's line items. Expects at least one line to be of type
      * Sales Item, and expects the Invoice to have at most one Line item corresponding to an Invoice Type, based on the
@@ -69,16 +82,7 @@ public class QuickBooksUtil {
     }
 
     private static InvoiceType getInvoiceTypeFromLineItemName(@NonNull String lineItemName) {
-        if (lineItemName.equals(InvoiceType.BMUN_SCHOOL_FEE.toString())) {
-            return InvoiceType.BMUN_SCHOOL_FEE;
-        } else if (lineItemName.equals(InvoiceType.BMUN_DELEGATE_FEE.toString())) {
-            return InvoiceType.BMUN_DELEGATE_FEE;
-        } else if (lineItemName.equals(InvoiceType.FC_SCHOOL_FEE.toString())) {
-            return InvoiceType.FC_SCHOOL_FEE;
-        } else if (lineItemName.equals(InvoiceType.FC_DELEGATE_FEE.toString())) {
-            return InvoiceType.FC_DELEGATE_FEE;
-        }
-        return null;
+        return FeeSchedule.current().getInvoiceType(lineItemName);
     }
 
     /**
@@ -108,30 +112,58 @@ public class QuickBooksUtil {
     }
 
     /**
-     * Determine the registration round that the passed date falls into
+     * Gets the ItemTypes which would appear in the invoices for the passed Registration: the relevant conference's
+     * school fee and delegate fee items, and if paying by card the credit card processing fee item too.
+     * @param registration - The Registration for which to get relevant ItemTypes
+     * @return - The relevant ItemTypes
+     */
+    public static List<ItemType> getItemTypesForRegistration(@NonNull Registration registration) {
+        List<ItemType> itemTypes = new ArrayList<>(3);
+        if (registration.getConference() == Conference.BMUN) {
+            itemTypes.add(ItemType.BMUN_SCHOOL_FEE);
+            itemTypes.add(ItemType.BMUN_DELEGATE_FEE);
+        } else {
+            itemTypes.add(ItemType.FC_SCHOOL_FEE);
+            itemTypes.add(ItemType.FC_DELEGATE_FEE);
+        }
+        if (registration.getPaymentMethod() == PaymentMethod.CARD) {
+            itemTypes.add(ItemType.CREDIT_CARD_PROCESSING_FEE);
+        }
+        return itemTypes;
+    }
+
+    /**
+     * Determine the registration round that the passed date falls into, using the current fee schedule. Dates before
+     * the first round fall into the first round.
      * @return - The registration round
      */
     public static RegistrationRound getRegistrationRound(
             @NonNull LocalDate registrationDate,
             @NonNull Conference conference
     ) {
-        if (conference == Conference.BMUN) {
-            if (registrationDate.isBefore(RegistrationRound.BMUN_ROUND_2.getRoundStartDate())) {
-                return RegistrationRound.BMUN_ROUND_1;
-            } else if (registrationDate.isBefore(RegistrationRound.BMUN_ROUND_3.getRoundStartDate())) {
-                return RegistrationRound.BMUN_ROUND_2;
-            } else if (registrationDate.isBefore(RegistrationRound.BMUN_ROUND_4.getRoundStartDate())) {
-                return RegistrationRound.BMUN_ROUND_3;
-            } else {
-                return RegistrationRound.BMUN_ROUND_4;
-            }
-        } else {
-            if (registrationDate.isBefore(RegistrationRound.FC_ROUND_2.getRoundStartDate())) {
-                return RegistrationRound.FC_ROUND_1;
-            } else {
-                return RegistrationRound.FC_ROUND_2;
-            }
-        }
+        return FeeSchedule.current().getRegistrationRound(registrationDate, conference);
+    }
+
+    /**
+     * Gets the date the current session of the passed conference opened for registration, i.e. the start of its first
+     * registration round. Invoices for the current session aren't dated before this.
+     * @param conference - The conference whose session start date to get
+     * @return - The session start date
+     */
+    public static LocalDate getSessionStartDate(@NonNull Conference conference) {
+        return FeeSchedule.current().getSessionStartDate(conference);
+    }
+
+    /**
+     * Gets the earliest transaction date an invoice for the passed Registration could have: the start of the current
+     * session, or the registration date if the school registered early.
+     * @param registration - The Registration whose invoices are being looked for
+     * @return - The earliest possible transaction date
+     */
+    public static LocalDate getEarliestInvoiceDate(@NonNull Registration registration) {
+        LocalDate sessionStartDate = getSessionStartDate(registration.getConference());
+        LocalDate registrationDate = registration.getRegistrationDate();
+        return registrationDate.isBefore(sessionStartDate) ? registrationDate : sessionStartDate;
     }
 
     /**
@@ -143,8 +175,8 @@ public class QuickBooksUtil {
      * @return The fee, as a float
      */
     public static BigDecimal calculateCreditCardProcessingFee(@NonNull Registration registration, boolean isForSchoolFee) {
-        BigDecimal subtotal = calculateSubtotal(registration, isForSchoolFee);
-        return calculateCreditCardProcessingFee(subtotal);
+        Money subtotal = calculateSubtotal(registration, isForSchoolFee);
+        return calculateCreditCardProcessingFee(subtotal, registration.getConference()).toBigDecimal();
     }
 
     /**
@@ -152,42 +184,107 @@ public class QuickBooksUtil {
      * @param registration - The registration for which to calcuate the subtoal.
      * @param isForSchoolFee - Whether to compute the subtotal for the school fee invoice. If false, computes the
      *                       subtotal for the delegate fee invoice.
-     * @return - The subtotal as a float
+     * @return - The subtotal in cents
      */
-    private static BigDecimal calculateSubtotal(@NonNull Registration registration, boolean isForSchoolFee) {
+    private static Money calculateSubtotal(@NonNull Registration registration, boolean isForSchoolFee) {
+        FeeSchedule feeSchedule = FeeSchedule.current();
         if (isForSchoolFee) {
             if (registration.getConference() == Conference.BMUN) {
-                return InvoiceType.BMUN_SCHOOL_FEE.getUnitCost();
+                return feeSchedule.getUnitPrice(InvoiceType.BMUN_SCHOOL_FEE);
             } else {
-                return InvoiceType.FC_SCHOOL_FEE.getUnitCost();
+                return feeSchedule.getUnitPrice(InvoiceType.FC_SCHOOL_FEE);
             }
         } else {
-            BigDecimal unitCost;
+            Money unitPrice;
             if (registration.getConference() == Conference.BMUN) {
-                unitCost = InvoiceType.BMUN_DELEGATE_FEE.getUnitCost();
+                unitPrice = feeSchedule.getUnitPrice(InvoiceType.BMUN_DELEGATE_FEE);
             } else {
-                unitCost = InvoiceType.FC_DELEGATE_FEE.getUnitCost();
+                unitPrice = feeSchedule.getUnitPrice(InvoiceType.FC_DELEGATE_FEE);
             }
-            BigDecimal numDelegates = BigDecimal.valueOf(registration.getNumDelegates());
-            return unitCost.multiply(numDelegates);
+            return unitPrice.times(registration.getNumDelegates());
         }
     }
 
     /**
-     * Calculates the credit card processing fee for an invoice from its subtotal.
+     * Calculates the credit card processing fee for an invoice from its subtotal, such that the fee covers what the
+     * card processor keeps of the whole payment: (rate * subtotal + fixed amount) / (1 - rate), rounded up to the cent.
+     * See CardFee for how this is done in whole cents.
      * @param subtotal - The subtotal of the invoice for which to compute the fee.
-     * @return - The fee amount as a float
+     * @param conference - The conference the invoice is for, whose card fee rate and fixed amount to use
+     * @return - The fee amount
+     */
+    public static Money calculateCreditCardProcessingFee(@NonNull Money subtotal, @NonNull Conference conference) {
+        return FeeSchedule.current().getCardFee(conference).calculate(subtotal);
+    }
+
+    /**
+     * Constructs an Invoice from a template, stamping on what differs between schools: the customer, invoice date and
+     * quantity of the fee item. The fee line comes first, followed by the credit card processing fee line if the
+     * template is for paying by card.
+     * @param template - The template for the invoice's due date, items and prices
+     * @param customerRef - An ReferenceType object for the Customer being invoiced
+     * @param invoiceDate - The date to attach to the Invoice
+     * @param quantity - The quantity of the fee item to bill, e.g. the number of delegates
+     * @return - The constructed invoice
      */
-    private static BigDecimal calculateCreditCardProcessingFee(BigDecimal subtotal) {
-        BigDecimal fee = BigDecimal.valueOf(0.029).multiply(subtotal);
-        fee = fee.add(BigDecimal.valueOf(0.25));
-        fee = fee.divide(BigDecimal.valueOf(0.971), 2, RoundingMode.CEILING);
-        return fee;
+    public static Invoice constructInvoice(
+            @NonNull InvoiceTemplate template,
+            @NonNull ReferenceType customerRef,
+            @NonNull Date invoiceDate,
+            int quantity
+    ) {
+        Invoice invoice = new Invoice();
+
+        invoice.setCustomerRef(customerRef);
+        invoice.setTxnDate(invoiceDate);
+        invoice.setDueDate(template.getDueDate());
+        invoice.setAllowOnlineCreditCardPayment(template.getPaymentMethod() == PaymentMethod.CARD);
+
+        List<Line> lineItems = new ArrayList<>(2);
+        lineItems.add(constructSalesItemLine(
+                template.getFeeItemRef(),
+                BigDecimal.valueOf(quantity),
+                template.getUnitPrice(),
+                template.getAmount(quantity)
+        ));
+        if (template.getCreditCardProcessingFeeItemRef() != null) {
+            BigDecimal creditCardProcessingFee = template.getCreditCardProcessingFee(quantity);
+            lineItems.add(constructSalesItemLine(
+                    template.getCreditCardProcessingFeeItemRef(),
+                    BigDecimal.ONE,
+                    creditCardProcessingFee,
+                    creditCardProcessingFee
+            ));
+        }
+        invoice.setLine(lineItems);
+
+        return invoice;
+    }
+
+    private static Line constructSalesItemLine(
+            ReferenceType itemRef,
+            BigDecimal quantity,
+            BigDecimal unitPrice,
+            BigDecimal amount
+    ) {
+        Line lineItem = new Line();
+        lineItem.setDetailType(LineDetailTypeEnum.SALES_ITEM_LINE_DETAIL);
+        lineItem.setAmount(amount);
+
+        SalesItemLineDetail salesItemLineDetail = new SalesItemLineDetail();
+        salesItemLineDetail.setItemRef(itemRef);
+        salesItemLineDetail.setQty(quantity);
+        salesItemLineDetail.setUnitPrice(unitPrice);
+        lineItem.setSalesItemLineDetail(salesItemLineDetail);
+
+        return lineItem;
     }
 
     /**
      * A helper function to construct an Invoice object. Using the Map items, SalesLineItems are created and set for the
      * invoice's Line.
+     * Invoices are now built from an InvoiceTemplate instead. This and the item map helpers below are kept as the
+     * baseline QuickBooksUtilBenchmark.constructInvoiceFromTemplate is measured against.
      * @param customerRef - An ReferenceType object for the Customer being invoiced
      * @param invoiceDate - The date to attach to the Invoice
      * @param dueDate - The Invoice's due date
@@ -383,6 +480,52 @@ public class QuickBooksUtil {
         return newCustomer;
     }
 
+    /**
+     * Checks whether a sparse update of the passed Customer with newCustomer would change anything, by comparing the
+     * fields getCustomerFromSchool sets. Fields which newCustomer leaves unset are ignored, since a sparse update
+     * leaves them untouched.
+     * @param customer - The Customer as currently saved in QuickBooks
+     * @param newCustomer - The Customer derived from a school, as by getCustomerFromSchool
+     * @return - True if every field set on newCustomer already has the same value on customer
+     */
+    public static boolean checkCustomerMatches(@NonNull Customer customer, @NonNull Customer newCustomer) {
+        return fieldMatches(customer.getCompanyName(), newCustomer.getCompanyName())
+                && fieldMatches(customer.getDisplayName(), newCustomer.getDisplayName())
+                && emailMatches(customer.getPrimaryEmailAddr(), newCustomer.getPrimaryEmailAddr())
+                && addressMatches(customer.getBillAddr(), newCustomer.getBillAddr())
+                && addressMatches(customer.getShipAddr(), newCustomer.getShipAddr())
+                && phoneMatches(customer.getPrimaryPhone(), newCustomer.getPrimaryPhone())
+                && phoneMatches(customer.getAlternatePhone(), newCustomer.getAlternatePhone());
+    }
+
+    private static boolean fieldMatches(String value, String newValue) {
+        return newValue == null || newValue.equals(value);
+    }
+
+    private static boolean emailMatches(EmailAddress email, EmailAddress newEmail) {
+        return newEmail == null || fieldMatches(email == null ? null : email.getAddress(), newEmail.getAddress());
+    }
+
+    private static boolean phoneMatches(TelephoneNumber phone, TelephoneNumber newPhone) {
+        return newPhone == null
+                || fieldMatches(phone == null ? null : phone.getFreeFormNumber(), newPhone.getFreeFormNumber());
+    }
+
+    private static boolean addressMatches(PhysicalAddress address, PhysicalAddress newAddress) {
+        if (newAddress == null) {
+            return true;
+        }
+        if (address == null) {
+            return false;
+        }
+        return fieldMatches(address.getLine1(), newAddress.getLine1())
+                && fieldMatches(address.getLine2(), newAddress.getLine2())
+                && fieldMatches(address.getCity(), newAddress.getCity())
+                && fieldMatches(address.getCountrySubDivisionCode(), newAddress.getCountrySubDivisionCode())
+                && fieldMatches(address.getCountry(), newAddress.getCountry())
+                && fieldMatches(address.getPostalCode(), newAddress.getPostalCode());
+    }
+
     /**
      * Creates a physical address object from an address object
      * @param address an address model
@@ -10,11 +10,16 @@ import com.intuit.ipp.data.PhysicalAddress;
 import com.intuit.ipp.data.ReferenceType;
 import com.intuit.ipp.data.SalesItemLineDetail;
 import com.intuit.ipp.data.TelephoneNumber;
+import invoice_automation.cache.InvoiceTemplate;
+import invoice_automation.cache.InvoiceTemplates;
+import invoice_automation.cache.ItemCatalog;
+import invoice_automation.fees.FeeSchedule;
 import invoice_automation.model.Address;
 import invoice_automation.model.Conference;
 import invoice_automation.model.InvoiceType;
 import invoice_automation.model.ItemType;
 import invoice_automation.model.PaymentMethod;
+import invoice_automation.model.RegistrationRound;
 import invoice_automation.model.School;
 import invoice_automation.utils.QuickBooksUtil;
 import org.junit.Test;
@@ -22,7 +27,14 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.io.InputStream;
+import java.io.StringReader;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -289,6 +301,112 @@ public class QuickBooksUtilTest {
         Map<ItemType, ReferenceType> expectedMap = Map.of(ItemType.FC_DELEGATE_FEE, delFeeItemRef);
         assertEquals(expectedMap, itemRefMap);
     }
+
+    @Test
+    public void testConstructInvoice_fromTemplate_FCDelFeeWithCard() {
+        // Setup
+        Map<ItemType, ReferenceType> allRefsMap = constructAllItemRefsMap();
+        InvoiceTemplates templates = InvoiceTemplates.build(
+                ItemCatalog.fromItemRefs(allRefsMap, Instant.now()),
+                FeeSchedule.current()
+        );
+        InvoiceTemplate template = templates.getTemplate(
+                Conference.FC,
+                RegistrationRound.FC_ROUND_1,
+                PaymentMethod.CARD,
+                InvoiceType.FC_DELEGATE_FEE
+        );
+        Date invoiceDate = new Date();
+
+        // Run
+        Invoice invoice =
+                QuickBooksUtil.constructInvoice(template, customerRef, invoiceDate, NUM_DELEGATES.intValue());
+
+        // Verify
+        BigDecimal unitCost = InvoiceType.FC_DELEGATE_FEE.getUnitCost();
+        BigDecimal subtotal = unitCost.multiply(NUM_DELEGATES);
+        BigDecimal creditCardFee = BigDecimal.valueOf(0.029).multiply(subtotal)
+                .add(BigDecimal.valueOf(0.25))
+                .divide(BigDecimal.valueOf(0.971), 2, RoundingMode.CEILING);
+        assertEquals(customerRef, invoice.getCustomerRef());
+        assertEquals(invoiceDate, invoice.getTxnDate());
+        LocalDate dueDate = RegistrationRound.FC_ROUND_1.getDelegateFeeDueDate();
+        assertEquals(QuickBooksUtil.getDate(dueDate), invoice.getDueDate());
+        assertTrue(invoice.isAllowOnlineCreditCardPayment());
+        assertEquals(2, invoice.getLine().size());
+        SalesItemLineDetail delFeeDetail = invoice.getLine().get(0).getSalesItemLineDetail();
+        assertEquals(allRefsMap.get(ItemType.FC_DELEGATE_FEE), delFeeDetail.getItemRef());
+        assertEquals(NUM_DELEGATES, delFeeDetail.getQty());
+        assertEquals(unitCost, delFeeDetail.getUnitPrice());
+        assertEquals(subtotal, invoice.getLine().get(0).getAmount());
+        SalesItemLineDetail creditCardFeeDetail = invoice.getLine().get(1).getSalesItemLineDetail();
+        assertEquals(BigDecimal.ONE, creditCardFeeDetail.getQty());
+        assertEquals(creditCardFee, creditCardFeeDetail.getUnitPrice());
+        assertEquals(creditCardFee, invoice.getLine().get(1).getAmount());
+    }
+
+    @Test
+    public void testConstructInvoice_fromTemplate_BMUNSchoolFeeNoCard() {
+        // Setup
+        InvoiceTemplates templates = InvoiceTemplates.build(
+                ItemCatalog.fromItemRefs(constructAllItemRefsMap(), Instant.now()),
+                FeeSchedule.current()
+        );
+        InvoiceTemplate template = templates.getTemplate(
+                Conference.BMUN,
+                RegistrationRound.BMUN_ROUND_2,
+                PaymentMethod.CHECK,
+                InvoiceType.BMUN_SCHOOL_FEE
+        );
+
+        // Run
+        Invoice invoice = QuickBooksUtil.constructInvoice(template, customerRef, new Date(), 1);
+
+        // Verify
+        LocalDate dueDate = RegistrationRound.BMUN_ROUND_2.getSchoolFeeDueDate();
+        assertEquals(QuickBooksUtil.getDate(dueDate), invoice.getDueDate());
+        assertFalse(invoice.isAllowOnlineCreditCardPayment());
+        assertEquals(1, invoice.getLine().size());
+        assertEquals(InvoiceType.BMUN_SCHOOL_FEE.getUnitCost(), invoice.getLine().get(0).getAmount());
+    }
+
+    @Test
+    public void testConstructInvoice_fromTemplate_cardFeeFromTemplatesSchedule() throws Exception {
+        // Setup
+        String json;
+        try (InputStream in = FeeSchedule.class.getResourceAsStream("/fee_schedule.json")) {
+            json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        FeeSchedule feeSchedule = FeeSchedule.load(new StringReader(json.replace("0.029", "0.05")));
+        InvoiceTemplate template = InvoiceTemplates.build(
+                ItemCatalog.fromItemRefs(constructAllItemRefsMap(), Instant.now()),
+                feeSchedule
+        ).getTemplate(Conference.FC, RegistrationRound.FC_ROUND_1, PaymentMethod.CARD, InvoiceType.FC_DELEGATE_FEE);
+
+        // Run
+        Invoice invoice = QuickBooksUtil.constructInvoice(template, customerRef, new Date(), NUM_DELEGATES.intValue());
+
+        // Verify
+        // (0.05 * 24 * $30 + $0.25) / 0.95, rounded up, rather than the current schedule's 2.9% fee
+        assertEquals(new BigDecimal("38.16"), invoice.getLine().get(1).getAmount());
+    }
+
+    @Test(expected = QuickBooksException.class)
+    public void testGetTemplate_missingItem() {
+        // Setup
+        InvoiceTemplates templates = InvoiceTemplates.build(
+                ItemCatalog.fromItemRefs(Map.of(ItemType.FC_DELEGATE_FEE, new ReferenceType()), Instant.now()),
+                FeeSchedule.current()
+        );
+
+        // Run
+        templates.getTemplate(
+                Conference.FC,
+                RegistrationRound.FC_ROUND_2,
+                PaymentMethod.CARD,
+                InvoiceType.FC_DELEGATE_FEE
+        );
+    }
     @Test
     public void getCustomerFromSchool_happyPath() {
         // Run
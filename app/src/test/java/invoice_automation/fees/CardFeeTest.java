@@ -0,0 +1,121 @@
+package invoice_automation.fees;
+
+import invoice_automation.QuickBooksException;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the whole cent arithmetic of CardFee and Money gives exactly the BigDecimal results it replaced, for
+ * every subtotal up to a few thousand dollars at the current rate and for randomly generated rates, fixed amounts,
+ * prices and quantities. The random cases use a fixed seed, so a failure can be reproduced.
+ */
+public class CardFeeTest {
+    private static final long SEED = 20231018L;
+    private static final int RANDOM_CASES = 200_000;
+
+    /**
+     * The card fee calculation as it was done before CardFee, in BigDecimals
+     */
+    private static BigDecimal calculateWithBigDecimal(BigDecimal rate, BigDecimal fixedAmount, BigDecimal subtotal) {
+        BigDecimal fee = rate.multiply(subtotal);
+        fee = fee.add(fixedAmount);
+        fee = fee.divide(BigDecimal.ONE.subtract(rate), 2, RoundingMode.CEILING);
+        return fee;
+    }
+
+    @Test
+    public void testCalculate_currentRate_matchesBigDecimalForEverySubtotal() {
+        // Setup
+        BigDecimal rate = BigDecimal.valueOf(0.029);
+        BigDecimal fixedAmount = BigDecimal.valueOf(0.25);
+        CardFee cardFee = new CardFee(rate, fixedAmount);
+
+        for (long subtotalCents = 0; subtotalCents <= 500_000; subtotalCents++) {
+            // Run
+            BigDecimal fee = cardFee.calculate(Money.ofCents(subtotalCents)).toBigDecimal();
+
+            // Verify
+            BigDecimal subtotal = BigDecimal.valueOf(subtotalCents, 2);
+            assertEquals(subtotal.toPlainString(), calculateWithBigDecimal(rate, fixedAmount, subtotal), fee);
+        }
+    }
+
+    @Test
+    public void testCalculate_currentRate_matchesClosedForm() {
+        // Setup
+        CardFee cardFee = new CardFee(new BigDecimal("0.029"), new BigDecimal("0.25"));
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            long subtotalCents = random.nextInt(Integer.MAX_VALUE);
+
+            // Run
+            long feeCents = cardFee.calculate(Money.ofCents(subtotalCents)).getCents();
+
+            // Verify
+            long numerator = 29 * subtotalCents + 25_000;
+            long expectedFeeCents = numerator / 971 + (numerator % 971 == 0 ? 0 : 1);
+            assertEquals(String.valueOf(subtotalCents), expectedFeeCents, feeCents);
+        }
+    }
+
+    @Test
+    public void testCalculate_randomRates_matchesBigDecimal() {
+        // Setup
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            // Rates below 20%, with up to 6 decimal places
+            BigDecimal rate = BigDecimal.valueOf(random.nextInt(200_000), 6)
+                    .setScale(random.nextInt(7), RoundingMode.DOWN);
+            BigDecimal fixedAmount = BigDecimal.valueOf(random.nextInt(1_000), random.nextInt(3));
+            Money unitPrice = Money.ofCents(random.nextInt(100_000));
+            int quantity = random.nextInt(1_000);
+            CardFee cardFee = new CardFee(rate, fixedAmount);
+
+            // Run
+            BigDecimal fee = cardFee.calculate(unitPrice.times(quantity)).toBigDecimal();
+
+            // Verify
+            BigDecimal subtotal = unitPrice.toBigDecimal().multiply(BigDecimal.valueOf(quantity));
+            String message = String.format("rate %s, fixed amount %s, subtotal %s", rate, fixedAmount, subtotal);
+            assertEquals(message, calculateWithBigDecimal(rate, fixedAmount, subtotal), fee);
+        }
+    }
+
+    @Test
+    public void testTimes_randomPrices_matchesBigDecimalWithSameScale() {
+        // Setup
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            // Prices of whole dollars, dimes or cents, as a fee schedule might write them
+            int scale = random.nextInt(3);
+            BigDecimal unitPrice = BigDecimal.valueOf(random.nextInt(100_000), scale);
+            int quantity = random.nextInt(1_000);
+
+            // Run
+            BigDecimal amount = Money.fromBigDecimal(unitPrice).times(quantity).toBigDecimal(scale);
+
+            // Verify
+            assertEquals(unitPrice.multiply(BigDecimal.valueOf(quantity)), amount);
+        }
+    }
+
+    @Test(expected = QuickBooksException.class)
+    public void testFromBigDecimal_fractionOfACent() {
+        // Run
+        Money.fromBigDecimal(new BigDecimal("0.125"));
+    }
+
+    @Test(expected = QuickBooksException.class)
+    public void testCardFee_rateOfOne() {
+        // Run
+        new CardFee(BigDecimal.ONE, BigDecimal.ZERO);
+    }
+}
@@ -0,0 +1,421 @@
+package invoice_automation.fees;
+
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.Conference;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.ItemType;
+import invoice_automation.model.RegistrationRound;
+import org.junit.Test;
+import org.junit.function.ThrowingRunnable;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Tests FeeSchedule on the bundled fee_schedule.json and on configs built in code, which start out as valid copies of
+ * the bundled schedule and are broken one field at a time
+ */
+public class FeeScheduleTest {
+    private static final BigDecimal CARD_FEE_RATE = new BigDecimal("0.029");
+    private static final BigDecimal CARD_FEE_FIXED_AMOUNT = new BigDecimal("0.25");
+
+    @Test
+    public void testLoad_bundledSchedule() throws Exception {
+        // Run
+        FeeSchedule schedule;
+        try (Reader reader = new InputStreamReader(
+                FeeSchedule.class.getResourceAsStream("/fee_schedule.json"),
+                StandardCharsets.UTF_8
+        )) {
+            schedule = FeeSchedule.load(reader);
+        }
+
+        // Verify
+        assertEquals("BMUN 72", schedule.getConferenceName(Conference.BMUN));
+        assertEquals("FC 3 School Fee", schedule.getItemName(ItemType.FC_SCHOOL_FEE));
+        assertEquals("BMUN 72 Delegate Fee", schedule.getItemName(ItemType.BMUN_DELEGATE_FEE));
+        assertEquals("Credit Card Processing Fee", schedule.getItemName(ItemType.CREDIT_CARD_PROCESSING_FEE));
+        assertEquals(0, new BigDecimal(85).compareTo(schedule.getUnitCost(InvoiceType.BMUN_DELEGATE_FEE)));
+        assertEquals(Money.ofCents(3_500), schedule.getUnitPrice(InvoiceType.FC_SCHOOL_FEE));
+        assertEquals(Money.ofCents(116), schedule.getCardFee(Conference.FC).calculate(Money.ofCents(3_000)));
+        assertEquals(LocalDate.of(2023, 8, 14), schedule.getSessionStartDate(Conference.FC));
+        assertEquals(
+                new RoundDates(LocalDate.of(2023, 12, 9), LocalDate.of(2024, 1, 5), LocalDate.of(2024, 1, 26)),
+                schedule.getRoundDates(RegistrationRound.BMUN_ROUND_4)
+        );
+    }
+
+    @Test
+    public void testLoad_json() {
+        // Setup
+        String json = "{\"conferences\": {"
+                + "\"BMUN\": " + getConferenceJson(73, "BMUN", "2024-09-16", "2024-10-07", "2024-11-04", "2024-12-09")
+                + ", \"FC\": " + getConferenceJson(4, "FC", "2024-08-12", "2024-09-14")
+                + "}}";
+
+        // Run
+        FeeSchedule schedule = FeeSchedule.load(new StringReader(json));
+
+        // Verify
+        assertEquals("BMUN 73 School Fee", schedule.getItemName(ItemType.BMUN_SCHOOL_FEE));
+        assertEquals("FC 4 Delegate Fee", schedule.getItemName(ItemType.FC_DELEGATE_FEE));
+        assertEquals(Money.ofCents(6_050), schedule.getUnitPrice(InvoiceType.BMUN_SCHOOL_FEE));
+        assertEquals(LocalDate.of(2024, 9, 14), schedule.getRoundDates(RegistrationRound.FC_ROUND_2).getStartDate());
+    }
+
+    @Test
+    public void testLoad_malformedJson() {
+        // Run
+        QuickBooksException exception = assertThrows(
+                QuickBooksException.class,
+                () -> FeeSchedule.load(new StringReader("{\"conferences\": ["))
+        );
+
+        // Verify
+        assertEquals("Failed to parse fee schedule", exception.getMessage());
+    }
+
+    @Test
+    public void testLoad_emptyJson() {
+        assertInvalid("Fee schedule is empty", () -> FeeSchedule.load(new StringReader("")));
+    }
+
+    @Test
+    public void testCompile_noConferences() {
+        assertInvalid("Fee schedule has no conferences", new FeeScheduleConfig(null));
+    }
+
+    @Test
+    public void testCompile_missingConference() {
+        // Setup
+        Map<String, FeeScheduleConfig.ConferenceFees> conferences = getConferences();
+        conferences.remove("FC");
+
+        // Run and verify
+        assertInvalid("Fee schedule is missing fees or rounds for FC", new FeeScheduleConfig(conferences));
+    }
+
+    @Test
+    public void testCompile_missingSessionNumber() {
+        assertInvalid(
+                "Fee schedule is missing fees or rounds for BMUN",
+                withBmunFees(null, new BigDecimal(60), getBmunRounds())
+        );
+    }
+
+    @Test
+    public void testCompile_nonPositiveSessionNumber() {
+        assertInvalid(
+                "Fee schedule has an invalid session number for BMUN",
+                withBmunFees(0, new BigDecimal(60), getBmunRounds())
+        );
+    }
+
+    @Test
+    public void testCompile_missingFee() {
+        assertInvalid(
+                "Fee schedule is missing fees or rounds for BMUN",
+                withBmunFees(72, null, getBmunRounds())
+        );
+    }
+
+    @Test
+    public void testCompile_feeWithFractionOfACent() {
+        assertInvalid(null, withBmunFees(72, new BigDecimal("60.005"), getBmunRounds()));
+    }
+
+    @Test
+    public void testCompile_noRounds() {
+        assertInvalid(
+                "Fee schedule is missing fees or rounds for BMUN",
+                withBmunFees(72, new BigDecimal(60), List.of())
+        );
+    }
+
+    @Test
+    public void testCompile_unknownRound() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.set(3, getRound("BMUN_ROUND_5", "2023-12-09"));
+
+        // Run and verify
+        assertInvalid("Fee schedule has unknown round BMUN_ROUND_5", withBmunFees(72, new BigDecimal(60), rounds));
+    }
+
+    @Test
+    public void testCompile_roundOfOtherConference() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.add(getRound("FC_ROUND_2", "2024-01-15"));
+
+        // Run and verify
+        assertInvalid("Fee schedule lists FC_ROUND_2 under BMUN", withBmunFees(72, new BigDecimal(60), rounds));
+    }
+
+    @Test
+    public void testCompile_missingRound() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.remove(2);
+
+        // Run and verify
+        assertInvalid("Fee schedule is missing BMUN_ROUND_3", withBmunFees(72, new BigDecimal(60), rounds));
+    }
+
+    @Test
+    public void testCompile_repeatedRound() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.add(getRound("BMUN_ROUND_4", "2024-01-15"));
+
+        // Run and verify
+        assertInvalid(
+                "Fee schedule has overlapping rounds at BMUN_ROUND_4",
+                withBmunFees(72, new BigDecimal(60), rounds)
+        );
+    }
+
+    @Test
+    public void testCompile_roundsStartingOnSameDay() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.set(3, getRound("BMUN_ROUND_4", "2023-11-04"));
+
+        // Run and verify
+        assertInvalid(
+                "Fee schedule has overlapping rounds at BMUN_ROUND_4",
+                withBmunFees(72, new BigDecimal(60), rounds)
+        );
+    }
+
+    @Test
+    public void testCompile_roundsOutOfOrder() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.set(1, getRound("BMUN_ROUND_2", "2023-11-20"));
+
+        // Run and verify
+        assertInvalid(
+                "Fee schedule has BMUN_ROUND_2 starting out of order",
+                withBmunFees(72, new BigDecimal(60), rounds)
+        );
+    }
+
+    @Test
+    public void testCompile_missingDate() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.set(0, new FeeScheduleConfig.Round("BMUN_ROUND_1", "2023-09-18", null, "2023-10-27"));
+
+        // Run and verify
+        assertInvalid(
+                "Fee schedule is missing a date for BMUN_ROUND_1",
+                withBmunFees(72, new BigDecimal(60), rounds)
+        );
+    }
+
+    @Test
+    public void testCompile_invalidDate() {
+        // Setup
+        List<FeeScheduleConfig.Round> rounds = getBmunRounds();
+        rounds.set(0, new FeeScheduleConfig.Round("BMUN_ROUND_1", "2023-09-31", "2023-10-09", "2023-10-27"));
+
+        // Run and verify
+        assertInvalid(
+                "Fee schedule has an invalid date for BMUN_ROUND_1",
+                withBmunFees(72, new BigDecimal(60), rounds)
+        );
+    }
+
+    @Test
+    public void testGetRegistrationRound_aroundEachRoundBoundary_matchesIfChain() {
+        // Setup
+        FeeSchedule schedule = FeeSchedule.compile(new FeeScheduleConfig(getConferences()));
+
+        for (RegistrationRound round : RegistrationRound.values()) {
+            LocalDate startDate = schedule.getRoundDates(round).getStartDate();
+            for (int offset = -3; offset <= 3; offset++) {
+                LocalDate date = startDate.plusDays(offset);
+
+                // Run
+                RegistrationRound registrationRound = schedule.getRegistrationRound(date, round.getConference());
+
+                // Verify
+                assertEquals(
+                        date.toString(),
+                        getRegistrationRoundWithIfChain(schedule, date, round.getConference()),
+                        registrationRound
+                );
+            }
+        }
+    }
+
+    @Test
+    public void testGetRegistrationRound_beforeFirstRound_firstRound() {
+        // Setup
+        FeeSchedule schedule = FeeSchedule.compile(new FeeScheduleConfig(getConferences()));
+
+        // Run
+        RegistrationRound round = schedule.getRegistrationRound(LocalDate.of(2020, 1, 1), Conference.BMUN);
+
+        // Verify
+        assertEquals(RegistrationRound.BMUN_ROUND_1, round);
+    }
+
+    @Test
+    public void testGetItemType_everyItemName_roundTrips() {
+        // Setup
+        FeeSchedule schedule = FeeSchedule.compile(new FeeScheduleConfig(getConferences()));
+
+        for (ItemType itemType : ItemType.values()) {
+            // Run and verify
+            assertEquals(itemType, schedule.getItemType(schedule.getItemName(itemType)));
+        }
+    }
+
+    @Test
+    public void testGetInvoiceType_everyFeeItemName_roundTrips() {
+        // Setup
+        FeeSchedule schedule = FeeSchedule.compile(new FeeScheduleConfig(getConferences()));
+
+        for (InvoiceType invoiceType : InvoiceType.values()) {
+            // Run and verify
+            assertEquals(invoiceType, schedule.getInvoiceType(schedule.getItemName(invoiceType.getItemType())));
+        }
+        assertNull(schedule.getInvoiceType(schedule.getItemName(ItemType.CREDIT_CARD_PROCESSING_FEE)));
+        assertNull(schedule.getInvoiceType("BMUN 71 School Fee"));
+        assertNull(schedule.getItemType("BMUN 71 School Fee"));
+    }
+
+    /**
+     * Finds a registration round the way QuickBooksUtil did before FeeSchedule: each round lasts until the next one
+     * starts, and the first round takes any earlier dates
+     */
+    private static RegistrationRound getRegistrationRoundWithIfChain(
+            FeeSchedule schedule,
+            LocalDate registrationDate,
+            Conference conference
+    ) {
+        if (conference == Conference.BMUN) {
+            if (registrationDate.isBefore(schedule.getRoundDates(RegistrationRound.BMUN_ROUND_2).getStartDate())) {
+                return RegistrationRound.BMUN_ROUND_1;
+            } else if (registrationDate.isBefore(
+                    schedule.getRoundDates(RegistrationRound.BMUN_ROUND_3).getStartDate())) {
+                return RegistrationRound.BMUN_ROUND_2;
+            } else if (registrationDate.isBefore(
+                    schedule.getRoundDates(RegistrationRound.BMUN_ROUND_4).getStartDate())) {
+                return RegistrationRound.BMUN_ROUND_3;
+            } else {
+                return RegistrationRound.BMUN_ROUND_4;
+            }
+        } else {
+            if (registrationDate.isBefore(schedule.getRoundDates(RegistrationRound.FC_ROUND_2).getStartDate())) {
+                return RegistrationRound.FC_ROUND_1;
+            } else {
+                return RegistrationRound.FC_ROUND_2;
+            }
+        }
+    }
+
+    private static void assertInvalid(String expectedMessage, FeeScheduleConfig config) {
+        assertInvalid(expectedMessage, () -> FeeSchedule.compile(config));
+    }
+
+    /**
+     * Checks that the passed call throws a QuickBooksException, with the expected message if one is passed
+     */
+    private static void assertInvalid(String expectedMessage, ThrowingRunnable compile) {
+        QuickBooksException exception = assertThrows(QuickBooksException.class, compile);
+        if (expectedMessage != null) {
+            assertEquals(expectedMessage, exception.getMessage());
+        }
+    }
+
+    /**
+     * Gets a valid config with the passed BMUN session number, school fee and rounds
+     */
+    private static FeeScheduleConfig withBmunFees(
+            Integer sessionNumber,
+            BigDecimal schoolFee,
+            List<FeeScheduleConfig.Round> rounds
+    ) {
+        Map<String, FeeScheduleConfig.ConferenceFees> conferences = getConferences();
+        conferences.put("BMUN", new FeeScheduleConfig.ConferenceFees(
+                sessionNumber,
+                schoolFee,
+                new BigDecimal(85),
+                CARD_FEE_RATE,
+                CARD_FEE_FIXED_AMOUNT,
+                rounds
+        ));
+        return new FeeScheduleConfig(conferences);
+    }
+
+    /**
+     * Gets the conferences of the bundled schedule
+     */
+    private static Map<String, FeeScheduleConfig.ConferenceFees> getConferences() {
+        Map<String, FeeScheduleConfig.ConferenceFees> conferences = new HashMap<>();
+        conferences.put("BMUN", new FeeScheduleConfig.ConferenceFees(
+                72,
+                new BigDecimal(60),
+                new BigDecimal(85),
+                CARD_FEE_RATE,
+                CARD_FEE_FIXED_AMOUNT,
+                getBmunRounds()
+        ));
+        conferences.put("FC", new FeeScheduleConfig.ConferenceFees(
+                3,
+                new BigDecimal(35),
+                new BigDecimal(30),
+                CARD_FEE_RATE,
+                CARD_FEE_FIXED_AMOUNT,
+                new ArrayList<>(List.of(getRound("FC_ROUND_1", "2023-08-14"), getRound("FC_ROUND_2", "2023-09-16")))
+        ));
+        return conferences;
+    }
+
+    private static List<FeeScheduleConfig.Round> getBmunRounds() {
+        return new ArrayList<>(List.of(
+                getRound("BMUN_ROUND_1", "2023-09-18"),
+                getRound("BMUN_ROUND_2", "2023-10-07"),
+                getRound("BMUN_ROUND_3", "2023-11-04"),
+                getRound("BMUN_ROUND_4", "2023-12-09")
+        ));
+    }
+
+    /**
+     * Gets a round starting on the passed date, with both fees due 3 weeks later
+     */
+    private static FeeScheduleConfig.Round getRound(String round, String startDate) {
+        String dueDate = LocalDate.parse(startDate).plusWeeks(3).toString();
+        return new FeeScheduleConfig.Round(round, startDate, dueDate, dueDate);
+    }
+
+    private static String getConferenceJson(int sessionNumber, String conference, String... startDates) {
+        StringBuilder json = new StringBuilder("{\"sessionNumber\": " + sessionNumber
+                + ", \"schoolFee\": 60.50, \"delegateFee\": 85, \"cardFeeRate\": 0.029, \"cardFeeFixedAmount\": 0.25"
+                + ", \"rounds\": [");
+        for (int i = 0; i < startDates.length; i++) {
+            String dueDate = LocalDate.parse(startDates[i]).plusWeeks(3).toString();
+            json.append(i == 0 ? "" : ", ")
+                    .append("{\"round\": \"").append(conference).append("_ROUND_").append(i + 1)
+                    .append("\", \"startDate\": \"").append(startDates[i])
+                    .append("\", \"schoolFeeDueDate\": \"").append(dueDate)
+                    .append("\", \"delegateFeeDueDate\": \"").append(dueDate).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,220 @@
+package invoice_automation.handler;
+
+import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.services.DataService;
+import invoice_automation.QuickBooksException;
+import invoice_automation.module.CountingDataService;
+import invoice_automation.module.QuickBooksModule;
+import invoice_automation.module.QuickBooksRateLimiter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.api.mockito.PowerMockito.whenNew;
+
+/**
+ * Tests InvoiceEmailDispatcher against a CountingDataService, with its state file in a temporary folder
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({QuickBooksModule.class})
+public class InvoiceEmailDispatcherTest {
+    private static final String ACCESS_TOKEN = "access token";
+    private static final String REALM_ID = "email dispatcher test realm id";
+    private static final String EMAIL = "oski@berkeley.edu";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private CountingDataService dataService;
+    private QuickBooksModule quickBooksModule;
+    private Path stateFile;
+
+    @Before
+    public void setup() throws Exception {
+        dataService = new CountingDataService();
+        whenNew(DataService.class).withAnyArguments().thenReturn(dataService);
+        // Don't pace calls to QuickBooks' limits, since nothing is being throttled
+        QuickBooksRateLimiter.configureRealm(REALM_ID, 60_000, 10);
+        quickBooksModule = new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false);
+        stateFile = temporaryFolder.getRoot().toPath().resolve("email-dispatch.log");
+    }
+
+    @Test
+    public void testDispatch_sameInvoiceTwice_sentOnce() {
+        // Setup
+        InvoiceEmailDispatcher dispatcher = new InvoiceEmailDispatcher(quickBooksModule, null, 2);
+        Invoice invoice = seedInvoice(null);
+
+        // Run
+        boolean firstDispatched = dispatcher.dispatch(invoice, EMAIL);
+        boolean secondDispatched = dispatcher.dispatch(invoice, EMAIL);
+        Map<String, QuickBooksException> failures = dispatcher.awaitCompletion();
+        boolean dispatchedAfterSending = dispatcher.dispatch(invoice, EMAIL);
+
+        // Verify
+        assertTrue(firstDispatched);
+        assertFalse(secondDispatched);
+        assertFalse(dispatchedAfterSending);
+        assertTrue(failures.isEmpty());
+        assertEquals(1, dataService.getCallCount("sendEmail"));
+    }
+
+    @Test
+    public void testDispatch_sentInEarlierRun_notResent() {
+        // Setup
+        Invoice invoice = seedInvoice(null);
+        InvoiceEmailDispatcher firstDispatcher = new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+        firstDispatcher.dispatch(invoice, EMAIL);
+        firstDispatcher.awaitCompletion();
+        dataService.resetCalls();
+
+        // Run
+        InvoiceEmailDispatcher secondDispatcher = new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+        boolean dispatched = secondDispatcher.dispatch(invoice, EMAIL);
+        Map<String, QuickBooksException> failures = secondDispatcher.resumePending();
+
+        // Verify
+        assertFalse(dispatched);
+        assertTrue(failures.isEmpty());
+        assertTrue(dataService.getCallCounts().isEmpty());
+    }
+
+    @Test
+    public void testConstructor_compactsStateFile() throws Exception {
+        // Setup
+        writeStateFile(
+                "PENDING\t1\ta@berkeley.edu",
+                "SENT\t1\t",
+                "PENDING\t2\tb@berkeley.edu",
+                "PENDING\t2\tb@berkeley.edu",
+                // Cut short by a crash mid-write
+                "PENDING\t3"
+        );
+
+        // Run
+        new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+
+        // Verify
+        assertEquals(
+                List.of("SENT\t1\t", "PENDING\t2\tb@berkeley.edu"),
+                Files.readAllLines(stateFile, StandardCharsets.UTF_8)
+        );
+    }
+
+    @Test
+    public void testConstructor_pendingEmails_notSent() throws Exception {
+        // Setup
+        Invoice invoice = seedInvoice(null);
+        writeStateFile("PENDING\t" + invoice.getId() + "\t" + EMAIL);
+
+        // Run
+        InvoiceEmailDispatcher dispatcher = new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+        Map<String, QuickBooksException> failures = dispatcher.awaitCompletion();
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertTrue(dataService.getCallCounts().isEmpty());
+    }
+
+    @Test
+    public void testResumePending_unsentInvoice_sent() throws Exception {
+        // Setup
+        Invoice invoice = seedInvoice(null);
+        writeStateFile("PENDING\t" + invoice.getId() + "\t" + EMAIL);
+        InvoiceEmailDispatcher dispatcher = new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+
+        // Run
+        Map<String, QuickBooksException> failures = dispatcher.resumePending();
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("findById", 1L, "sendEmail", 1L), dataService.getCallCounts());
+        assertEquals(EmailStatusEnum.EMAIL_SENT, invoice.getEmailStatus());
+        assertResumesNothing();
+    }
+
+    @Test
+    public void testResumePending_alreadySentInvoice_notResent() throws Exception {
+        // Setup
+        Invoice invoice = seedInvoice(EmailStatusEnum.EMAIL_SENT);
+        writeStateFile("PENDING\t" + invoice.getId() + "\t" + EMAIL);
+        InvoiceEmailDispatcher dispatcher = new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+
+        // Run
+        Map<String, QuickBooksException> failures = dispatcher.resumePending();
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("findById", 1L), dataService.getCallCounts());
+        assertResumesNothing();
+    }
+
+    @Test
+    public void testResumePending_missingInvoice_failsAndStaysPending() throws Exception {
+        // Setup
+        writeStateFile("PENDING\t404\t" + EMAIL);
+        InvoiceEmailDispatcher dispatcher = new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+
+        // Run
+        Map<String, QuickBooksException> failures = dispatcher.resumePending();
+
+        // Verify
+        assertEquals(List.of("404"), List.copyOf(failures.keySet()));
+        assertEquals(Map.of("findById", 1L), dataService.getCallCounts());
+        new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+        assertEquals(List.of("PENDING\t404\t" + EMAIL), Files.readAllLines(stateFile, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDispatch_pendingInvoice_sentOnceWithoutResuming() throws Exception {
+        // Setup
+        Invoice invoice = seedInvoice(null);
+        writeStateFile("PENDING\t" + invoice.getId() + "\t" + EMAIL);
+        InvoiceEmailDispatcher dispatcher = new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2);
+
+        // Run
+        boolean dispatched = dispatcher.dispatch(invoice, EMAIL);
+        Map<String, QuickBooksException> failures = dispatcher.resumePending();
+
+        // Verify
+        assertTrue(dispatched);
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("sendEmail", 1L), dataService.getCallCounts());
+    }
+
+    /**
+     * Checks that a new dispatcher using the state file has no emails left to resume
+     */
+    private void assertResumesNothing() {
+        dataService.resetCalls();
+        Map<String, QuickBooksException> failures =
+                new InvoiceEmailDispatcher(quickBooksModule, stateFile, 2).resumePending();
+        assertTrue(failures.isEmpty());
+        assertTrue(dataService.getCallCounts().isEmpty());
+    }
+
+    private Invoice seedInvoice(EmailStatusEnum emailStatus) {
+        Invoice invoice = new Invoice();
+        invoice.setEmailStatus(emailStatus);
+        dataService.seed(invoice);
+        return invoice;
+    }
+
+    private void writeStateFile(String... lines) throws Exception {
+        Files.write(stateFile, List.of(lines), StandardCharsets.UTF_8);
+    }
+}
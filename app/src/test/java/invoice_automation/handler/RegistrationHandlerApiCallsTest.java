@@ -0,0 +1,379 @@
+package invoice_automation.handler;
+
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.Item;
+import com.intuit.ipp.data.Line;
+import com.intuit.ipp.services.DataService;
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.Address;
+import invoice_automation.model.Conference;
+import invoice_automation.model.ItemType;
+import invoice_automation.model.PaymentMethod;
+import invoice_automation.model.Registration;
+import invoice_automation.model.School;
+import invoice_automation.module.CountingDataService;
+import invoice_automation.module.QuickBooksModule;
+import invoice_automation.module.QuickBooksRateLimiter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.api.mockito.PowerMockito.whenNew;
+
+/**
+ * Pins the number of QuickBooks API calls RegistrationHandler makes to handle registrations, so that a change adding
+ * remote calls, such as a findAll or query per registration, fails the build. The handleRegistration tests call
+ * startBatch, then handleRegistration for each registration, then awaitEmails. The handleRegistrations tests also pin
+ * the number of items in each batch request, since the batch API writes up to MAX_BATCH_SIZE entities per call. The
+ * handleRegistrationsConcurrently tests expect the same calls as handling registrations one at a time.
+ * The three queries every run makes up front are for the item catalog, the session's invoices and the batch's
+ * customers. The credit card processing fee Item is only seeded by tests with card registrations.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({QuickBooksModule.class})
+public class RegistrationHandlerApiCallsTest {
+    private static final String ACCESS_TOKEN = "access token";
+    private static final String REALM_ID = "api calls test realm id";
+    private static final LocalDate REGISTRATION_DATE = LocalDate.of(2023, 9, 4);
+
+    private CountingDataService dataService;
+
+    @Before
+    public void setup() throws Exception {
+        dataService = new CountingDataService();
+        whenNew(DataService.class).withAnyArguments().thenReturn(dataService);
+        // Don't pace calls to QuickBooks' limits, since nothing is being throttled
+        QuickBooksRateLimiter.configureRealm(REALM_ID, 60_000, 10);
+        for (ItemType itemType : ItemType.values()) {
+            if (itemType != ItemType.CREDIT_CARD_PROCESSING_FEE) {
+                seedItem(itemType);
+            }
+        }
+    }
+
+    @Test
+    public void testHandleRegistration_newSchool_card() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+
+        // Run
+        Map<String, QuickBooksException> emailFailures = handle(List.of(getRegistration("Cal", PaymentMethod.CARD)));
+
+        // Verify
+        assertTrue(emailFailures.isEmpty());
+        assertEquals(Map.of("add", 3L, "executeQuery", 3L, "sendEmail", 2L), dataService.getCallCounts());
+        assertEquals(List.of(true, true), getHasCardFeeLines());
+    }
+
+    @Test
+    public void testHandleRegistration_newSchool_check() {
+        // Run
+        Map<String, QuickBooksException> emailFailures = handle(List.of(getRegistration("Cal", PaymentMethod.CHECK)));
+
+        // Verify
+        assertTrue(emailFailures.isEmpty());
+        assertEquals(Map.of("add", 3L, "executeQuery", 3L, "sendEmail", 2L), dataService.getCallCounts());
+        assertEquals(List.of(false, false), getHasCardFeeLines());
+    }
+
+    @Test
+    public void testStartBatch_cardRegistrationWithoutCardFeeItem_failsBeforeWriting() {
+        // Run
+        assertThrows(
+                QuickBooksException.class,
+                () -> handle(List.of(getRegistration("Cal", PaymentMethod.CARD)))
+        );
+
+        // Verify
+        assertEquals(Map.of("executeQuery", 2L), dataService.getCallCounts());
+    }
+
+    @Test
+    public void testHandleRegistration_returningSchool_invoicesAlreadySent() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+        Registration registration = getRegistration("Cal", PaymentMethod.CARD);
+        handle(List.of(registration));
+        dataService.resetCalls();
+
+        // Run
+        Map<String, QuickBooksException> emailFailures = handle(List.of(registration));
+
+        // Verify
+        assertTrue(emailFailures.isEmpty());
+        assertEquals(Map.of("executeQuery", 3L), dataService.getCallCounts());
+    }
+
+    @Test
+    public void testHandleRegistration_returningSchool_changedDetails() {
+        // Setup
+        handle(List.of(getRegistration("Cal", PaymentMethod.CHECK)));
+        dataService.resetCalls();
+
+        // Run
+        Map<String, QuickBooksException> emailFailures = handle(List.of(getChangedRegistration("Cal")));
+
+        // Verify
+        assertTrue(emailFailures.isEmpty());
+        assertEquals(Map.of("executeQuery", 3L, "update", 1L), dataService.getCallCounts());
+    }
+
+    @Test
+    public void testHandleRegistration_manyNewSchools_queriesDontGrowWithRegistrations() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+
+        // Run
+        Map<String, QuickBooksException> emailFailures = handle(getNewSchoolRegistrations(20));
+
+        // Verify
+        assertTrue(emailFailures.isEmpty());
+        assertEquals(Map.of("add", 60L, "executeQuery", 3L, "sendEmail", 40L), dataService.getCallCounts());
+    }
+
+    @Test
+    public void testHandleRegistrations_newSchool_card() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+
+        // Run
+        Map<Registration, QuickBooksException> failures =
+                handleAsBatch(List.of(getRegistration("Cal", PaymentMethod.CARD)));
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("executeBatch", 2L, "executeQuery", 3L, "sendEmail", 2L), dataService.getCallCounts());
+        assertEquals(List.of(1, 2), dataService.getBatchItemCounts());
+        assertEquals(List.of(true, true), getHasCardFeeLines());
+    }
+
+    @Test
+    public void testHandleRegistrations_newSchool_check() {
+        // Run
+        Map<Registration, QuickBooksException> failures =
+                handleAsBatch(List.of(getRegistration("Cal", PaymentMethod.CHECK)));
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("executeBatch", 2L, "executeQuery", 3L, "sendEmail", 2L), dataService.getCallCounts());
+        assertEquals(List.of(1, 2), dataService.getBatchItemCounts());
+        assertEquals(List.of(false, false), getHasCardFeeLines());
+    }
+
+    @Test
+    public void testHandleRegistrations_returningSchool_invoicesAlreadySent() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+        Registration registration = getRegistration("Cal", PaymentMethod.CARD);
+        handleAsBatch(List.of(registration));
+        dataService.resetCalls();
+
+        // Run
+        Map<Registration, QuickBooksException> failures = handleAsBatch(List.of(registration));
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("executeQuery", 3L), dataService.getCallCounts());
+        assertEquals(List.of(), dataService.getBatchItemCounts());
+    }
+
+    @Test
+    public void testHandleRegistrations_returningSchool_changedDetails() {
+        // Setup
+        handleAsBatch(List.of(getRegistration("Cal", PaymentMethod.CHECK)));
+        dataService.resetCalls();
+
+        // Run
+        Map<Registration, QuickBooksException> failures = handleAsBatch(List.of(getChangedRegistration("Cal")));
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("executeBatch", 1L, "executeQuery", 3L), dataService.getCallCounts());
+        assertEquals(List.of(1), dataService.getBatchItemCounts());
+    }
+
+    @Test
+    public void testHandleRegistrations_manyNewSchools_batchesOfMaxBatchSize() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+
+        // Run
+        Map<Registration, QuickBooksException> failures = handleAsBatch(getNewSchoolRegistrations(20));
+
+        // Verify
+        assertTrue(failures.isEmpty());
+        assertEquals(Map.of("executeBatch", 3L, "executeQuery", 3L, "sendEmail", 40L), dataService.getCallCounts());
+        // 20 customers, then 40 invoices split into requests of MAX_BATCH_SIZE
+        assertEquals(List.of(20, 30, 10), dataService.getBatchItemCounts());
+    }
+
+    @Test
+    public void testHandleRegistrationsConcurrently_newSchool_card() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+
+        // Run
+        PipelineResult result = handleConcurrently(List.of(getRegistration("Cal", PaymentMethod.CARD)));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(Map.of("add", 3L, "executeQuery", 3L, "sendEmail", 2L), dataService.getCallCounts());
+        assertEquals(List.of(true, true), getHasCardFeeLines());
+    }
+
+    @Test
+    public void testHandleRegistrationsConcurrently_newSchool_check() {
+        // Run
+        PipelineResult result = handleConcurrently(List.of(getRegistration("Cal", PaymentMethod.CHECK)));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(Map.of("add", 3L, "executeQuery", 3L, "sendEmail", 2L), dataService.getCallCounts());
+        assertEquals(List.of(false, false), getHasCardFeeLines());
+    }
+
+    @Test
+    public void testHandleRegistrationsConcurrently_returningSchool_invoicesAlreadySent() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+        Registration registration = getRegistration("Cal", PaymentMethod.CARD);
+        handleConcurrently(List.of(registration));
+        dataService.resetCalls();
+
+        // Run
+        PipelineResult result = handleConcurrently(List.of(registration));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(Map.of("executeQuery", 3L), dataService.getCallCounts());
+    }
+
+    @Test
+    public void testHandleRegistrationsConcurrently_returningSchool_changedDetails() {
+        // Setup
+        handleConcurrently(List.of(getRegistration("Cal", PaymentMethod.CHECK)));
+        dataService.resetCalls();
+
+        // Run
+        PipelineResult result = handleConcurrently(List.of(getChangedRegistration("Cal")));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(Map.of("executeQuery", 3L, "update", 1L), dataService.getCallCounts());
+    }
+
+    @Test
+    public void testHandleRegistrationsConcurrently_manyNewSchools_queriesDontGrowWithRegistrations() {
+        // Setup
+        seedItem(ItemType.CREDIT_CARD_PROCESSING_FEE);
+
+        // Run
+        PipelineResult result = handleConcurrently(getNewSchoolRegistrations(20));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(Map.of("add", 60L, "executeQuery", 3L, "sendEmail", 40L), dataService.getCallCounts());
+    }
+
+    /**
+     * Handles the passed registrations one at a time with a new handler, as a single run would
+     * @return - The invoice emails which failed to send, by invoice id
+     */
+    private static Map<String, QuickBooksException> handle(List<Registration> registrations) {
+        RegistrationHandler handler = new RegistrationHandler(ACCESS_TOKEN, REALM_ID, false);
+        handler.startBatch(registrations);
+        for (Registration registration : registrations) {
+            handler.handleRegistration(registration);
+        }
+        return handler.awaitEmails();
+    }
+
+    /**
+     * Handles the passed registrations through the batch API with a new handler, as FCInvoiceIssuer does by default
+     * @return - The registrations which couldn't be fully handled
+     */
+    private static Map<Registration, QuickBooksException> handleAsBatch(List<Registration> registrations) {
+        return new RegistrationHandler(ACCESS_TOKEN, REALM_ID, false).handleRegistrations(registrations);
+    }
+
+    /**
+     * Handles the passed registrations through a RegistrationPipeline with a new handler
+     * @return - The registrations which couldn't be fully handled, and each stage's statistics
+     */
+    private static PipelineResult handleConcurrently(List<Registration> registrations) {
+        return new RegistrationHandler(ACCESS_TOKEN, REALM_ID, false).handleRegistrationsConcurrently(registrations);
+    }
+
+    private void seedItem(ItemType itemType) {
+        Item item = new Item();
+        item.setName(itemType.toString());
+        dataService.seed(item);
+    }
+
+    /**
+     * Gets whether each stored invoice has a credit card processing fee line, in the order they were created
+     */
+    private List<Boolean> getHasCardFeeLines() {
+        String cardFeeItemName = ItemType.CREDIT_CARD_PROCESSING_FEE.toString();
+        return dataService.getStoredEntities(Invoice.class).stream()
+                .map(invoice -> invoice.getLine().stream()
+                        .map(Line::getSalesItemLineDetail)
+                        .anyMatch(detail -> detail != null && cardFeeItemName.equals(detail.getItemRef().getName())))
+                .collect(Collectors.toList());
+    }
+
+    private static Registration getRegistration(String schoolName, PaymentMethod paymentMethod) {
+        return Registration.builder()
+                .school(getSchool(schoolName, "oski@berkeley.edu"))
+                .numDelegates(10)
+                .registrationDate(REGISTRATION_DATE)
+                .paymentMethod(paymentMethod)
+                .conference(Conference.FC)
+                .build();
+    }
+
+    /**
+     * Gets a check registration for the passed school with a different email address than getRegistration's
+     */
+    private static Registration getChangedRegistration(String schoolName) {
+        return Registration.builder()
+                .school(getSchool(schoolName, "treasurer@cal.edu"))
+                .numDelegates(10)
+                .registrationDate(REGISTRATION_DATE)
+                .paymentMethod(PaymentMethod.CHECK)
+                .conference(Conference.FC)
+                .build();
+    }
+
+    /**
+     * Gets registrations for the passed number of different schools, alternating between card and check payments
+     */
+    private static List<Registration> getNewSchoolRegistrations(int numSchools) {
+        List<Registration> registrations = new ArrayList<>();
+        for (int i = 0; i < numSchools; i++) {
+            PaymentMethod paymentMethod = i % 2 == 0 ? PaymentMethod.CARD : PaymentMethod.CHECK;
+            registrations.add(getRegistration("School " + i, paymentMethod));
+        }
+        return registrations;
+    }
+
+    private static School getSchool(String schoolName, String email) {
+        return School.builder()
+                .schoolName(schoolName)
+                .email(email)
+                .phoneNumbers(List.of())
+                .address(new Address("", "", "", "", "", ""))
+                .build();
+    }
+}
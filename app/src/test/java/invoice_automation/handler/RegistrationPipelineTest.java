@@ -0,0 +1,250 @@
+package invoice_automation.handler;
+
+import com.intuit.ipp.core.IEntity;
+import com.intuit.ipp.data.Customer;
+import com.intuit.ipp.data.Item;
+import com.intuit.ipp.exception.FMSException;
+import com.intuit.ipp.services.DataService;
+import invoice_automation.model.Address;
+import invoice_automation.model.Conference;
+import invoice_automation.model.ItemType;
+import invoice_automation.model.PaymentMethod;
+import invoice_automation.model.Registration;
+import invoice_automation.model.School;
+import invoice_automation.module.CountingDataService;
+import invoice_automation.module.QuickBooksModule;
+import invoice_automation.module.QuickBooksRateLimiter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.api.mockito.PowerMockito.whenNew;
+
+/**
+ * Tests RegistrationPipeline against a CountingDataService, with queues of a single school so that every stage is
+ * held back by the next
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({QuickBooksModule.class})
+public class RegistrationPipelineTest {
+    private static final String ACCESS_TOKEN = "access token";
+    private static final String REALM_ID = "pipeline test realm id";
+    private static final LocalDate REGISTRATION_DATE = LocalDate.of(2023, 9, 4);
+    private static final String BROKEN_SCHOOL_NAME = "Broken";
+    private static final String BOUNCING_EMAIL = "bounce@berkeley.edu";
+
+    private CountingDataService dataService;
+    private QuickBooksModule quickBooksModule;
+
+    @Before
+    public void setup() throws Exception {
+        dataService = new FailingDataService();
+        whenNew(DataService.class).withAnyArguments().thenReturn(dataService);
+        // Don't pace calls to QuickBooks' limits, since nothing is being throttled
+        QuickBooksRateLimiter.configureRealm(REALM_ID, 60_000, 10);
+        for (ItemType itemType : ItemType.values()) {
+            Item item = new Item();
+            item.setName(itemType.toString());
+            dataService.seed(item);
+        }
+        quickBooksModule = new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false);
+    }
+
+    @Test
+    public void testRun_newSchools_everyStageHandlesEachRegistration() {
+        // Setup
+        List<Registration> registrations = List.of(
+                getRegistration("Cal", "oski@berkeley.edu"),
+                getRegistration("Stanford", "tree@stanford.edu"),
+                getRegistration("Davis", "aggie@ucdavis.edu")
+        );
+
+        // Run
+        PipelineResult result = run(registrations, getParallelism(1, 2, 3, 4));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(List.of(PipelineStage.values()), getStages(result));
+        assertEquals(List.of(1, 2, 3, 4), getParallelisms(result));
+        assertEquals(List.of(3L, 3L, 3L, 3L), getProcessed(result));
+        assertEquals(List.of(0L, 0L, 0L, 0L), getFailed(result));
+        assertEquals(9, dataService.getCallCount("add"));
+        assertEquals(6, dataService.getCallCount("sendEmail"));
+    }
+
+    @Test(timeout = 60_000)
+    public void testRun_moreSchoolsThanQueueCapacity_everyWorkerReachesEndOfInput() {
+        // Setup
+        List<Registration> registrations = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            registrations.add(getRegistration("School " + i, "oski@berkeley.edu"));
+        }
+
+        // Run
+        PipelineResult result = run(registrations, getParallelism(3, 1, 4, 2));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(List.of(25L, 25L, 25L, 25L), getProcessed(result));
+        assertEquals(50, dataService.getCallCount("sendEmail"));
+    }
+
+    @Test
+    public void testRun_noRegistrations_emptyStats() {
+        // Run
+        PipelineResult result = run(List.of(), getParallelism(2, 2, 2, 2));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(List.of(0L, 0L, 0L, 0L), getProcessed(result));
+        for (StageStats stats : result.getStageStats()) {
+            assertEquals(0, stats.getThroughput(), 0);
+            assertEquals(0, stats.getUtilization(), 0);
+        }
+    }
+
+    @Test
+    public void testRun_finished_workerThreadsStopped() throws Exception {
+        // Run
+        run(List.of(getRegistration("Cal", "oski@berkeley.edu")), getParallelism(2, 2, 2, 2));
+
+        // Verify
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("pipeline-")) {
+                thread.join(10_000);
+                assertFalse(thread.getName(), thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void testRun_customerFails_otherSchoolsHandled() {
+        // Setup
+        Registration brokenRegistration = getRegistration(BROKEN_SCHOOL_NAME, "oski@berkeley.edu");
+        List<Registration> registrations = List.of(
+                getRegistration("Cal", "oski@berkeley.edu"),
+                brokenRegistration,
+                getRegistration("Stanford", "tree@stanford.edu")
+        );
+
+        // Run
+        PipelineResult result = run(registrations, getParallelism(2, 2, 2, 2));
+
+        // Verify
+        assertEquals(List.of(brokenRegistration), List.copyOf(result.getFailures().keySet()));
+        assertEquals(List.of(2L, 2L, 2L, 2L), getProcessed(result));
+        assertEquals(List.of(1L, 0L, 0L, 0L), getFailed(result));
+        assertEquals(4, dataService.getCallCount("sendEmail"));
+    }
+
+    @Test
+    public void testRun_emailFails_registrationFailsInSendStage() {
+        // Setup
+        Registration bouncingRegistration = getRegistration("Stanford", BOUNCING_EMAIL);
+        List<Registration> registrations = List.of(getRegistration("Cal", "oski@berkeley.edu"), bouncingRegistration);
+
+        // Run
+        PipelineResult result = run(registrations, getParallelism(1, 1, 1, 1));
+
+        // Verify
+        assertEquals(List.of(bouncingRegistration), List.copyOf(result.getFailures().keySet()));
+        assertEquals(List.of(2L, 2L, 2L, 1L), getProcessed(result));
+        assertEquals(List.of(0L, 0L, 0L, 1L), getFailed(result));
+    }
+
+    @Test
+    public void testRun_equalRegistrations_eachHandledAndInvoicedOnce() {
+        // Setup
+        Registration registration = getRegistration("Cal", "oski@berkeley.edu");
+
+        // Run
+        PipelineResult result = run(List.of(registration, registration), getParallelism(2, 2, 2, 2));
+
+        // Verify
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(List.of(2L, 2L, 2L, 2L), getProcessed(result));
+        assertEquals(3, dataService.getCallCount("add"));
+        assertEquals(2, dataService.getCallCount("sendEmail"));
+    }
+
+    private PipelineResult run(List<Registration> registrations, Map<PipelineStage, Integer> parallelism) {
+        InvoiceEmailDispatcher emailDispatcher = new InvoiceEmailDispatcher(quickBooksModule, null, 2);
+        return new RegistrationPipeline(quickBooksModule, emailDispatcher, parallelism, 1).run(registrations);
+    }
+
+    private static Map<PipelineStage, Integer> getParallelism(int... workers) {
+        Map<PipelineStage, Integer> parallelism = new EnumMap<>(PipelineStage.class);
+        for (PipelineStage stage : PipelineStage.values()) {
+            parallelism.put(stage, workers[stage.ordinal()]);
+        }
+        return parallelism;
+    }
+
+    private static List<PipelineStage> getStages(PipelineResult result) {
+        return result.getStageStats().stream().map(StageStats::getStage).collect(Collectors.toList());
+    }
+
+    private static List<Integer> getParallelisms(PipelineResult result) {
+        return result.getStageStats().stream().map(StageStats::getParallelism).collect(Collectors.toList());
+    }
+
+    private static List<Long> getProcessed(PipelineResult result) {
+        return result.getStageStats().stream().map(StageStats::getProcessed).collect(Collectors.toList());
+    }
+
+    private static List<Long> getFailed(PipelineResult result) {
+        return result.getStageStats().stream().map(StageStats::getFailed).collect(Collectors.toList());
+    }
+
+    private static Registration getRegistration(String schoolName, String email) {
+        return Registration.builder()
+                .school(School.builder()
+                        .schoolName(schoolName)
+                        .email(email)
+                        .phoneNumbers(List.of())
+                        .address(new Address("", "", "", "", "", ""))
+                        .build())
+                .numDelegates(10)
+                .registrationDate(REGISTRATION_DATE)
+                .paymentMethod(PaymentMethod.CHECK)
+                .conference(Conference.FC)
+                .build();
+    }
+
+    /**
+     * A CountingDataService which fails to add the customer of BROKEN_SCHOOL_NAME and to email BOUNCING_EMAIL
+     */
+    private static class FailingDataService extends CountingDataService {
+        private FailingDataService() throws FMSException {
+            super();
+        }
+
+        @Override
+        public <T extends IEntity> T add(T entity) throws FMSException {
+            if (entity instanceof Customer && BROKEN_SCHOOL_NAME.equals(((Customer) entity).getDisplayName())) {
+                throw new FMSException("Couldn't add customer");
+            }
+            return super.add(entity);
+        }
+
+        @Override
+        public <T extends IEntity> T sendEmail(T entity, String email) throws FMSException {
+            if (BOUNCING_EMAIL.equals(email)) {
+                throw new FMSException("Couldn't send email");
+            }
+            return super.sendEmail(entity, email);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package invoice_automation.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests ApiMetrics on its own instance, rather than the one shared by every module
+ */
+public class ApiMetricsTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ApiMetrics apiMetrics = new ApiMetrics();
+
+    @Test
+    public void testForOperation_sameOperation_sameMetrics() {
+        assertSame(
+                apiMetrics.forOperation(ApiMetrics.QUICKBOOKS, "query"),
+                apiMetrics.forOperation(ApiMetrics.QUICKBOOKS, "query")
+        );
+    }
+
+    @Test
+    public void testGetOperations_orderedByServiceThenOperation() {
+        // Setup
+        apiMetrics.forOperation(ApiMetrics.SHEETS, "values.batchGet");
+        apiMetrics.forOperation(ApiMetrics.QUICKBOOKS, "query");
+        apiMetrics.forOperation(ApiMetrics.PHASE, "read sheet");
+        apiMetrics.forOperation(ApiMetrics.QUICKBOOKS, "add");
+
+        // Run
+        List<String> operations = apiMetrics.getOperations().stream()
+                .map(metrics -> metrics.getService() + " " + metrics.getOperation())
+                .collect(Collectors.toList());
+
+        // Verify
+        assertEquals(List.of("phase read sheet", "quickbooks add", "quickbooks query", "sheets values.batchGet"),
+                operations);
+    }
+
+    @Test
+    public void testGetCalls_onlyCountsPassedService() {
+        // Setup
+        apiMetrics.forOperation(ApiMetrics.QUICKBOOKS, "query").recordSuccess(1, 1);
+        apiMetrics.forOperation(ApiMetrics.QUICKBOOKS, "add").recordFailure(1, false);
+        apiMetrics.forOperation(ApiMetrics.SHEETS, "values.batchGet").recordSuccess(1, 1);
+        apiMetrics.forOperation(ApiMetrics.PHASE, "read sheet").recordSuccess(1, 0);
+
+        // Run and verify
+        assertEquals(2, apiMetrics.getCalls(ApiMetrics.QUICKBOOKS));
+        assertEquals(1, apiMetrics.getCalls(ApiMetrics.SHEETS));
+    }
+
+    @Test
+    public void testWritePrometheus() throws Exception {
+        // Setup
+        OperationMetrics metrics = apiMetrics.forOperation(ApiMetrics.QUICKBOOKS, "query");
+        metrics.recordFailure(Duration.ofMillis(700).toNanos(), true);
+        metrics.recordRetry();
+        metrics.recordSuccess(Duration.ofMillis(3).toNanos(), 10);
+        Path directory = temporaryFolder.newFolder().toPath();
+        Path file = directory.resolve("invoicing.prom");
+
+        // Run
+        apiMetrics.writePrometheus(file);
+
+        // Verify
+        String labels = "service=\"quickbooks\",operation=\"query\"";
+        String expected = ""
+                + "# HELP invoicing_api_calls_total API calls made, including retries\n"
+                + "# TYPE invoicing_api_calls_total counter\n"
+                + "invoicing_api_calls_total{" + labels + "} 2\n"
+                + "# HELP invoicing_api_failures_total API calls which failed\n"
+                + "# TYPE invoicing_api_failures_total counter\n"
+                + "invoicing_api_failures_total{" + labels + "} 1\n"
+                + "# HELP invoicing_api_throttled_total API calls rejected as throttled\n"
+                + "# TYPE invoicing_api_throttled_total counter\n"
+                + "invoicing_api_throttled_total{" + labels + "} 1\n"
+                + "# HELP invoicing_api_retries_total API calls retried\n"
+                + "# TYPE invoicing_api_retries_total counter\n"
+                + "invoicing_api_retries_total{" + labels + "} 1\n"
+                + "# HELP invoicing_api_payload_size_total "
+                + "Size of API call payloads, in entities for QuickBooks and cells for Sheets\n"
+                + "# TYPE invoicing_api_payload_size_total counter\n"
+                + "invoicing_api_payload_size_total{" + labels + "} 10\n"
+                + "# HELP invoicing_api_latency_seconds Latency of API calls\n"
+                + "# TYPE invoicing_api_latency_seconds histogram\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"0.005000\"} 1\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"0.010000\"} 1\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"0.025000\"} 1\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"0.050000\"} 1\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"0.100000\"} 1\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"0.250000\"} 1\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"0.500000\"} 1\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"1.000000\"} 2\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"2.500000\"} 2\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"5.000000\"} 2\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"10.000000\"} 2\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"30.000000\"} 2\n"
+                + "invoicing_api_latency_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n"
+                + "invoicing_api_latency_seconds_sum{" + labels + "} 0.703000\n"
+                + "invoicing_api_latency_seconds_count{" + labels + "} 2\n";
+        assertEquals(expected, Files.readString(file, StandardCharsets.UTF_8));
+        // The temporary file written first was moved into place
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(file), files.collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package invoice_automation.metrics;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests LatencyHistogram on latencies recorded at and around its bucket bounds
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void testRecord_bucketPlacement() {
+        // Setup
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // Run
+        histogram.record(0);
+        histogram.record(millis(5));
+        histogram.record(millis(5) + 1);
+        histogram.record(millis(700));
+        histogram.record(millis(30_000));
+        histogram.record(millis(30_000) + 1);
+
+        // Verify
+        // Bounds are inclusive, and anything slower than the last bound goes in the overflow bucket
+        assertArrayEquals(new long[] {2, 1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 1}, histogram.getBucketCounts());
+        assertEquals(6, histogram.getCount());
+        assertEquals(Duration.ofMillis(60_710).plusNanos(2), histogram.getSum());
+        assertEquals(Duration.ofMillis(30_000).plusNanos(1), histogram.getMax());
+    }
+
+    @Test
+    public void testGetPercentile_upperBoundOfBucket() {
+        // Setup
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 97; i++) {
+            histogram.record(millis(3));
+        }
+        histogram.record(millis(700));
+        histogram.record(millis(700));
+        histogram.record(millis(4_000));
+
+        // Run and verify
+        assertEquals(Duration.ofMillis(5), histogram.getPercentile(50));
+        // The 99th latency is 700ms, which falls in the bucket up to 1s
+        assertEquals(Duration.ofSeconds(1), histogram.getPercentile(99));
+        // The slowest latency falls in the bucket up to 5s, but nothing took longer than 4s
+        assertEquals(Duration.ofMillis(4_000), histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testGetPercentile_overflowBucket_max() {
+        // Setup
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // Run
+        histogram.record(millis(40_000));
+
+        // Verify
+        assertEquals(Duration.ofMillis(40_000), histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testGetPercentile_nothingRecorded_zero() {
+        assertEquals(Duration.ZERO, new LatencyHistogram().getPercentile(99));
+    }
+
+    private static long millis(long millis) {
+        return Duration.ofMillis(millis).toNanos();
+    }
+}
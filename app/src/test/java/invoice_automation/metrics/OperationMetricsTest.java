@@ -0,0 +1,35 @@
+package invoice_automation.metrics;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests OperationMetrics, where every attempt at a call counts as a call
+ */
+public class OperationMetricsTest {
+    @Test
+    public void testRecord_countsEveryAttempt() {
+        // Setup
+        OperationMetrics metrics = new OperationMetrics(ApiMetrics.QUICKBOOKS, "query");
+
+        // Run
+        metrics.recordFailure(Duration.ofMillis(20).toNanos(), true);
+        metrics.recordRetry();
+        metrics.recordFailure(Duration.ofMillis(30).toNanos(), false);
+        metrics.recordRetry();
+        metrics.recordSuccess(Duration.ofMillis(40).toNanos(), 100);
+        metrics.recordSuccess(Duration.ofMillis(50).toNanos(), 25);
+
+        // Verify
+        assertEquals(4, metrics.getCalls());
+        assertEquals(2, metrics.getFailures());
+        assertEquals(1, metrics.getThrottled());
+        assertEquals(2, metrics.getRetries());
+        assertEquals(125, metrics.getPayloadSize());
+        assertEquals(Duration.ofMillis(140), metrics.getLatencies().getSum());
+        assertEquals(Duration.ofMillis(50), metrics.getLatencies().getMax());
+    }
+}
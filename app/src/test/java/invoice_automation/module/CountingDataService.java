@@ -0,0 +1,319 @@
+package invoice_automation.module;
+
+import com.intuit.ipp.core.Context;
+import com.intuit.ipp.core.IEntity;
+import com.intuit.ipp.core.ServiceType;
+import com.intuit.ipp.data.BatchItemRequest;
+import com.intuit.ipp.data.Customer;
+import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.IntuitEntity;
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.Item;
+import com.intuit.ipp.data.OperationEnum;
+import com.intuit.ipp.exception.FMSException;
+import com.intuit.ipp.security.OAuth2Authorizer;
+import com.intuit.ipp.services.BatchOperation;
+import com.intuit.ipp.services.CallbackHandler;
+import com.intuit.ipp.services.CallbackMessage;
+import com.intuit.ipp.services.CDCQueryResult;
+import com.intuit.ipp.services.DataService;
+import com.intuit.ipp.services.QueryResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A fake DataService which keeps Customers, Invoices and Items in memory and records every call made to it, so tests
+ * can pin down how many remote calls a flow makes. Queries are answered for the queries QueryModule builds: by entity
+ * type, filtered by DisplayName or CustomerRef, and paged by STARTPOSITION and MAXRESULTS. TxnDate filters are
+ * ignored, so every invoice is treated as belonging to the current session.
+ * Entities are stored as passed rather than copied, as QuickBooks would return them, so tests shouldn't modify them
+ * after seeding them. Batch requests are answered for entity adds and updates, each item being stored as add or update
+ * would store it, and the number of items in each is recorded. Change data capture requests are recorded but not
+ * supported.
+ *
+ * @author skberkeley
+ */
+public class CountingDataService extends DataService {
+    private static final Pattern FROM_PATTERN = Pattern.compile("\\bfrom\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern DISPLAY_NAME_PATTERN =
+            Pattern.compile("DisplayName\\s*(?:=|\\bin\\b)\\s*\\(?([^)]*)\\)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CUSTOMER_REF_PATTERN =
+            Pattern.compile("CustomerRef\\s*=\\s*'((?:[^']|'')*)'", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LITERAL_PATTERN = Pattern.compile("'((?:[^']|'')*)'");
+    private static final Pattern PAGE_PATTERN =
+            Pattern.compile("STARTPOSITION\\s+(\\d+)\\s+MAXRESULTS\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The name of each DataService method called, in the order the calls were made
+     */
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Each query executed, in the order they were executed
+     */
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The number of items in each batch request executed, in the order they were executed
+     */
+    private final List<Integer> batchItemCounts = Collections.synchronizedList(new ArrayList<>());
+    private final List<IEntity> entities = new ArrayList<>();
+    private int nextId = 1;
+
+    public CountingDataService() throws FMSException {
+        super(new Context(new OAuth2Authorizer("access token"), ServiceType.QBO, "realm id"));
+    }
+
+    /**
+     * Adds the passed entities to the store without recording a call, assigning ids to any without one
+     * @param seededEntities - The entities to add
+     */
+    public synchronized void seed(IEntity... seededEntities) {
+        for (IEntity entity : seededEntities) {
+            this.store(entity);
+        }
+    }
+
+    /**
+     * Gets the number of calls made to the passed DataService method
+     * @param method - The name of the method, such as executeQuery or add
+     * @return - The number of calls
+     */
+    public long getCallCount(String method) {
+        synchronized (this.calls) {
+            return this.calls.stream().filter(method::equals).count();
+        }
+    }
+
+    /**
+     * Gets the number of calls made to each DataService method which was called at least once
+     * @return - A map from method name to its number of calls, ordered by method name
+     */
+    public Map<String, Long> getCallCounts() {
+        synchronized (this.calls) {
+            return this.calls.stream()
+                    .collect(Collectors.groupingBy(call -> call, TreeMap::new, Collectors.counting()));
+        }
+    }
+
+    /**
+     * Gets the stored entities of the passed type, without recording a call
+     * @param entityClass - The type of entity to get
+     * @return - The entities, in the order they were last stored
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends IEntity> List<T> getStoredEntities(Class<T> entityClass) {
+        return this.entities.stream()
+                .filter(entity -> entity.getClass() == entityClass)
+                .map(entity -> (T) entity)
+                .collect(Collectors.toList());
+    }
+
+    public List<String> getQueries() {
+        synchronized (this.queries) {
+            return List.copyOf(this.queries);
+        }
+    }
+
+    public List<Integer> getBatchItemCounts() {
+        synchronized (this.batchItemCounts) {
+            return List.copyOf(this.batchItemCounts);
+        }
+    }
+
+    /**
+     * Forgets every call recorded so far, keeping the stored entities
+     */
+    public void resetCalls() {
+        this.calls.clear();
+        this.queries.clear();
+        this.batchItemCounts.clear();
+    }
+
+    @Override
+    public QueryResult executeQuery(String query) throws FMSException {
+        this.calls.add("executeQuery");
+        this.queries.add(query);
+        return this.answer(query);
+    }
+
+    @Override
+    public void executeQueryAsync(String query, CallbackHandler callbackHandler) throws FMSException {
+        this.calls.add("executeQueryAsync");
+        this.queries.add(query);
+        CallbackMessage callbackMessage = new CallbackMessage();
+        callbackMessage.setQueryResult(this.answer(query));
+        callbackHandler.execute(callbackMessage);
+    }
+
+    @Override
+    public <T extends IEntity> T add(T entity) throws FMSException {
+        this.calls.add("add");
+        return this.store(entity);
+    }
+
+    @Override
+    public <T extends IEntity> void addAsync(T entity, CallbackHandler callbackHandler) throws FMSException {
+        this.calls.add("addAsync");
+        CallbackMessage callbackMessage = new CallbackMessage();
+        callbackMessage.setEntity(this.store(entity));
+        callbackHandler.execute(callbackMessage);
+    }
+
+    @Override
+    public <T extends IEntity> T update(T entity) throws FMSException {
+        this.calls.add("update");
+        return this.store(entity);
+    }
+
+    @Override
+    public <T extends IEntity> void updateAsync(T entity, CallbackHandler callbackHandler) throws FMSException {
+        this.calls.add("updateAsync");
+        CallbackMessage callbackMessage = new CallbackMessage();
+        callbackMessage.setEntity(this.store(entity));
+        callbackHandler.execute(callbackMessage);
+    }
+
+    @Override
+    public <T extends IEntity> T sendEmail(T entity, String email) throws FMSException {
+        this.calls.add("sendEmail");
+        if (entity instanceof Invoice) {
+            ((Invoice) entity).setEmailStatus(EmailStatusEnum.EMAIL_SENT);
+        }
+        return entity;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends IEntity> List<T> findAll(T entity) throws FMSException {
+        this.calls.add("findAll");
+        return this.entities.stream()
+                .filter(storedEntity -> storedEntity.getClass() == entity.getClass())
+                .map(storedEntity -> (T) storedEntity)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends IEntity> T findById(T entity) throws FMSException {
+        this.calls.add("findById");
+        String id = getId(entity);
+        return (T) this.entities.stream()
+                .filter(storedEntity -> storedEntity.getClass() == entity.getClass() && id.equals(getId(storedEntity)))
+                .findFirst()
+                .orElse(null);
+    }
+
+    @Override
+    public List<CDCQueryResult> executeCDCQuery(List<? extends IEntity> entities, String changedSince)
+            throws FMSException {
+        this.calls.add("executeCDCQuery");
+        throw new UnsupportedOperationException("CountingDataService doesn't support change data capture");
+    }
+
+    @Override
+    public void executeBatch(BatchOperation batchOperation) throws FMSException {
+        this.calls.add("executeBatch");
+        List<BatchItemRequest> batchItemRequests = batchOperation.getBatchItemRequests();
+        this.batchItemCounts.add(batchItemRequests.size());
+        for (BatchItemRequest batchItemRequest : batchItemRequests) {
+            OperationEnum operation = batchItemRequest.getOperation();
+            if (operation != OperationEnum.CREATE && operation != OperationEnum.UPDATE) {
+                throw new UnsupportedOperationException("CountingDataService doesn't support batch " + operation);
+            }
+            IEntity entity = batchItemRequest.getIntuitObject().getValue();
+            batchOperation.getEntityResult().put(batchItemRequest.getBId(), this.store(entity));
+        }
+    }
+
+    /**
+     * Answers one of the queries built by QueryModule from the stored entities
+     */
+    private synchronized QueryResult answer(String query) {
+        Matcher fromMatcher = FROM_PATTERN.matcher(query);
+        if (!fromMatcher.find()) {
+            throw new IllegalArgumentException("Unsupported query " + query);
+        }
+        Class<? extends IEntity> entityClass = getEntityClass(fromMatcher.group(1));
+        List<IEntity> matchingEntities = this.entities.stream()
+                .filter(entity -> entity.getClass() == entityClass)
+                .collect(Collectors.toList());
+
+        Matcher displayNameMatcher = DISPLAY_NAME_PATTERN.matcher(query);
+        if (displayNameMatcher.find()) {
+            Set<String> displayNames = getLiterals(displayNameMatcher.group(1)).stream()
+                    .map(displayName -> displayName.toLowerCase(Locale.ROOT))
+                    .collect(Collectors.toSet());
+            matchingEntities.removeIf(entity -> !displayNames.contains(
+                    ((Customer) entity).getDisplayName().toLowerCase(Locale.ROOT)
+            ));
+        }
+        Matcher customerRefMatcher = CUSTOMER_REF_PATTERN.matcher(query);
+        if (customerRefMatcher.find()) {
+            String customerId = customerRefMatcher.group(1).replace("''", "'");
+            matchingEntities.removeIf(entity -> ((Invoice) entity).getCustomerRef() == null
+                    || !customerId.equals(((Invoice) entity).getCustomerRef().getValue()));
+        }
+        Matcher pageMatcher = PAGE_PATTERN.matcher(query);
+        if (pageMatcher.find()) {
+            int startIndex = Math.min(matchingEntities.size(), Integer.parseInt(pageMatcher.group(1)) - 1);
+            int endIndex = Math.min(matchingEntities.size(), startIndex + Integer.parseInt(pageMatcher.group(2)));
+            matchingEntities = matchingEntities.subList(startIndex, endIndex);
+        }
+
+        QueryResult queryResult = new QueryResult();
+        queryResult.setEntities(new ArrayList<>(matchingEntities));
+        return queryResult;
+    }
+
+    /**
+     * Adds or replaces the passed entity, assigning it an id and SyncToken if it's new or bumping its SyncToken if not
+     */
+    private synchronized <T extends IEntity> T store(T entity) {
+        IntuitEntity intuitEntity = (IntuitEntity) entity;
+        if (intuitEntity.getId() == null) {
+            intuitEntity.setId(String.valueOf(this.nextId++));
+            intuitEntity.setSyncToken("0");
+        } else {
+            this.entities.removeIf(storedEntity -> storedEntity.getClass() == entity.getClass()
+                    && intuitEntity.getId().equals(getId(storedEntity)));
+            String syncToken = intuitEntity.getSyncToken();
+            intuitEntity.setSyncToken(syncToken == null ? "0" : String.valueOf(Integer.parseInt(syncToken) + 1));
+        }
+        this.entities.add(entity);
+        return entity;
+    }
+
+    private static Class<? extends IEntity> getEntityClass(String tableName) {
+        switch (tableName.toLowerCase(Locale.ROOT)) {
+            case "customer":
+                return Customer.class;
+            case "invoice":
+                return Invoice.class;
+            case "item":
+                return Item.class;
+            default:
+                throw new IllegalArgumentException("Unsupported entity " + tableName);
+        }
+    }
+
+    private static List<String> getLiterals(String values) {
+        List<String> literals = new ArrayList<>();
+        Matcher literalMatcher = LITERAL_PATTERN.matcher(values);
+        while (literalMatcher.find()) {
+            literals.add(literalMatcher.group(1).replace("''", "'"));
+        }
+        return literals;
+    }
+
+    private static String getId(IEntity entity) {
+        return ((IntuitEntity) entity).getId();
+    }
+}
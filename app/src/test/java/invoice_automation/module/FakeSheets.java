@@ -0,0 +1,127 @@
+package invoice_automation.module;
+
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.powermock.api.mockito.PowerMockito.doAnswer;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * Fake Google sheets kept in memory, which answer GoogleSheetsModule.getValues as the Sheets API would: each range's
+ * rows start from the range's first row, blank rows inside a range come back as empty rows, and blank rows at the end
+ * of a range are left out. GoogleSheetsModule.updateValues requests are recorded rather than applied. Every other
+ * method of GoogleSheetsModule is called as is. Tests using it must prepare GoogleSheetsModule for mocking.
+ *
+ * @author skberkeley
+ */
+public class FakeSheets {
+    private static final Pattern RANGE_PATTERN = Pattern.compile("(.+)!A(\\d+):M(\\d*)");
+
+    /**
+     * Map from the name of each sheet to its rows, starting from row 1
+     */
+    private final Map<String, List<List<Object>>> rowsBySheetName = new HashMap<>();
+    /**
+     * Each range fetched, in the order they were fetched
+     */
+    private final List<String> fetchedRanges = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The values of each successful update request, by range, in the order they were made
+     */
+    private final List<Map<String, List<List<Object>>>> updates = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean failing;
+
+    /**
+     * Replaces GoogleSheetsModule.getValues and GoogleSheetsModule.updateValues with this fake
+     */
+    public FakeSheets() throws Exception {
+        mockStatic(GoogleSheetsModule.class, Mockito.CALLS_REAL_METHODS);
+        doAnswer(invocation -> this.getValues(invocation.getArgument(1)))
+                .when(GoogleSheetsModule.class, "getValues", anyString(), anyList());
+        doAnswer(invocation -> {
+            this.updateValues(invocation.getArgument(1));
+            return null;
+        }).when(GoogleSheetsModule.class, "updateValues", anyString(), anyMap());
+    }
+
+    /**
+     * Sets the rows of a sheet below its header row
+     * @param sheetName - The name of the sheet
+     * @param rows - The rows, starting from SheetCheckpoint.FIRST_ROW
+     */
+    public synchronized void setRows(String sheetName, List<List<Object>> rows) {
+        List<List<Object>> sheetRows = new ArrayList<>();
+        sheetRows.add(List.of("header"));
+        sheetRows.addAll(rows);
+        this.rowsBySheetName.put(sheetName, sheetRows);
+    }
+
+    /**
+     * Makes every later fetch fail, as if the Sheets API couldn't be reached
+     */
+    public void fail() {
+        this.failing = true;
+    }
+
+    /**
+     * Makes every later request succeed again, after a call to fail
+     */
+    public void recover() {
+        this.failing = false;
+    }
+
+    public List<String> getFetchedRanges() {
+        synchronized (this.fetchedRanges) {
+            return List.copyOf(this.fetchedRanges);
+        }
+    }
+
+    public List<Map<String, List<List<Object>>>> getUpdates() {
+        synchronized (this.updates) {
+            return List.copyOf(this.updates);
+        }
+    }
+
+    private void updateValues(Map<String, List<List<Object>>> valuesByRange) throws IOException {
+        if (this.failing) {
+            throw new IOException("Couldn't reach the Sheets API");
+        }
+        // Copied since the caller may reuse the map, keeping the order ranges were written in
+        this.updates.add(Collections.unmodifiableMap(new LinkedHashMap<>(valuesByRange)));
+    }
+
+    private synchronized List<List<List<Object>>> getValues(List<String> ranges) throws IOException {
+        if (this.failing) {
+            throw new IOException("Couldn't reach the Sheets API");
+        }
+        this.fetchedRanges.addAll(ranges);
+        List<List<List<Object>>> values = new ArrayList<>();
+        for (String range : ranges) {
+            Matcher matcher = RANGE_PATTERN.matcher(range);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Unexpected range " + range);
+            }
+            List<List<Object>> sheetRows = this.rowsBySheetName.getOrDefault(matcher.group(1), List.of());
+            int firstRow = Integer.parseInt(matcher.group(2));
+            int lastRow = matcher.group(3).isEmpty() ? sheetRows.size() : Integer.parseInt(matcher.group(3));
+            int end = Math.min(lastRow, sheetRows.size());
+            while (end >= firstRow && sheetRows.get(end - 1).isEmpty()) {
+                end--;
+            }
+            values.add(end < firstRow ? List.of() : List.copyOf(sheetRows.subList(firstRow - 1, end)));
+        }
+        return values;
+    }
+}
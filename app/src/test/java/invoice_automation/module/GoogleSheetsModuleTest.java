@@ -0,0 +1,131 @@
+package invoice_automation.module;
+
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.Conference;
+import invoice_automation.model.Registration;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static invoice_automation.module.SheetRegistrationReaderTest.getRow;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that GoogleSheetsModule's registration parsing skips rows which can't be parsed rather than stopping at them,
+ * against FakeSheets
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({GoogleSheetsModule.class})
+public class GoogleSheetsModuleTest {
+    private static final String SPREADSHEET_ID = "spreadsheet id";
+    private static final String BMUN_SHEET_NAME = "BMUN Registrations";
+    private static final String FC_SHEET_NAME = "FC Registrations";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeSheets sheets;
+
+    @Before
+    public void setup() throws Exception {
+        sheets = new FakeSheets();
+    }
+
+    @Test
+    public void testParseRegistrationsFromGoogleSheet_badRow_otherRowsParsed() throws Exception {
+        // Setup
+        sheets.setRows(FC_SHEET_NAME, List.of(getRow("A"), getRow("B", "ten", "2023-09-04"), List.of(), getRow("C")));
+
+        // Run
+        SheetParseResult<Registration> result =
+                GoogleSheetsModule.parseRegistrationsFromGoogleSheet(SPREADSHEET_ID, FC_SHEET_NAME, Conference.FC);
+
+        // Verify
+        assertEquals(List.of("A", "C"), getSchoolNames(result.getRegistrations()));
+        assertEquals(
+                List.of(new RowParseError(FC_SHEET_NAME, 3, "Invalid number of delegates \"ten\"")),
+                result.getParseErrors()
+        );
+    }
+
+    @Test(expected = QuickBooksException.class)
+    public void testParseRegistrationsFromGoogleSheet_noRows() throws Exception {
+        // Setup
+        sheets.setRows(FC_SHEET_NAME, List.of());
+
+        // Run
+        GoogleSheetsModule.parseRegistrationsFromGoogleSheet(SPREADSHEET_ID, FC_SHEET_NAME, Conference.FC);
+    }
+
+    @Test
+    public void testParseRegistrationsFromGoogleSheets_badRowInEachSheet_otherRowsParsed() throws Exception {
+        // Setup
+        sheets.setRows(BMUN_SHEET_NAME, List.of(getRow("A", "10", "Sept 4"), getRow("B")));
+        sheets.setRows(FC_SHEET_NAME, List.of(getRow("C"), getRow("D", "", "2023-09-04")));
+        Map<String, Conference> conferencesBySheetName = new LinkedHashMap<>();
+        conferencesBySheetName.put(BMUN_SHEET_NAME, Conference.BMUN);
+        conferencesBySheetName.put(FC_SHEET_NAME, Conference.FC);
+
+        // Run
+        SheetParseResult<Registration> result =
+                GoogleSheetsModule.parseRegistrationsFromGoogleSheets(SPREADSHEET_ID, conferencesBySheetName);
+
+        // Verify
+        assertEquals(List.of("B", "C"), getSchoolNames(result.getRegistrations()));
+        assertEquals(
+                List.of(Conference.BMUN, Conference.FC),
+                result.getRegistrations().stream().map(Registration::getConference).collect(Collectors.toList())
+        );
+        assertEquals(
+                List.of(
+                        new RowParseError(BMUN_SHEET_NAME, 2, "Invalid registration date \"Sept 4\""),
+                        new RowParseError(FC_SHEET_NAME, 3, "Invalid number of delegates \"\"")
+                ),
+                result.getParseErrors()
+        );
+    }
+
+    @Test
+    public void testParseNewRegistrationsFromGoogleSheet_badRow_returnedWithRegistrations() throws Exception {
+        // Setup
+        sheets.setRows(FC_SHEET_NAME, List.of(getRow("A", "ten", "2023-09-04"), getRow("B")));
+        SheetCheckpoint checkpoint =
+                SheetCheckpoint.load(temporaryFolder.getRoot().toPath(), SPREADSHEET_ID, FC_SHEET_NAME);
+
+        // Run
+        SheetParseResult<SheetRegistration> result = GoogleSheetsModule.parseNewRegistrationsFromGoogleSheet(
+                SPREADSHEET_ID,
+                FC_SHEET_NAME,
+                Conference.FC,
+                checkpoint
+        );
+
+        // Verify
+        assertEquals(
+                List.of("B"),
+                result.getRegistrations().stream()
+                        .map(SheetRegistration::getRegistration)
+                        .map(registration -> registration.getSchool().getSchoolName())
+                        .collect(Collectors.toList())
+        );
+        assertEquals(
+                List.of(new RowParseError(FC_SHEET_NAME, 2, "Invalid number of delegates \"ten\"")),
+                result.getParseErrors()
+        );
+    }
+
+    private static List<String> getSchoolNames(List<Registration> registrations) {
+        return registrations.stream()
+                .map(registration -> registration.getSchool().getSchoolName())
+                .collect(Collectors.toList());
+    }
+}
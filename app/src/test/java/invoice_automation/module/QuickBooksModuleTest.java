@@ -1,20 +1,28 @@
 package invoice_automation.module;
 
 import com.intuit.ipp.core.Context;
+import com.intuit.ipp.core.IEntity;
 import com.intuit.ipp.data.Customer;
 import com.intuit.ipp.data.EmailAddress;
 import com.intuit.ipp.data.EmailStatusEnum;
+import com.intuit.ipp.data.Fault;
 import com.intuit.ipp.data.Invoice;
 import com.intuit.ipp.data.Item;
 import com.intuit.ipp.data.Line;
 import com.intuit.ipp.data.LineDetailTypeEnum;
 import com.intuit.ipp.data.MemoRef;
+import com.intuit.ipp.data.OperationEnum;
 import com.intuit.ipp.data.PhysicalAddress;
 import com.intuit.ipp.data.ReferenceType;
 import com.intuit.ipp.data.SalesItemLineDetail;
 import com.intuit.ipp.data.TelephoneNumber;
 import com.intuit.ipp.exception.FMSException;
+import com.intuit.ipp.services.BatchOperation;
+import com.intuit.ipp.services.CallbackHandler;
+import com.intuit.ipp.services.CallbackMessage;
+import com.intuit.ipp.services.CDCQueryResult;
 import com.intuit.ipp.services.DataService;
+import com.intuit.ipp.services.QueryResult;
 import com.intuit.ipp.util.Config;
 import invoice_automation.QuickBooksException;
 import invoice_automation.utils.QuickBooksUtil;
@@ -26,7 +34,11 @@ import invoice_automation.model.PaymentMethod;
 import invoice_automation.model.Registration;
 import invoice_automation.model.RegistrationRound;
 import invoice_automation.model.School;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -35,18 +47,28 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.file.Path;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
 
+import static invoice_automation.Consts.QBO_MAX_CONCURRENT_REQUESTS;
+import static invoice_automation.Consts.QBO_REQUESTS_PER_MINUTE;
+import static invoice_automation.Consts.QUERY_PAGE_SIZE;
 import static invoice_automation.Consts.SANDBOX_BASE_URL;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.endsWith;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.*;
 
@@ -95,6 +117,22 @@ public class QuickBooksModuleTest {
             .conference(Conference.FC)
             .build();
     private final List<String> phoneNumbers = List.of("1234567890", "0987654321");
+    /**
+     * The delays the realm's limiter waited before retrying throttled calls, in milliseconds
+     */
+    private final List<Long> retryDelays = new ArrayList<>();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setupRateLimiter() {
+        // Give each test a fresh limiter, so throttling in one test doesn't slow later ones. It records retry delays
+        // instead of waiting them out
+        QuickBooksRateLimiter.configureRealm(
+                REALM_ID,
+                new QuickBooksRateLimiter(QBO_REQUESTS_PER_MINUTE, QBO_MAX_CONCURRENT_REQUESTS, retryDelays::add)
+        );
+    }
 
     @Test
     public void testQuickBooksModuleConstructor_noSandbox_happyPath() {
@@ -147,7 +185,7 @@ public class QuickBooksModuleTest {
         // Setup
         setupMethodTests();
         List<Customer> customerList = List.of();
-        when(dataService.findAll(any(Customer.class))).thenReturn(customerList);
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(customerList));
 
         // Run
         List<Customer> returnedCustomers = quickBooksModule.getAllCustomers();
@@ -160,12 +198,56 @@ public class QuickBooksModuleTest {
     public void testGetAllCustomers_dataServiceThrows() throws Exception {
         // Setup
         setupMethodTests();
-        when(dataService.findAll(any())).thenThrow(FMSException.class);
+        when(dataService.executeQuery(anyString())).thenThrow(FMSException.class);
 
         // Run
         quickBooksModule.getAllCustomers();
     }
 
+    @Test
+    public void testGetAllCustomers_throttled_retries() throws Exception {
+        // Setup
+        setupMethodTests();
+        List<Customer> customerList = List.of(new Customer());
+        com.intuit.ipp.data.Error throttleError = new com.intuit.ipp.data.Error();
+        throttleError.setCode("3001");
+        throttleError.setMessage("message=ThrottleExceeded; errorCode=003001; statusCode=429");
+        when(dataService.executeQuery(anyString()))
+                .thenThrow(new FMSException(List.of(throttleError)))
+                .thenReturn(getQueryResult(customerList));
+
+        // Run
+        List<Customer> returnedCustomers = quickBooksModule.getAllCustomers();
+
+        // Verify
+        assertEquals(customerList, returnedCustomers);
+        verify(dataService, Mockito.times(2)).executeQuery(anyString());
+        assertEquals(1, retryDelays.size());
+    }
+
+    @Test
+    public void testStreamAllCustomers_fetchesEveryPage() throws Exception {
+        // Setup
+        setupMethodTests();
+        List<Customer> firstPage = new ArrayList<>();
+        for (int i = 0; i < QUERY_PAGE_SIZE; i++) {
+            firstPage.add(new Customer());
+        }
+        List<Customer> secondPage = List.of(new Customer());
+        when(dataService.executeQuery(endsWith("STARTPOSITION 1 MAXRESULTS " + QUERY_PAGE_SIZE)))
+                .thenReturn(getQueryResult(firstPage));
+        String secondPageClause = "STARTPOSITION " + (QUERY_PAGE_SIZE + 1) + " MAXRESULTS " + QUERY_PAGE_SIZE;
+        when(dataService.executeQuery(endsWith(secondPageClause)))
+                .thenReturn(getQueryResult(secondPage));
+
+        // Run
+        long numCustomers = quickBooksModule.streamAllCustomers().count();
+
+        // Verify
+        assertEquals(QUERY_PAGE_SIZE + 1, numCustomers);
+        verify(dataService, Mockito.times(2)).executeQuery(anyString());
+    }
+
     @Test
     public void testSendInvoice_happyPath() throws Exception {
         // Setup
@@ -202,7 +284,8 @@ public class QuickBooksModuleTest {
         matchingInvoice.setCustomerMemo(new MemoRef());
         matchingInvoice.getCustomerMemo().setValue(MEMO);
         List<Invoice> invoices = List.of(nonMatchingInvoice, matchingInvoice);
-        when(dataService.findAll(any(Invoice.class))).thenReturn(invoices);
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(invoices));
 
         // Run
         Invoice returnedInvoice = quickBooksModule.getInvoiceWithMatchingMemo(MEMO);
@@ -215,7 +298,7 @@ public class QuickBooksModuleTest {
     public void testGetInvoiceWithMatchingMemo_dataServiceThrows() throws Exception {
         // Setup
         setupMethodTests();
-        when(dataService.findAll(any(Invoice.class))).thenThrow(FMSException.class);
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices()))).thenThrow(FMSException.class);
 
         // Run
         quickBooksModule.getInvoiceWithMatchingMemo(MEMO);
@@ -230,7 +313,8 @@ public class QuickBooksModuleTest {
         nonMatchingInvoice1.setCustomerMemo(new MemoRef());
         nonMatchingInvoice1.getCustomerMemo().setValue(EMAIL_ADDRESS);
         List<Invoice> invoices = List.of(nonMatchingInvoice, nonMatchingInvoice1);
-        when(dataService.findAll(any(Invoice.class))).thenReturn(invoices);
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(invoices));
 
         // Run
         Invoice returnedInvoice = quickBooksModule.getInvoiceWithMatchingMemo(MEMO);
@@ -239,6 +323,29 @@ public class QuickBooksModuleTest {
         assertNull(returnedInvoice);
     }
 
+    @Test
+    public void testGetInvoicesWithMatchingMemos_scansInvoicesOnce() throws Exception {
+        // Setup
+        setupMethodTests();
+        Invoice matchingInvoice = new Invoice();
+        matchingInvoice.setCustomerMemo(new MemoRef());
+        matchingInvoice.getCustomerMemo().setValue(MEMO);
+        Invoice otherInvoice = new Invoice();
+        otherInvoice.setCustomerMemo(new MemoRef());
+        otherInvoice.getCustomerMemo().setValue(EMAIL_ADDRESS);
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of(new Invoice(), matchingInvoice, otherInvoice)));
+
+        // Run
+        Map<String, Invoice> invoicesByMemo = quickBooksModule.getInvoicesWithMatchingMemos(List.of(MEMO, "no match"));
+        Invoice returnedInvoice = quickBooksModule.getInvoiceWithMatchingMemo(EMAIL_ADDRESS);
+
+        // Verify
+        assertEquals(Map.of(MEMO, matchingInvoice), invoicesByMemo);
+        assertEquals(otherInvoice, returnedInvoice);
+        verify(dataService, Mockito.times(1)).executeQuery(anyString());
+    }
+
     public void setupCustomer() {
         customer = new Customer();
         customer.setCompanyName("Berkeley");
@@ -265,6 +372,8 @@ public class QuickBooksModuleTest {
         // Setup
         setupMethodTests();
         setupCustomer();
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of()));
+        when(dataService.add(any(Customer.class))).thenAnswer(invocation -> invocation.getArgument(0));
 
         // Run
         Customer returnedCustomer = quickBooksModule.updateCustomerFromSchool(school);
@@ -283,7 +392,8 @@ public class QuickBooksModuleTest {
         initialCustomer.setDisplayName("Berkeley");
         initialCustomer.setSyncToken("12345");
         initialCustomer.setId("12345");
-        when(dataService.findAll(any(Customer.class))).thenReturn(List.of(initialCustomer));
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(initialCustomer)));
+        when(dataService.update(any(Customer.class))).thenAnswer(invocation -> invocation.getArgument(0));
 
         // Run
         Customer returnedCustomer = quickBooksModule.updateCustomerFromSchool(school);
@@ -296,36 +406,306 @@ public class QuickBooksModuleTest {
         verify(dataService).update(returnedCustomer);
     }
 
+    @Test
+    public void testUpdateCustomerFromSchool_unchangedCustomer_skipsUpdate() throws Exception {
+        // Setup
+        setupMethodTests();
+        Customer initialCustomer = QuickBooksUtil.getCustomerFromSchool(school);
+        initialCustomer.setSyncToken("12345");
+        initialCustomer.setId("12345");
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(initialCustomer)));
+
+        // Run
+        Customer returnedCustomer = quickBooksModule.updateCustomerFromSchool(school);
+
+        // Verify
+        assertEquals(initialCustomer, returnedCustomer);
+        verify(dataService, Mockito.never()).update(any(Customer.class));
+    }
+
+    @Test
+    public void testUpdateCustomerFromSchoolAsync_addCustomer() throws Exception {
+        // Setup
+        setupMethodTests();
+        doAnswer(invocation -> {
+            CallbackMessage callbackMessage = new CallbackMessage();
+            callbackMessage.setQueryResult(getQueryResult(List.of()));
+            ((CallbackHandler) invocation.getArgument(1)).execute(callbackMessage);
+            return null;
+        }).when(dataService).executeQueryAsync(anyString(), any(CallbackHandler.class));
+        doAnswer(invocation -> {
+            CallbackMessage callbackMessage = new CallbackMessage();
+            callbackMessage.setEntity(invocation.getArgument(0));
+            ((CallbackHandler) invocation.getArgument(1)).execute(callbackMessage);
+            return null;
+        }).when(dataService).addAsync(any(Customer.class), any(CallbackHandler.class));
+
+        // Run
+        Customer returnedCustomer = quickBooksModule.updateCustomerFromSchoolAsync(school).join();
+
+        // Verify
+        assertEquals(QuickBooksUtil.getCustomerFromSchool(school), returnedCustomer);
+        verify(dataService).addAsync(eq(returnedCustomer), any(CallbackHandler.class));
+    }
+
+    @Test
+    public void testQueryInvoicesFromRegistrationAsync_matchesBlockingVersion() throws Exception {
+        // Setup
+        CountingDataService countingDataService = setupCountingDataService(new CountingDataService());
+        quickBooksModule.updateCustomerFromSchool(school);
+        quickBooksModule.createInvoicesFromRegistration(registration);
+        countingDataService.resetCalls();
+
+        // Run
+        Map<InvoiceType, Invoice> invoiceMap = quickBooksModule.queryInvoicesFromRegistrationAsync(registration).join();
+
+        // Verify
+        assertEquals(0, countingDataService.getCallCount("executeQuery"));
+        assertEquals(Set.of(InvoiceType.FC_SCHOOL_FEE, InvoiceType.FC_DELEGATE_FEE), invoiceMap.keySet());
+        assertEquals(quickBooksModule.queryInvoicesFromRegistration(registration), invoiceMap);
+    }
+
+    @Test
+    public void testCreateInvoicesFromRegistrationAsync_schoolFeeInvoiceFirst() throws Exception {
+        // Setup
+        CountingDataService countingDataService = setupCountingDataService(new CountingDataService());
+        quickBooksModule.updateCustomerFromSchool(school);
+
+        // Run
+        Map<InvoiceType, Invoice> invoiceMap =
+                quickBooksModule.createInvoicesFromRegistrationAsync(registration).join();
+
+        // Verify
+        assertEquals(
+                List.of(InvoiceType.FC_SCHOOL_FEE, InvoiceType.FC_DELEGATE_FEE),
+                List.copyOf(invoiceMap.keySet())
+        );
+        assertEquals(2, countingDataService.getCallCount("addAsync"));
+        for (Map.Entry<InvoiceType, Invoice> entry : invoiceMap.entrySet()) {
+            assertEquals(entry.getKey(), QuickBooksUtil.getInvoiceTypeFromInvoice(entry.getValue()));
+        }
+    }
+
+    @Test
+    public void testCreateInvoicesFromRegistrationAsync_delegateFeeInvoiceFails_schoolFeeInvoiceIndexed()
+            throws Exception {
+        // Setup
+        setupCountingDataService(getCountingDataServiceFailingToAdd(InvoiceType.FC_DELEGATE_FEE));
+        quickBooksModule.updateCustomerFromSchool(school);
+        quickBooksModule.loadInvoiceIndex(QuickBooksUtil.getEarliestInvoiceDate(registration));
+
+        // Run
+        CompletionException exception = Assert.assertThrows(
+                CompletionException.class,
+                () -> quickBooksModule.createInvoicesFromRegistrationAsync(registration).join()
+        );
+
+        // Verify
+        assertTrue(exception.getCause() instanceof QuickBooksException);
+        assertEquals("Error creating a new delegate fee invoice", exception.getCause().getMessage());
+        Map<InvoiceType, Invoice> invoiceMap = quickBooksModule.queryInvoicesFromRegistration(registration);
+        assertEquals(Set.of(InvoiceType.FC_SCHOOL_FEE), invoiceMap.keySet());
+    }
+
+    @Test
+    public void testCreateInvoicesFromRegistrationAsync_schoolFeeInvoiceFails_delegateFeeInvoiceNotAdded()
+            throws Exception {
+        // Setup
+        CountingDataService countingDataService =
+                setupCountingDataService(getCountingDataServiceFailingToAdd(InvoiceType.FC_SCHOOL_FEE));
+        quickBooksModule.updateCustomerFromSchool(school);
+
+        // Run
+        CompletionException exception = Assert.assertThrows(
+                CompletionException.class,
+                () -> quickBooksModule.createInvoicesFromRegistrationAsync(registration).join()
+        );
+
+        // Verify
+        assertEquals("Error creating a new school fee invoice", exception.getCause().getMessage());
+        // The failed add isn't counted, so any counted add would be of the delegate fee invoice
+        assertEquals(0, countingDataService.getCallCount("addAsync"));
+    }
+
+    @Test
+    public void testSendInvoiceAsync_happyPath() throws Exception {
+        // Setup
+        setupMethodTests();
+        setupInvoiceTests();
+        when(billEmail.getAddress()).thenReturn(EMAIL_ADDRESS);
+
+        // Run
+        quickBooksModule.sendInvoiceAsync(invoice, "").join();
+
+        // Verify
+        assertEquals(EmailStatusEnum.EMAIL_SENT, invoice.getEmailStatus());
+        verify(dataService).sendEmail(invoice, EMAIL_ADDRESS);
+    }
+
+    @Test
+    public void testSendInvoiceAsync_dataServiceThrows() throws Exception {
+        // Setup
+        setupMethodTests();
+        setupInvoiceTests();
+        when(dataService.sendEmail(any(), any())).thenThrow(FMSException.class);
+
+        // Run
+        CompletionException exception = Assert.assertThrows(
+                CompletionException.class,
+                () -> quickBooksModule.sendInvoiceAsync(invoice, "").join()
+        );
+
+        // Verify
+        assertTrue(exception.getCause() instanceof QuickBooksException);
+    }
+
+    /**
+     * Creates the module under test on the passed CountingDataService, seeded with an Item for each ItemType
+     * @param countingDataService - The DataService to create the module on
+     * @return - The passed DataService
+     */
+    private CountingDataService setupCountingDataService(CountingDataService countingDataService) throws Exception {
+        whenNew(DataService.class).withAnyArguments().thenReturn(countingDataService);
+        for (ItemType itemType : ItemType.values()) {
+            Item item = new Item();
+            item.setName(itemType.toString());
+            countingDataService.seed(item);
+        }
+        quickBooksModule = new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false);
+        return countingDataService;
+    }
+
+    /**
+     * Gets a CountingDataService whose asynchronous adds of invoices of the passed type fail, without being counted
+     * @param failingInvoiceType - The type of invoice which can't be added
+     * @return - The DataService
+     */
+    private static CountingDataService getCountingDataServiceFailingToAdd(InvoiceType failingInvoiceType)
+            throws FMSException {
+        return new CountingDataService() {
+            @Override
+            public <T extends IEntity> void addAsync(T entity, CallbackHandler callbackHandler) throws FMSException {
+                if (entity instanceof Invoice
+                        && QuickBooksUtil.getInvoiceTypeFromInvoice((Invoice) entity) == failingInvoiceType) {
+                    CallbackMessage callbackMessage = new CallbackMessage();
+                    callbackMessage.setFMSException(new FMSException("Couldn't add invoice"));
+                    callbackHandler.execute(callbackMessage);
+                    return;
+                }
+                super.addAsync(entity, callbackHandler);
+            }
+        };
+    }
+
+    @Test
+    public void testResolveCustomers_happyPath() throws Exception {
+        // Setup
+        setupMethodTests();
+        School otherSchool = School.builder()
+                .schoolName("Stanford")
+                .email("stanford@stanford.edu")
+                .phoneNumbers(List.of())
+                .address(address)
+                .build();
+        Customer calCustomer = new Customer();
+        calCustomer.setId(CUSTOMER_ID);
+        calCustomer.setDisplayName("CAL");
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(calCustomer)));
+        when(dataService.update(any(Customer.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        // Run
+        Map<String, Customer> customers = quickBooksModule.resolveCustomers(List.of(school, otherSchool));
+        quickBooksModule.updateCustomerFromSchool(school);
+
+        // Verify
+        assertEquals(Map.of(SCHOOL_NAME, calCustomer), customers);
+        verify(dataService, Mockito.times(1)).executeQuery(anyString());
+        verify(dataService).update(any(Customer.class));
+    }
+
+    @Test
+    public void testUpdateCustomersFromRegistrations_mapsFaultsToRegistrations() throws Exception {
+        // Setup
+        setupMethodTests();
+        School otherSchool = School.builder()
+                .schoolName("Stanford")
+                .email("stanford@stanford.edu")
+                .phoneNumbers(List.of())
+                .address(address)
+                .build();
+        Registration otherRegistration = Registration.builder()
+                .school(otherSchool)
+                .numDelegates(NUM_DELEGATES)
+                .registrationDate(registrationDate)
+                .paymentMethod(PaymentMethod.CHECK)
+                .conference(Conference.FC)
+                .build();
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of()));
+        BatchOperation batchOperation = mock(BatchOperation.class);
+        whenNew(BatchOperation.class).withNoArguments().thenReturn(batchOperation);
+        Customer savedCustomer = new Customer();
+        savedCustomer.setId(CUSTOMER_ID);
+        savedCustomer.setDisplayName(SCHOOL_NAME);
+        when(batchOperation.isEntity("bId0")).thenReturn(true);
+        when(batchOperation.getEntity("bId0")).thenReturn(savedCustomer);
+        when(batchOperation.isFault("bId1")).thenReturn(true);
+        when(batchOperation.getFault("bId1")).thenReturn(new Fault());
+
+        // Run
+        BatchResult<Registration, Customer> result =
+                quickBooksModule.updateCustomersFromRegistrations(List.of(registration, otherRegistration));
+
+        // Verify
+        assertEquals(Map.of(registration, savedCustomer), result.getResults());
+        assertEquals(Set.of(otherRegistration), result.getFailures().keySet());
+        verify(batchOperation).addEntity(any(Customer.class), eq(OperationEnum.CREATE), eq("bId0"));
+        verify(batchOperation).addEntity(any(Customer.class), eq(OperationEnum.CREATE), eq("bId1"));
+        verify(dataService, Mockito.times(1)).executeBatch(batchOperation);
+    }
+
     @Test(expected = QuickBooksException.class)
     public void testUpdateCustomerFromSchool_dataServiceThrows() throws Exception {
         // Setup
         setupMethodTests();
         // Mocking "add" as the test case will interact with a dataService with
         // no existing customers and will add a new customer
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of()));
         when(dataService.add(any(Customer.class))).thenThrow((FMSException.class));
 
         // Run
         quickBooksModule.updateCustomerFromSchool(school);
     }
 
+    private QueryResult getQueryResult(List<? extends IEntity> entities) {
+        QueryResult queryResult = new QueryResult();
+        queryResult.setEntities(entities);
+        return queryResult;
+    }
+
+    private Invoice getInvoiceForCustomer(String id, String customerId) {
+        Invoice invoice = new Invoice();
+        invoice.setId(id);
+        ReferenceType customerRef = new ReferenceType();
+        customerRef.setValue(customerId);
+        invoice.setCustomerRef(customerRef);
+        return invoice;
+    }
+
     @Test
     public void testQueryInvoicesFromRegistration_happyPath() throws Exception {
         // Setup
-        // dataservice returns a list of customers, one of which matches the school
+        // dataservice returns the customer matching the school
         setupMethodTests();
-        when(dataService.findAll(any(Customer.class))).thenReturn(List.of(customer));
-        when(customer.getDisplayName()).thenReturn(SCHOOL_NAME);
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(customer)));
+        when(customer.getId()).thenReturn(CUSTOMER_ID);
         // construct matching invoices
-        Invoice schoolFeeInvoice = new Invoice();
-        schoolFeeInvoice.setId("school fee");
-        Invoice delFeeInvoice = new Invoice();
-        delFeeInvoice.setId("del fee");
-        Invoice randomInvoice = new Invoice();
-        randomInvoice.setId("random fee");
-        when(dataService.findAll(any(Invoice.class)))
-                .thenReturn(List.of(schoolFeeInvoice, delFeeInvoice, randomInvoice));
+        Invoice schoolFeeInvoice = getInvoiceForCustomer("school fee", CUSTOMER_ID);
+        Invoice delFeeInvoice = getInvoiceForCustomer("del fee", CUSTOMER_ID);
+        Invoice randomInvoice = getInvoiceForCustomer("random fee", CUSTOMER_ID);
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of(schoolFeeInvoice, delFeeInvoice, randomInvoice)));
         mockStatic(QuickBooksUtil.class);
-        when(QuickBooksUtil.checkInvoiceMatchesCustomer(any(Invoice.class), eq(customer))).thenReturn(true);
+        when(QuickBooksUtil.getEarliestInvoiceDate(registration)).thenReturn(registrationDate);
         when(QuickBooksUtil.getInvoiceTypeFromInvoice(schoolFeeInvoice)).thenReturn(InvoiceType.BMUN_SCHOOL_FEE);
         when(QuickBooksUtil.getInvoiceTypeFromInvoice(delFeeInvoice)).thenReturn(InvoiceType.BMUN_DELEGATE_FEE);
         when(QuickBooksUtil.getInvoiceTypeFromInvoice(randomInvoice)).thenReturn(null);
@@ -340,13 +720,61 @@ public class QuickBooksModuleTest {
         );
     }
 
+    @Test
+    public void testQueryInvoicesFromRegistration_usesLoadedInvoiceIndex() throws Exception {
+        // Setup
+        setupMethodTests();
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(customer)));
+        when(customer.getId()).thenReturn(CUSTOMER_ID);
+        Invoice schoolFeeInvoice = getInvoiceForCustomer("school fee", CUSTOMER_ID);
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of(schoolFeeInvoice)));
+        mockStatic(QuickBooksUtil.class);
+        when(QuickBooksUtil.getEarliestInvoiceDate(registration)).thenReturn(registrationDate);
+        when(QuickBooksUtil.getInvoiceTypeFromInvoice(schoolFeeInvoice)).thenReturn(InvoiceType.FC_SCHOOL_FEE);
+
+        // Do
+        quickBooksModule.loadInvoiceIndex(registrationDate);
+        quickBooksModule.queryInvoicesFromRegistration(registration);
+        Map<InvoiceType, Invoice> invoiceMap = quickBooksModule.queryInvoicesFromRegistration(registration);
+
+        // Verify
+        assertEquals(Map.of(InvoiceType.FC_SCHOOL_FEE, schoolFeeInvoice), invoiceMap);
+        verify(dataService, Mockito.times(1)).executeQuery(contains(QueryModule.getQueryForAllInvoices()));
+    }
+
+    @Test
+    public void testQueryInvoicesFromRegistration_filtersInvoicesServerSide() throws Exception {
+        // Setup
+        setupMethodTests();
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(customer)));
+        when(customer.getId()).thenReturn(CUSTOMER_ID);
+        String invoiceQuery = QueryModule.getQueryForInvoicesFromCustomer(
+                CUSTOMER_ID,
+                RegistrationRound.FC_ROUND_1.getRoundStartDate()
+        );
+        Invoice schoolFeeInvoice = getInvoiceForCustomer("school fee", CUSTOMER_ID);
+        when(dataService.executeQuery(startsWith(invoiceQuery)))
+                .thenReturn(getQueryResult(List.of(schoolFeeInvoice)));
+        mockStatic(QuickBooksUtil.class);
+        when(QuickBooksUtil.getEarliestInvoiceDate(registration))
+                .thenReturn(RegistrationRound.FC_ROUND_1.getRoundStartDate());
+        when(QuickBooksUtil.getInvoiceTypeFromInvoice(schoolFeeInvoice)).thenReturn(InvoiceType.FC_SCHOOL_FEE);
+
+        // Do
+        Map<InvoiceType, Invoice> invoiceMap = quickBooksModule.queryInvoicesFromRegistration(registration);
+
+        // Verify
+        assertEquals(Map.of(InvoiceType.FC_SCHOOL_FEE, schoolFeeInvoice), invoiceMap);
+        verify(dataService).executeQuery(startsWith(invoiceQuery));
+    }
+
     @Test
     public void testQueryInvoicesFromRegistration_nullCustomer() throws Exception {
         // Setup
-        // dataservice returns a list of customers, one of which matches the school
+        // dataservice doesn't find a customer matching the school
         setupMethodTests();
-        when(dataService.findAll(any(Customer.class))).thenReturn(List.of(customer));
-        when(customer.getContactName()).thenReturn(MEMO);
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of()));
 
         // Do
         Map<InvoiceType, Invoice> invoiceMap = quickBooksModule.queryInvoicesFromRegistration(registration);
@@ -358,21 +786,20 @@ public class QuickBooksModuleTest {
     @Test
     public void testQueryInvoicesFromRegistration_noInvoicesForCustomer() throws Exception {
         // Setup
-        // dataservice returns a list of customers, one of which matches the school
+        // dataservice returns the customer matching the school
         setupMethodTests();
-        when(dataService.findAll(any(Customer.class))).thenReturn(List.of(customer));
-        when(customer.getContactName()).thenReturn(SCHOOL_NAME);
-        // construct matching invoices
-        Invoice schoolFeeInvoice = new Invoice();
-        schoolFeeInvoice.setId("school fee");
-        Invoice delFeeInvoice = new Invoice();
-        delFeeInvoice.setId("del fee");
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(customer)));
+        when(customer.getId()).thenReturn(CUSTOMER_ID);
+        // construct invoices for other customers
+        Invoice schoolFeeInvoice = getInvoiceForCustomer("school fee", "other customer id");
+        Invoice delFeeInvoice = getInvoiceForCustomer("del fee", "other customer id");
         Invoice randomInvoice = new Invoice();
         randomInvoice.setId("random fee");
-        when(dataService.findAll(any(Invoice.class)))
-                .thenReturn(List.of(schoolFeeInvoice, delFeeInvoice, randomInvoice));
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of(schoolFeeInvoice, delFeeInvoice, randomInvoice)));
         mockStatic(QuickBooksUtil.class);
-        when(QuickBooksUtil.checkInvoiceMatchesCustomer(any(Invoice.class), eq(customer))).thenReturn(false);
+        when(QuickBooksUtil.getEarliestInvoiceDate(registration)).thenReturn(registrationDate);
+        when(QuickBooksUtil.getInvoiceTypeFromInvoice(any(Invoice.class))).thenReturn(InvoiceType.FC_SCHOOL_FEE);
 
         // Do
         Map<InvoiceType, Invoice> invoiceMap = quickBooksModule.queryInvoicesFromRegistration(registration);
@@ -493,15 +920,7 @@ public class QuickBooksModuleTest {
         return invoice;
     }
 
-    @Test
-    public void testCreateInvoicesFromRegistration_happyPath() throws Exception {
-        // Setup
-        setupMethodTests();
-        // Mock customer to be used in CustomerRef
-        when(dataService.findAll(any(Customer.class))).thenReturn(List.of(customer));
-        when(customer.getId()).thenReturn(CUSTOMER_ID);
-        when(customer.getDisplayName()).thenReturn(SCHOOL_NAME);
-        // Mock items to be added to invoices
+    private void setupItems() throws Exception {
         Item fcSchoolFeeItem = new Item();
         fcSchoolFeeItem.setId(FC_SCHOOL_FEE_ITEM_ID);
         fcSchoolFeeItem.setName(ItemType.FC_SCHOOL_FEE.toString());
@@ -511,7 +930,153 @@ public class QuickBooksModuleTest {
         Item ccFeeItem = new Item();
         ccFeeItem.setId(CC_FEE_ITEM_ID);
         ccFeeItem.setName(ItemType.CREDIT_CARD_PROCESSING_FEE.toString());
-        when(dataService.findAll(any(Item.class))).thenReturn(List.of(fcSchoolFeeItem, fcDelFeeItem, ccFeeItem));
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllItems())))
+                .thenReturn(getQueryResult(List.of(fcSchoolFeeItem, fcDelFeeItem, ccFeeItem)));
+    }
+
+    @Test
+    public void testCheckItemsExist_loadsItemsOnce() throws Exception {
+        // Setup
+        setupMethodTests();
+        setupItems();
+
+        // Run
+        quickBooksModule.checkItemsExist(List.of(ItemType.FC_SCHOOL_FEE, ItemType.FC_DELEGATE_FEE));
+        quickBooksModule.checkItemsExist(List.of(ItemType.CREDIT_CARD_PROCESSING_FEE));
+
+        // Verify
+        verify(dataService, Mockito.times(1)).executeQuery(contains(QueryModule.getQueryForAllItems()));
+    }
+
+    @Test(expected = QuickBooksException.class)
+    public void testCheckItemsExist_missingItem() throws Exception {
+        // Setup
+        setupMethodTests();
+        setupItems();
+
+        // Run
+        quickBooksModule.checkItemsExist(List.of(ItemType.BMUN_SCHOOL_FEE));
+    }
+
+    @Test
+    public void testSyncCachedEntities_appliesChangesAfterFirstSync() throws Exception {
+        // Setup
+        setupMethodTests();
+        setupItems();
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of()));
+        Item renamedItem = new Item();
+        renamedItem.setId(FC_SCHOOL_FEE_ITEM_ID);
+        renamedItem.setName("Retired School Fee");
+        QueryResult changedItems = getQueryResult(List.of(renamedItem));
+        CDCQueryResult cdcQueryResult = new CDCQueryResult();
+        cdcQueryResult.setQueryResults(Map.of("Item", changedItems));
+        when(dataService.executeCDCQuery(any(), anyString())).thenReturn(List.of(cdcQueryResult));
+
+        // Run
+        quickBooksModule.syncCachedEntities(registrationDate);
+        quickBooksModule.syncCachedEntities(registrationDate);
+
+        // Verify
+        verify(dataService, Mockito.times(1)).executeQuery(contains(QueryModule.getQueryForAllItems()));
+        verify(dataService, Mockito.times(1)).executeQuery(contains(QueryModule.getQueryForAllInvoices()));
+        verify(dataService, Mockito.times(1)).executeCDCQuery(any(), anyString());
+        try {
+            quickBooksModule.checkItemsExist(List.of(ItemType.FC_SCHOOL_FEE));
+            Assert.fail("Expected renamed item to be dropped from the catalog");
+        } catch (QuickBooksException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSyncCachedEntities_restoresCacheSavedByPreviousRun() throws Exception {
+        // Setup
+        whenNew(DataService.class).withAnyArguments().thenReturn(dataService);
+        setupItems();
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of()));
+        when(dataService.executeCDCQuery(any(), anyString())).thenReturn(List.of());
+        Path cacheDirectory = temporaryFolder.getRoot().toPath();
+        new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false, cacheDirectory).syncCachedEntities(registrationDate);
+
+        // Run
+        QuickBooksModule restartedModule = new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false, cacheDirectory);
+        restartedModule.syncCachedEntities(registrationDate);
+
+        // Verify
+        verify(dataService, Mockito.times(1)).executeQuery(contains(QueryModule.getQueryForAllItems()));
+        verify(dataService, Mockito.times(1)).executeQuery(contains(QueryModule.getQueryForAllInvoices()));
+        verify(dataService, Mockito.times(1)).executeCDCQuery(any(), anyString());
+        restartedModule.checkItemsExist(List.of(ItemType.FC_SCHOOL_FEE, ItemType.FC_DELEGATE_FEE));
+    }
+
+    @Test
+    public void testQueryInvoicesFromRegistration_invoiceRestoredFromCache_fetchedInFull() throws Exception {
+        // Setup
+        whenNew(DataService.class).withAnyArguments().thenReturn(dataService);
+        Customer savedCustomer = new Customer();
+        savedCustomer.setId(CUSTOMER_ID);
+        savedCustomer.setDisplayName(SCHOOL_NAME);
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(savedCustomer)));
+        setupItems();
+        Invoice schoolFeeInvoice = getInvoiceForCustomer("school fee", CUSTOMER_ID);
+        SalesItemLineDetail salesItemLineDetail = new SalesItemLineDetail();
+        ReferenceType itemRef = new ReferenceType();
+        itemRef.setValue(FC_SCHOOL_FEE_ITEM_ID);
+        itemRef.setName(ItemType.FC_SCHOOL_FEE.toString());
+        salesItemLineDetail.setItemRef(itemRef);
+        Line line = new Line();
+        line.setDetailType(LineDetailTypeEnum.SALES_ITEM_LINE_DETAIL);
+        line.setSalesItemLineDetail(salesItemLineDetail);
+        line.setAmount(BigDecimal.valueOf(35));
+        schoolFeeInvoice.setLine(List.of(line));
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of(schoolFeeInvoice)));
+        when(dataService.executeCDCQuery(any(), anyString())).thenReturn(List.of());
+        when(dataService.findById(any(Invoice.class))).thenReturn(schoolFeeInvoice);
+        Path cacheDirectory = temporaryFolder.getRoot().toPath();
+        LocalDate invoicesSince = QuickBooksUtil.getEarliestInvoiceDate(registration);
+        new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false, cacheDirectory).syncCachedEntities(invoicesSince);
+
+        // Run
+        QuickBooksModule restartedModule = new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false, cacheDirectory);
+        restartedModule.syncCachedEntities(invoicesSince);
+        Map<InvoiceType, Invoice> firstInvoiceMap = restartedModule.queryInvoicesFromRegistration(registration);
+        Map<InvoiceType, Invoice> secondInvoiceMap = restartedModule.queryInvoicesFromRegistration(registration);
+
+        // Verify
+        Assert.assertSame(schoolFeeInvoice, firstInvoiceMap.get(InvoiceType.FC_SCHOOL_FEE));
+        Assert.assertSame(schoolFeeInvoice, secondInvoiceMap.get(InvoiceType.FC_SCHOOL_FEE));
+        verify(dataService, Mockito.times(1)).executeQuery(contains(QueryModule.getQueryForAllInvoices()));
+        verify(dataService, Mockito.times(1)).findById(any(Invoice.class));
+    }
+
+    @Test(expected = QuickBooksException.class)
+    public void testSyncCachedEntities_cacheDirectoryUnwritable() throws Exception {
+        // Setup
+        whenNew(DataService.class).withAnyArguments().thenReturn(dataService);
+        setupItems();
+        when(dataService.executeQuery(contains(QueryModule.getQueryForAllInvoices())))
+                .thenReturn(getQueryResult(List.of()));
+        Path cacheDirectory = temporaryFolder.newFile("not a directory").toPath();
+        QuickBooksModule cachingModule = new QuickBooksModule(ACCESS_TOKEN, REALM_ID, false, cacheDirectory);
+
+        // Run
+        cachingModule.syncCachedEntities(registrationDate);
+    }
+
+    @Test
+    public void testCreateInvoicesFromRegistration_happyPath() throws Exception {
+        // Setup
+        setupMethodTests();
+        // Mock customer to be used in CustomerRef
+        when(dataService.executeQuery(anyString())).thenReturn(getQueryResult(List.of(customer)));
+        when(customer.getId()).thenReturn(CUSTOMER_ID);
+        when(customer.getDisplayName()).thenReturn(SCHOOL_NAME);
+        // Mock items to be added to invoices
+        setupItems();
+        when(dataService.add(any(Invoice.class))).thenAnswer(invocation -> invocation.getArgument(0));
 
 
         // Run
@@ -0,0 +1,144 @@
+package invoice_automation.module;
+
+import com.intuit.ipp.data.Error;
+import com.intuit.ipp.exception.FMSException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static invoice_automation.Consts.QBO_MAX_RETRIES;
+import static invoice_automation.Consts.QBO_RETRY_BASE_DELAY;
+import static invoice_automation.Consts.QBO_RETRY_MAX_DELAY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests QuickBooksRateLimiter, recording retry delays instead of waiting them out
+ */
+public class QuickBooksRateLimiterTest {
+    /**
+     * Fast enough that pacing calls never waits noticeably, even after the rate has been halved on every retry
+     */
+    private static final int REQUESTS_PER_MINUTE = 600_000;
+    private static final double RATE = REQUESTS_PER_MINUTE / 60.0;
+    private static final double RATE_DELTA = 1e-6;
+
+    private final List<Long> retryDelays = new ArrayList<>();
+    private final QuickBooksRateLimiter rateLimiter =
+            new QuickBooksRateLimiter(REQUESTS_PER_MINUTE, 10, retryDelays::add);
+
+    @Test
+    public void testExecute_throttleErrorCode_halvesRateAndRetries() throws Exception {
+        assertThrottledOnceThenSucceeds(new FMSException(List.of(getError("3001", "message=Too many requests"))));
+    }
+
+    @Test
+    public void testExecute_throttleExceededMessage_halvesRateAndRetries() throws Exception {
+        assertThrottledOnceThenSucceeds(new FMSException(List.of(getError("003001", "message=ThrottleExceeded"))));
+    }
+
+    @Test
+    public void testExecute_status429_halvesRateAndRetries() throws Exception {
+        assertThrottledOnceThenSucceeds(new FMSException("Failed to send request; statusCode=429"));
+    }
+
+    @Test
+    public void testExecute_otherError_notRetried() {
+        // Setup
+        FMSException exception = new FMSException(List.of(getError("6000", "A business validation error occurred")));
+        AtomicInteger calls = new AtomicInteger();
+
+        // Run
+        FMSException thrown = assertThrows(FMSException.class, () -> rateLimiter.execute(() -> {
+            calls.incrementAndGet();
+            throw exception;
+        }));
+
+        // Verify
+        assertSame(exception, thrown);
+        assertEquals(1, calls.get());
+        assertTrue(retryDelays.isEmpty());
+        assertEquals(RATE, rateLimiter.getRate(), RATE_DELTA);
+    }
+
+    @Test
+    public void testExecute_alwaysThrottled_stopsAfterMaxRetries() {
+        // Setup
+        FMSException exception = new FMSException(List.of(getError("3001", "message=ThrottleExceeded")));
+        AtomicInteger calls = new AtomicInteger();
+
+        // Run
+        FMSException thrown = assertThrows(FMSException.class, () -> rateLimiter.execute(() -> {
+            calls.incrementAndGet();
+            throw exception;
+        }));
+
+        // Verify
+        assertSame(exception, thrown);
+        assertEquals(QBO_MAX_RETRIES + 1, calls.get());
+        assertEquals(QBO_MAX_RETRIES, retryDelays.size());
+        for (int attempt = 0; attempt < QBO_MAX_RETRIES; attempt++) {
+            long maxDelayMillis =
+                    Math.min(QBO_RETRY_MAX_DELAY.toMillis(), QBO_RETRY_BASE_DELAY.toMillis() << attempt);
+            long retryDelay = retryDelays.get(attempt);
+            assertTrue(retryDelay >= maxDelayMillis / 2 && retryDelay <= maxDelayMillis);
+        }
+        assertEquals(RATE / Math.pow(2, QBO_MAX_RETRIES), rateLimiter.getRate(), RATE_DELTA);
+    }
+
+    @Test
+    public void testExecuteAsync_otherError_notRetried() {
+        // Setup
+        FMSException exception = new FMSException(List.of(getError("6000", "A business validation error occurred")));
+        AtomicInteger calls = new AtomicInteger();
+
+        // Run
+        CompletableFuture<Object> response = rateLimiter.executeAsync(future -> {
+            calls.incrementAndGet();
+            future.completeExceptionally(exception);
+        });
+
+        // Verify
+        CompletionException thrown = assertThrows(CompletionException.class, response::join);
+        assertSame(exception, thrown.getCause());
+        assertEquals(1, calls.get());
+        assertEquals(RATE, rateLimiter.getRate(), RATE_DELTA);
+    }
+
+    /**
+     * Makes a call which fails with the passed exception once then succeeds, checking it was retried once with the
+     * rate halved, then raised a little by the successful retry
+     * @param throttleException - What QuickBooks throttling the call looks like
+     */
+    private void assertThrottledOnceThenSucceeds(FMSException throttleException) throws FMSException {
+        // Setup
+        AtomicInteger calls = new AtomicInteger();
+
+        // Run
+        String result = rateLimiter.execute(() -> {
+            if (calls.incrementAndGet() == 1) {
+                throw throttleException;
+            }
+            return "result";
+        });
+
+        // Verify
+        assertEquals("result", result);
+        assertEquals(2, calls.get());
+        assertEquals(1, retryDelays.size());
+        assertEquals(RATE / 2 + 0.05, rateLimiter.getRate(), RATE_DELTA);
+    }
+
+    private static Error getError(String code, String message) {
+        Error error = new Error();
+        error.setCode(code);
+        error.setMessage(message);
+        return error;
+    }
+}
@@ -0,0 +1,181 @@
+package invoice_automation.module;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static invoice_automation.Consts.SHEET_RECHECK_ROWS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests SheetCheckpoint, saving checkpoints to a temporary folder
+ */
+public class SheetCheckpointTest {
+    private static final String SPREADSHEET_ID = "spreadsheet id";
+    private static final String SHEET_NAME = "Registrations";
+    private static final List<Object> ROW = List.of("Cal", "oski@berkeley.edu");
+    private static final List<Object> EDITED_ROW = List.of("Cal", "treasurer@berkeley.edu");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path checkpointDirectory;
+
+    @Before
+    public void setup() {
+        checkpointDirectory = temporaryFolder.getRoot().toPath();
+    }
+
+    @Test
+    public void testLoad_noSavedCheckpoint_fetchesWholeSheet() throws Exception {
+        // Run
+        SheetCheckpoint checkpoint = load();
+
+        // Verify
+        assertEquals(SheetCheckpoint.FIRST_ROW, checkpoint.getFirstRowToFetch());
+        assertEquals(List.of(), checkpoint.getPendingRowsToFetch());
+        assertTrue(checkpoint.needsProcessing(SheetCheckpoint.FIRST_ROW, SheetCheckpoint.hashRow(ROW)));
+    }
+
+    @Test
+    public void testGetFirstRowToFetch_rechecksRecentRows() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+        int lastRow = SHEET_RECHECK_ROWS + 100;
+
+        // Run
+        checkpoint.markProcessed(lastRow, SheetCheckpoint.hashRow(ROW));
+
+        // Verify
+        assertEquals(lastRow + 1, checkpoint.getNextRow());
+        assertEquals(lastRow + 1 - SHEET_RECHECK_ROWS, checkpoint.getFirstRowToFetch());
+    }
+
+    @Test
+    public void testGetFirstRowToFetch_fewRowsRead_neverBeforeFirstRow() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+
+        // Run
+        checkpoint.markProcessed(SheetCheckpoint.FIRST_ROW + 1, SheetCheckpoint.hashRow(ROW));
+
+        // Verify
+        assertEquals(SheetCheckpoint.FIRST_ROW, checkpoint.getFirstRowToFetch());
+    }
+
+    @Test
+    public void testGetPendingRowsToFetch_onlyRowsBeforeRecheckWindow() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+        int lastRow = SHEET_RECHECK_ROWS + 100;
+
+        // Run
+        checkpoint.markPending(10);
+        checkpoint.markPending(lastRow - 1);
+        checkpoint.markProcessed(lastRow, SheetCheckpoint.hashRow(ROW));
+
+        // Verify
+        assertEquals(List.of(10), checkpoint.getPendingRowsToFetch());
+        assertEquals(List.of(10, lastRow - 1), checkpoint.getPendingRows(SheetCheckpoint.FIRST_ROW, lastRow + 1));
+    }
+
+    @Test
+    public void testNeedsProcessing_detectsEditsByHash() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+
+        // Run
+        checkpoint.markProcessed(5, SheetCheckpoint.hashRow(ROW));
+
+        // Verify
+        assertFalse(checkpoint.needsProcessing(5, SheetCheckpoint.hashRow(ROW)));
+        assertTrue(checkpoint.needsProcessing(5, SheetCheckpoint.hashRow(EDITED_ROW)));
+        assertTrue(checkpoint.needsProcessing(6, SheetCheckpoint.hashRow(ROW)));
+    }
+
+    @Test
+    public void testNeedsProcessing_pendingRow_evenIfUnchanged() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+        checkpoint.markProcessed(5, SheetCheckpoint.hashRow(ROW));
+
+        // Run
+        checkpoint.markPending(5);
+
+        // Verify
+        assertTrue(checkpoint.needsProcessing(5, SheetCheckpoint.hashRow(ROW)));
+    }
+
+    @Test
+    public void testHashRow_distinguishesCellBoundaries() {
+        // Verify
+        assertNotEquals(SheetCheckpoint.hashRow(List.of("ab", "c")), SheetCheckpoint.hashRow(List.of("a", "bc")));
+        assertEquals(SheetCheckpoint.hashRow(List.of("a", 1)), SheetCheckpoint.hashRow(List.of("a", "1")));
+    }
+
+    @Test
+    public void testClearPending_doesntMoveCheckpoint() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+        checkpoint.markPending(5);
+
+        // Run
+        checkpoint.clearPending(5);
+
+        // Verify
+        assertEquals(List.of(), checkpoint.getPendingRows(SheetCheckpoint.FIRST_ROW, Integer.MAX_VALUE));
+        assertEquals(6, checkpoint.getNextRow());
+        assertTrue(checkpoint.needsProcessing(5, SheetCheckpoint.hashRow(List.of())));
+    }
+
+    @Test
+    public void testSave_roundTrip() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+        int lastRow = SHEET_RECHECK_ROWS + 100;
+        checkpoint.markProcessed(3, SheetCheckpoint.hashRow(ROW));
+        checkpoint.markPending(4);
+        checkpoint.markPending(lastRow - 1);
+        checkpoint.markProcessed(lastRow, SheetCheckpoint.hashRow(ROW));
+
+        // Run
+        checkpoint.save();
+        SheetCheckpoint loadedCheckpoint = load();
+
+        // Verify
+        assertEquals(lastRow + 1, loadedCheckpoint.getNextRow());
+        assertEquals(
+                List.of(4, lastRow - 1),
+                loadedCheckpoint.getPendingRows(SheetCheckpoint.FIRST_ROW, Integer.MAX_VALUE)
+        );
+        assertFalse(loadedCheckpoint.needsProcessing(lastRow, SheetCheckpoint.hashRow(ROW)));
+        assertTrue(loadedCheckpoint.needsProcessing(lastRow, SheetCheckpoint.hashRow(EDITED_ROW)));
+        // Hashes of rows before the recheck window aren't kept, since those rows aren't fetched again
+        assertTrue(loadedCheckpoint.needsProcessing(3, SheetCheckpoint.hashRow(ROW)));
+    }
+
+    @Test
+    public void testSave_otherSheet_notShared() throws Exception {
+        // Setup
+        SheetCheckpoint checkpoint = load();
+        checkpoint.markProcessed(10, SheetCheckpoint.hashRow(ROW));
+
+        // Run
+        checkpoint.save();
+        SheetCheckpoint otherCheckpoint = SheetCheckpoint.load(checkpointDirectory, SPREADSHEET_ID, "Other sheet");
+
+        // Verify
+        assertEquals(SheetCheckpoint.FIRST_ROW, otherCheckpoint.getNextRow());
+    }
+
+    private SheetCheckpoint load() throws Exception {
+        return SheetCheckpoint.load(checkpointDirectory, SPREADSHEET_ID, SHEET_NAME);
+    }
+}
@@ -0,0 +1,238 @@
+package invoice_automation.module;
+
+import invoice_automation.QuickBooksException;
+import invoice_automation.model.Conference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests SheetRegistrationReader against FakeSheets, with windows of 3 rows
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({GoogleSheetsModule.class})
+public class SheetRegistrationReaderTest {
+    private static final String SPREADSHEET_ID = "spreadsheet id";
+    private static final String SHEET_NAME = "Registrations";
+    private static final int WINDOW_SIZE = 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeSheets sheets;
+
+    @Before
+    public void setup() throws Exception {
+        sheets = new FakeSheets();
+    }
+
+    @Test
+    public void testRead_rowsAcrossWindows_readInRowOrder() {
+        // Setup
+        sheets.setRows(SHEET_NAME, List.of(
+                getRow("A"), getRow("B"), getRow("C"), getRow("D"), getRow("E"), getRow("F"), getRow("G")
+        ));
+
+        // Run
+        List<SheetRegistration> registrations = read(newReader(null));
+
+        // Verify
+        assertEquals(List.of("A", "B", "C", "D", "E", "F", "G"), getSchoolNames(registrations));
+        assertEquals(List.of(2, 3, 4, 5, 6, 7, 8), getRowNumbers(registrations));
+        assertEquals(
+                List.of(
+                        SHEET_NAME + "!A2:M4",
+                        SHEET_NAME + "!A5:M7",
+                        SHEET_NAME + "!A8:M10",
+                        SHEET_NAME + "!A11:M13"
+                ),
+                sheets.getFetchedRanges()
+        );
+    }
+
+    @Test
+    public void testRead_badRows_skippedAndReturnedAsErrors() {
+        // Setup
+        sheets.setRows(SHEET_NAME, List.of(
+                getRow("A"),
+                getRow("B", "ten", "2023-09-04"),
+                getRow("C"),
+                getRow("D", "10", "4 Sept"),
+                List.of("E", "e@berkeley.edu"),
+                getRow("F")
+        ));
+        SheetRegistrationReader reader = newReader(null);
+
+        // Run
+        List<SheetRegistration> registrations = read(reader);
+
+        // Verify
+        assertEquals(List.of("A", "C", "F"), getSchoolNames(registrations));
+        assertEquals(
+                List.of(
+                        new RowParseError(SHEET_NAME, 3, "Invalid number of delegates \"ten\""),
+                        new RowParseError(SHEET_NAME, 5, "Invalid registration date \"4 Sept\""),
+                        new RowParseError(SHEET_NAME, 6, "Expected at least 12 cells but found 2")
+                ),
+                reader.getParseErrors()
+        );
+    }
+
+    @Test
+    public void testRead_blankAndInvoicedRows_skipped() {
+        // Setup
+        List<Object> invoicedRow = new ArrayList<>(getRow("B"));
+        invoicedRow.add("TRUE");
+        sheets.setRows(SHEET_NAME, List.of(getRow("A"), invoicedRow, List.of(), List.of(), getRow("C")));
+        SheetRegistrationReader reader = newReader(null);
+
+        // Run
+        List<SheetRegistration> registrations = read(reader);
+
+        // Verify
+        assertEquals(List.of("A", "C"), getSchoolNames(registrations));
+        assertTrue(reader.getParseErrors().isEmpty());
+    }
+
+    @Test
+    public void testRead_blankRowsFillingAWindow_endSheet() {
+        // Setup
+        sheets.setRows(SHEET_NAME, List.of(
+                getRow("A"), getRow("B"), getRow("C"), List.of(), List.of(), List.of(), getRow("D")
+        ));
+
+        // Run
+        List<SheetRegistration> registrations = read(newReader(null));
+
+        // Verify
+        assertEquals(List.of("A", "B", "C"), getSchoolNames(registrations));
+    }
+
+    @Test
+    public void testRead_checkpoint_skipsProcessedRowsAndRereadsBadRows() throws Exception {
+        // Setup
+        sheets.setRows(SHEET_NAME, List.of(getRow("A"), getRow("B", "ten", "2023-09-04"), getRow("C")));
+        SheetCheckpoint checkpoint =
+                SheetCheckpoint.load(temporaryFolder.getRoot().toPath(), SPREADSHEET_ID, SHEET_NAME);
+        for (SheetRegistration registration : read(newReader(checkpoint))) {
+            checkpoint.markProcessed(registration.getRowNumber(), registration.getRowHash());
+        }
+
+        // Run
+        SheetRegistrationReader reader = newReader(checkpoint);
+        List<SheetRegistration> registrations = read(reader);
+
+        // Verify
+        assertTrue(registrations.isEmpty());
+        assertEquals(List.of(3), getErrorRowNumbers(reader));
+        assertEquals(5, checkpoint.getNextRow());
+    }
+
+    @Test
+    public void testRead_pendingRowsNowBlankOrPastEnd_noLongerPending() throws Exception {
+        // Setup
+        sheets.setRows(SHEET_NAME, List.of(getRow("A"), getRow("B", "ten", "2023-09-04")));
+        SheetCheckpoint checkpoint =
+                SheetCheckpoint.load(temporaryFolder.getRoot().toPath(), SPREADSHEET_ID, SHEET_NAME);
+        read(newReader(checkpoint));
+        checkpoint.markPending(30);
+        sheets.setRows(SHEET_NAME, List.of(getRow("A")));
+
+        // Run
+        read(newReader(checkpoint));
+
+        // Verify
+        assertEquals(List.of(2), checkpoint.getPendingRows(SheetCheckpoint.FIRST_ROW, Integer.MAX_VALUE));
+        assertEquals(31, checkpoint.getNextRow());
+    }
+
+    @Test
+    public void testRead_pendingRowBeforeRecheckWindowNowBlank_noLongerPending() throws Exception {
+        // Setup
+        sheets.setRows(SHEET_NAME, List.of(getRow("A")));
+        SheetCheckpoint checkpoint =
+                SheetCheckpoint.load(temporaryFolder.getRoot().toPath(), SPREADSHEET_ID, SHEET_NAME);
+        checkpoint.markPending(3);
+        checkpoint.markProcessed(200, SheetCheckpoint.hashRow(List.of()));
+
+        // Run
+        read(newReader(checkpoint));
+
+        // Verify
+        assertTrue(sheets.getFetchedRanges().contains(SHEET_NAME + "!A3:M3"));
+        assertEquals(List.of(), checkpoint.getPendingRows(SheetCheckpoint.FIRST_ROW, Integer.MAX_VALUE));
+        assertEquals(201, checkpoint.getNextRow());
+    }
+
+    @Test
+    public void testRead_fetchFails_throwsQuickBooksException() {
+        // Setup
+        sheets.fail();
+        SheetRegistrationReader reader = newReader(null);
+
+        // Run and verify
+        assertThrows(QuickBooksException.class, reader::hasNext);
+        assertFalse(reader.hasNext());
+    }
+
+    private SheetRegistrationReader newReader(SheetCheckpoint checkpoint) {
+        return new SheetRegistrationReader(SPREADSHEET_ID, SHEET_NAME, Conference.FC, checkpoint, WINDOW_SIZE);
+    }
+
+    private static List<SheetRegistration> read(SheetRegistrationReader reader) {
+        List<SheetRegistration> registrations = new ArrayList<>();
+        reader.forEachRemaining(registrations::add);
+        return registrations;
+    }
+
+    private static List<String> getSchoolNames(List<SheetRegistration> registrations) {
+        return registrations.stream()
+                .map(registration -> registration.getRegistration().getSchool().getSchoolName())
+                .collect(Collectors.toList());
+    }
+
+    private static List<Integer> getRowNumbers(List<SheetRegistration> registrations) {
+        return registrations.stream().map(SheetRegistration::getRowNumber).collect(Collectors.toList());
+    }
+
+    private static List<Integer> getErrorRowNumbers(SheetRegistrationReader reader) {
+        return reader.getParseErrors().stream().map(RowParseError::getRowNumber).collect(Collectors.toList());
+    }
+
+    static List<Object> getRow(String schoolName) {
+        return getRow(schoolName, "10", "2023-09-04");
+    }
+
+    /**
+     * Gets the cells of a registration row without the trailing invoiceSent cell, as the Sheets API returns them
+     */
+    static List<Object> getRow(String schoolName, String numDelegates, String registrationDate) {
+        return List.of(
+                schoolName,
+                "oski@berkeley.edu",
+                "1234567890",
+                "2495 Bancroft Way",
+                "",
+                "Berkeley",
+                "CA",
+                "USA",
+                "94720",
+                numDelegates,
+                registrationDate,
+                "Card"
+        );
+    }
+}
@@ -0,0 +1,217 @@
+package invoice_automation.module;
+
+import invoice_automation.metrics.ApiMetrics;
+import invoice_automation.metrics.OperationMetrics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the batchUpdate requests SheetWriteBack makes, against FakeSheets
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({GoogleSheetsModule.class})
+public class SheetWriteBackTest {
+    private static final String SPREADSHEET_ID = "spreadsheet id";
+    private static final String SHEET_NAME = "Registrations";
+
+    private FakeSheets sheets;
+
+    @Before
+    public void setup() throws Exception {
+        sheets = new FakeSheets();
+    }
+
+    @Test
+    public void testRecord_processedRow_flagsRowFromColumnM() throws Exception {
+        // Setup
+        SheetWriteBack writeBack = new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 10);
+
+        // Run
+        writeBack.record(RowOutcome.builder()
+                .rowNumber(5)
+                .processed(true)
+                .invoiceIds(List.of("1", "2"))
+                .docNumbers(List.of("1001", "1002"))
+                .emailStatus("EmailSent")
+                .build());
+        writeBack.flush();
+
+        // Verify
+        assertEquals(
+                List.of(Map.of(
+                        SHEET_NAME + "!M5:Q5",
+                        List.of(List.of(Boolean.TRUE, "1, 2", "1001, 1002", "EmailSent", ""))
+                )),
+                sheets.getUpdates()
+        );
+    }
+
+    @Test
+    public void testRecord_failedRow_leavesColumnMUntouched() throws Exception {
+        // Setup
+        SheetWriteBack writeBack = new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 10);
+
+        // Run
+        writeBack.record(RowOutcome.builder()
+                .rowNumber(7)
+                .processed(false)
+                .invoiceIds(List.of("1"))
+                .docNumbers(List.of("1001"))
+                .emailStatus("NeedToSend")
+                .error("Failed to send invoice")
+                .build());
+        writeBack.flush();
+
+        // Verify
+        assertEquals(
+                List.of(Map.of(
+                        SHEET_NAME + "!N7:Q7",
+                        List.of(List.of("1", "1001", "NeedToSend", "Failed to send invoice"))
+                )),
+                sheets.getUpdates()
+        );
+    }
+
+    @Test
+    public void testRecord_parseError_writesErrorOnly() throws Exception {
+        // Setup
+        SheetWriteBack writeBack = new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 10);
+        RowParseError parseError = new RowParseError(SHEET_NAME, 9, "Invalid number of delegates \"ten\"");
+
+        // Run
+        writeBack.record(RowOutcome.fromParseError(parseError));
+        writeBack.flush();
+
+        // Verify
+        assertEquals(
+                List.of(Map.of(
+                        SHEET_NAME + "!N9:Q9",
+                        List.of(List.of("", "", "", "Failed to parse row: Invalid number of delegates \"ten\""))
+                )),
+                sheets.getUpdates()
+        );
+    }
+
+    @Test
+    public void testRecord_fullChunk_writtenInOneRequest() throws Exception {
+        // Setup
+        SheetWriteBack writeBack = new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 2);
+
+        // Run and verify
+        writeBack.record(getProcessedOutcome(2));
+        assertTrue(sheets.getUpdates().isEmpty());
+        writeBack.record(getFailedOutcome(3));
+        assertEquals(1, sheets.getUpdates().size());
+        assertEquals(
+                List.of(SHEET_NAME + "!M2:Q2", SHEET_NAME + "!N3:Q3"),
+                new ArrayList<>(sheets.getUpdates().get(0).keySet())
+        );
+        writeBack.record(getProcessedOutcome(4));
+        assertEquals(1, sheets.getUpdates().size());
+        writeBack.flush();
+        assertEquals(2, sheets.getUpdates().size());
+        assertEquals(List.of(SHEET_NAME + "!M4:Q4"), new ArrayList<>(sheets.getUpdates().get(1).keySet()));
+    }
+
+    @Test
+    public void testFlush_nothingRecorded_noRequest() throws Exception {
+        // Run
+        new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 10).flush();
+
+        // Verify
+        assertTrue(sheets.getUpdates().isEmpty());
+    }
+
+    @Test
+    public void testFlush_updateFails_outcomesKeptForNextFlush() throws Exception {
+        // Setup
+        SheetWriteBack writeBack = new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 10);
+        writeBack.record(getProcessedOutcome(2));
+        sheets.fail();
+
+        // Run
+        assertThrows(IOException.class, writeBack::flush);
+        sheets.recover();
+        writeBack.record(getFailedOutcome(3));
+        writeBack.flush();
+
+        // Verify
+        assertEquals(1, sheets.getUpdates().size());
+        assertEquals(
+                List.of(SHEET_NAME + "!M2:Q2", SHEET_NAME + "!N3:Q3"),
+                new ArrayList<>(sheets.getUpdates().get(0).keySet())
+        );
+    }
+
+    @Test
+    public void testRecord_chunkUpdateFails_outcomeKeptForNextFlush() throws Exception {
+        // Setup
+        SheetWriteBack writeBack = new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 1);
+        sheets.fail();
+
+        // Run
+        assertThrows(IOException.class, () -> writeBack.record(getProcessedOutcome(2)));
+        sheets.recover();
+        writeBack.flush();
+
+        // Verify
+        assertEquals(List.of(SHEET_NAME + "!M2:Q2"), new ArrayList<>(sheets.getUpdates().get(0).keySet()));
+    }
+
+    @Test
+    public void testFlush_recordsWriteBackPhasePerRequest() throws Exception {
+        // Setup
+        OperationMetrics metrics = ApiMetrics.global().forOperation(ApiMetrics.PHASE, "writeBack");
+        long calls = metrics.getCalls();
+        long failures = metrics.getFailures();
+        long payloadSize = metrics.getPayloadSize();
+        SheetWriteBack writeBack = new SheetWriteBack(SPREADSHEET_ID, SHEET_NAME, 2);
+
+        // Run
+        writeBack.record(getProcessedOutcome(2));
+        writeBack.record(getFailedOutcome(3));
+        writeBack.record(getProcessedOutcome(4));
+        sheets.fail();
+        assertThrows(IOException.class, writeBack::flush);
+        sheets.recover();
+        writeBack.flush();
+        writeBack.flush();
+
+        // Verify
+        assertEquals(calls + 3, metrics.getCalls());
+        assertEquals(failures + 1, metrics.getFailures());
+        assertEquals(payloadSize + 3, metrics.getPayloadSize());
+    }
+
+    private static RowOutcome getProcessedOutcome(int rowNumber) {
+        return RowOutcome.builder()
+                .rowNumber(rowNumber)
+                .processed(true)
+                .invoiceIds(List.of("1"))
+                .docNumbers(List.of("1001"))
+                .emailStatus("EmailSent")
+                .build();
+    }
+
+    private static RowOutcome getFailedOutcome(int rowNumber) {
+        return RowOutcome.builder()
+                .rowNumber(rowNumber)
+                .processed(false)
+                .invoiceIds(List.of())
+                .docNumbers(List.of())
+                .error("Failed to create customer")
+                .build();
+    }
+}
@@ -0,0 +1,154 @@
+package invoice_automation.benchmarks;
+
+import com.intuit.ipp.data.Customer;
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.ReferenceType;
+import invoice_automation.cache.InvoiceTemplates;
+import invoice_automation.cache.ItemCatalog;
+import invoice_automation.fees.FeeSchedule;
+import invoice_automation.model.Conference;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.ItemType;
+import invoice_automation.model.Registration;
+import invoice_automation.model.RegistrationRound;
+import invoice_automation.utils.QuickBooksUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks the QuickBooksUtil methods run for every registration and every invoice loaded from QuickBooks. Each
+ * invocation handles the next of a few thousand synthetic inputs, cycling through them, so branches and caches see a
+ * realistic mix rather than the same input every time.
+ *
+ * @author skberkeley
+ */
+@State(Scope.Thread)
+public class QuickBooksUtilBenchmark {
+    /**
+     * The number of synthetic registrations and invoices to cycle through
+     */
+    @Param({"5000"})
+    int inputCount;
+    /**
+     * The number of lines on each synthetic invoice
+     */
+    @Param({"2", "25"})
+    int linesPerInvoice;
+
+    private List<Registration> registrations;
+    private List<Invoice> invoices;
+    private Map<ItemType, ReferenceType> itemRefs;
+    private InvoiceTemplates invoiceTemplates;
+    private ReferenceType customerRef;
+    private Date invoiceDate;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.registrations = SyntheticData.registrations(this.inputCount, 42);
+        this.invoices = SyntheticData.invoices(this.inputCount, this.linesPerInvoice, 42);
+        this.itemRefs = SyntheticData.itemRefs();
+        this.invoiceTemplates = InvoiceTemplates.build(
+                ItemCatalog.fromItemRefs(this.itemRefs, Instant.now()),
+                FeeSchedule.current()
+        );
+        this.customerRef = new ReferenceType();
+        this.customerRef.setValue("1");
+        this.customerRef.setName("Berkeley High School");
+        this.invoiceDate = new Date();
+    }
+
+    private Registration nextRegistration() {
+        Registration registration = this.registrations.get(this.next);
+        this.next = this.next + 1 == this.inputCount ? 0 : this.next + 1;
+        return registration;
+    }
+
+    /**
+     * Builds a delegate fee invoice from scratch, including the item maps it's built from, as
+     * QuickBooksModule.constructInvoicesFromRegistration did before invoice templates. Kept as the baseline for
+     * constructInvoiceFromTemplate
+     */
+    @Benchmark
+    public Invoice constructInvoice() {
+        Registration registration = this.nextRegistration();
+        BigDecimal creditCardProcessingFee = QuickBooksUtil.calculateCreditCardProcessingFee(registration, false);
+        return QuickBooksUtil.constructInvoice(
+                this.customerRef,
+                this.invoiceDate,
+                this.invoiceDate,
+                QuickBooksUtil.constructItemQuantityMap(
+                        registration.getConference(),
+                        registration.getPaymentMethod(),
+                        registration.getNumDelegates()
+                ),
+                QuickBooksUtil.constructItemRateMap(registration.getConference(), false, creditCardProcessingFee),
+                QuickBooksUtil.constructItemRefMap(
+                        this.itemRefs,
+                        false,
+                        registration.getPaymentMethod(),
+                        registration.getConference()
+                ),
+                registration.getPaymentMethod()
+        );
+    }
+
+    /**
+     * Builds the same delegate fee invoice as constructInvoice, but from the precomputed template for the
+     * registration's round and payment method, as QuickBooksModule.constructInvoicesFromRegistration now does.
+     * Compare the two benchmarks' gc.alloc.rate.norm for the allocation saved per invoice
+     */
+    @Benchmark
+    public Invoice constructInvoiceFromTemplate() {
+        Registration registration = this.nextRegistration();
+        Conference conference = registration.getConference();
+        RegistrationRound registrationRound =
+                QuickBooksUtil.getRegistrationRound(registration.getRegistrationDate(), conference);
+        InvoiceType invoiceType =
+                conference == Conference.BMUN ? InvoiceType.BMUN_DELEGATE_FEE : InvoiceType.FC_DELEGATE_FEE;
+        return QuickBooksUtil.constructInvoice(
+                this.invoiceTemplates.getTemplate(
+                        conference,
+                        registrationRound,
+                        registration.getPaymentMethod(),
+                        invoiceType
+                ),
+                this.customerRef,
+                this.invoiceDate,
+                registration.getNumDelegates()
+        );
+    }
+
+    @Benchmark
+    public BigDecimal calculateCreditCardProcessingFee() {
+        return QuickBooksUtil.calculateCreditCardProcessingFee(this.nextRegistration(), false);
+    }
+
+    @Benchmark
+    public InvoiceType getInvoiceTypeFromInvoice() {
+        Invoice invoice = this.invoices.get(this.next);
+        this.next = this.next + 1 == this.inputCount ? 0 : this.next + 1;
+        return QuickBooksUtil.getInvoiceTypeFromInvoice(invoice);
+    }
+
+    @Benchmark
+    public Customer getCustomerFromSchool() {
+        return QuickBooksUtil.getCustomerFromSchool(this.nextRegistration().getSchool());
+    }
+
+    @Benchmark
+    public RegistrationRound getRegistrationRound() {
+        Registration registration = this.nextRegistration();
+        return QuickBooksUtil.getRegistrationRound(registration.getRegistrationDate(), registration.getConference());
+    }
+}
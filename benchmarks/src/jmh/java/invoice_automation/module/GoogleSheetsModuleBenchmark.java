@@ -0,0 +1,43 @@
+package invoice_automation.module;
+
+import invoice_automation.benchmarks.SyntheticData;
+import invoice_automation.model.Conference;
+import invoice_automation.model.Registration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Benchmarks parsing registration sheet rows. Lives in GoogleSheetsModule's package since parseRegistration is
+ * package-private.
+ *
+ * @author skberkeley
+ */
+@State(Scope.Thread)
+public class GoogleSheetsModuleBenchmark {
+    /**
+     * The number of synthetic sheet rows to cycle through
+     */
+    @Param({"5000"})
+    int rowCount;
+
+    private List<List<Object>> rows;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.rows = SyntheticData.sheetRows(SyntheticData.registrations(this.rowCount, 42));
+    }
+
+    @Benchmark
+    public Registration parseRegistration() {
+        List<Object> row = this.rows.get(this.next);
+        this.next = this.next + 1 == this.rowCount ? 0 : this.next + 1;
+        return GoogleSheetsModule.parseRegistration(row, Conference.FC);
+    }
+}
@@ -0,0 +1,212 @@
+package invoice_automation.benchmarks;
+
+import com.intuit.ipp.data.Invoice;
+import com.intuit.ipp.data.Line;
+import com.intuit.ipp.data.LineDetailTypeEnum;
+import com.intuit.ipp.data.ReferenceType;
+import com.intuit.ipp.data.SalesItemLineDetail;
+import invoice_automation.model.Address;
+import invoice_automation.model.Conference;
+import invoice_automation.model.InvoiceType;
+import invoice_automation.model.ItemType;
+import invoice_automation.model.PaymentMethod;
+import invoice_automation.model.Registration;
+import invoice_automation.model.RegistrationRound;
+import invoice_automation.model.School;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates realistic, reproducible inputs for the benchmarks. Every generator is seeded, so runs with the same
+ * parameters benchmark the same data.
+ *
+ * @author skberkeley
+ */
+public final class SyntheticData {
+    private static final String[] CITIES = {"Berkeley", "Oakland", "San Jose", "Fresno", "Sacramento", "Irvine"};
+    private static final String[] SCHOOL_SUFFIXES = {"High School", "Academy", "Preparatory School", "Charter School"};
+    /**
+     * Lines on a typical invoice which aren't fee items, such as discounts and descriptions
+     */
+    private static final String[] OTHER_ITEM_NAMES = {"Discount", "Placard", "Late Fee", "Position Paper Review"};
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Generates registrations for distinct schools, spread across both conferences, both payment methods and every
+     * registration round
+     * @param count - The number of registrations to generate
+     * @param seed - The seed for the random generator
+     * @return - The registrations
+     */
+    public static List<Registration> registrations(int count, long seed) {
+        Random random = new Random(seed);
+        List<Registration> registrations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            registrations.add(registration(i, random));
+        }
+        return registrations;
+    }
+
+    /**
+     * Generates a single registration, for a school with a unique name, so that very large sets of registrations can
+     * be generated a chunk at a time rather than held in memory at once
+     * @param index - Makes the school's name unique
+     * @param random - The random generator to use
+     * @return - The registration
+     */
+    public static Registration registration(int index, Random random) {
+        Conference conference = random.nextBoolean() ? Conference.BMUN : Conference.FC;
+        LocalDate sessionStart = conference == Conference.BMUN
+                ? RegistrationRound.BMUN_ROUND_1.getRoundStartDate()
+                : RegistrationRound.FC_ROUND_1.getRoundStartDate();
+        return Registration.builder()
+                .school(school(index, random))
+                .numDelegates(1 + random.nextInt(60))
+                .conference(conference)
+                .registrationDate(sessionStart.plusDays(random.nextInt(110)))
+                .paymentMethod(random.nextInt(3) == 0 ? PaymentMethod.CARD : PaymentMethod.CHECK)
+                .build();
+    }
+
+    /**
+     * Generates a school with a unique name
+     * @param index - Makes the school's name unique
+     * @param random - The random generator to use
+     * @return - The school
+     */
+    public static School school(int index, Random random) {
+        String city = CITIES[random.nextInt(CITIES.length)];
+        List<String> phoneNumbers = random.nextBoolean()
+                ? List.of(phoneNumber(random))
+                : List.of(phoneNumber(random), phoneNumber(random));
+        return School.builder()
+                .schoolName(city + " " + SCHOOL_SUFFIXES[random.nextInt(SCHOOL_SUFFIXES.length)] + " " + index)
+                .email("advisor" + index + "@school" + index + ".edu")
+                .phoneNumbers(phoneNumbers)
+                .address(new Address(
+                        (100 + random.nextInt(9900)) + " Main St",
+                        random.nextBoolean() ? "" : "Suite " + (1 + random.nextInt(300)),
+                        city,
+                        "CA",
+                        "USA",
+                        String.valueOf(90000 + random.nextInt(6000))
+                ))
+                .build();
+    }
+
+    /**
+     * Generates invoices as QuickBooks returns them, each with the passed number of lines. Only one line per invoice
+     * is a fee item, placed at a random position among the other lines.
+     * @param count - The number of invoices to generate
+     * @param linesPerInvoice - The number of lines on each invoice
+     * @param seed - The seed for the random generator
+     * @return - The invoices
+     */
+    public static List<Invoice> invoices(int count, int linesPerInvoice, long seed) {
+        Random random = new Random(seed);
+        InvoiceType[] invoiceTypes = InvoiceType.values();
+        List<Invoice> invoices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int feeLine = random.nextInt(linesPerInvoice);
+            List<Line> lines = new ArrayList<>(linesPerInvoice + 1);
+            for (int j = 0; j < linesPerInvoice; j++) {
+                String itemName = j == feeLine
+                        ? invoiceTypes[random.nextInt(invoiceTypes.length)].toString()
+                        : OTHER_ITEM_NAMES[random.nextInt(OTHER_ITEM_NAMES.length)];
+                lines.add(salesItemLine(itemName, BigDecimal.valueOf(1 + random.nextInt(60)), BigDecimal.TEN));
+            }
+            // QuickBooks appends a subtotal line to every invoice
+            Line subtotal = new Line();
+            subtotal.setDetailType(LineDetailTypeEnum.SUB_TOTAL_LINE_DETAIL);
+            lines.add(subtotal);
+
+            Invoice invoice = new Invoice();
+            invoice.setId(String.valueOf(i));
+            invoice.setLine(lines);
+            invoices.add(invoice);
+        }
+        return invoices;
+    }
+
+    /**
+     * Generates item refs for every ItemType, as loaded from QuickBooks
+     * @return - A map from ItemType to its item ref
+     */
+    public static Map<ItemType, ReferenceType> itemRefs() {
+        Map<ItemType, ReferenceType> itemRefs = new EnumMap<>(ItemType.class);
+        for (ItemType itemType : ItemType.values()) {
+            ReferenceType itemRef = new ReferenceType();
+            itemRef.setValue(String.valueOf(itemType.ordinal() + 1));
+            itemRef.setName(itemType.toString());
+            itemRefs.put(itemType, itemRef);
+        }
+        return itemRefs;
+    }
+
+    /**
+     * Generates registration sheet rows, as returned by the Sheets API, for the passed registrations. Some rows leave
+     * out the trailing invoiceSent cell, as the Sheets API does when it's empty.
+     * @param registrations - The registrations to generate rows for
+     * @return - The rows
+     */
+    public static List<List<Object>> sheetRows(List<Registration> registrations) {
+        List<List<Object>> rows = new ArrayList<>(registrations.size());
+        for (int i = 0; i < registrations.size(); i++) {
+            Registration registration = registrations.get(i);
+            School school = registration.getSchool();
+            Address address = school.getAddress();
+            List<Object> row = new ArrayList<>(List.of(
+                    " " + school.getSchoolName() + " ",
+                    school.getEmail(),
+                    school.getPhoneNumbers().get(0),
+                    address.getLine1(),
+                    address.getLine2(),
+                    address.getCity(),
+                    address.getCountrySubdivisionCode(),
+                    address.getCountry(),
+                    address.getZipCode(),
+                    String.valueOf(registration.getNumDelegates()),
+                    registration.getRegistrationDate().format(DateTimeFormatter.ISO_LOCAL_DATE),
+                    registration.getPaymentMethod() == PaymentMethod.CARD ? "Card" : "Check"
+            ));
+            if (i % 2 == 0) {
+                row.add("FALSE");
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static Line salesItemLine(String itemName, BigDecimal quantity, BigDecimal rate) {
+        ReferenceType itemRef = new ReferenceType();
+        itemRef.setName(itemName);
+        SalesItemLineDetail salesItemLineDetail = new SalesItemLineDetail();
+        salesItemLineDetail.setItemRef(itemRef);
+        salesItemLineDetail.setQty(quantity);
+        salesItemLineDetail.setUnitPrice(rate);
+
+        Line line = new Line();
+        line.setDetailType(LineDetailTypeEnum.SALES_ITEM_LINE_DETAIL);
+        line.setAmount(quantity.multiply(rate));
+        line.setSalesItemLineDetail(salesItemLineDetail);
+        return line;
+    }
+
+    private static String phoneNumber(Random random) {
+        return String.format(
+                "(%03d) %03d-%04d",
+                200 + random.nextInt(800),
+                random.nextInt(1000),
+                random.nextInt(10000)
+        );
+    }
+}
@@ -0,0 +1,278 @@
+package invoice_automation.loadtest;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Parses and runs the subset of the QuickBooks query language QuickBooksModule uses:
+ *  SELECT * | COUNT(*) FROM entity [WHERE condition [AND condition]...] [STARTPOSITION n] [MAXRESULTS n]
+ * where each condition compares a field against a quoted value with =, !=, <, <=, > or >=, or matches it against a
+ * list of values with IN (...). String equality ignores case, as QuickBooks' does. Queries may span several lines, as
+ * jOOQ renders them.
+ *
+ * @author skberkeley
+ */
+public class FakeQuickBooksQuery {
+    /**
+     * The most results QuickBooks returns for a query without MAXRESULTS
+     */
+    private static final int DEFAULT_MAX_RESULTS = 100;
+    /**
+     * The most results QuickBooks returns for any query
+     */
+    private static final int MAX_MAX_RESULTS = 1000;
+    private static final Map<String, String> ENTITY_NAMES = Map.of(
+            "customer", "Customer",
+            "invoice", "Invoice",
+            "item", "Item"
+    );
+
+    /**
+     * The name of the entity queried, as QuickBooks capitalizes it
+     */
+    @Getter
+    private final String entityName;
+    @Getter
+    private final boolean count;
+    private final List<Condition> conditions = new ArrayList<>();
+    private int startPosition = 1;
+    private int maxResults = DEFAULT_MAX_RESULTS;
+
+    private final List<String> tokens;
+    private int position;
+
+    /**
+     * Parses the passed query
+     * @param query - The query, as sent by the DataService
+     * @throws IllegalArgumentException If the query uses anything outside the supported subset
+     */
+    public FakeQuickBooksQuery(@NonNull String query) {
+        this.tokens = tokenize(query);
+        this.expect("select");
+        if (this.peekIs("count")) {
+            this.position++;
+            this.expect("(");
+            this.expect("*");
+            this.expect(")");
+            this.count = true;
+        } else {
+            this.expect("*");
+            this.count = false;
+        }
+        this.expect("from");
+        String entity = this.next();
+        this.entityName = ENTITY_NAMES.get(entity.toLowerCase(Locale.ROOT));
+        if (this.entityName == null) {
+            throw new IllegalArgumentException("Unsupported entity " + entity);
+        }
+
+        if (this.peekIs("where")) {
+            this.position++;
+            this.conditions.add(this.parseCondition());
+            while (this.peekIs("and")) {
+                this.position++;
+                this.conditions.add(this.parseCondition());
+            }
+        }
+        while (this.position < this.tokens.size()) {
+            String clause = this.next().toLowerCase(Locale.ROOT);
+            if (clause.equals("startposition")) {
+                this.startPosition = Integer.parseInt(this.next());
+            } else if (clause.equals("maxresults")) {
+                this.maxResults = Math.min(MAX_MAX_RESULTS, Integer.parseInt(this.next()));
+            } else {
+                throw new IllegalArgumentException("Unexpected " + clause + " in query");
+            }
+        }
+    }
+
+    /**
+     * Runs the query against the passed entities
+     * @param entities - Every stored entity of the queried type
+     * @return - The page of matching entities, ordered by id
+     */
+    public List<JsonObject> run(@NonNull Collection<JsonObject> entities) {
+        return entities.stream()
+                .filter(entity -> this.conditions.stream().allMatch(condition -> condition.matches(entity)))
+                .sorted(Comparator.comparingLong(entity -> Long.parseLong(entity.get("Id").getAsString())))
+                .skip(this.startPosition - 1L)
+                .limit(this.maxResults)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Counts the entities matching the query's conditions, ignoring its pagination
+     * @param entities - Every stored entity of the queried type
+     * @return - The number of matching entities
+     */
+    public long countMatches(@NonNull Collection<JsonObject> entities) {
+        return entities.stream()
+                .filter(entity -> this.conditions.stream().allMatch(condition -> condition.matches(entity)))
+                .count();
+    }
+
+    private Condition parseCondition() {
+        String field = this.next();
+        String operator = this.next().toLowerCase(Locale.ROOT);
+        List<String> values = new ArrayList<>();
+        if (operator.equals("in")) {
+            this.expect("(");
+            values.add(this.next());
+            while (this.peekIs(",")) {
+                this.position++;
+                values.add(this.next());
+            }
+            this.expect(")");
+        } else {
+            values.add(this.next());
+        }
+        return new Condition(field, operator, values);
+    }
+
+    private String next() {
+        if (this.position >= this.tokens.size()) {
+            throw new IllegalArgumentException("Query ended unexpectedly");
+        }
+        return this.tokens.get(this.position++);
+    }
+
+    private boolean peekIs(String token) {
+        return this.position < this.tokens.size() && this.tokens.get(this.position).equalsIgnoreCase(token);
+    }
+
+    private void expect(String token) {
+        String actual = this.next();
+        if (!actual.equalsIgnoreCase(token)) {
+            throw new IllegalArgumentException("Expected " + token + " but found " + actual);
+        }
+    }
+
+    /**
+     * Splits a query into keywords, identifiers, operators, punctuation and string values. String values are returned
+     * without their quotes, with doubled quotes unescaped.
+     */
+    private static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (i < query.length()) {
+                    if (query.charAt(i) == '\'' && i + 1 < query.length() && query.charAt(i + 1) == '\'') {
+                        value.append('\'');
+                        i += 2;
+                    } else if (query.charAt(i) == '\'') {
+                        break;
+                    } else {
+                        value.append(query.charAt(i++));
+                    }
+                }
+                if (i >= query.length()) {
+                    throw new IllegalArgumentException("Unterminated string in query");
+                }
+                tokens.add(value.toString());
+                i++;
+            } else if ("(),*".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if ("<>=!".indexOf(c) >= 0) {
+                int start = i;
+                while (i < query.length() && "<>=!".indexOf(query.charAt(i)) >= 0) {
+                    i++;
+                }
+                tokens.add(query.substring(start, i));
+            } else {
+                int start = i;
+                while (i < query.length() && (Character.isLetterOrDigit(query.charAt(i))
+                        || query.charAt(i) == '_' || query.charAt(i) == '.' || query.charAt(i) == '-')) {
+                    i++;
+                }
+                if (start == i) {
+                    throw new IllegalArgumentException("Unexpected character " + c + " in query");
+                }
+                tokens.add(query.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * A single comparison of an entity's field against one or more values
+     */
+    private static class Condition {
+        private final String field;
+        private final String operator;
+        private final List<String> values;
+
+        private Condition(String field, String operator, List<String> values) {
+            this.field = field;
+            this.operator = operator;
+            this.values = values;
+        }
+
+        private boolean matches(JsonObject entity) {
+            String value = getFieldValue(entity, this.field);
+            if (value == null) {
+                return false;
+            }
+            String operand = this.values.get(0);
+            switch (this.operator) {
+                case "=":
+                    return value.equalsIgnoreCase(operand);
+                case "!=":
+                case "<>":
+                    return !value.equalsIgnoreCase(operand);
+                case "<":
+                    return value.compareTo(operand) < 0;
+                case "<=":
+                    return value.compareTo(operand) <= 0;
+                case ">":
+                    return value.compareTo(operand) > 0;
+                case ">=":
+                    return value.compareTo(operand) >= 0;
+                case "in":
+                    return this.values.stream().anyMatch(value::equalsIgnoreCase);
+                default:
+                    throw new IllegalArgumentException("Unsupported operator " + this.operator);
+            }
+        }
+
+        /**
+         * Gets a field's value from an entity. References such as CustomerRef compare by the referenced id, and dates
+         * by their date part.
+         */
+        private static String getFieldValue(JsonObject entity, String field) {
+            JsonElement element = entity.get(field);
+            if (element == null) {
+                // QuickBooks field names aren't case-sensitive
+                element = entity.entrySet().stream()
+                        .filter(entry -> entry.getKey().equalsIgnoreCase(field))
+                        .map(Map.Entry::getValue)
+                        .findAny().orElse(null);
+            }
+            if (element == null || element.isJsonNull()) {
+                return null;
+            }
+            if (element.isJsonObject()) {
+                JsonElement referencedId = element.getAsJsonObject().get("value");
+                return referencedId == null ? null : referencedId.getAsString();
+            }
+            String value = element.getAsString();
+            return field.endsWith("Date") && value.length() > 10 ? value.substring(0, 10) : value;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package invoice_automation.loadtest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import invoice_automation.model.ItemType;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-memory stand-in for the QuickBooks Online v3 REST API, serving the endpoints QuickBooksModule calls:
+ *  - POST {baseUrl}/{realmId}/query, or GET with a query parameter, for queries, findAll and counts
+ *  - POST {baseUrl}/{realmId}/{entity} to create an entity, or update it with operation=update
+ *  - GET {baseUrl}/{realmId}/{entity}/{id} to read an entity
+ *  - POST {baseUrl}/{realmId}/invoice/{id}/send to email an invoice
+ *  - POST {baseUrl}/{realmId}/batch for batch requests
+ *  - GET {baseUrl}/{realmId}/cdc for change data capture
+ * Requests and responses are JSON, so the DataService must be configured to serialize requests as JSON and to expect
+ * JSON responses. Entities are stored as sent, with ids, sync tokens, metadata and invoice fields QuickBooks fills in
+ * added. Every request waits for the configured latency plus a random jitter before being handled, and requests are
+ * counted by operation.
+ *
+ * @author skberkeley
+ */
+public class FakeQuickBooksServer implements AutoCloseable {
+    private static final Gson GSON = new Gson();
+    private static final String BASE_PATH = "/v3/company";
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx");
+    private static final List<String> ENTITY_NAMES = List.of("Customer", "Invoice", "Item");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Duration latency;
+    private final Duration jitter;
+    /**
+     * Map from entity name to a map from id to each stored entity
+     */
+    private final Map<String, Map<String, JsonObject>> entities = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong nextDocNumber = new AtomicLong(1001);
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    private final LatencyRecorder requestLatencies = new LatencyRecorder();
+
+    /**
+     * Creates a new server listening on the passed port of localhost. The server isn't started.
+     * @param port - The port to listen on, or 0 to pick a free one
+     * @param latency - How long each request waits before being handled
+     * @param jitter - The most extra time, picked at random, each request waits on top of latency
+     * @param threads - The most requests handled at once
+     * @throws IOException If the server couldn't bind to the port
+     */
+    public FakeQuickBooksServer(int port, @NonNull Duration latency, @NonNull Duration jitter, int threads)
+            throws IOException {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fake-quickbooks-%d").build()
+        );
+        this.server.setExecutor(this.executor);
+        this.server.createContext(BASE_PATH + "/", this::handle);
+        ENTITY_NAMES.forEach(entityName -> this.entities.put(entityName, new ConcurrentHashMap<>()));
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Gets the URL to set as Config.BASE_URL_QBO to make calls to this server
+     * @return - The base URL
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + this.server.getAddress().getPort() + BASE_PATH;
+    }
+
+    /**
+     * Stores an active Item for every ItemType, named as QuickBooksModule expects
+     */
+    public void seedItems() {
+        for (ItemType itemType : ItemType.values()) {
+            JsonObject item = new JsonObject();
+            item.addProperty("Name", itemType.toString());
+            item.addProperty("FullyQualifiedName", itemType.toString());
+            item.addProperty("Active", true);
+            item.addProperty("Type", "Service");
+            this.create("Item", item);
+        }
+    }
+
+    /**
+     * Gets how many requests of each operation the server has handled
+     * @return - A map from operation, such as query, create or batch, to its number of requests
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        this.requestCounts.forEach((operation, count) -> counts.put(operation, count.sum()));
+        return counts;
+    }
+
+    public long getTotalRequests() {
+        return this.requestCounts.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Gets the time taken to handle each request, including the injected latency
+     * @return - The request latencies
+     */
+    public LatencyRecorder getRequestLatencies() {
+        return this.requestLatencies;
+    }
+
+    public int getEntityCount(@NonNull String entityName) {
+        return this.entities.get(entityName).size();
+    }
+
+    // Request handling
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.injectLatency();
+            // Path is /v3/company/{realmId}/{resource}[/{id}[/send]]
+            String[] segments = exchange.getRequestURI().getPath().substring(BASE_PATH.length() + 1).split("/");
+            Map<String, String> parameters = parseParameters(exchange.getRequestURI().getRawQuery());
+            String resource = segments.length > 1 ? segments[1].toLowerCase() : "";
+            String body = readBody(exchange);
+
+            JsonObject response;
+            if (resource.equals("query")) {
+                this.count("query");
+                response = this.query(parameters.getOrDefault("query", body));
+            } else if (resource.equals("batch")) {
+                this.count("batch");
+                response = this.batch(JsonParser.parseString(body).getAsJsonObject());
+            } else if (resource.equals("cdc")) {
+                this.count("cdc");
+                response = this.changeDataCapture(parameters.get("entities"), parameters.get("changedSince"));
+            } else if (segments.length == 4 && segments[3].equals("send")) {
+                this.count("send");
+                response = this.send(segments[2], parameters.get("sendTo"));
+            } else if (segments.length == 3) {
+                this.count("read");
+                response = wrap(getEntityName(resource), this.read(getEntityName(resource), segments[2]));
+            } else if (segments.length == 2) {
+                String entityName = getEntityName(resource);
+                JsonObject entity = unwrap(entityName, JsonParser.parseString(body).getAsJsonObject());
+                if ("update".equals(parameters.get("operation"))) {
+                    this.count("update");
+                    response = wrap(entityName, this.update(entityName, entity));
+                } else {
+                    this.count("create");
+                    response = wrap(entityName, this.create(entityName, entity));
+                }
+            } else {
+                throw new FaultException("Unsupported request " + exchange.getRequestURI().getPath());
+            }
+            respond(exchange, 200, response);
+        } catch (RuntimeException e) {
+            this.count("fault");
+            respond(exchange, 400, fault(e.getMessage()));
+        } finally {
+            this.requestLatencies.record(System.nanoTime() - start);
+        }
+    }
+
+    private JsonObject query(String query) {
+        FakeQuickBooksQuery parsedQuery = new FakeQuickBooksQuery(query.strip());
+        Collection<JsonObject> storedEntities = this.entities.get(parsedQuery.getEntityName()).values();
+        JsonObject queryResponse = new JsonObject();
+        if (parsedQuery.isCount()) {
+            queryResponse.addProperty("totalCount", parsedQuery.countMatches(storedEntities));
+        } else {
+            List<JsonObject> results = parsedQuery.run(storedEntities);
+            if (!results.isEmpty()) {
+                queryResponse.add(parsedQuery.getEntityName(), toArray(results));
+                queryResponse.addProperty("startPosition", 1);
+                queryResponse.addProperty("maxResults", results.size());
+            }
+        }
+        JsonObject response = new JsonObject();
+        response.add("QueryResponse", queryResponse);
+        response.addProperty("time", now());
+        return response;
+    }
+
+    private JsonObject batch(JsonObject request) {
+        JsonArray itemResponses = new JsonArray();
+        for (JsonElement element : request.getAsJsonArray("BatchItemRequest")) {
+            JsonObject itemRequest = element.getAsJsonObject();
+            JsonObject itemResponse = new JsonObject();
+            itemResponse.addProperty("bId", itemRequest.get("bId").getAsString());
+            try {
+                String entityName = ENTITY_NAMES.stream()
+                        .filter(itemRequest::has)
+                        .findAny()
+                        .orElseThrow(() -> new FaultException("Batch item has no supported entity"));
+                JsonObject entity = itemRequest.getAsJsonObject(entityName);
+                String operation = itemRequest.has("operation") ? itemRequest.get("operation").getAsString() : "create";
+                JsonObject saved = operation.equals("update")
+                        ? this.update(entityName, entity)
+                        : this.create(entityName, entity);
+                itemResponse.add(entityName, saved);
+            } catch (FaultException e) {
+                itemResponse.add("Fault", fault(e.getMessage()).get("Fault"));
+            }
+            itemResponses.add(itemResponse);
+        }
+        JsonObject response = new JsonObject();
+        response.add("BatchItemResponse", itemResponses);
+        response.addProperty("time", now());
+        return response;
+    }
+
+    private JsonObject changeDataCapture(String entityNames, String changedSince) {
+        if (entityNames == null || changedSince == null) {
+            throw new FaultException("cdc requires entities and changedSince");
+        }
+        OffsetDateTime since = OffsetDateTime.parse(changedSince, TIMESTAMP_FORMATTER);
+        JsonArray queryResponses = new JsonArray();
+        for (String entityName : entityNames.split(",")) {
+            List<JsonObject> changed = this.entities.get(getEntityName(entityName)).values().stream()
+                    .filter(entity -> !OffsetDateTime.parse(
+                            entity.getAsJsonObject("MetaData").get("LastUpdatedTime").getAsString(),
+                            TIMESTAMP_FORMATTER
+                    ).isBefore(since))
+                    .collect(Collectors.toList());
+            JsonObject queryResponse = new JsonObject();
+            if (!changed.isEmpty()) {
+                queryResponse.add(getEntityName(entityName), toArray(changed));
+                queryResponse.addProperty("startPosition", 1);
+                queryResponse.addProperty("maxResults", changed.size());
+            }
+            queryResponses.add(queryResponse);
+        }
+        JsonObject cdcResponse = new JsonObject();
+        cdcResponse.add("QueryResponse", queryResponses);
+        JsonArray cdcResponses = new JsonArray();
+        cdcResponses.add(cdcResponse);
+        JsonObject response = new JsonObject();
+        response.add("CDCResponse", cdcResponses);
+        response.addProperty("time", now());
+        return response;
+    }
+
+    private JsonObject send(String invoiceId, String sendTo) {
+        Map<String, JsonObject> invoices = this.entities.get("Invoice");
+        JsonObject invoice = invoices.computeIfPresent(invoiceId, (id, stored) -> {
+            JsonObject sent = stored.deepCopy();
+            sent.addProperty("EmailStatus", "EmailSent");
+            if (sendTo != null) {
+                JsonObject billEmail = new JsonObject();
+                billEmail.addProperty("Address", sendTo);
+                sent.add("BillEmail", billEmail);
+            }
+            touch(sent, false);
+            return sent;
+        });
+        if (invoice == null) {
+            throw new FaultException("Invoice " + invoiceId + " not found");
+        }
+        return wrap("Invoice", invoice);
+    }
+
+    private JsonObject read(String entityName, String id) {
+        JsonObject entity = this.entities.get(entityName).get(id);
+        if (entity == null) {
+            throw new FaultException(entityName + " " + id + " not found");
+        }
+        return entity;
+    }
+
+    private JsonObject create(String entityName, JsonObject entity) {
+        JsonObject created = entity.deepCopy();
+        String id = String.valueOf(this.nextId.getAndIncrement());
+        created.addProperty("Id", id);
+        created.addProperty("SyncToken", "0");
+        if (entityName.equals("Customer") && !created.has("Active")) {
+            created.addProperty("Active", true);
+        }
+        if (entityName.equals("Invoice")) {
+            if (!created.has("DocNumber")) {
+                created.addProperty("DocNumber", String.valueOf(this.nextDocNumber.getAndIncrement()));
+            }
+            if (!created.has("EmailStatus")) {
+                created.addProperty("EmailStatus", "NotSet");
+            }
+            BigDecimal total = getInvoiceTotal(created);
+            created.addProperty("TotalAmt", total);
+            created.addProperty("Balance", total);
+        }
+        touch(created, true);
+        this.entities.get(entityName).put(id, created);
+        return created;
+    }
+
+    /**
+     * Updates a stored entity, merging in the passed fields. Fails if the entity doesn't exist, or if the passed sync
+     * token isn't the stored entity's, as QuickBooks does for stale updates.
+     */
+    private JsonObject update(String entityName, JsonObject entity) {
+        if (!entity.has("Id")) {
+            throw new FaultException("Update of " + entityName + " is missing Id");
+        }
+        String id = entity.get("Id").getAsString();
+        JsonObject updated = this.entities.get(entityName).computeIfPresent(id, (storedId, stored) -> {
+            String syncToken = stored.get("SyncToken").getAsString();
+            if (entity.has("SyncToken") && !entity.get("SyncToken").getAsString().equals(syncToken)) {
+                throw new FaultException("Stale Object Error: " + entityName + " " + id + " has been updated");
+            }
+            JsonObject merged = stored.deepCopy();
+            entity.entrySet().forEach(field -> merged.add(field.getKey(), field.getValue()));
+            merged.addProperty("SyncToken", String.valueOf(Long.parseLong(syncToken) + 1));
+            merged.add("MetaData", stored.get("MetaData").deepCopy());
+            touch(merged, false);
+            return merged;
+        });
+        if (updated == null) {
+            throw new FaultException(entityName + " " + id + " not found");
+        }
+        return updated;
+    }
+
+    // Helpers
+
+    private void injectLatency() {
+        long delayNanos = this.latency.toNanos();
+        if (!this.jitter.isZero()) {
+            delayNanos += ThreadLocalRandom.current().nextLong(this.jitter.toNanos() + 1);
+        }
+        if (delayNanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delayNanos / 1_000_000, (int) (delayNanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void count(String operation) {
+        this.requestCounts.computeIfAbsent(operation, key -> new LongAdder()).increment();
+    }
+
+    private static void touch(JsonObject entity, boolean created) {
+        String now = now();
+        JsonObject metaData = entity.has("MetaData") ? entity.getAsJsonObject("MetaData") : new JsonObject();
+        if (created) {
+            metaData.addProperty("CreateTime", now);
+        }
+        metaData.addProperty("LastUpdatedTime", now);
+        entity.add("MetaData", metaData);
+    }
+
+    private static BigDecimal getInvoiceTotal(JsonObject invoice) {
+        BigDecimal total = BigDecimal.ZERO;
+        if (invoice.has("Line")) {
+            for (JsonElement line : invoice.getAsJsonArray("Line")) {
+                JsonObject lineObject = line.getAsJsonObject();
+                if ("SalesItemLineDetail".equals(getString(lineObject, "DetailType")) && lineObject.has("Amount")) {
+                    total = total.add(lineObject.get("Amount").getAsBigDecimal());
+                }
+            }
+        }
+        return total;
+    }
+
+    private static String getString(JsonObject object, String field) {
+        return object.has(field) ? object.get(field).getAsString() : null;
+    }
+
+    private static String getEntityName(String resource) {
+        return ENTITY_NAMES.stream()
+                .filter(entityName -> entityName.equalsIgnoreCase(resource))
+                .findAny()
+                .orElseThrow(() -> new FaultException("Unsupported entity " + resource));
+    }
+
+    /**
+     * Gets the entity from a request body, which may or may not be wrapped in an object keyed by the entity's name
+     */
+    private static JsonObject unwrap(String entityName, JsonObject body) {
+        if (body.size() == 1 && body.has(entityName) && body.get(entityName).isJsonObject()) {
+            return body.getAsJsonObject(entityName);
+        }
+        return body;
+    }
+
+    private static JsonObject wrap(String entityName, JsonObject entity) {
+        JsonObject response = new JsonObject();
+        response.add(entityName, entity);
+        response.addProperty("time", now());
+        return response;
+    }
+
+    private static JsonArray toArray(List<JsonObject> entities) {
+        JsonArray array = new JsonArray();
+        entities.forEach(array::add);
+        return array;
+    }
+
+    private static JsonObject fault(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("Message", message);
+        error.addProperty("Detail", message);
+        error.addProperty("code", "6000");
+        JsonArray errors = new JsonArray();
+        errors.add(error);
+        JsonObject fault = new JsonObject();
+        fault.add("Error", errors);
+        fault.addProperty("type", "ValidationFault");
+        JsonObject response = new JsonObject();
+        response.add("Fault", fault);
+        response.addProperty("time", now());
+        return response;
+    }
+
+    private static String now() {
+        return OffsetDateTime.now(ZoneOffset.UTC).format(TIMESTAMP_FORMATTER);
+    }
+
+    private static Map<String, String> parseParameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            String key = separator < 0 ? parameter : parameter.substring(0, separator);
+            String value = separator < 0 ? "" : parameter.substring(separator + 1);
+            parameters.put(
+                    URLDecoder.decode(key, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8)
+            );
+        }
+        return parameters;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+        try (InputStream input = body) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject response) throws IOException {
+        byte[] bytes = GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * A request QuickBooks would reject, reported as a Fault
+     */
+    private static class FaultException extends RuntimeException {
+        private FaultException(String message) {
+            super(message);
+        }
+    }
+}
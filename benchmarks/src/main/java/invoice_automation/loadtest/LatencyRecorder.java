@@ -0,0 +1,65 @@
+package invoice_automation.loadtest;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Records latencies and reports their percentiles. Every sample is kept, which is exact and costs 8 bytes a sample, so
+ * a million registrations take 8MB. Safe to record into from multiple threads.
+ *
+ * @author skberkeley
+ */
+public class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int size;
+
+    /**
+     * Records a single latency
+     * @param nanos - The latency, in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        if (this.size == this.samples.length) {
+            this.samples = Arrays.copyOf(this.samples, this.size * 2);
+        }
+        this.samples[this.size++] = nanos;
+    }
+
+    public synchronized int getCount() {
+        return this.size;
+    }
+
+    /**
+     * Gets a percentile of the recorded latencies, using the nearest-rank method
+     * @param percentile - The percentile to get, between 0 and 100
+     * @return - The latency at the percentile, or zero if nothing was recorded
+     */
+    public synchronized Duration getPercentile(double percentile) {
+        if (this.size == 0) {
+            return Duration.ZERO;
+        }
+        long[] sorted = Arrays.copyOf(this.samples, this.size);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return Duration.ofNanos(sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))]);
+    }
+
+    /**
+     * Summarizes the recorded latencies
+     * @return - The count and the 50th, 90th, 99th and 100th percentiles, in milliseconds
+     */
+    @Override
+    public String toString() {
+        return String.format(
+                "n=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms",
+                this.getCount(),
+                toMillis(this.getPercentile(50)),
+                toMillis(this.getPercentile(90)),
+                toMillis(this.getPercentile(99)),
+                toMillis(this.getPercentile(100))
+        );
+    }
+
+    private static double toMillis(Duration duration) {
+        return duration.toNanos() / 1_000_000.0;
+    }
+}
@@ -0,0 +1,163 @@
+package invoice_automation.loadtest;
+
+import com.intuit.ipp.util.Config;
+import invoice_automation.QuickBooksException;
+import invoice_automation.benchmarks.SyntheticData;
+import invoice_automation.handler.RegistrationHandler;
+import invoice_automation.model.Registration;
+import invoice_automation.module.QuickBooksRateLimiter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Load tests RegistrationHandler end to end against a FakeQuickBooksServer, pointing the devkit at it through
+ * Config.BASE_URL_QBO. Synthetic registrations for distinct schools are generated and handled a chunk at a time, so
+ * runs of up to a million schools don't hold every registration in memory. Reports end-to-end throughput, QuickBooks
+ * API calls per registration, and latency percentiles for handling registrations and for individual API calls.
+ * Options, each followed by its value:
+ *  --schools - The number of registrations to handle, each for a distinct school. Defaults to 10000
+ *  --mode - single to call handleRegistration for each registration, batch to call handleRegistrations per chunk, or
+ *           pipeline to call handleRegistrationsConcurrently per chunk. Defaults to batch
+ *  --chunk - The number of registrations handled per batch. Defaults to 1000
+ *  --latency-ms - The latency injected into every API call. Defaults to 50
+ *  --jitter-ms - The most random latency added on top of --latency-ms. Defaults to 20
+ *  --server-threads - The most API calls the stand-in handles at once. Defaults to 64
+ *  --requests-per-minute - The rate QuickBooksModule paces calls to. Defaults to QuickBooks' limit of 500, so runs
+ *                          show what QuickBooks itself would allow; raise it to find the handler's own limits
+ *  --max-concurrent-requests - The most calls QuickBooksModule has in flight. Defaults to QuickBooks' limit of 10
+ *  --seed - The seed for generating registrations. Defaults to 42
+ *
+ * @author skberkeley
+ */
+public class LoadTest {
+    private static final String REALM_ID = "load-test-realm";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int schools = Integer.parseInt(options.getOrDefault("schools", "10000"));
+        String mode = options.getOrDefault("mode", "batch").toLowerCase(Locale.ROOT);
+        int chunkSize = Integer.parseInt(options.getOrDefault("chunk", "1000"));
+        Duration latency = Duration.ofMillis(Long.parseLong(options.getOrDefault("latency-ms", "50")));
+        Duration jitter = Duration.ofMillis(Long.parseLong(options.getOrDefault("jitter-ms", "20")));
+        int serverThreads = Integer.parseInt(options.getOrDefault("server-threads", "64"));
+        int requestsPerMinute = Integer.parseInt(options.getOrDefault("requests-per-minute", "500"));
+        int maxConcurrentRequests = Integer.parseInt(options.getOrDefault("max-concurrent-requests", "10"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        if (!List.of("single", "batch", "pipeline").contains(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+
+        try (FakeQuickBooksServer server = new FakeQuickBooksServer(0, latency, jitter, serverThreads)) {
+            server.seedItems();
+            server.start();
+
+            // Point the devkit at the stand-in, speaking uncompressed JSON
+            Config.setProperty(Config.BASE_URL_QBO, server.getBaseUrl());
+            Config.setProperty(Config.SERIALIZATION_REQUEST_FORMAT, "json");
+            Config.setProperty(Config.SERIALIZATION_RESPONSE_FORMAT, "json");
+            Config.setProperty(Config.COMPRESSION_REQUEST_FORMAT, "");
+            Config.setProperty(Config.COMPRESSION_RESPONSE_FORMAT, "");
+            QuickBooksRateLimiter.configureRealm(REALM_ID, requestsPerMinute, maxConcurrentRequests);
+            RegistrationHandler handler = new RegistrationHandler("load-test-token", REALM_ID, false);
+
+            System.out.printf(
+                    "Handling %d registrations in %s mode, %d per chunk, with %dms + up to %dms latency per call%n",
+                    schools,
+                    mode,
+                    chunkSize,
+                    latency.toMillis(),
+                    jitter.toMillis()
+            );
+            Random random = new Random(seed);
+            LatencyRecorder handlingLatencies = new LatencyRecorder();
+            int failed = 0;
+            long start = System.nanoTime();
+            for (int chunkStart = 0; chunkStart < schools; chunkStart += chunkSize) {
+                List<Registration> registrations = new ArrayList<>(chunkSize);
+                for (int i = chunkStart; i < Math.min(schools, chunkStart + chunkSize); i++) {
+                    registrations.add(SyntheticData.registration(i, random));
+                }
+                failed += handleChunk(handler, registrations, mode, handlingLatencies);
+                System.out.printf(
+                        "  %d/%d registrations handled, %d API calls so far%n",
+                        chunkStart + registrations.size(),
+                        schools,
+                        server.getTotalRequests()
+                );
+            }
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+            long apiCalls = server.getTotalRequests();
+            System.out.println();
+            System.out.printf("Elapsed: %.1fs%n", elapsed.toMillis() / 1000.0);
+            System.out.printf("Throughput: %.1f registrations/s%n", schools * 1_000_000_000.0 / elapsed.toNanos());
+            System.out.printf("Failed registrations: %d%n", failed);
+            System.out.printf("API calls: %d (%.2f per registration)%n", apiCalls, (double) apiCalls / schools);
+            server.getRequestCounts().forEach((operation, count) -> System.out.printf(
+                    "  %s: %d (%.2f per registration)%n",
+                    operation,
+                    count,
+                    (double) count / schools
+            ));
+            System.out.println("Customers: " + server.getEntityCount("Customer")
+                    + ", invoices: " + server.getEntityCount("Invoice"));
+            System.out.println((mode.equals("single") ? "Registration latency: " : "Chunk latency: ")
+                    + handlingLatencies);
+            System.out.println("API call latency: " + server.getRequestLatencies());
+        }
+    }
+
+    /**
+     * Handles a chunk of registrations in the passed mode
+     * @return - The number of registrations which couldn't be fully handled
+     */
+    private static int handleChunk(
+            RegistrationHandler handler,
+            List<Registration> registrations,
+            String mode,
+            LatencyRecorder handlingLatencies
+    ) {
+        long start = System.nanoTime();
+        switch (mode) {
+            case "single":
+                handler.startBatch(registrations);
+                int failed = 0;
+                for (Registration registration : registrations) {
+                    long registrationStart = System.nanoTime();
+                    try {
+                        handler.handleRegistration(registration);
+                    } catch (QuickBooksException e) {
+                        failed++;
+                    }
+                    handlingLatencies.record(System.nanoTime() - registrationStart);
+                }
+                // Emails are sent in the background, so count failed sends against the chunk
+                return failed + handler.awaitEmails().size();
+            case "pipeline":
+                int pipelineFailures = handler.handleRegistrationsConcurrently(registrations).getFailures().size();
+                handlingLatencies.record(System.nanoTime() - start);
+                return pipelineFailures;
+            default:
+                int batchFailures = handler.handleRegistrations(registrations).size();
+                handlingLatencies.record(System.nanoTime() - start);
+                return batchFailures;
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs but found " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}